@@ -0,0 +1,53 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+/**
+ * A {@link QueryModifierDelegate} whose modifications can be cached. By
+ * default, caching entity providers turn the cache off for containers that
+ * have a delegate, and for providers whose delegate modifies the filters, as
+ * the results of the modified queries cannot be told apart. A delegate that
+ * implements this interface declares that the way it modifies queries is
+ * fully determined by its class and its {@link #getCacheKey() cache key}, e.g.
+ * a delegate that restricts all queries to the current tenant could return the
+ * tenant identifier.
+ * <p>
+ * The results of queries that are modified by cacheable delegates are cached
+ * separately for each cache key, so caching stays on while the data of e.g.
+ * different tenants is kept apart. As the conditions that a delegate adds
+ * cannot be evaluated in memory, these results are dropped rather than
+ * updated when entities are added or changed, while the cached entities
+ * themselves are kept. Results of a more specific filter may however be
+ * narrowed down in memory from the cached results of a broader filter with the
+ * same cache key, so the conditions that a delegate adds must not depend on
+ * the filters of the query.
+ *
+ * @since 4.0.1
+ */
+public interface CacheableQueryModifierDelegate extends QueryModifierDelegate {
+
+    /**
+     * Gets the key that identifies how this delegate modifies queries. Two
+     * delegates of the same class with equal keys must modify all queries in
+     * exactly the same way. The key must implement <code>equals()</code> and
+     * <code>hashCode()</code>, should be {@link java.io.Serializable} and must
+     * not change while queries are being cached with it.
+     *
+     * @return the cache key, or null if the modifications do not depend on
+     *         any state.
+     */
+    public Object getCacheKey();
+}
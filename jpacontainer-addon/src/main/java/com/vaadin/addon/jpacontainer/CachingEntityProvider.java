@@ -62,7 +62,8 @@ public interface CachingEntityProvider<T> extends EntityProvider<T> {
      * <b>NOTE!</b> If a {@link QueryModifierDelegate} is in use and it modifies
      * the filters through the
      * {@link QueryModifierDelegate#filtersWillBeAdded(javax.persistence.criteria.CriteriaBuilder, javax.persistence.criteria.CriteriaQuery, java.util.List)}
-     * method, caching will <em>NOT</em> be enabled.
+     * method, caching will <em>NOT</em> be enabled, unless the delegate is a
+     * {@link CacheableQueryModifierDelegate}.
      * 
      * @return true if the cache is in use, false otherwise.
      */
@@ -76,7 +77,8 @@ public interface CachingEntityProvider<T> extends EntityProvider<T> {
      * <b>NOTE!</b> If a {@link QueryModifierDelegate} is in use and it modifies
      * the filters through the
      * {@link QueryModifierDelegate#filtersWillBeAdded(javax.persistence.criteria.CriteriaBuilder, javax.persistence.criteria.CriteriaQuery, java.util.List)}
-     * method, caching will <em>NOT</em> be enabled.
+     * method, caching will <em>NOT</em> be enabled, unless the delegate is a
+     * {@link CacheableQueryModifierDelegate}.
      * 
      * @param cacheEnabled
      *            true to turn the cache on, false to turn it off.
@@ -90,7 +92,8 @@ public interface CachingEntityProvider<T> extends EntityProvider<T> {
      * Returns whether the entity provider is currently using the internal
      * cache, which will be the case if both the caching is enabled (
      * {@link #setCacheEnabled(boolean)} and there is no filter modifiying
-     * {@link QueryModifierDelegate} in use.
+     * {@link QueryModifierDelegate} in use, other than a
+     * {@link CacheableQueryModifierDelegate}.
      * 
      * @return true if the cache is actually in use, false otherwise.
      */
@@ -153,4 +156,45 @@ public interface CachingEntityProvider<T> extends EntityProvider<T> {
      */
     public void setCloneCachedEntities(boolean clone)
             throws UnsupportedOperationException;
+
+    /**
+     * Gets the minimum number of entity identifiers that are fetched at a
+     * time.
+     * 
+     * @see #setChunkSizeBounds(int, int)
+     * @return the minimum chunk size.
+     */
+    public int getMinChunkSize();
+
+    /**
+     * Gets the maximum number of entity identifiers that are fetched at a
+     * time.
+     * 
+     * @see #setChunkSizeBounds(int, int)
+     * @return the maximum chunk size.
+     */
+    public int getMaxChunkSize();
+
+    /**
+     * Sets the bounds of the number of entity identifiers that are fetched at
+     * a time. Within the bounds, the implementation may adapt the number to
+     * e.g. the query latency and the way the container is scrolled, and fetch
+     * the identifiers ahead of the rows that are being viewed. Setting both
+     * bounds to the same value makes the number fixed. This feature is
+     * optional.
+     * 
+     * @param minChunkSize
+     *            the minimum number of identifiers to fetch at a time (at
+     *            least 1).
+     * @param maxChunkSize
+     *            the maximum number of identifiers to fetch at a time (at
+     *            least <code>minChunkSize</code>).
+     * @throws IllegalArgumentException
+     *             if the bounds are invalid.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support configuring the
+     *             chunk size.
+     */
+    public void setChunkSizeBounds(int minChunkSize, int maxChunkSize)
+            throws UnsupportedOperationException;
 }
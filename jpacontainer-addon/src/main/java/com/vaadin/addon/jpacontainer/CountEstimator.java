@@ -0,0 +1,47 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+
+import com.vaadin.v7.data.Container.Filter;
+
+/**
+ * Estimates the number of entities that match a filter without counting them,
+ * e.g. from the row count statistics that the database keeps for its tables.
+ * Used by entity providers whose {@link CountStrategy} is
+ * {@link CountStrategy#estimated(CountEstimator) estimated}.
+ *
+ * @see EstimatingEntityProvider
+ * @since 4.0.1
+ */
+public interface CountEstimator<T> extends Serializable {
+
+    /**
+     * Estimates the number of entities that are matched by
+     * <code>filter</code>.
+     *
+     * @param entityContainer
+     *            the container that requests the count (may be null).
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @return the estimate, or -1 if the entities cannot be estimated, in
+     *         which case they are counted.
+     */
+    public int estimateEntityCount(EntityContainer<T> entityContainer,
+            Filter filter);
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+
+/**
+ * Describes how an {@link EstimatingEntityProvider} counts the entities that
+ * match a filter:
+ * <ul>
+ * <li>{@link #exact()} counts all of them, which is the default;</li>
+ * <li>{@link #capped(int)} counts them up to a limit, so a count equal to the
+ * limit means "at least that many";</li>
+ * <li>{@link #estimated(CountEstimator)} asks an estimator, e.g. one that
+ * reads the statistics of the database, and counts exactly only if it has no
+ * estimate.</li>
+ * </ul>
+ * Strategies are immutable and may be shared by several providers.
+ *
+ * @since 4.0.1
+ */
+public final class CountStrategy<T> implements Serializable {
+
+    private static final long serialVersionUID = 5304166217306180214L;
+
+    /**
+     * The ways to count entities.
+     */
+    public enum Mode {
+        /**
+         * All entities are counted.
+         */
+        EXACT,
+        /**
+         * Entities are counted up to a limit.
+         */
+        CAPPED,
+        /**
+         * The count is estimated.
+         */
+        ESTIMATED
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final CountStrategy EXACT = new CountStrategy<Object>(
+            Mode.EXACT, -1, null);
+
+    private final Mode mode;
+    private final int limit;
+    private final CountEstimator<T> estimator;
+
+    private CountStrategy(Mode mode, int limit, CountEstimator<T> estimator) {
+        this.mode = mode;
+        this.limit = limit;
+        this.estimator = estimator;
+    }
+
+    /**
+     * Returns the strategy that counts all entities.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CountStrategy<T> exact() {
+        return EXACT;
+    }
+
+    /**
+     * Returns a strategy that counts the entities up to <code>limit</code>.
+     *
+     * @param limit
+     *            the max number of entities to count (must be at least 1).
+     * @throws IllegalArgumentException
+     *             if the limit is less than 1.
+     */
+    public static <T> CountStrategy<T> capped(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        return new CountStrategy<T>(Mode.CAPPED, limit, null);
+    }
+
+    /**
+     * Returns a strategy that estimates the count with
+     * <code>estimator</code>.
+     *
+     * @param estimator
+     *            the estimator (must not be null).
+     */
+    public static <T> CountStrategy<T> estimated(CountEstimator<T> estimator) {
+        assert estimator != null : "estimator must not be null";
+        return new CountStrategy<T>(Mode.ESTIMATED, -1, estimator);
+    }
+
+    /**
+     * Gets the way that the entities are counted.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Gets the max number of entities to count, or -1 if the mode is not
+     * {@link Mode#CAPPED}.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the estimator, or null if the mode is not {@link Mode#ESTIMATED}.
+     */
+    public CountEstimator<T> getEstimator() {
+        return estimator;
+    }
+
+    /**
+     * Tests whether <code>count</code>, as counted with this strategy, is the
+     * exact number of entities. A capped count is exact if it is below the
+     * limit, an estimate never is.
+     *
+     * @param count
+     *            the count.
+     * @return true if the count is exact, false otherwise.
+     */
+    public boolean isExact(int count) {
+        switch (mode) {
+        case EXACT:
+            return true;
+        case CAPPED:
+            return count < limit;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof CountStrategy)) {
+            return false;
+        }
+        CountStrategy<?> other = (CountStrategy<?>) obj;
+        return mode == other.mode
+                && limit == other.limit
+                && (estimator == null ? other.estimator == null : estimator
+                        .equals(other.estimator));
+    }
+
+    @Override
+    public int hashCode() {
+        return mode.hashCode() * 31 + limit
+                + (estimator == null ? 0 : estimator.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+        case CAPPED:
+            return "CountStrategy[CAPPED, limit=" + limit + "]";
+        case ESTIMATED:
+            return "CountStrategy[ESTIMATED, " + estimator + "]";
+        default:
+            return "CountStrategy[EXACT]";
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+
+/**
+ * Estimates how much memory a cached entity uses, so that caching entity
+ * providers can keep their caches within a memory budget instead of a number
+ * of entries. A weigher that knows the entity class can e.g. include the
+ * collections that the entity has loaded, which the default estimate leaves
+ * out.
+ *
+ * @see com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider#setMaxCacheWeight(long)
+ * @since 4.0.1
+ */
+public interface EntityWeigher<T> extends Serializable {
+
+    /**
+     * Estimates the memory used by <code>entity</code>.
+     *
+     * @param entity
+     *            the entity to weigh (never null).
+     * @return the estimate in bytes (at least 1).
+     */
+    public long weigh(T entity);
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+/**
+ * An {@link EntityProvider} whose entity counts need not be exact. Counting
+ * all the entities that match a filter may take long on large tables, so the
+ * provider can be told to count only up to a limit, or to estimate the count
+ * instead, see {@link CountStrategy}.
+ * <p>
+ * {@link JPAContainer} treats a count that is not exact as the size of the
+ * container until the user scrolls past it, and then grows (or shrinks) the
+ * size lazily as rows are found, firing an
+ * {@link com.vaadin.v7.data.Container.ItemSetChangeEvent} whenever it changes.
+ *
+ * @since 4.0.1
+ */
+public interface EstimatingEntityProvider<T> extends EntityProvider<T> {
+
+    /**
+     * Sets the strategy that {@link #getEntityCount(EntityContainer,
+     * com.vaadin.v7.data.Container.Filter)} counts the entities with.
+     *
+     * @param countStrategy
+     *            the strategy, or null to count the entities exactly.
+     */
+    public void setCountStrategy(CountStrategy<T> countStrategy);
+
+    /**
+     * Gets the strategy that the entities are counted with.
+     *
+     * @return the strategy (never null).
+     */
+    public CountStrategy<T> getCountStrategy();
+}
@@ -135,6 +135,11 @@ public class JPAContainer<T> implements EntityContainer<T>,
      * entities) is performed.
      */
     private static final int CLEANUPRATE = 200;
+    /**
+     * The number of rows that {@link #size()} adds past the last row found
+     * while the entity count is not exact or not counted at all.
+     */
+    private static final int ESTIMATED_SIZE_LOOKAHEAD = 100;
     private EntityProvider<T> entityProvider;
     private AdvancedFilterableSupport filterSupport;
     private LinkedList<ItemSetChangeListener> listeners;
@@ -144,6 +149,32 @@ public class JPAContainer<T> implements EntityContainer<T>,
     private BufferedContainerDelegate<T> bufferingDelegate;
     private boolean readOnly = false;
     private boolean writeThrough = false;
+    /**
+     * The entity count that the size was last estimated from, or -1 if the
+     * count is exact.
+     */
+    private int estimatedCount = -1;
+    /**
+     * The size that was last estimated, or -1 if none.
+     */
+    private int estimatedSize = -1;
+    /**
+     * The number of rows in the entity provider that are known to exist, as
+     * seen from the rows that have been fetched since the size was estimated.
+     */
+    private int rowsFound;
+    /**
+     * The number of rows in the entity provider, if a fetch has run past the
+     * last row, or -1 if not known.
+     */
+    private int rowsEnd = -1;
+    /**
+     * True if rows have been fetched that change the size since it was last
+     * returned by {@link #size()}.
+     */
+    private boolean estimatedSizeDirty;
+    private boolean estimatedSizeChanging;
+    private boolean infiniteScrollEnabled = false;
 
     transient private HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> itemRegistry;
 
@@ -253,6 +284,10 @@ public class JPAContainer<T> implements EntityContainer<T>,
     @SuppressWarnings("unchecked")
     protected void fireContainerItemSetChange(final ItemSetChangeEvent event) {
         assert event != null : "event must not be null";
+        if (!(event instanceof JPAContainer.EstimatedSizeChangedEvent)) {
+            // The rows may have changed, start estimating over
+            resetEstimatedSize();
+        }
         if (listeners == null || !fireContainerItemSetChangeEvents) {
             return;
         }
@@ -330,6 +365,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
                     .removeListener(this);
         }
         this.entityProvider = entityProvider;
+        resetEstimatedSize();
         // Register listener with new provider
         registerProvider();
     }
@@ -737,6 +773,40 @@ public class JPAContainer<T> implements EntityContainer<T>,
         this.containsIdFiresItemSetChangeIfNotFound = value;
     }
 
+    /**
+     * Returns whether the container is in infinite scroll mode, in which the
+     * entities are not counted.
+     * 
+     * @see #setInfiniteScrollEnabled(boolean)
+     * @since 4.0.1
+     */
+    public boolean isInfiniteScrollEnabled() {
+        return infiniteScrollEnabled;
+    }
+
+    /**
+     * Turns the infinite scroll mode on or off. In this mode, e.g. for
+     * log-style views, {@link #size()} does not count the entities but
+     * reports the rows fetched so far plus {@value #ESTIMATED_SIZE_LOOKAHEAD}
+     * rows, so that showing the first page only takes a single page query.
+     * The size grows as rows are fetched, until a fetch runs past the last
+     * row. An {@link EstimatedSizeChangedEvent} is fired from {@link #size()}
+     * whenever the size has changed, the last one with the
+     * {@link EstimatedSizeChangedEvent#isFinal() final} size.
+     * <p>
+     * Turning the mode on or off does not fire an event, so it should be done
+     * before the container is shown. The mode is off by default.
+     * 
+     * @param infiniteScrollEnabled
+     *            true to turn infinite scroll mode on, false to count the
+     *            entities.
+     * @since 4.0.1
+     */
+    public void setInfiniteScrollEnabled(boolean infiniteScrollEnabled) {
+        this.infiniteScrollEnabled = infiniteScrollEnabled;
+        resetEstimatedSize();
+    }
+
     /**
      * @see Container#containsId(java.lang.Object)
      */
@@ -908,9 +978,47 @@ public class JPAContainer<T> implements EntityContainer<T>,
         return result;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the entity provider is an {@link EstimatingEntityProvider} whose
+     * count is not exact, the count is used as the size until rows are
+     * fetched past it. The size is then grown lazily, always
+     * {@value #ESTIMATED_SIZE_LOOKAHEAD} rows past the last row found, until
+     * a fetch runs past the last row, which fixes the size. An
+     * {@link EstimatedSizeChangedEvent} is fired whenever the size changes.
+     * As rows are fetched while e.g. a table is rendering them, the event is
+     * only fired on the next call to this method. In
+     * {@link #setInfiniteScrollEnabled(boolean) infinite scroll mode}, the
+     * entities are not counted at all.
+     */
     public int size() {
-        int origSize = doGetEntityProvider().getEntityCount(this,
-                getAppliedFiltersAsConjunction());
+        int origSize;
+        if (infiniteScrollEnabled) {
+            estimatedCount = 0;
+            estimatedSize = getEstimatedSize();
+            origSize = estimatedSize;
+        } else {
+            origSize = estimateSize(doGetEntityProvider().getEntityCount(this,
+                    getAppliedFiltersAsConjunction()));
+        }
+        int size = addBufferedItems(origSize);
+        if (estimatedSizeDirty && !estimatedSizeChanging) {
+            estimatedSizeDirty = false;
+            if (estimatedCount > -1) {
+                estimatedSizeChanging = true;
+                try {
+                    fireContainerItemSetChange(new EstimatedSizeChangedEvent(
+                            size, rowsEnd > -1));
+                } finally {
+                    estimatedSizeChanging = false;
+                }
+            }
+        }
+        return size;
+    }
+
+    private int addBufferedItems(int origSize) {
         if (isWriteThrough()) {
             return origSize;
         } else {
@@ -920,6 +1028,106 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * Returns the number of rows in the entity provider as seen from
+     * <code>count</code>, which the provider has counted.
+     */
+    @SuppressWarnings("unchecked")
+    private int estimateSize(int count) {
+        EntityProvider<T> provider = doGetEntityProvider();
+        if (provider instanceof EstimatingEntityProvider) {
+            CountStrategy<T> strategy = ((EstimatingEntityProvider<T>) provider)
+                    .getCountStrategy();
+            if (strategy != null && !strategy.isExact(count)) {
+                estimatedCount = count;
+                estimatedSize = getEstimatedSize();
+                return estimatedSize;
+            }
+        }
+        estimatedCount = -1;
+        return count;
+    }
+
+    private int getEstimatedSize() {
+        if (rowsEnd > -1) {
+            return rowsEnd;
+        } else if (rowsFound < estimatedCount) {
+            return estimatedCount;
+        } else {
+            return rowsFound + ESTIMATED_SIZE_LOOKAHEAD;
+        }
+    }
+
+    /**
+     * Records that <code>found</code> of the <code>requested</code> rows
+     * starting from <code>index</code> in the entity provider were fetched,
+     * and marks the size dirty if this changes the estimated size, so that
+     * the next call to {@link #size()} fires an
+     * {@link EstimatedSizeChangedEvent}. If nothing is found past the rows found so far, e.g.
+     * when the scroll bar is dragged past the end, the last row is looked up
+     * by bisecting. Does nothing if the size is neither estimated nor in
+     * infinite scroll mode.
+     */
+    private void rowsFetched(int index, int found, int requested) {
+        if (estimatedCount < 0) {
+            return;
+        }
+        if (found > 0) {
+            rowsFound = Math.max(rowsFound, index + found);
+        }
+        if (found < requested) {
+            int end;
+            if (index <= rowsFound) {
+                end = index + found;
+            } else if (rowsEnd > -1 && index >= rowsEnd) {
+                end = rowsEnd;
+            } else {
+                // An empty fetch past the rows found only tells that the
+                // last row is somewhere before it
+                end = findRowsEnd(rowsFound, index);
+                rowsFound = end;
+            }
+            rowsEnd = rowsEnd < 0 ? end : Math.min(rowsEnd, end);
+        }
+        if (rowsEnd > -1 && rowsEnd < rowsFound) {
+            // Rows have been added since
+            rowsEnd = rowsFound;
+        }
+        if (getEstimatedSize() != estimatedSize) {
+            estimatedSizeDirty = true;
+        }
+    }
+
+    /**
+     * Finds the number of rows in the entity provider by bisecting between
+     * <code>from</code>, up to which the rows are known to exist, and
+     * <code>to</code>, at which there is no row.
+     */
+    private int findRowsEnd(int from, int to) {
+        EntityProvider<T> provider = doGetEntityProvider();
+        Filter filter = getAppliedFiltersAsConjunction();
+        List<SortBy> sortBy = getSortByList();
+        while (from < to) {
+            int index = (from + to) >>> 1;
+            Object itemId = provider.getEntityIdentifierAt(this, filter,
+                    sortBy, index);
+            if (itemId == null) {
+                to = index;
+            } else {
+                from = index + 1;
+            }
+        }
+        return from;
+    }
+
+    private void resetEstimatedSize() {
+        estimatedCount = infiniteScrollEnabled ? 0 : -1;
+        estimatedSize = -1;
+        rowsFound = 0;
+        rowsEnd = -1;
+        estimatedSizeDirty = false;
+    }
+
     /**
      * Returns a conjunction (filter1 AND filter2 AND ... AND filterN) of all
      * the applied filters. If there are no applied filters, this method returns
@@ -1033,8 +1241,10 @@ public class JPAContainer<T> implements EntityContainer<T>,
 
     public Object getIdByIndex(int index) {
         if (isWriteThrough()) {
-            return doGetEntityProvider().getEntityIdentifierAt(this,
+            Object itemId = doGetEntityProvider().getEntityIdentifierAt(this,
                     getAppliedFiltersAsConjunction(), getSortByList(), index);
+            rowsFetched(index, itemId == null ? 0 : 1, 1);
+            return itemId;
         } else {
             int addedItems = bufferingDelegate.getAddedItemIds().size();
             if (index < addedItems) {
@@ -1045,6 +1255,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
                 Object itemId = doGetEntityProvider().getEntityIdentifierAt(
                         this, getAppliedFiltersAsConjunction(),
                         getSortByList(), index);
+                rowsFetched(index, itemId == null ? 0 : 1, 1);
                 return itemId;
             }
         }
@@ -1556,6 +1767,49 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * Event fired when the {@link JPAContainer#size() size} that is estimated
+     * from an entity count that is not exact, or in
+     * {@link JPAContainer#setInfiniteScrollEnabled(boolean) infinite scroll
+     * mode}, changes as rows are fetched past it or a fetch runs past the
+     * last row. The event is fired on the next call to
+     * {@link JPAContainer#size()} after the change.
+     * 
+     * @see EstimatingEntityProvider
+     * @since 4.0.1
+     */
+    public final class EstimatedSizeChangedEvent implements
+            ItemSetChangeEvent {
+
+        private static final long serialVersionUID = -3527908405911562718L;
+        private final int size;
+        private final boolean finalSize;
+
+        protected EstimatedSizeChangedEvent(int size, boolean finalSize) {
+            this.size = size;
+            this.finalSize = finalSize;
+        }
+
+        public Container getContainer() {
+            return JPAContainer.this;
+        }
+
+        /**
+         * Gets the new size of the container.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Returns true if the last row has been found, which makes the size
+         * final, or false if the size may still grow as rows are fetched.
+         */
+        public boolean isFinal() {
+            return finalSize;
+        }
+    }
+
     /**
      * Event fired when a {@link EntityProviderChangeEvent} is received by the
      * container.
@@ -1749,11 +2003,38 @@ public class JPAContainer<T> implements EntityContainer<T>,
         removeListener(listener);
     }
 
+    /**
+     * Gets the identifiers of at most <code>numberOfItems</code> items,
+     * starting at <code>startIndex</code>. If the entity provider is a
+     * {@link RangedEntityProvider} and there are no buffered changes, the
+     * whole range is fetched with one call to the provider. Otherwise the
+     * identifiers are fetched one at a time.
+     * <p>
+     * The returned list is shorter than <code>numberOfItems</code> if the end
+     * of the container is reached. Unlike in earlier versions, it is not
+     * padded with nulls.
+     */
     public List<?> getItemIds(int startIndex, int numberOfItems) {
-        // FIXME this should be optimized
+        EntityProvider<T> provider = doGetEntityProvider();
+        if (provider instanceof RangedEntityProvider
+                && (isWriteThrough() || !bufferingDelegate.isModified())) {
+            // Fetch the whole range at once
+            List<?> ids = ((RangedEntityProvider<T>) provider)
+                    .getEntityIdentifiers(this,
+                            getAppliedFiltersAsConjunction(), getSortByList(),
+                            startIndex, numberOfItems);
+            rowsFetched(startIndex, ids.size(), numberOfItems);
+            return ids;
+        }
+        // Buffered changes shift the indexes, so fetch one item at a time
+        // then, as well as from providers that cannot fetch ranges
         ArrayList<Object> ids = new ArrayList<Object>();
         for (int i = 0; i < numberOfItems; i++) {
-            ids.add(getIdByIndex(startIndex + i));
+            Object id = getIdByIndex(startIndex + i);
+            if (id == null) {
+                break;
+            }
+            ids.add(id);
         }
         return ids;
     }
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import java.util.List;
+
+import com.vaadin.v7.data.Container.Filter;
+
+/**
+ * An {@link EntityProvider} that can fetch a range of entities, or their
+ * identifiers, at once. {@link JPAContainer#getItemIds(int, int)} uses a
+ * single call to fetch a range from such a provider, which typically runs one
+ * query instead of one per row. Other providers are asked for the rows one at
+ * a time.
+ * 
+ * @since 4.0.1
+ */
+public interface RangedEntityProvider<T> extends EntityProvider<T> {
+
+    /**
+     * Gets the identifiers of at most <code>count</code> entities, starting at
+     * position <code>startIndex</code> in the result set determined from
+     * <code>filter</code> and <code>sortBy</code>. This is the ranged version
+     * of
+     * {@link #getEntityIdentifierAt(EntityContainer, Filter, List, int)}
+     * and should be implemented using a single query where possible.
+     * 
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @param startIndex
+     *            the index of the first entity to fetch.
+     * @param count
+     *            the maximum number of identifiers to fetch.
+     * @return an unmodifiable list of entity identifiers (never null), which
+     *         is shorter than <code>count</code> if the end of the result set
+     *         was reached.
+     */
+    public List<Object> getEntityIdentifiers(
+            EntityContainer<T> entityContainer, Filter filter,
+            List<SortBy> sortBy, int startIndex, int count);
+
+    /**
+     * Gets at most <code>count</code> entities, starting at position
+     * <code>startIndex</code> in the result set determined from
+     * <code>filter</code> and <code>sortBy</code>.
+     * 
+     * @see #getEntityIdentifiers(EntityContainer, Filter, List, int, int)
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @param startIndex
+     *            the index of the first entity to fetch.
+     * @param count
+     *            the maximum number of entities to fetch.
+     * @return an unmodifiable list of entities in the order determined by
+     *         <code>sortBy</code> (never null).
+     */
+    public List<T> getEntities(EntityContainer<T> entityContainer,
+            Filter filter, List<SortBy> sortBy, int startIndex, int count);
+}
@@ -67,4 +67,20 @@ public class JoinFilter extends AbstractJunctionFilter {
         }
         return true;
     }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        JoinFilter other = (JoinFilter) obj;
+        return joinProperty == null ? other.joinProperty == null
+                : joinProperty.equals(other.joinProperty);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode() * 31
+                + (joinProperty == null ? 0 : joinProperty.hashCode());
+    }
 }
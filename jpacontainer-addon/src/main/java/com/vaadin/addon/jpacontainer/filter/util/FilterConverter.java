@@ -60,7 +60,15 @@ public class FilterConverter {
         public boolean canConvert(Filter filter);
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root);
+                From<X, Y> root, QueryParameters parameters);
+
+        /**
+         * Appends the structure of <code>filter</code> to <code>shape</code>
+         * and the values that {@link #toPredicate} would bind as parameters
+         * to <code>values</code>, in the same order.
+         */
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values);
     }
 
     /**
@@ -72,9 +80,14 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             return cb.and(convertFiltersToArray(((And) filter).getFilters(),
-                    cb, root));
+                    cb, root, parameters));
+        }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            collectShapes(((And) filter).getFilters(), shape, values);
         }
     }
 
@@ -87,9 +100,14 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             return cb.or(convertFiltersToArray(((Or) filter).getFilters(), cb,
-                    root));
+                    root, parameters));
+        }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            collectShapes(((Or) filter).getFilters(), shape, values);
         }
     }
 
@@ -103,7 +121,7 @@ public class FilterConverter {
 
         @SuppressWarnings({ "rawtypes", "unchecked" })
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             Compare compare = (Compare) filter;
             Expression propertyExpr = AdvancedFilterableSupport
                     .getPropertyPath(root, compare.getPropertyId());
@@ -111,9 +129,10 @@ public class FilterConverter {
                     && compare.getValue() == null) {
                 // Make an IS NULL instead if "= null" is passed
                 return convertFilter(new IsNull(compare.getPropertyId()), cb,
-                        root);
+                        root, parameters);
             }
-            Expression valueExpr = cb.literal(compare.getValue());
+            Expression valueExpr = toExpression(compare.getValue(), cb,
+                    parameters);
             switch (compare.getOperation()) {
             case EQUAL:
                 return cb.equal(propertyExpr, valueExpr);
@@ -129,6 +148,19 @@ public class FilterConverter {
                 return null;
             }
         }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            Compare compare = (Compare) filter;
+            shape.add(compare.getPropertyId());
+            shape.add(compare.getOperation());
+            if (Compare.Operation.EQUAL == compare.getOperation()
+                    && compare.getValue() == null) {
+                shape.add(null);
+            } else {
+                collectValue(compare.getValue(), shape, values);
+            }
+        }
     }
 
     /**
@@ -140,10 +172,15 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             return cb.isNull(AdvancedFilterableSupport.getPropertyPath(root,
                     ((IsNull) filter).getPropertyId()));
         }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            shape.add(((IsNull) filter).getPropertyId());
+        }
     }
 
     /**
@@ -155,7 +192,7 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
             String filterString = stringFilter.getFilterString();
             if (stringFilter.isOnlyMatchPrefix()) {
@@ -166,12 +203,26 @@ public class FilterConverter {
             if (stringFilter.isIgnoreCase()) {
                 return cb.like(cb.upper(AdvancedFilterableSupport
                         .getPropertyPath(root, stringFilter.getPropertyId()
-                                .toString())), cb.upper(cb
-                        .literal(filterString)));
+                                .toString())), cb.upper(toExpression(
+                        filterString, cb, parameters)));
             } else {
                 return cb.like(AdvancedFilterableSupport.getPropertyPath(root,
-                        stringFilter.getPropertyId().toString()), cb
-                        .literal(filterString));
+                        stringFilter.getPropertyId().toString()), toExpression(
+                        filterString, cb, parameters));
+            }
+        }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
+            shape.add(stringFilter.getPropertyId());
+            shape.add(stringFilter.isIgnoreCase());
+            if (stringFilter.isOnlyMatchPrefix()) {
+                collectValue(stringFilter.getFilterString() + "%", shape,
+                        values);
+            } else {
+                collectValue("%" + stringFilter.getFilterString() + "%",
+                        shape, values);
             }
         }
     }
@@ -185,19 +236,28 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             Like like = (Like) filter;
             if (like.isCaseSensitive()) {
                 return cb.like(AdvancedFilterableSupport.getPropertyPath(root,
-                        like.getPropertyId().toString()), cb.literal(like
-                        .getValue()));
+                        like.getPropertyId().toString()), toExpression(
+                        like.getValue(), cb, parameters));
             } else {
                 return cb.like(
                         cb.upper(AdvancedFilterableSupport.getPropertyPath(
                                 root, like.getPropertyId().toString())), cb
-                                .upper(cb.literal(like.getValue())));
+                                .upper(toExpression(like.getValue(), cb,
+                                        parameters)));
             }
         }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            Like like = (Like) filter;
+            shape.add(like.getPropertyId());
+            shape.add(like.isCaseSensitive());
+            collectValue(like.getValue(), shape, values);
+        }
     }
 
     private static class BetweenConverter implements Converter {
@@ -207,16 +267,24 @@ public class FilterConverter {
 
         @SuppressWarnings({ "unchecked", "rawtypes" })
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             Between between = (Between) filter;
             Expression<? extends Comparable> field = AdvancedFilterableSupport
                     .getPropertyPath(root, between.getPropertyId());
-            Expression<? extends Comparable> from = cb.literal(between
-                    .getStartValue());
-            Expression<? extends Comparable> to = cb.literal(between
-                    .getEndValue());
+            Expression<? extends Comparable> from = toExpression(
+                    between.getStartValue(), cb, parameters);
+            Expression<? extends Comparable> to = toExpression(
+                    between.getEndValue(), cb, parameters);
             return cb.between(field, from, to);
         }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            Between between = (Between) filter;
+            shape.add(between.getPropertyId());
+            collectValue(between.getStartValue(), shape, values);
+            collectValue(between.getEndValue(), shape, values);
+        }
     }
 
     private static class JoinFilterConverter implements Converter {
@@ -225,11 +293,18 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             JoinFilter hibernateJoin = (JoinFilter) filter;
             From<X, Y> join = root.join(hibernateJoin.getJoinProperty());
             return cb.and(convertFiltersToArray(hibernateJoin.getFilters(), cb,
-                    join));
+                    join, parameters));
+        }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            JoinFilter joinFilter = (JoinFilter) filter;
+            shape.add(joinFilter.getJoinProperty());
+            collectShapes(joinFilter.getFilters(), shape, values);
         }
 
     }
@@ -240,9 +315,14 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, QueryParameters parameters) {
             Not not = (Not) filter;
-            return cb.not(convertFilter(not.getFilter(), cb, root));
+            return cb.not(convertFilter(not.getFilter(), cb, root, parameters));
+        }
+
+        public void collectShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            collectFilterShape(((Not) filter).getFilter(), shape, values);
         }
     }
 
@@ -255,6 +335,79 @@ public class FilterConverter {
                 new JoinFilterConverter(), new NotFilterConverter()));
     }
 
+    /**
+     * Returns an expression for <code>value</code>: a parameter if
+     * <code>parameters</code> is given, a literal otherwise.
+     */
+    private static <V> Expression<V> toExpression(V value, CriteriaBuilder cb,
+            QueryParameters parameters) {
+        if (parameters == null) {
+            return cb.literal(value);
+        }
+        return parameters.bind(cb, value);
+    }
+
+    /**
+     * Appends the shape of a filter value to <code>shape</code>, mirroring
+     * {@link QueryParameters#bind(CriteriaBuilder, Object)}: bindable values
+     * are only represented by their type and are added to
+     * <code>values</code>, while literals are part of the shape.
+     */
+    private static void collectValue(Object value, List<Object> shape,
+            List<Object> values) {
+        if (QueryParameters.isBindable(value)) {
+            shape.add(QueryParameters.getParameterType(value));
+            values.add(value);
+        } else {
+            shape.add(Collections.singletonList(value));
+        }
+    }
+
+    private static void collectShapes(Collection<Filter> filters,
+            List<Object> shape, List<Object> values) {
+        shape.add(filters.size());
+        for (Filter filter : filters) {
+            collectFilterShape(filter, shape, values);
+        }
+    }
+
+    private static void collectFilterShape(Filter filter, List<Object> shape,
+            List<Object> values) {
+        for (Converter c : converters) {
+            if (c.canConvert(filter)) {
+                shape.add(filter.getClass());
+                c.collectShape(filter, shape, values);
+                return;
+            }
+        }
+        throw new IllegalStateException("Cannot find any converters for "
+                + filter.getClass().getSimpleName() + " filters!");
+    }
+
+    /**
+     * Returns the structure of <code>filter</code> with the values that
+     * {@link #convertFilter(Filter, CriteriaBuilder, From, QueryParameters)}
+     * would bind as parameters abstracted away. Two filters have equal shapes
+     * if and only if they convert to the same parameterized predicate, which
+     * makes the shape usable as a key when caching queries built from the
+     * filter. The abstracted values are added to <code>values</code> in the
+     * order they are bound.
+     * 
+     * @param filter
+     *            the {@link Filter} to describe (must not be null).
+     * @param values
+     *            the list to add the parameter values to (must not be null).
+     * @return the shape of the filter (never null).
+     * @since 4.0.1
+     */
+    public static List<Object> getParameterizedShape(Filter filter,
+            List<Object> values) {
+        assert filter != null : "filter must not be null";
+        List<Object> shape = new ArrayList<Object>();
+        collectFilterShape(filter, shape, values);
+        return shape;
+    }
+
     /**
      * Convert a single {@link Filter} to a criteria {@link Predicate}.
      * 
@@ -271,11 +424,36 @@ public class FilterConverter {
      */
     public static <X, Y> Predicate convertFilter(Filter filter,
             CriteriaBuilder criteriaBuilder, From<X, Y> root) {
+        return convertFilter(filter, criteriaBuilder, root, null);
+    }
+
+    /**
+     * Convert a single {@link Filter} to a criteria {@link Predicate}, binding
+     * the filter values as query parameters instead of embedding them as
+     * literals.
+     * 
+     * @param filter
+     *            the {@link Filter} to convert
+     * @param criteriaBuilder
+     *            the {@link CriteriaBuilder} to use when creating the
+     *            {@link Predicate}
+     * @param root
+     *            the {@link CriteriaQuery} {@link Root} to use for finding
+     *            fields.
+     * @param parameters
+     *            the {@link QueryParameters} to bind the values to, or null
+     *            to use literals.
+     * @return a {@link Predicate} representing the {@link Filter} or null if
+     *         conversion failed.
+     */
+    public static <X, Y> Predicate convertFilter(Filter filter,
+            CriteriaBuilder criteriaBuilder, From<X, Y> root,
+            QueryParameters parameters) {
         assert filter != null : "filter must not be null";
 
         for (Converter c : converters) {
             if (c.canConvert(filter)) {
-                return c.toPredicate(filter, criteriaBuilder, root);
+                return c.toPredicate(filter, criteriaBuilder, root, parameters);
             }
         }
 
@@ -293,17 +471,34 @@ public class FilterConverter {
     public static <X, Y> List<Predicate> convertFilters(
             Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
             From<X, Y> root) {
+        return convertFilters(filters, criteriaBuilder, root, null);
+    }
+
+    /**
+     * Converts a collection of {@link Filter} into a list of
+     * {@link Predicate}, binding the filter values as query parameters.
+     * 
+     * @param filters
+     *            Collection of {@link Filter}
+     * @param parameters
+     *            the {@link QueryParameters} to bind the values to, or null
+     *            to use literals.
+     * @return List of {@link Predicate}
+     */
+    public static <X, Y> List<Predicate> convertFilters(
+            Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
+            From<X, Y> root, QueryParameters parameters) {
         List<Predicate> result = new ArrayList<Predicate>();
         for (com.vaadin.v7.data.Container.Filter filter : filters) {
-            result.add(convertFilter(filter, criteriaBuilder, root));
+            result.add(convertFilter(filter, criteriaBuilder, root, parameters));
         }
         return result;
     }
 
     private static <X, Y> Predicate[] convertFiltersToArray(
             Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
-            From<X, Y> root) {
+            From<X, Y> root, QueryParameters parameters) {
         return CollectionUtil.toArray(Predicate.class,
-                convertFilters(filters, criteriaBuilder, root));
+                convertFilters(filters, criteriaBuilder, root, parameters));
     }
 }
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.v7.data.Container.Filter;
+import com.vaadin.v7.data.util.filter.AbstractJunctionFilter;
+import com.vaadin.v7.data.util.filter.And;
+import com.vaadin.v7.data.util.filter.Not;
+import com.vaadin.v7.data.util.filter.Or;
+
+/**
+ * Rewrites filters into a canonical form, so that filters that are
+ * equivalent but built differently, e.g. <code>And(a, b)</code>,
+ * <code>And(b, a)</code> and <code>And(a, And(b))</code>, become equal. The
+ * normalized filters are used as cache keys and when building queries, which
+ * lets equivalent filters share cached results and query templates.
+ * <p>
+ * Normalization flattens nested {@link And} and {@link Or} filters, removes
+ * duplicate children of junctions, orders the children deterministically,
+ * replaces junctions with a single child by the child and double negations by
+ * the negated filter. The children are ordered by their shape (see
+ * {@link FilterConverter#getParameterizedShape(Filter, List)}) first, so that
+ * filters that only differ in their values are ordered the same way and
+ * produce the same query.
+ *
+ * @since 4.0.1
+ */
+public class FilterNormalizer {
+
+    /**
+     * A cache key for a normalized filter, with a precomputed hash code.
+     */
+    public static final class FilterKey implements Serializable {
+
+        private static final long serialVersionUID = 2969232562180744587L;
+        private final Filter filter;
+        /**
+         * Not serialized, as the hash codes of e.g. classes differ between
+         * JVMs.
+         */
+        private transient int hash;
+
+        private FilterKey(Filter filter) {
+            this.filter = filter;
+            this.hash = filter == null ? 0 : filter.hashCode();
+        }
+
+        /**
+         * Gets the normalized filter.
+         *
+         * @return the filter, or null if the key represents no filter.
+         */
+        public Filter getFilter() {
+            return filter;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            } else if (obj == null || obj.getClass() != getClass()) {
+                return false;
+            }
+            FilterKey o = (FilterKey) obj;
+            return o.hash == hash
+                    && (filter == null ? o.filter == null : filter
+                            .equals(o.filter));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "FilterKey[" + filter + "]";
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException,
+                ClassNotFoundException {
+            in.defaultReadObject();
+            hash = filter == null ? 0 : filter.hashCode();
+        }
+    }
+
+    /**
+     * A child of a junction together with its sort keys, which are computed
+     * once.
+     */
+    private static final class SortableFilter {
+        private final Filter filter;
+        private final String shape;
+        private final int hash;
+
+        private SortableFilter(Filter filter) {
+            this.filter = filter;
+            this.shape = getShapeString(filter);
+            this.hash = filter.hashCode();
+        }
+    }
+
+    private static final Comparator<SortableFilter> ORDER = new Comparator<SortableFilter>() {
+        public int compare(SortableFilter o1, SortableFilter o2) {
+            int result = o1.shape.compareTo(o2.shape);
+            if (result == 0) {
+                result = o1.hash < o2.hash ? -1 : (o1.hash == o2.hash ? 0 : 1);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Returns the normalized form of <code>filter</code>. If the filter is
+     * already normalized, it is returned as such.
+     *
+     * @param filter
+     *            the filter to normalize (may be null).
+     * @return the normalized filter, or null if <code>filter</code> is null or
+     *         an empty {@link And}.
+     */
+    public static Filter normalize(Filter filter) {
+        Filter normalized = doNormalize(filter);
+        if (normalized instanceof And
+                && ((And) normalized).getFilters().isEmpty()) {
+            return null;
+        }
+        return normalized;
+    }
+
+    /**
+     * Returns a cache key for <code>filter</code>. The keys of two filters
+     * are equal if their normalized forms are equal.
+     *
+     * @param filter
+     *            the filter (may be null).
+     * @return the key (never null).
+     */
+    public static FilterKey getKey(Filter filter) {
+        return new FilterKey(normalize(filter));
+    }
+
+    private static Filter doNormalize(Filter filter) {
+        if (filter == null) {
+            return null;
+        } else if (filter instanceof Not) {
+            Filter inner = doNormalize(((Not) filter).getFilter());
+            if (inner instanceof Not) {
+                return ((Not) inner).getFilter();
+            }
+            return inner == ((Not) filter).getFilter() ? filter
+                    : new Not(inner);
+        } else if (filter instanceof JoinFilter) {
+            JoinFilter join = (JoinFilter) filter;
+            List<Filter> children = normalizeChildren(join, null);
+            return children == null ? filter : new JoinFilter(
+                    join.getJoinProperty(), toArray(children));
+        } else if (filter instanceof And || filter instanceof Or) {
+            AbstractJunctionFilter junction = (AbstractJunctionFilter) filter;
+            List<Filter> children = normalizeChildren(junction,
+                    filter.getClass());
+            if (children == null) {
+                Collection<Filter> original = junction.getFilters();
+                return original.size() == 1 ? original.iterator().next()
+                        : filter;
+            } else if (children.size() == 1) {
+                return children.get(0);
+            }
+            return filter instanceof And ? new And(toArray(children))
+                    : new Or(toArray(children));
+        }
+        return filter;
+    }
+
+    /**
+     * Normalizes, flattens, deduplicates and sorts the children of
+     * <code>junction</code>.
+     *
+     * @param flattenedClass
+     *            the class of the children whose own children are merged into
+     *            the result, or null not to flatten.
+     * @return the normalized children, or null if they did not change.
+     */
+    private static List<Filter> normalizeChildren(
+            AbstractJunctionFilter junction, Class<?> flattenedClass) {
+        Set<Filter> children = new LinkedHashSet<Filter>();
+        addChildren(junction.getFilters(), flattenedClass, children);
+        List<SortableFilter> sortable = new ArrayList<SortableFilter>(
+                children.size());
+        for (Filter child : children) {
+            sortable.add(new SortableFilter(child));
+        }
+        Collections.sort(sortable, ORDER);
+        List<Filter> result = new ArrayList<Filter>(sortable.size());
+        for (SortableFilter s : sortable) {
+            result.add(s.filter);
+        }
+        return isSame(result, junction.getFilters()) ? null : result;
+    }
+
+    private static void addChildren(Collection<Filter> filters,
+            Class<?> flattenedClass, Set<Filter> result) {
+        for (Filter child : filters) {
+            Filter normalized = doNormalize(child);
+            if (normalized != null && normalized.getClass() == flattenedClass) {
+                // Already normalized, so no need to recurse any deeper
+                result.addAll(((AbstractJunctionFilter) normalized)
+                        .getFilters());
+            } else if (normalized != null) {
+                result.add(normalized);
+            }
+        }
+    }
+
+    private static boolean isSame(List<Filter> filters,
+            Collection<Filter> original) {
+        if (filters.size() != original.size()) {
+            return false;
+        }
+        Iterator<Filter> it = original.iterator();
+        for (Filter filter : filters) {
+            if (filter != it.next()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Filter[] toArray(List<Filter> filters) {
+        return filters.toArray(new Filter[filters.size()]);
+    }
+
+    private static String getShapeString(Filter filter) {
+        try {
+            return FilterConverter.getParameterizedShape(filter,
+                    new ArrayList<Object>()).toString();
+        } catch (IllegalStateException e) {
+            // Not a filter we know how to convert
+            return filter.getClass().getName();
+        }
+    }
+}
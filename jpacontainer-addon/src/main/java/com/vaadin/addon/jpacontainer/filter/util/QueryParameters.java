@@ -0,0 +1,152 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.ParameterExpression;
+
+/**
+ * Collects the values that are bound to a criteria query as parameters instead
+ * of being embedded in it as literals. Queries that only differ in their
+ * parameter values produce the same SQL, which allows the JDBC driver, the
+ * database and the JPA provider to reuse their prepared statements and query
+ * plans.
+ * <p>
+ * An instance is passed to
+ * {@link FilterConverter#convertFilter(com.vaadin.v7.data.Container.Filter, CriteriaBuilder, javax.persistence.criteria.From, QueryParameters)}
+ * while the query is built and the collected values are set with
+ * {@link #applyTo(Query)} once the query has been created. Values of types
+ * that cannot safely be bound as parameters (e.g. entities and embeddables)
+ * are still embedded as literals. An instance should only be used for one
+ * query.
+ *
+ * @since 4.0.1
+ */
+public class QueryParameters {
+
+    private final List<ParameterExpression<?>> parameters = new ArrayList<ParameterExpression<?>>();
+    private final List<Object> values = new ArrayList<Object>();
+
+    /**
+     * Returns an expression for <code>value</code>. If the value can be bound
+     * as a parameter, a new {@link ParameterExpression} is created and the
+     * value is recorded. Otherwise, a literal is returned.
+     *
+     * @param cb
+     *            the criteria builder to use (must not be null).
+     * @param value
+     *            the value (may be null).
+     * @return the expression (never null).
+     */
+    @SuppressWarnings("unchecked")
+    public <V> Expression<V> bind(CriteriaBuilder cb, V value) {
+        if (!isBindable(value)) {
+            return cb.literal(value);
+        }
+        ParameterExpression<V> parameter = cb
+                .parameter((Class<V>) getParameterType(value));
+        parameters.add(parameter);
+        values.add(value);
+        return parameter;
+    }
+
+    /**
+     * Sets all the collected values to <code>query</code>.
+     *
+     * @param query
+     *            the query created from the criteria query that the
+     *            parameters were bound to (must not be null).
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void applyTo(Query query) {
+        for (int i = 0; i < parameters.size(); i++) {
+            query.setParameter((ParameterExpression) parameters.get(i),
+                    values.get(i));
+        }
+    }
+
+    /**
+     * Returns the bound values in the order they were bound.
+     *
+     * @return an unmodifiable list of values (never null).
+     */
+    public List<Object> getValues() {
+        return Collections.unmodifiableList(values);
+    }
+
+    /**
+     * Returns the parameters in the order they were bound. Together with
+     * {@link #getValues()}, this can be used to bind new values to a cached
+     * criteria query with the same structure.
+     *
+     * @return an unmodifiable list of parameters (never null).
+     */
+    public List<ParameterExpression<?>> getParameters() {
+        return Collections.unmodifiableList(parameters);
+    }
+
+    /**
+     * Returns whether any values have been bound.
+     */
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * Checks whether <code>value</code> is of a basic type that all JPA
+     * providers accept as a query parameter.
+     *
+     * @param value
+     *            the value to check (may be null).
+     * @return true if the value can be bound, false if it should be embedded
+     *         as a literal.
+     */
+    public static boolean isBindable(Object value) {
+        return value instanceof String || value instanceof Number
+                && isStandardNumber(value) || value instanceof Boolean
+                || value instanceof Character || value instanceof Date
+                || value instanceof Calendar || value instanceof Enum
+                || value instanceof UUID;
+    }
+
+    private static boolean isStandardNumber(Object value) {
+        return value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte
+                || value instanceof Double || value instanceof Float
+                || value instanceof BigDecimal || value instanceof BigInteger;
+    }
+
+    static Class<?> getParameterType(Object value) {
+        if (value instanceof Enum) {
+            // Constants with a body are instances of anonymous subclasses
+            return ((Enum<?>) value).getDeclaringClass();
+        } else if (value instanceof Calendar) {
+            return Calendar.class;
+        }
+        return value.getClass();
+    }
+}
@@ -239,6 +239,20 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         return field != null ? AccessType.FIELD : AccessType.METHOD;
     }
 
+    /**
+     * Whether the property is declared with a primitive type and can thus
+     * never be null. {@link #getType()} returns the wrapper type for such
+     * properties.
+     * 
+     * @since 4.0.1
+     */
+    public boolean isPrimitive() {
+        if (field != null) {
+            return field.getType().isPrimitive();
+        }
+        return getter != null && getter.getReturnType().isPrimitive();
+    }
+
     @Override
     public <T extends Annotation> T getAnnotation(Class<T> annotationClass) {
         if (field != null) {
@@ -0,0 +1,428 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Distributes notifications about changed entities to all the caches in the
+ * JVM, so that changes made through one provider, or directly through JPA,
+ * are noticed by the caches of all the other providers.
+ * <p>
+ * Changes are published by {@link MutableLocalEntityProvider}s whenever they
+ * write to the database, and by {@link CacheInvalidationListener} if it has
+ * been registered as an entity listener. Changes published while a provider
+ * runs a transaction are held back until the transaction has ended, and
+ * dropped if it fails, so that other caches do not reload the old state
+ * before the new one has been committed. Application code can do the same
+ * for its own transactions with {@link #holdChanges()} and
+ * {@link #releaseChanges()}.
+ * <p>
+ * The caches subscribe using weak references, the caches of the providers
+ * only if turned on with e.g.
+ * {@link CachingLocalEntityProvider#setInvalidationHubEnabled(boolean)}. When
+ * notified, they update or drop the affected data. Notifications are
+ * delivered on the thread that made the change. A {@link Transport} can be
+ * set to pass the notifications on to other JVMs, e.g. the other nodes of a
+ * cluster.
+ *
+ * @since 4.0.1
+ */
+public class CacheInvalidationHub {
+
+    /**
+     * The kind of a change.
+     */
+    public enum ChangeType {
+        ADDED, UPDATED, REMOVED
+    }
+
+    /**
+     * A notification about a changed entity.
+     */
+    public static final class Change implements Serializable {
+
+        private static final long serialVersionUID = -1380564911787812287L;
+        private final Class<?> entityClass;
+        private final Object entityId;
+        private final ChangeType type;
+        private final transient Object entity;
+        private final transient long changedAt;
+
+        /**
+         * Creates a new <code>Change</code>.
+         *
+         * @param entityClass
+         *            the class of the changed entity (must not be null).
+         * @param entityId
+         *            the identifier of the changed entity, or null if it is
+         *            not known or several entities have changed.
+         * @param type
+         *            the kind of the change (must not be null).
+         */
+        public Change(Class<?> entityClass, Object entityId, ChangeType type) {
+            this(entityClass, entityId, type, null);
+        }
+
+        /**
+         * Creates a new <code>Change</code> that carries the changed entity,
+         * so that the caches of this JVM can update themselves instead of
+         * dropping the affected data. The entity is not passed on to other
+         * JVMs.
+         *
+         * @param entityClass
+         *            the class of the changed entity (must not be null).
+         * @param entityId
+         *            the identifier of the changed entity, or null if it is
+         *            not known or several entities have changed.
+         * @param type
+         *            the kind of the change (must not be null).
+         * @param entity
+         *            the entity as it is after the change, or null.
+         */
+        public Change(Class<?> entityClass, Object entityId, ChangeType type,
+                Object entity) {
+            assert entityClass != null : "entityClass must not be null";
+            assert type != null : "type must not be null";
+            this.entityClass = entityClass;
+            this.entityId = entityId;
+            this.type = type;
+            this.entity = entity;
+            this.changedAt = System.nanoTime();
+        }
+
+        /**
+         * Gets the class of the changed entity.
+         *
+         * @return the entity class (never null).
+         */
+        public Class<?> getEntityClass() {
+            return entityClass;
+        }
+
+        /**
+         * Gets the identifier of the changed entity.
+         *
+         * @return the entity identifier, or null if any entity of the class
+         *         may have changed.
+         */
+        public Object getEntityId() {
+            return entityId;
+        }
+
+        /**
+         * Gets the changed entity, as it is after the change.
+         *
+         * @return the entity, or null if it is not known, e.g. for changes
+         *         received from other JVMs.
+         */
+        public Object getEntity() {
+            return entity;
+        }
+
+        /**
+         * Gets the {@link System#nanoTime()} when the change was created.
+         * Only meaningful if {@link #getEntity()} is not null.
+         */
+        long getChangedAt() {
+            return changedAt;
+        }
+
+        /**
+         * Gets the kind of the change.
+         *
+         * @return the change type (never null).
+         */
+        public ChangeType getType() {
+            return type;
+        }
+
+        /**
+         * Checks whether the change may affect entities of
+         * <code>cls</code>.
+         */
+        boolean affects(Class<?> cls) {
+            return cls.isAssignableFrom(entityClass)
+                    || entityClass.isAssignableFrom(cls);
+        }
+
+        /**
+         * Checks whether this change is about the same entity as
+         * <code>other</code>.
+         */
+        boolean isSameEntity(Change other) {
+            return entityId != null && entityClass == other.entityClass
+                    && entityId.equals(other.entityId);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + entityClass.getName() + "#" + entityId;
+        }
+    }
+
+    /**
+     * Passes changes on to other JVMs. Implementations should call
+     * {@link CacheInvalidationHub#receive(Change)} on the hub of each
+     * receiving JVM.
+     */
+    public interface Transport {
+
+        /**
+         * Sends <code>change</code> to the other JVMs. Called after the change
+         * has been delivered to the caches of this JVM.
+         *
+         * @param change
+         *            the change to send (never null).
+         */
+        public void send(Change change);
+    }
+
+    /**
+     * A cache that is notified of changes.
+     */
+    interface Subscriber {
+
+        /**
+         * Notifies the subscriber that <code>change</code> has occurred. It is
+         * up to the subscriber to ignore changes to other entity classes.
+         */
+        void entityChanged(Change change);
+    }
+
+    private static final class Subscription {
+        private final WeakReference<Subscriber> subscriber;
+        private final WeakReference<Object> owner;
+
+        private Subscription(Subscriber subscriber, Object owner) {
+            this.subscriber = new WeakReference<Subscriber>(subscriber);
+            this.owner = owner == null ? null : new WeakReference<Object>(
+                    owner);
+        }
+    }
+
+    private static final class HeldChange {
+        private final Change change;
+        private final Object origin;
+
+        private HeldChange(Change change, Object origin) {
+            this.change = change;
+            this.origin = origin;
+        }
+    }
+
+    /**
+     * The changes held back by a thread, and the number of held changes at the
+     * start of each nested {@link #holdChanges()}.
+     */
+    private static final class Hold {
+        private final List<HeldChange> changes = new ArrayList<HeldChange>();
+        private final LinkedList<Integer> marks = new LinkedList<Integer>();
+    }
+
+    private static final CacheInvalidationHub instance = new CacheInvalidationHub();
+
+    /**
+     * Gets the hub of this JVM.
+     *
+     * @return the hub (never null).
+     */
+    public static CacheInvalidationHub getInstance() {
+        return instance;
+    }
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final ThreadLocal<Hold> holds = new ThreadLocal<Hold>();
+    private volatile Transport transport;
+
+    /**
+     * Creates a new hub. Only used by tests, all other code should use
+     * {@link #getInstance()}.
+     */
+    CacheInvalidationHub() {
+    }
+
+    /**
+     * Sets the transport that passes changes on to other JVMs.
+     *
+     * @param transport
+     *            the transport, or null to only notify the caches of this
+     *            JVM.
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Gets the transport that passes changes on to other JVMs.
+     *
+     * @return the transport, or null if none has been set.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Subscribes <code>subscriber</code> to all changes except the ones
+     * published by <code>owner</code>. Only weak references to the two are
+     * kept.
+     *
+     * @param subscriber
+     *            the subscriber (must not be null).
+     * @param owner
+     *            the object whose changes the subscriber handles itself, or
+     *            null to receive all changes.
+     */
+    void subscribe(Subscriber subscriber, Object owner) {
+        assert subscriber != null : "subscriber must not be null";
+        subscriptions.add(new Subscription(subscriber, owner));
+    }
+
+    /**
+     * Stops notifying <code>subscriber</code> of changes.
+     *
+     * @param subscriber
+     *            the subscriber (must not be null).
+     */
+    void unsubscribe(Subscriber subscriber) {
+        assert subscriber != null : "subscriber must not be null";
+        for (Subscription s : subscriptions) {
+            if (s.subscriber.get() == subscriber) {
+                subscriptions.remove(s);
+            }
+        }
+    }
+
+    /**
+     * Publishes that an entity has changed. If the changes of the calling
+     * thread are held back, the change is delivered once they are released.
+     *
+     * @param change
+     *            the change (must not be null).
+     * @param origin
+     *            the object that made the change, whose subscribers are not
+     *            notified, or null.
+     */
+    public void publish(Change change, Object origin) {
+        assert change != null : "change must not be null";
+        Hold hold = holds.get();
+        if (hold == null) {
+            deliver(change, origin);
+            send(change);
+            return;
+        }
+        if (origin != null) {
+            // Replace the anonymous notifications about the same entity,
+            // e.g. from the entity listener, so that the origin is skipped
+            Iterator<HeldChange> it = hold.changes.listIterator(hold.marks
+                    .getLast());
+            while (it.hasNext()) {
+                HeldChange held = it.next();
+                if (held.origin == null && held.change.isSameEntity(change)) {
+                    it.remove();
+                }
+            }
+        }
+        hold.changes.add(new HeldChange(change, origin));
+    }
+
+    /**
+     * Holds back the changes published by the calling thread until
+     * {@link #releaseChanges()} or {@link #discardChanges()} is called. Holds
+     * may be nested, in which case the changes are only delivered when the
+     * outermost hold is released.
+     */
+    public void holdChanges() {
+        Hold hold = holds.get();
+        if (hold == null) {
+            hold = new Hold();
+            holds.set(hold);
+        }
+        hold.marks.add(hold.changes.size());
+    }
+
+    /**
+     * Ends the innermost hold of the calling thread, delivering the held
+     * changes if it was the outermost one. Should be called after the
+     * changes have been committed.
+     */
+    public void releaseChanges() {
+        Hold hold = holds.get();
+        assert hold != null : "no changes are held";
+        hold.marks.removeLast();
+        if (hold.marks.isEmpty()) {
+            holds.remove();
+            for (HeldChange held : hold.changes) {
+                deliver(held.change, held.origin);
+            }
+            for (HeldChange held : hold.changes) {
+                send(held.change);
+            }
+        }
+    }
+
+    /**
+     * Ends the innermost hold of the calling thread, dropping the changes
+     * published since it was started. Should be called if the changes have
+     * been rolled back.
+     */
+    public void discardChanges() {
+        Hold hold = holds.get();
+        assert hold != null : "no changes are held";
+        int mark = hold.marks.removeLast();
+        hold.changes.subList(mark, hold.changes.size()).clear();
+        if (hold.marks.isEmpty()) {
+            holds.remove();
+        }
+    }
+
+    /**
+     * Delivers a change received from another JVM to the caches of this JVM.
+     * Called by the {@link Transport}.
+     *
+     * @param change
+     *            the received change (must not be null).
+     */
+    public void receive(Change change) {
+        assert change != null : "change must not be null";
+        deliver(change, null);
+    }
+
+    private void deliver(Change change, Object origin) {
+        for (Subscription s : subscriptions) {
+            Subscriber subscriber = s.subscriber.get();
+            Object owner = s.owner == null ? null : s.owner.get();
+            if (subscriber == null || (s.owner != null && owner == null)) {
+                subscriptions.remove(s);
+            } else if (origin == null || owner != origin) {
+                subscriber.entityChanged(change);
+            }
+        }
+    }
+
+    private void send(Change change) {
+        Transport t = transport;
+        if (t != null) {
+            t.send(change);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.Change;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.ChangeType;
+
+/**
+ * JPA entity listener that publishes every persisted, updated and removed
+ * entity to the {@link CacheInvalidationHub}, so that the caching providers
+ * notice changes that are not made through a provider. Register it on the
+ * entity classes with <code>@EntityListeners</code>, or for all entities as a
+ * default entity listener in <code>orm.xml</code>.
+ * <p>
+ * The JPA callbacks are run before the transaction is committed. If the
+ * changes are not made through a provider, surround the transaction with
+ * {@link CacheInvalidationHub#holdChanges()} and
+ * {@link CacheInvalidationHub#releaseChanges()} to make sure that the caches
+ * do not reload the old state before the commit.
+ *
+ * @since 4.0.1
+ */
+public class CacheInvalidationListener {
+
+    @PostPersist
+    public void postPersist(Object entity) {
+        publish(entity, ChangeType.ADDED);
+    }
+
+    @PostUpdate
+    public void postUpdate(Object entity) {
+        publish(entity, ChangeType.UPDATED);
+    }
+
+    @PostRemove
+    public void postRemove(Object entity) {
+        publish(entity, ChangeType.REMOVED);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void publish(Object entity, ChangeType type) {
+        Class<Object> entityClass = (Class<Object>) entity.getClass();
+        Object entityId;
+        try {
+            EntityClassMetadata<Object> metadata = MetadataFactory
+                    .getInstance().getEntityClassMetadata(entityClass);
+            entityId = metadata.getPropertyValue(entity, metadata
+                    .getIdentifierProperty().getName());
+        } catch (RuntimeException e) {
+            // E.g. a proxy class, notify about all entities of the class
+            entityId = null;
+        }
+        CacheInvalidationHub.getInstance().publish(
+                new Change(entityClass, entityId, type, entity), null);
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shares one memory budget between the caches of several caching entity
+ * providers, e.g. all the providers of a UI or a session, so that the memory
+ * used by the caches of the UI stays within the budget no matter how many
+ * containers it has. Use one governor per UI or session, e.g. stored as a
+ * session attribute, and set it to each provider with
+ * {@link CachingLocalEntityProvider#setCacheMemoryGovernor(CacheMemoryGovernor)}.
+ * <p>
+ * The budget is divided between the providers by how recently they have been
+ * used: every provider gets an equal share of a quarter of the budget, and
+ * the rest is divided so that the most recently used provider gets the most,
+ * the next one half of that and so on. The shares are rebalanced at most once
+ * a second as the providers are used, and whenever a provider is added. A
+ * provider whose share shrinks evicts its least recently used entities right
+ * away, see {@link CachingLocalEntityProvider#setMaxCacheWeight(long)}.
+ * <p>
+ * When the heap runs low, as reported by the usage threshold notifications of
+ * the tenured heap pool, the budget of every governor is halved, down to an
+ * eighth of the original, and doubled back at most once a second as the
+ * providers are used while the usage is below the threshold. The heap is only
+ * monitored after {@link #installHeapMonitor()} has been called, as it
+ * affects the whole JVM: it sets a usage threshold on the tenured pool unless
+ * one is already set, and adds a listener to the platform
+ * {@link java.lang.management.MemoryMXBean}. Call
+ * {@link #uninstallHeapMonitor()} when the application is stopped, e.g. in
+ * <code>ServletContextListener.contextDestroyed()</code>, so that the listener
+ * does not keep the class loader of the application alive.
+ * <p>
+ * The governor holds its providers weakly, so that the providers of closed
+ * containers are not kept alive. After deserialization, the providers add
+ * themselves to the governor again.
+ *
+ * @since 4.0.1
+ */
+public class CacheMemoryGovernor implements Serializable {
+
+    private static final long serialVersionUID = 4455925000932613404L;
+
+    /**
+     * The min time between two rebalances, in nanoseconds.
+     */
+    static final long REBALANCE_INTERVAL = 1000000000L;
+    /**
+     * The smallest share of the budget that is used when the heap runs low.
+     */
+    static final double MIN_PRESSURE_FACTOR = 0.125;
+
+    private final long maxWeight;
+    /**
+     * The providers, guarded by this governor.
+     */
+    private transient Map<CachingSupport<?>, Boolean> members;
+    private transient volatile long rebalancedAt;
+    /**
+     * The share of the budget that is used, which is less than 1 after the
+     * heap has run low.
+     */
+    private transient volatile double pressureFactor;
+
+    /**
+     * Creates a new governor.
+     * 
+     * @param maxWeight
+     *            the budget in bytes that all the caches share (at least 1).
+     */
+    public CacheMemoryGovernor(long maxWeight) {
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException(
+                    "maxWeight must be at least 1");
+        }
+        this.maxWeight = maxWeight;
+        init();
+    }
+
+    /**
+     * Starts monitoring the heap, so that the budgets of all the governors in
+     * the JVM shrink when the heap runs low. Unless the application has
+     * already set one, this sets the usage threshold of the tenured heap pool
+     * to 85% of its max size. Does nothing if the heap is already monitored.
+     * 
+     * @return true if the heap is monitored, false if the JVM does not allow
+     *         it.
+     */
+    public static boolean installHeapMonitor() {
+        return HeapPressureMonitor.install();
+    }
+
+    /**
+     * Stops monitoring the heap, and removes the usage threshold if it was set
+     * by {@link #installHeapMonitor()}. Does nothing if the heap is not
+     * monitored.
+     */
+    public static void uninstallHeapMonitor() {
+        HeapPressureMonitor.uninstall();
+    }
+
+    private void init() {
+        members = new WeakHashMap<CachingSupport<?>, Boolean>();
+        pressureFactor = 1;
+        HeapPressureMonitor.addGovernor(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+    }
+
+    /**
+     * Returns the budget that all the caches share, in bytes.
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Returns the part of the budget that is currently divided between the
+     * caches, which is less than the max weight after the heap has run low.
+     */
+    public long getCurrentMaxWeight() {
+        return (long) (maxWeight * pressureFactor);
+    }
+
+    /**
+     * Returns the estimated weight of all the caches, in bytes.
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (CachingSupport<?> member : getMembers()) {
+            weight += member.getCacheWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * Returns the number of providers that share the budget.
+     */
+    public synchronized int getProviderCount() {
+        return members.size();
+    }
+
+    private synchronized List<CachingSupport<?>> getMembers() {
+        return new ArrayList<CachingSupport<?>>(members.keySet());
+    }
+
+    void register(CachingSupport<?> member) {
+        synchronized (this) {
+            members.put(member, Boolean.TRUE);
+        }
+        rebalance();
+    }
+
+    void unregister(CachingSupport<?> member) {
+        synchronized (this) {
+            members.remove(member);
+        }
+        rebalance();
+    }
+
+    /**
+     * Called when the cache of a provider is used, rebalances the shares if
+     * the previous rebalance is old enough.
+     */
+    void used() {
+        if (System.nanoTime() - rebalancedAt > REBALANCE_INTERVAL) {
+            synchronized (this) {
+                if (pressureFactor < 1
+                        && !HeapPressureMonitor.isUnderPressure()) {
+                    pressureFactor = Math.min(pressureFactor * 2, 1);
+                }
+            }
+            rebalance();
+        }
+    }
+
+    /**
+     * Called when the heap runs low, shrinks the budget and the caches.
+     */
+    void onHeapPressure() {
+        synchronized (this) {
+            pressureFactor = Math.max(pressureFactor / 2, MIN_PRESSURE_FACTOR);
+        }
+        rebalance();
+    }
+
+    /**
+     * Divides the budget between the providers by how recently they have
+     * been used. The providers are updated without holding the lock of the
+     * governor.
+     */
+    void rebalance() {
+        List<CachingSupport<?>> sorted;
+        long total;
+        synchronized (this) {
+            rebalancedAt = System.nanoTime();
+            total = getCurrentMaxWeight();
+            sorted = new ArrayList<CachingSupport<?>>(members.keySet());
+        }
+        if (sorted.isEmpty()) {
+            return;
+        }
+        final Map<CachingSupport<?>, Long> lastUsed = new HashMap<CachingSupport<?>, Long>();
+        for (CachingSupport<?> member : sorted) {
+            lastUsed.put(member, member.getLastUsedAt());
+        }
+        Collections.sort(sorted, new Comparator<CachingSupport<?>>() {
+            public int compare(CachingSupport<?> o1, CachingSupport<?> o2) {
+                // The most recently used first
+                long diff = lastUsed.get(o2) - lastUsed.get(o1);
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+            }
+        });
+        int n = sorted.size();
+        long floor = total / 4 / n;
+        long rest = total - floor * n;
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += share(i);
+        }
+        for (int i = 0; i < n; i++) {
+            sorted.get(i).setGovernedWeight(
+                    Math.max(floor + (long) (rest * share(i) / sum), 1));
+        }
+    }
+
+    /**
+     * Returns the relative share of the provider that is the
+     * <code>rank</code>th most recently used one.
+     */
+    private static double share(int rank) {
+        return Math.pow(0.5, rank);
+    }
+}
@@ -17,11 +17,15 @@
 package com.vaadin.addon.jpacontainer.provider;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.persistence.EntityManager;
 
+import com.vaadin.addon.jpacontainer.CacheableQueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.CachingEntityProvider;
+import com.vaadin.addon.jpacontainer.CountStrategy;
 import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityWeigher;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.v7.data.Container.Filter;
 
@@ -111,7 +115,7 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
     }
 
     @Override
-    public synchronized T getEntity(EntityContainer<T> container, Object entityId) {
+    public T getEntity(EntityContainer<T> container, Object entityId) {
         return cachingSupport.getEntity(container, entityId);
     }
 
@@ -129,6 +133,459 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
         cachingSupport.setCloneCachedEntities(clone);
     }
 
+    /**
+     * Returns whether new entities are only admitted to a full entity cache if
+     * they are requested often enough.
+     * 
+     * @see #setFrequencyAdmissionEnabled(boolean)
+     * @return true if frequency based admission is used.
+     */
+    public boolean isFrequencyAdmissionEnabled() {
+        return cachingSupport.isFrequencyAdmissionEnabled();
+    }
+
+    /**
+     * Turns frequency based admission to the entity cache on or off. The
+     * entity cache always evicts the least recently used entity when it is
+     * full. With frequency based admission on, a new entity is only cached if
+     * it has recently been requested at least as often as the entity it would
+     * evict, which keeps frequently used entities cached even when many
+     * entities are only requested once. Changing this flag flushes the entity
+     * cache.
+     * 
+     * @param frequencyAdmissionEnabled
+     *            true to use frequency based admission, false to always cache
+     *            new entities.
+     */
+    public void setFrequencyAdmissionEnabled(boolean frequencyAdmissionEnabled) {
+        cachingSupport.setFrequencyAdmissionEnabled(frequencyAdmissionEnabled);
+    }
+
+    /**
+     * Returns the number of entities that are read ahead into the cache.
+     * 
+     * @see #setReadAheadSize(int)
+     * @return the number of entities to read ahead.
+     */
+    public int getReadAheadSize() {
+        return cachingSupport.getReadAheadSize();
+    }
+
+    /**
+     * Sets the number of entities to read ahead into the cache. When an entity
+     * that is not in the cache is requested right after its identifier was
+     * looked up by index, which is what a table does when it renders a page,
+     * the entities of up to <code>readAheadSize</code> consecutive rows
+     * starting from that index are fetched with a single query instead of
+     * one query per row. The default is 50.
+     * 
+     * @param readAheadSize
+     *            the number of entities to read ahead, or 0 to fetch every
+     *            entity separately.
+     */
+    public void setReadAheadSize(int readAheadSize) {
+        cachingSupport.setReadAheadSize(readAheadSize);
+    }
+
+    public int getMinChunkSize() {
+        return cachingSupport.getMinChunkSize();
+    }
+
+    public int getMaxChunkSize() {
+        return cachingSupport.getMaxChunkSize();
+    }
+
+    /**
+     * Sets the bounds of the number of entity identifiers that are fetched at
+     * a time. The defaults are 50 and 1000. Within the bounds, the number
+     * starts at 150 and is adapted separately for each filter and sort order:
+     * it grows while queries are fast, shrinks when they are slow, and covers
+     * at least two pages of the rows requested at a time. While the container
+     * is scrolled sequentially, the next identifiers are fetched before the
+     * scroll reaches the end of the cached ones. The number is also limited
+     * to half of the {@link #setEntityCacheMaxSize(int) max cache size}.
+     * 
+     * @param minChunkSize
+     *            the minimum number of identifiers to fetch at a time (at
+     *            least 1).
+     * @param maxChunkSize
+     *            the maximum number of identifiers to fetch at a time (at
+     *            least <code>minChunkSize</code>).
+     */
+    public void setChunkSizeBounds(int minChunkSize, int maxChunkSize) {
+        cachingSupport.setChunkSizeBounds(minChunkSize, maxChunkSize);
+    }
+
+    /**
+     * Returns the executor that prefetches entity identifiers and entities in
+     * the background.
+     * 
+     * @see #setPrefetchExecutor(Executor)
+     * @return the executor, or null if prefetching is done synchronously.
+     */
+    public Executor getPrefetchExecutor() {
+        return cachingSupport.getPrefetchExecutor();
+    }
+
+    /**
+     * Sets an executor to prefetch entity identifiers and entities in the
+     * background. By default, when the container is scrolled close to the end
+     * of the cached identifiers, the next ones are fetched by the thread that
+     * scrolls. With an executor, the next identifiers and the entities of the
+     * first rows among them are fetched on the executor instead, and merged
+     * into the cache when they arrive. On Java 21 or later, e.g. an executor
+     * that starts a virtual thread per task works well.
+     * <p>
+     * The background queries use an entity manager of their own: the one that
+     * the {@link #setEntityManagerProvider(com.vaadin.addon.jpacontainer.EntityManagerProvider)
+     * entity manager provider} returns on the background thread, or if there
+     * is no provider or it returns the entity manager of the calling thread,
+     * a new one created with the entity manager factory of that entity
+     * manager. Prefetches are cancelled when the filter or sort order of the
+     * container changes and when the cache is flushed.
+     * <p>
+     * Expired cached data is refreshed in the background with the executor
+     * too, see {@link #setCountTimeToLive(long)}.
+     * <p>
+     * The executor is not serialized, so it has to be set again after
+     * deserialization.
+     * 
+     * @see #setMaxPrefetches(int)
+     * @param prefetchExecutor
+     *            the executor, or null to prefetch synchronously.
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        cachingSupport.setPrefetchExecutor(prefetchExecutor);
+    }
+
+    /**
+     * Returns the max number of background prefetches that may run at the
+     * same time.
+     * 
+     * @see #setMaxPrefetches(int)
+     * @return the max number of prefetches.
+     */
+    public int getMaxPrefetches() {
+        return cachingSupport.getMaxPrefetches();
+    }
+
+    /**
+     * Sets the max number of background prefetches of this provider that may
+     * run at the same time. As every prefetch uses a database connection of
+     * its own, this limits the number of connections that a single provider
+     * uses. Prefetches beyond this are skipped, and the rows are fetched when
+     * they are needed instead. The default is 2.
+     * 
+     * @param maxPrefetches
+     *            the max number of prefetches.
+     */
+    public void setMaxPrefetches(int maxPrefetches) {
+        cachingSupport.setMaxPrefetches(maxPrefetches);
+    }
+
+    /**
+     * Returns how long a cached entity count is used before it is reloaded.
+     * 
+     * @see #setCountTimeToLive(long)
+     * @return the time in milliseconds, or -1 if counts never expire.
+     */
+    public long getCountTimeToLive() {
+        return cachingSupport.getCountTimeToLive();
+    }
+
+    /**
+     * Sets how long a cached entity count is used before it is reloaded, so
+     * that changes made to the database by others become visible. By default
+     * counts are only reloaded when the cache is flushed.
+     * <p>
+     * With a {@link #setPrefetchExecutor(Executor) prefetch executor}, an
+     * expired count is still returned while it is reloaded in the
+     * background, so that no lookup waits for the count query. Without one,
+     * the count is reloaded before it is returned. When the
+     * {@link #setSharedCacheEnabled(boolean) shared cache} is used, a count
+     * fetched from it may already be up to this old.
+     * 
+     * @param countTimeToLive
+     *            the time in milliseconds, or -1 to never expire the counts.
+     */
+    public void setCountTimeToLive(long countTimeToLive) {
+        cachingSupport.setCountTimeToLive(countTimeToLive);
+    }
+
+    /**
+     * Returns how long the cached entity identifiers are used before they
+     * are reloaded.
+     * 
+     * @see #setIdTimeToLive(long)
+     * @return the time in milliseconds, or -1 if identifiers never expire.
+     */
+    public long getIdTimeToLive() {
+        return cachingSupport.getIdTimeToLive();
+    }
+
+    /**
+     * Sets how long the cached window of entity identifiers of a sort order
+     * is used before it is reloaded. Like counts, an expired window is used
+     * while it is reloaded in the background with the prefetch executor. If
+     * there is no executor, it is dropped and the identifiers are reloaded as
+     * they are needed.
+     * 
+     * @see #setCountTimeToLive(long)
+     * @param idTimeToLive
+     *            the time in milliseconds, or -1 to never expire the
+     *            identifiers.
+     */
+    public void setIdTimeToLive(long idTimeToLive) {
+        cachingSupport.setIdTimeToLive(idTimeToLive);
+    }
+
+    /**
+     * Returns how long a cached entity is used before it is reloaded.
+     * 
+     * @see #setEntityTimeToLive(long)
+     * @return the time in milliseconds, or -1 if entities never expire.
+     */
+    public long getEntityTimeToLive() {
+        return cachingSupport.getEntityTimeToLive();
+    }
+
+    /**
+     * Sets how long a cached entity is used before it is reloaded. Expired
+     * entities are returned while they are reloaded in the background with
+     * the prefetch executor, several at a time, and reloaded before they are
+     * returned if there is no executor. Entities that no longer exist are
+     * removed from the cache when they are reloaded.
+     * 
+     * @see #setCountTimeToLive(long)
+     * @param entityTimeToLive
+     *            the time in milliseconds, or -1 to never expire the entities.
+     */
+    public void setEntityTimeToLive(long entityTimeToLive) {
+        cachingSupport.setEntityTimeToLive(entityTimeToLive);
+    }
+
+    /**
+     * Returns the memory budget of the caches of this provider.
+     * 
+     * @see #setMaxCacheWeight(long)
+     * @return the budget in bytes, or -1 if there is none.
+     */
+    public long getMaxCacheWeight() {
+        return cachingSupport.getMaxCacheWeight();
+    }
+
+    /**
+     * Sets a memory budget for the caches of this provider, so that the
+     * memory they use does not depend on how large the entities are. One
+     * budget covers the entity cache as well as the cached entity identifiers
+     * of all the filters and sort orders. Cached entities are weighed with the
+     * {@link #setEntityWeigher(EntityWeigher) entity weigher}, and the least
+     * recently used ones are evicted while the budget is exceeded. The entity
+     * identifiers are kept within half of the budget by evicting the least
+     * recently used lists of them and filters, so the entities always have at
+     * least the other half.
+     * <p>
+     * The {@link #setEntityCacheMaxSize(int) max cache size} still applies,
+     * so set it to -1 to limit the caches by weight only. To share a budget
+     * between several providers, see
+     * {@link #setCacheMemoryGovernor(CacheMemoryGovernor)}. This method will
+     * cause the cache to be flushed.
+     * 
+     * @param maxCacheWeight
+     *            the budget in bytes, or -1 for no budget (the default).
+     */
+    public void setMaxCacheWeight(long maxCacheWeight) {
+        cachingSupport.setMaxCacheWeight(maxCacheWeight);
+    }
+
+    /**
+     * Returns the weigher that estimates the memory used by the cached
+     * entities.
+     * 
+     * @see #setEntityWeigher(EntityWeigher)
+     * @return the weigher (never null).
+     */
+    public EntityWeigher<? super T> getEntityWeigher() {
+        return cachingSupport.getEntityWeigher();
+    }
+
+    /**
+     * Sets the weigher that estimates the memory used by the cached entities,
+     * see {@link #setMaxCacheWeight(long)}. The default weigher estimates the
+     * shallow size of an entity from its metadata: its fields, strings,
+     * arrays and embedded objects, but not the entities or collections it
+     * refers to. A weigher of your own can include e.g. the collections that
+     * are always loaded. This method will cause the entity cache to be
+     * flushed.
+     * 
+     * @param entityWeigher
+     *            the weigher, or null to use the default one.
+     */
+    public void setEntityWeigher(EntityWeigher<? super T> entityWeigher) {
+        cachingSupport.setEntityWeigher(entityWeigher);
+    }
+
+    /**
+     * Returns the governor whose memory budget this provider shares.
+     * 
+     * @see #setCacheMemoryGovernor(CacheMemoryGovernor)
+     * @return the governor, or null if there is none.
+     */
+    public CacheMemoryGovernor getCacheMemoryGovernor() {
+        return cachingSupport.getCacheMemoryGovernor();
+    }
+
+    /**
+     * Shares the memory budget of <code>governor</code> with the other
+     * providers that it governs, typically all the providers of a UI or a
+     * session. The governor gives this provider a share of the budget that
+     * depends on how recently the provider has been used, and shrinks the
+     * shares when the heap runs low. If a {@link #setMaxCacheWeight(long) max
+     * cache weight} is set too, the smaller of the two applies. This method
+     * will cause the cache to be flushed.
+     * 
+     * @param governor
+     *            the governor, or null to stop sharing its budget.
+     */
+    public void setCacheMemoryGovernor(CacheMemoryGovernor governor) {
+        cachingSupport.setCacheMemoryGovernor(governor);
+    }
+
+    /**
+     * Returns whether the cache shared with other providers is used.
+     * 
+     * @see #setSharedCacheEnabled(boolean)
+     * @return true if the shared cache is used.
+     */
+    public boolean isSharedCacheEnabled() {
+        return cachingSupport.isSharedCacheEnabled();
+    }
+
+    /**
+     * Turns the shared cache on or off. The shared cache is a second level
+     * cache of entity counts, entity identifier windows and entities that is
+     * shared by all the providers of the same entity class that have it turned
+     * on and use the same entity manager factory, e.g. the providers of
+     * different sessions. When many users view the same data, only one of
+     * them runs each query and the others get a copy of the result.
+     * <p>
+     * The shared cache subscribes to the {@link CacheInvalidationHub}, so it
+     * is updated when entities are added, updated or removed through any
+     * mutable provider, or directly through JPA if the
+     * {@link CacheInvalidationListener} has been registered as an entity
+     * listener. Other changes, e.g. ones made with SQL, are only noticed once
+     * the cached data is evicted or {@link #clearSharedCache()} is called.
+     * {@link #refresh()} only clears the cache of this provider. Providers
+     * with a query modifier delegate only use the shared cache if the delegate
+     * is a {@link CacheableQueryModifierDelegate}.
+     * 
+     * @param sharedCacheEnabled
+     *            true to use the shared cache, false to only use the cache of
+     *            this provider.
+     * @throws UnsupportedOperationException
+     *             if the entity class is not cloneable, as entities are
+     *             copied in and out of the shared cache.
+     */
+    public void setSharedCacheEnabled(boolean sharedCacheEnabled)
+            throws UnsupportedOperationException {
+        cachingSupport.setSharedCacheEnabled(sharedCacheEnabled);
+    }
+
+    /**
+     * Clears the shared cache, which drops the data shared by all the
+     * providers that use it, e.g. after the database has been changed with
+     * SQL. Unlike {@link #refresh()}, which only clears the cache of this
+     * provider, this makes every user of the shared cache reload the data.
+     * Does nothing if the shared cache is not in use.
+     * 
+     * @see #setSharedCacheEnabled(boolean)
+     * @since 4.0.1
+     */
+    public void clearSharedCache() {
+        cachingSupport.clearSharedCache();
+    }
+
+    /**
+     * Returns whether the cache of this provider is updated when entities are
+     * changed through other providers.
+     * 
+     * @see #setInvalidationHubEnabled(boolean)
+     * @return true if the cache is subscribed to the
+     *         {@link CacheInvalidationHub}.
+     * @since 4.0.1
+     */
+    public boolean isInvalidationHubEnabled() {
+        return cachingSupport.isInvalidationHubEnabled();
+    }
+
+    /**
+     * Subscribes the cache of this provider to the
+     * {@link CacheInvalidationHub}, or ends the subscription. When
+     * subscribed, the cache is updated when entities are added, updated or
+     * removed through any other mutable provider, or directly through JPA if
+     * the {@link CacheInvalidationListener} has been registered as an entity
+     * listener. Changes made in this JVM update the cached counts and entity
+     * identifier lists the same way as changes made through this provider.
+     * Changes received from other JVMs only carry the identifier of the
+     * changed entity, so the data they may affect is dropped.
+     * <p>
+     * The notifications are delivered to every subscribed cache on the
+     * thread that made the change, which slows down writes as the number of
+     * subscribed providers grows. The subscription is therefore off by
+     * default.
+     * 
+     * @param invalidationHubEnabled
+     *            true to subscribe to the hub, false to unsubscribe.
+     * @since 4.0.1
+     */
+    public void setInvalidationHubEnabled(boolean invalidationHubEnabled) {
+        cachingSupport.setInvalidationHubEnabled(invalidationHubEnabled);
+    }
+
+    /**
+     * Returns whether the cache fetches adjacent chunks of entity identifiers
+     * using keyset paging.
+     * 
+     * @see #setKeysetPagingEnabled(boolean)
+     * @return true if keyset paging is used, false if offsets are used.
+     */
+    public boolean isKeysetPagingEnabled() {
+        return cachingSupport.isKeysetPagingEnabled();
+    }
+
+    /**
+     * Turns keyset paging on or off. By default, the cache fetches every chunk
+     * of entity identifiers using an offset, which forces the database to scan
+     * and discard all the preceding rows. With keyset paging on, a chunk that
+     * is adjacent to an already cached chunk is instead fetched by continuing
+     * from the sort key values of the nearest cached entity, making deep
+     * scrolling about as cheap as shallow scrolling.
+     * <p>
+     * Offsets are still used for random jumps, and for sort orders on
+     * properties that can be null, as the rows with null values would be
+     * skipped. Only the identifier, properties of a primitive type and
+     * properties mapped with <code>nullable = false</code> or
+     * <code>optional = false</code> are considered non-null.
+     * 
+     * @param keysetPagingEnabled
+     *            true to use keyset paging, false to always use offsets.
+     */
+    public void setKeysetPagingEnabled(boolean keysetPagingEnabled) {
+        cachingSupport.setKeysetPagingEnabled(keysetPagingEnabled);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The cached counts are dropped, as they may have been counted
+     * differently.
+     */
+    @Override
+    public void setCountStrategy(CountStrategy<T> countStrategy) {
+        super.setCountStrategy(countStrategy);
+        cachingSupport.invalidateSize();
+    }
+
     @Override
     public int getEntityCount(EntityContainer<T> container, Filter filter) {
         return cachingSupport.getEntityCount(container, filter);
@@ -140,6 +597,20 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
         return cachingSupport.getEntityIdentifierAt(container, filter, sortBy, index);
     }
 
+    @Override
+    public List<Object> getEntityIdentifiers(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int startIndex, int count) {
+        return cachingSupport.getEntityIdentifiers(container, filter, sortBy,
+                startIndex, count);
+    }
+
+    @Override
+    public List<T> getEntities(EntityContainer<T> container, Filter filter,
+            List<SortBy> sortBy, int startIndex, int count) {
+        return cachingSupport.getEntities(container, filter, sortBy,
+                startIndex, count);
+    }
+
     @Override
     public Object getFirstEntityIdentifier(EntityContainer<T> container, Filter filter, List<SortBy> sortBy) {
         return cachingSupport.getFirstEntityIdentifier(container, filter, sortBy);
@@ -16,45 +16,170 @@
 
 package com.vaadin.addon.jpacontainer.provider;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.AbstractSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 
+import com.vaadin.addon.jpacontainer.CacheableQueryModifierDelegate;
+import com.vaadin.addon.jpacontainer.CountStrategy;
 import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityWeigher;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
+import com.vaadin.addon.jpacontainer.RangedEntityProvider;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.filter.util.FilterNormalizer;
+import com.vaadin.addon.jpacontainer.filter.util.FilterNormalizer.FilterKey;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
 import com.vaadin.v7.data.Container.Filter;
 import com.vaadin.v7.data.Item;
+import com.vaadin.v7.data.util.filter.And;
 
 /**
  * Delegate class that implements caching for {@link LocalEntityProvider}s and
  * their subclasses. This class is internal and should never be used outside of
  * JPAContainer.
+ * <p>
+ * The caches are safe to use from several threads at once, e.g. when a single
+ * provider is shared by many sessions. Cached data is read without blocking
+ * other readers, entities that are not in the cache are loaded in parallel
+ * unless they are the same entity, in which case only one of the threads
+ * queries the database and the others wait for its result.
+ * <p>
+ * When a filter is first used and a cached filter that it narrows down (e.g.
+ * the same filter with one more condition) has all of its entityIds cached
+ * along with the entities themselves, the entityIds and the count of the new
+ * filter are derived in memory instead of being queried.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
-class CachingSupport<T> implements Serializable {
+class CachingSupport<T> implements Serializable,
+        CacheInvalidationHub.Subscriber {
 
     private final LocalEntityProvider<T> entityProvider;
     private int maxCacheSize = 1000;
     private boolean cacheEnabled = true;
     private boolean cloneCachedEntities = false;
+    private boolean keysetPagingEnabled = false;
+    private int readAheadSize = 50;
+    private int minChunkSize = 50;
+    private int maxChunkSize = 1000;
     /**
-     * The number of entity IDs to fetch every time a query is made.
+     * Runs the asynchronous prefetches, or null to prefetch on the calling
+     * thread. Not serialized.
+     */
+    private transient volatile Executor prefetchExecutor;
+    private int maxPrefetches = 2;
+    /**
+     * The asynchronous prefetches that have been started but not finished,
+     * guarded by its own monitor. Created with the first executor and never
+     * cleared, so it is always there when a prefetch is running.
+     */
+    private transient Set<FilterCacheEntry.PrefetchTask> prefetches;
+    /**
+     * The values that are being refreshed in the background, see
+     * {@link #refreshInBackground(Object, Runnable)}. Guarded by its own
+     * monitor and created with the first executor, like {@link #prefetches}.
+     */
+    private transient Set<Object> refreshes;
+    /**
+     * The entityIds of the expired entities that are waiting to be refreshed
+     * in the background, guarded by its own monitor. Created with the first
+     * executor.
+     */
+    private transient Set<Object> expiredEntityIds;
+    /**
+     * The times the cached entities were loaded, kept only while entities
+     * expire, see {@link #setEntityTimeToLive(long)}.
+     */
+    private transient volatile Map<Object, Long> entityLoadedAt;
+    private long countTimeToLive = -1;
+    private long idTimeToLive = -1;
+    private long entityTimeToLive = -1;
+    private boolean frequencyAdmissionEnabled = false;
+    private long maxCacheWeight = -1;
+    private EntityWeigher<? super T> entityWeigher;
+    /**
+     * The budget of the current entity cache, or null if the caches are not
+     * weighed. Replaced together with the entity cache.
+     */
+    private volatile CacheBudget cacheBudget;
+    private CacheMemoryGovernor cacheMemoryGovernor;
+    /**
+     * The share of the budget of {@link #cacheMemoryGovernor} given to this
+     * cache, or -1 if there is no governor.
+     */
+    private transient volatile long governedWeight = -1;
+    /**
+     * The time the cache was last used, see
+     * {@link CacheMemoryGovernor#rebalance()}.
+     */
+    private transient volatile long lastUsedAt = System.nanoTime();
+    /**
+     * Counts the entities cached since the weight of the cached entityIds was
+     * last updated, see {@link #updateIdWeight()}.
+     */
+    private final AtomicInteger idWeightUpdates = new AtomicInteger();
+    private boolean sharedCacheEnabled = false;
+    private boolean invalidationHubEnabled = false;
+    /**
+     * The shared region that was most recently used, see
+     * {@link #getSharedRegion()}.
+     */
+    private transient volatile SharedCacheRegion<T> sharedRegion;
+    /**
+     * The position of the entityId that was most recently looked up by index,
+     * used to decide which entities to read ahead.
+     */
+    private volatile IdPosition lastIdPosition;
+    /**
+     * The number of entity IDs to fetch when a sorted ID list is first
+     * queried, see {@link PrefetchPolicy}.
      */
     protected static final int CHUNK_SIZE = 150;
+    /**
+     * The distance between two consecutive keyset anchors, see
+     * {@link IdListEntry#anchors}.
+     */
+    protected static final int ANCHOR_INTERVAL = CHUNK_SIZE;
+    /**
+     * The maximum number of keyset anchors to store per sorted ID list.
+     */
+    protected static final int MAX_ANCHORS = 1000;
     /**
      * A {@link Filter}-instance representing the null-filter (i.e. no filter
      * applied).
@@ -79,15 +204,39 @@ class CachingSupport<T> implements Serializable {
      * @see #getFilterCache()
      */
     public static final int MAX_FILTER_CACHE_SIZE = 10;
+    /**
+     * The max number of entities to evaluate in memory when deriving the
+     * cached data of a filter from that of a broader filter.
+     */
+    public static final int MAX_REFINED_ENTITIES = 50000;
+    /**
+     * The max number of entities to sort in memory when a filter is sorted in
+     * a new way.
+     */
+    public static final int MAX_SORTED_ENTITIES = 50000;
     /**
      * The max size of the sort by cache for each filter. Thus, the maximum
      * number of cached filter-sortBy combinations is
      * <code>MAX_FILTER_CACHE_SIZE * MAX_SORTBY_CACHE_SIZE</code>.
      */
     public static final int MAX_SORTBY_CACHE_SIZE = 10;
+    /**
+     * The approximate weight in bytes of an entityId that is stored as a
+     * primitive, see {@link IdList} and {@link PrimitiveIdSet}.
+     */
+    static final int PRIMITIVE_ID_WEIGHT = 8;
+    /**
+     * The approximate weight in bytes of an entityId that is stored as an
+     * object, including the reference to it.
+     */
+    static final int OBJECT_ID_WEIGHT = 40;
+    /**
+     * The number of entities to cache between the updates of the weight of
+     * the cached entityIds.
+     */
+    static final int ID_WEIGHT_UPDATE_INTERVAL = 64;
 
-    // TODO Make chunk size, filter cache size and sortBy cache size user
-    // configurable.
+    // TODO Make filter cache size and sortBy cache size user configurable.
 
     /**
      * Creates a new <code>CachingSupport</code> for the specified entity
@@ -101,6 +250,21 @@ class CachingSupport<T> implements Serializable {
         this.entityProvider = entityProvider;
     }
 
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        // The subscription does not survive serialization
+        if (invalidationHubEnabled) {
+            CacheInvalidationHub.getInstance().subscribe(this, entityProvider);
+        }
+        setEntityTimeToLive(entityTimeToLive);
+        governedWeight = -1;
+        lastUsedAt = System.nanoTime();
+        if (cacheMemoryGovernor != null) {
+            cacheMemoryGovernor.register(this);
+        }
+    }
+
     /**
      * Data structure used by {@link FilterCacheEntry} to store entityId lists
      * sorted in different ways.
@@ -111,15 +275,148 @@ class CachingSupport<T> implements Serializable {
     static class IdListEntry implements Serializable {
 
         private static final long serialVersionUID = -3552793234160831297L;
-        public ArrayList<Object> idList;
+        public List<Object> idList;
         public int listOffset = 0;
         public boolean containsAll = false;
+        /**
+         * Sparse index of every {@link CachingSupport#ANCHOR_INTERVAL}:th
+         * entityId that has been loaded, keyed by position. Unlike
+         * {@link #idList}, the anchors are kept when the list is cleaned up,
+         * which makes it possible to seek to a previously visited position
+         * with a small offset. Only used when keyset paging is enabled.
+         */
+        public TreeMap<Integer, Anchor> anchors;
+        /**
+         * The time this list was last used, for evicting the least recently
+         * used list when there are too many.
+         */
+        volatile long lastUsed = System.nanoTime();
+        /**
+         * The time the most recent query for this list was started, see
+         * {@link CachingSupport#entityAdded(Object, long)}.
+         */
+        long loadedAt;
+        /**
+         * The time the list was created or last refreshed, which is when its
+         * oldest entityIds were loaded, see
+         * {@link CachingSupport#setIdTimeToLive(long)}.
+         */
+        volatile long refreshedAt = System.nanoTime();
+        /**
+         * True if the last entityId of {@link #idList} is known to be the last
+         * one that matches the filter, in which case no more entityIds are
+         * prefetched after it.
+         */
+        boolean endLoaded;
+        /**
+         * Decides how many entityIds to fetch at a time and when to fetch
+         * them.
+         */
+        final PrefetchPolicy prefetch = new PrefetchPolicy();
+        /**
+         * The asynchronous prefetch that is running for this list, if any.
+         */
+        transient volatile Runnable prefetchTask;
+
+        /**
+         * Returns whether the entityId at position <code>index</code> can be
+         * read from this entry without making any queries.
+         */
+        boolean covers(int index) {
+            return containsAll
+                    || (listOffset > -1 && !idList.isEmpty()
+                            && index >= listOffset && index < listOffset
+                            + idList.size());
+        }
+
+        /**
+         * Records anchors for the entityIds in <code>ids</code>, the first of
+         * which is at position <code>offset</code>.
+         */
+        void addAnchors(List<Object> ids, int offset) {
+            int first = (offset + ANCHOR_INTERVAL - 1) / ANCHOR_INTERVAL
+                    * ANCHOR_INTERVAL;
+            if (first == 0) {
+                // Position 0 never needs an anchor
+                first = ANCHOR_INTERVAL;
+            }
+            for (int i = first; i < offset + ids.size(); i += ANCHOR_INTERVAL) {
+                if (anchors == null) {
+                    anchors = new TreeMap<Integer, Anchor>();
+                }
+                Anchor anchor = anchors.get(i);
+                if (anchor == null || !anchor.entityId.equals(ids.get(i - offset))) {
+                    anchors.put(i, new Anchor(ids.get(i - offset)));
+                }
+                if (anchors.size() > MAX_ANCHORS) {
+                    // Forget the anchor furthest away from this one
+                    if (i - anchors.firstKey() > anchors.lastKey() - i) {
+                        anchors.pollFirstEntry();
+                    } else {
+                        anchors.pollLastEntry();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Data structure used by {@link IdListEntry} to remember the position of
+     * an entityId. The sort key values of the entity are read lazily, the
+     * first time the anchor is seeked from.
+     * 
+     * @since 4.0.1
+     */
+    static class Anchor implements Serializable {
+
+        private static final long serialVersionUID = 6245160918766435231L;
+        public final Object entityId;
+        /**
+         * Read without holding any lock, see
+         * {@link CachingSupport.FilterCacheEntry#seekIdsFromAnchor}.
+         */
+        public volatile Map<Object, Object> keyValues;
+
+        Anchor(Object entityId) {
+            this.entityId = entityId;
+        }
+    }
+
+    /**
+     * Records where in a filtered and sorted list an entityId was found.
+     * 
+     * @since 4.0.1
+     */
+    static class IdPosition implements Serializable {
+
+        private static final long serialVersionUID = -2307815646376416214L;
+        public final Object scope;
+        public final Filter filter;
+        public final List<SortBy> sortBy;
+        public final int index;
+        public final Object entityId;
+
+        IdPosition(Object scope, Filter filter, List<SortBy> sortBy,
+                int index, Object entityId) {
+            this.scope = scope;
+            this.filter = filter;
+            this.sortBy = sortBy;
+            this.index = index;
+            this.entityId = entityId;
+        }
     }
 
     /**
      * This class represents a cache for a specific {@link Filter}. The class
      * contains counterparts of most of the methods defined in
      * {@link EntityProvider}.
+     * <p>
+     * The sorted entityId lists are guarded by a read-write lock. Lookups that
+     * can be answered from the cache only take the read lock, while lookups
+     * that need to query the database take the write lock to prepare the
+     * query and to merge its result, but not while the query runs, see
+     * {@link IdQuery}. The entity count and the set of known entityIds are
+     * loaded without holding that lock.
      * 
      * @author Petter Holmström (Vaadin Ltd)
      * @since 1.0
@@ -128,595 +425,3749 @@ class CachingSupport<T> implements Serializable {
 
         // TODO Optimize the use of lists
         private static final long serialVersionUID = -2978864194978758736L;
-        private Filter filter;
-        private Integer entityCount;
-        public Map<List<SortBy>, IdListEntry> idListMap = new CacheMap<List<SortBy>, IdListEntry>(
-                MAX_SORTBY_CACHE_SIZE);
-        public Set<Object> idSet = new CacheSet<Object>(getMaxCacheSize());
+        private final List<Object> key;
+        /**
+         * The cache scope of the queries, see
+         * {@link CachingSupport#getCacheScope(EntityContainer)}.
+         */
+        private final Object scope;
+        private final Filter filter;
+        /**
+         * The top level properties that the filter depends on, or null if they
+         * are not known.
+         */
+        private final Set<String> filterDependencies;
+        private volatile Integer entityCount;
+        /**
+         * The time the query that produced {@link #entityCount} was started.
+         */
+        private volatile long countLoadedAt;
+        /**
+         * Guards {@link #idListMap} and the {@link IdListEntry}s in it.
+         */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        /**
+         * Makes threads that need the entity count at the same time wait for
+         * one query instead of each running their own.
+         */
+        private final ReentrantLock countLock = new ReentrantLock();
+        /**
+         * Incremented whenever cached data is invalidated, so that the results
+         * of queries that were started before can be discarded.
+         */
+        private final AtomicInteger generation = new AtomicInteger();
+        public Map<List<SortBy>, IdListEntry> idListMap = new ConcurrentHashMap<List<SortBy>, IdListEntry>();
+        /**
+         * Makes threads that need the same chunk of entityIds at the same time
+         * wait for one query instead of each running their own, see
+         * {@link IdQuery}.
+         */
+        private final SingleFlight<IdQuery, List<Object>> idLoads = new SingleFlight<IdQuery, List<Object>>();
+        /**
+         * Known entityIds that match the filter, guarded by its own monitor.
+         */
+        public Set<Object> idSet = createIdSet();
+        /**
+         * The time {@link #idSet} was last emptied, which is when its oldest
+         * entityIds were found.
+         */
+        private volatile long idSetClearedAt = System.nanoTime();
 
         /**
          * Creates a new <code>FilterCacheEntry</code>.
          * 
-         * @param filter
-         *            the filter for which this cache should be created.
+         * @param scope
+         *            the cache scope of the queries, or null if they are not
+         *            modified by any delegate.
+         * @param filterKey
+         *            the key of the normalized filter for which this cache
+         *            should be created.
          */
-        public FilterCacheEntry(Filter filter) {
-            this.filter = filter;
+        public FilterCacheEntry(Object scope, FilterKey filterKey) {
+            this.key = Arrays.asList(scope, filterKey);
+            this.scope = scope;
+            this.filter = filterKey.getFilter() == null ? NULL_FILTER
+                    : filterKey.getFilter();
+            this.filterDependencies = FilterEvaluator
+                    .getPropertyDependencies(getFilter());
         }
 
         /**
-         * Gets the number of entities that match this particular filter.
+         * Checks whether changing any of <code>properties</code> may change
+         * which entities match the filter of this entry.
          * 
-         * @return the number of entities.
+         * @param properties
+         *            the names of top level properties.
          */
-        public synchronized int getEntityCount(EntityContainer<T> container) {
-            if(!isCachingPossible(container)) {
-                return entityProvider.doGetEntityCount(container, getFilter());
-            }
-            if (entityCount == null) {
-                entityCount = entityProvider.doGetEntityCount(container, getFilter());
+        boolean filterDependsOn(Set<String> properties) {
+            return filterDependencies == null
+                    || !Collections.disjoint(filterDependencies, properties);
+        }
+
+        /**
+         * Drops the cached entityId lists whose sort order depends on any of
+         * <code>properties</code>, as the order of the entities may have
+         * changed.
+         * 
+         * @param properties
+         *            the names of top level properties.
+         */
+        void invalidateSortedBy(Set<String> properties) {
+            lock.writeLock().lock();
+            try {
+                Iterator<List<SortBy>> it = idListMap.keySet().iterator();
+                while (it.hasNext()) {
+                    for (SortBy sb : it.next()) {
+                        if (properties.contains(FilterEvaluator
+                                .getTopLevelProperty(sb.getPropertyId()))) {
+                            it.remove();
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
             }
-            return entityCount;
         }
 
         /**
-         * @see EntityProvider#containsEntity(java.lang.Object,
-         *      com.vaadin.addons.jpacontainer.Filter)
+         * Fills this entry, which must not yet be in use, with the entityIds
+         * of <code>parent</code> that also match all of <code>extra</code>.
+         * Every entityId list of the parent that contains all the entityIds
+         * is narrowed down, keeping its order, and the entity count is set to
+         * the number of matches.
+         * 
+         * @param parent
+         *            the entry of a broader filter.
+         * @param extra
+         *            the conditions that this filter adds to the filter of the
+         *            parent.
+         * @param evaluator
+         *            the evaluator to evaluate the conditions with.
+         * @return true if this entry was filled, false if the parent has no
+         *         complete entityId list, some of its entities are not cached
+         *         or the conditions cannot be evaluated in memory for some of
+         *         them.
          */
-        public synchronized boolean containsId(EntityContainer<T> container,
-                Object entityId) {
-            if (!idSet.contains(entityId)) {
-                if (entityProvider.doContainsEntity(container, entityId,
-                        getFilter())) {
-                    idSet.add(entityId);
-                    return true;
-                } else {
+        boolean refineFrom(FilterCacheEntry parent, List<Filter> extra,
+                FilterEvaluator<T> evaluator) {
+            Map<List<SortBy>, IdListEntry> complete = new HashMap<List<SortBy>, IdListEntry>();
+            parent.lock.readLock().lock();
+            try {
+                for (Map.Entry<List<SortBy>, IdListEntry> e : parent.idListMap
+                        .entrySet()) {
+                    IdListEntry entry = e.getValue();
+                    if (entry.containsAll
+                            && entry.idList.size() <= MAX_REFINED_ENTITIES) {
+                        IdListEntry copy = new IdListEntry();
+                        copy.idList = createIdList(entry.idList);
+                        copy.containsAll = true;
+                        copy.loadedAt = entry.loadedAt;
+                        copy.refreshedAt = entry.refreshedAt;
+                        complete.put(e.getKey(), copy);
+                    }
+                }
+            } finally {
+                parent.lock.readLock().unlock();
+            }
+            if (complete.isEmpty()) {
+                return false;
+            }
+            IdListEntry first = complete.values().iterator().next();
+            Map<Object, T> cache = getEntityCache();
+            Set<Object> matching = new HashSet<Object>();
+            for (Object entityId : first.idList) {
+                T entity = cache.get(entityId);
+                if (entity == null) {
                     return false;
                 }
-            } else {
-                return true;
+                for (Filter condition : extra) {
+                    FilterEvaluator.Result r = evaluator.evaluate(condition,
+                            entity);
+                    if (r == FilterEvaluator.Result.UNKNOWN) {
+                        return false;
+                    } else if (r == FilterEvaluator.Result.NO_MATCH) {
+                        entity = null;
+                        break;
+                    }
+                }
+                if (entity != null) {
+                    matching.add(entityId);
+                }
+            }
+            for (Map.Entry<List<SortBy>, IdListEntry> e : complete.entrySet()) {
+                IdListEntry entry = e.getValue();
+                List<Object> ids = createIdList(matching.size());
+                for (Object entityId : entry.idList) {
+                    if (matching.contains(entityId)) {
+                        ids.add(entityId);
+                    }
+                }
+                entry.idList = ids;
+                idListMap.put(e.getKey(), entry);
             }
+            entityCount = matching.size();
+            countLoadedAt = first.loadedAt;
+            return true;
         }
 
         /**
-         * @see EntityProvider#getFirstEntityIdentifier(com.vaadin.addons.jpacontainer.Filter,
-         *      java.util.List)
+         * Gets the number of entities that match this particular filter.
+         * 
+         * @return the number of entities.
          */
-        public Object getFirstId(EntityContainer<T> container,
-                List<SortBy> sortBy) {
-            return getIdAt(container, sortBy, 0);
+        public int getEntityCount(EntityContainer<T> container) {
+            if(!isCachingPossible(container)) {
+                return entityProvider.doGetEntityCount(container, getFilter());
+            }
+            Integer count = entityCount;
+            if (count != null && isExpired(countLoadedAt, getCountTimeToLive())
+                    && !refreshCountInBackground(container)) {
+                count = null;
+            }
+            if (count == null) {
+                count = loadCount(container);
+            }
+            return count;
         }
 
         /**
-         * @see EntityProvider#getNextEntityIdentifier(java.lang.Object,
-         *      com.vaadin.addons.jpacontainer.Filter, java.util.List)
+         * Loads the entity count unless it is cached and has not expired.
+         * Only one thread at a time loads the count.
+         * 
+         * @return the count.
          */
-        public synchronized Object getNextId(EntityContainer<T> container,
-                Object entityId, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>();
-                entry.listOffset = -1;
-                idListMap.put(sortBy, entry);
-            }
-            int index = entry.idList.indexOf(entityId);
-            if (index == -1) {
-                entry.idList = new ArrayList<Object>(getNextIds(container,
-                        getFilter(), sortBy, entityId, CHUNK_SIZE));
-                if (entry.idList.isEmpty()) {
-                    return null;
-                } else {
-                    return entry.idList.get(0);
-                }
-            } else {
-                if (index == entry.idList.size() - 1) {
-                    if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
-                        // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
-                            entry.idList.clear();
-                            index = -1;
-                        } else {
-                            entry.idList.subList(0, CHUNK_SIZE).clear();
-                            index -= CHUNK_SIZE;
+        private int loadCount(EntityContainer<T> container) {
+            countLock.lock();
+            try {
+                Integer count = entityCount;
+                if (count == null
+                        || isExpired(countLoadedAt, getCountTimeToLive())) {
+                    int gen = generation.get();
+                    long loadedAt = System.nanoTime();
+                    count = loadEntityCount(container, getFilter());
+                    synchronized (this) {
+                        if (generation.get() == gen) {
+                            entityCount = count;
+                            countLoadedAt = loadedAt;
                         }
                     }
-                    entry.idList.addAll(getNextIds(container, getFilter(),
-                            sortBy, entityId, CHUNK_SIZE));
-                }
-                if (index + 1 == entry.idList.size()) {
-                    return null;
-                } else {
-                    return entry.idList.get(index + 1);
                 }
+                return count;
+            } finally {
+                countLock.unlock();
             }
         }
 
         /**
-         * @see EntityProvider#getPreviousEntityIdentifier(java.lang.Object,
-         *      com.vaadin.addons.jpacontainer.Filter, java.util.List)
+         * Reloads the expired entity count in the background, see
+         * {@link CachingSupport#refreshInBackground(Object, Runnable)}.
+         * 
+         * @return true if the count is being reloaded, false if there is no
+         *         executor to reload it with.
          */
-        public synchronized Object getPreviousId(EntityContainer<T> container,
-                Object entityId, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>();
-                entry.listOffset = -1;
-                idListMap.put(sortBy, entry);
-            }
-            int index = entry.idList.indexOf(entityId);
-            if (index == -1) {
-                List<Object> objects = getPreviousIds(container, getFilter(),
-                        sortBy, entityId, CHUNK_SIZE);
-                // We have to reverse the list
-                entry.idList = new ArrayList<Object>(objects.size());
-                for (int i = objects.size() - 1; i >= 0; i--) {
-                    entry.idList.add(objects.get(i));
-                }
-                if (entry.idList.isEmpty()) {
-                    return null;
-                } else {
-                    return entry.idList.get(entry.idList.size() - 1);
+        private boolean refreshCountInBackground(
+                final EntityContainer<T> container) {
+            return refreshInBackground(this, new Runnable() {
+                public void run() {
+                    loadCount(container);
                 }
-            } else {
-                if (index == 0) {
-                    List<Object> objects = getPreviousIds(container,
-                            getFilter(), sortBy, entityId, CHUNK_SIZE);
-                    if (objects.isEmpty()) {
-                        return null;
-                    }
-                    // Store the ID we are looking for
-                    Object theId = objects.get(0);
-                    // Save the rest of the IDs in the cache for future use
-                    ArrayList<Object> l = new ArrayList<Object>();
-                    for (int i = objects.size() - 1; i >= 0; i--) {
-                        l.add(objects.get(i));
-                    }
-                    if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
-                        // Clean up the cache
-                        if (entry.idList.size() > CHUNK_SIZE) {
-                            l.addAll(entry.idList.subList(0,
-                                    entry.idList.size() - CHUNK_SIZE));
-                        }
-                    } else {
-                        l.addAll(entry.idList);
-                    }
-                    entry.idList = l;
-                    return theId;
-                } else {
-                    return entry.idList.get(index - 1);
+            });
+        }
+
+        /**
+         * Returns the approximate weight in bytes of the entityIds that this
+         * entry caches.
+         */
+        long getIdWeight() {
+            long weight;
+            synchronized (idSet) {
+                weight = weighIds(idSet);
+            }
+            lock.readLock().lock();
+            try {
+                for (IdListEntry entry : idListMap.values()) {
+                    weight += weighIds(entry.idList);
                 }
+            } finally {
+                lock.readLock().unlock();
             }
+            return weight;
         }
 
         /**
-         * @see EntityProvider#getLastEntityIdentifier(com.vaadin.addons.jpacontainer.Filter,
-         *      java.util.List)
+         * Reloads the entityId list for <code>sortBy</code> if it has
+         * expired, see {@link CachingSupport#setIdTimeToLive(long)}. The list
+         * is reloaded in the background if possible, and otherwise dropped, so
+         * that the lookup that follows reloads the part that it needs.
          */
-        public Object getLastId(EntityContainer<T> container,
-                List<SortBy> sortBy) {
-            return getIdAt(container, sortBy, getEntityCount(container) - 1);
+        private void checkIdListExpiry(final EntityContainer<T> container,
+                final List<SortBy> sortBy) {
+            final IdListEntry entry = idListMap.get(sortBy);
+            if (entry == null
+                    || !isExpired(entry.refreshedAt, getIdTimeToLive())) {
+                return;
+            }
+            if (refreshInBackground(entry, new Runnable() {
+                public void run() {
+                    refreshIdList(container, sortBy, entry);
+                }
+            })) {
+                return;
+            }
+            removeIdList(sortBy, entry);
         }
 
         /**
-         * Informs the cache that <code>entityId</code> has been invalidated
-         * (changed or removed). If the entityId is currently in cache, the
-         * cache is flushed, forcing the data to be fetched from the database
-         * when requested the next time.
+         * Drops the entityId list for <code>sortBy</code>, unless it has been
+         * replaced by another list than <code>entry</code>.
          * 
-         * @param entityId
-         *            the entityId to invalidate.
+         * @return true if the list was dropped.
          */
-        public synchronized void invalidate(Object entityId) {
-            // Clear the caches to force the data to be re-fetched from the
-            // database
-            // in case the ordering has changed
-            idListMap.clear();
-            // Removing the entity Id from the Id cache should be enough
-            idSet.remove(entityId);
+        boolean removeIdList(List<SortBy> sortBy, IdListEntry entry) {
+            lock.writeLock().lock();
+            try {
+                if (idListMap.get(sortBy) == entry) {
+                    idListMap.remove(sortBy);
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.writeLock().unlock();
+            }
         }
 
         /**
-         * @see EntityProvider#getEntityIdentifierAt(com.vaadin.addons.jpacontainer.Filter,
-         *      java.util.List, int)
+         * Reloads the cached window of <code>entry</code>, or all of its
+         * entityIds if it contains all of them, and replaces the entityIds of
+         * the list with the new ones, unless the list has been replaced or
+         * moved in the meantime. A list whose position is not known cannot be
+         * reloaded and is dropped.
          */
-        public synchronized Object getIdAt(EntityContainer<T> container,
-                List<SortBy> sortBy, int index) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>(CHUNK_SIZE * 2);
-                idListMap.put(sortBy, entry);
+        private void refreshIdList(EntityContainer<T> container,
+                List<SortBy> sortBy, IdListEntry entry) {
+            int gen = generation.get();
+            long startedAt = System.nanoTime();
+            boolean all;
+            int offset;
+            int size;
+            lock.readLock().lock();
+            try {
+                all = entry.containsAll;
+                offset = entry.listOffset;
+                size = entry.idList.size();
+            } finally {
+                lock.readLock().unlock();
             }
-
-            // listOffset may be -1 if the list has been loaded by a call
-            // to getNextId() or getPreviousId()
-            if (!entry.containsAll
-                    && (entry.idList.isEmpty() || index < entry.listOffset || index >= entry.listOffset
-                            + entry.idList.size())) {
-
-                // Check if we can concatenate the index lists
-                if (entry.listOffset > -1 && index == entry.listOffset - 1) {
-                    if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
-                        // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
-                            entry.idList.clear();
-                        } else {
-                            entry.idList.subList(
-                                    entry.idList.size() - CHUNK_SIZE,
-                                    entry.idList.size()).clear();
-                        }
-                    }
-                    ArrayList<Object> l = new ArrayList<Object>(CHUNK_SIZE
-                            + entry.idList.size());
-                    int startFrom = index - CHUNK_SIZE;
-                    if (startFrom < 0) {
-                        startFrom = 0;
-                    }
-                    l.addAll(getIds(container, getFilter(), sortBy, startFrom, index
-                            - startFrom + 1));
-                    l.addAll(entry.idList);
-                    entry.idList = l;
-                    entry.listOffset = startFrom;
-                } else if (entry.listOffset > -1
-                        && index == entry.listOffset + entry.idList.size()) {
-                    // It is possible that maxCacheSize < CHUNK_SIZE => we have
-                    // to make sure that the list is at least as big as
-                    // CHUNK_SIZE
-                    if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
-                        // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
-                            entry.listOffset += entry.idList.size();
-                            entry.idList.clear();
-                        } else {
-                            entry.idList.subList(0, CHUNK_SIZE).clear();
-                            entry.listOffset += CHUNK_SIZE;
-                        }
-                    }
-                    entry.idList.addAll(getIds(container, getFilter(), sortBy, index,
-                            CHUNK_SIZE));
-                } else {
-                    entry.idList.clear();
-                    entry.idList.addAll(getIds(container, getFilter(), sortBy, index,
-                            CHUNK_SIZE));
-                    entry.listOffset = index;
-                }
+            List<Object> ids = null;
+            if (all) {
+                ids = getIds(container, getFilter(), sortBy, 0, -1);
+            } else if (offset > -1 && size > 0) {
+                ids = getIds(container, getFilter(), sortBy, offset, size);
             }
-            int i = index - entry.listOffset;
-            if (entry.idList.size() <= i) {
-                return null;
+            lock.writeLock().lock();
+            try {
+                if (idListMap.get(sortBy) != entry || generation.get() != gen) {
+                    return;
+                } else if (ids == null) {
+                    idListMap.remove(sortBy);
+                    return;
+                } else if (entry.containsAll != all
+                        || entry.listOffset != offset) {
+                    return;
+                }
+                entry.idList = createIdList(ids);
+                entry.endLoaded = !all && ids.size() < size;
+                entry.anchors = null;
+                if (!all && canSeek(sortBy)) {
+                    entry.addAnchors(ids, offset);
+                }
+                entry.loadedAt = startedAt;
+                entry.refreshedAt = startedAt;
+            } finally {
+                lock.writeLock().unlock();
             }
-            return entry.idList.get(i);
         }
 
         /**
-         * @see EntityProvider#getAllEntityIdentifiers(com.vaadin.addons.jpacontainer.Filter,
-         *      java.util.List)
+         * Forgets the entity count, forcing it to be fetched from the database
+         * when requested the next time.
          */
-        public synchronized List<Object> getAllIds(EntityContainer<T> container, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                idListMap.put(sortBy, entry);
-            }
-            if (!entry.containsAll) {
-                entry.idList = new ArrayList<Object>(getIds(container, getFilter(),
-                        sortBy, 0, -1));
-                entry.listOffset = 0;
-                entry.containsAll = true;
-            }
-            return Collections.unmodifiableList(entry.idList);
+        synchronized void invalidateCount() {
+            generation.incrementAndGet();
+            entityCount = null;
         }
 
         /**
-         * Gets the filter for which this cache has been created.
+         * Updates the cached data of this entry to include a new entity that
+         * is known to match the filter. The entity is counted and spliced
+         * into the cached entityId lists at its sort position. Lists where
+         * the position cannot be determined in memory are dropped.
          * 
-         * @return the filter (may be null).
+         * @param entityId
+         *            the entityId of the new entity.
+         * @param entity
+         *            the new entity.
+         * @param evaluator
+         *            the evaluator to compare sort keys with.
+         * @param addedAt
+         *            the time the entity was about to be added. Data loaded
+         *            after this may already include the entity.
+         */
+        void entityAdded(Object entityId, T entity,
+                FilterEvaluator<T> evaluator, long addedAt) {
+            synchronized (this) {
+                // Discard counts that are being loaded right now
+                generation.incrementAndGet();
+                if (entityCount != null) {
+                    if (countLoadedAt - addedAt >= 0) {
+                        entityCount = null;
+                    } else {
+                        entityCount = entityCount + 1;
+                    }
+                }
+            }
+            synchronized (idSet) {
+                idSet.add(entityId);
+            }
+            lock.writeLock().lock();
+            try {
+                Iterator<Map.Entry<List<SortBy>, IdListEntry>> it = idListMap
+                        .entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<List<SortBy>, IdListEntry> e = it.next();
+                    if (e.getValue().loadedAt - addedAt >= 0
+                            || !spliceId(e.getKey(), e.getValue(), entityId,
+                                    entity, evaluator)) {
+                        it.remove();
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Inserts <code>entityId</code> into the entityId list of
+         * <code>entry</code>, or shifts the list if the new entity comes
+         * before it. Must be called with the write lock held.
+         * 
+         * @return true if the list was updated, false if the position of the
+         *         entity could not be determined and the list should be
+         *         dropped.
+         */
+        private boolean spliceId(List<SortBy> sortBy, IdListEntry entry,
+                Object entityId, T entity, FilterEvaluator<T> evaluator) {
+            // The positions of the anchors after the new entity are off by
+            // one, and finding out which ones they are would need queries
+            entry.anchors = null;
+            List<Object> ids = entry.idList;
+            if (ids.contains(entityId)) {
+                return true;
+            }
+            List<SortBy> keySortBy = entityProvider
+                    .addPrimaryKeyToSortList(sortBy);
+            Map<Object, Object> keyValues = evaluator.getSortKeyValues(
+                    entity, keySortBy);
+            if (keyValues == null) {
+                return false;
+            }
+            int position;
+            if (ids.isEmpty()) {
+                position = 0;
+            } else {
+                Integer c = compareToCachedEntity(keyValues,
+                        ids.get(ids.size() - 1), keySortBy, evaluator);
+                if (c == null) {
+                    return false;
+                } else if (c > 0) {
+                    position = ids.size();
+                } else {
+                    // Find the first cached entity that comes after the new
+                    // one
+                    int low = 0;
+                    int high = ids.size() - 1;
+                    while (low < high) {
+                        int mid = (low + high) >>> 1;
+                        c = compareToCachedEntity(keyValues, ids.get(mid),
+                                keySortBy, evaluator);
+                        if (c == null) {
+                            return false;
+                        } else if (c < 0) {
+                            high = mid;
+                        } else {
+                            low = mid + 1;
+                        }
+                    }
+                    position = low;
+                }
+            }
+            if (!entry.containsAll) {
+                if (position == ids.size()) {
+                    // After the cached window, which is not affected. An
+                    // empty window will be reloaded anyway.
+                    entry.endLoaded = false;
+                    return true;
+                } else if (position == 0 && entry.listOffset != 0) {
+                    // Before the cached window, which moves one step down
+                    if (entry.listOffset > 0) {
+                        entry.listOffset++;
+                    }
+                    return true;
+                }
+            }
+            // Copy on write, the list may have been handed out by getAllIds()
+            List<Object> l = createIdList(ids.size() + 1);
+            l.addAll(ids);
+            l.add(position, entityId);
+            entry.idList = l;
+            return true;
+        }
+
+        /**
+         * Compares the sort key values of a new entity with those of the
+         * cached entity identified by <code>entityId</code>.
+         * 
+         * @return the result of the comparison, or null if the entity is not
+         *         cached or the order cannot be determined in memory.
+         */
+        private Integer compareToCachedEntity(Map<Object, Object> keyValues,
+                Object entityId, List<SortBy> keySortBy,
+                FilterEvaluator<T> evaluator) {
+            T cached = getEntityCache().get(entityId);
+            if (cached == null) {
+                return null;
+            }
+            Map<Object, Object> cachedValues = evaluator.getSortKeyValues(
+                    cached, keySortBy);
+            if (cachedValues == null) {
+                return null;
+            }
+            return evaluator.compareSortKeys(keyValues, cachedValues,
+                    keySortBy);
+        }
+
+        /**
+         * @see EntityProvider#containsEntity(java.lang.Object,
+         *      com.vaadin.addons.jpacontainer.Filter)
+         */
+        public boolean containsId(EntityContainer<T> container,
+                Object entityId) {
+            synchronized (idSet) {
+                if (isExpired(idSetClearedAt, getIdTimeToLive())) {
+                    idSet.clear();
+                    idSetClearedAt = System.nanoTime();
+                }
+                if (idSet.contains(entityId)) {
+                    return true;
+                }
+            }
+            int gen = generation.get();
+            if (entityProvider.doContainsEntity(container, entityId,
+                    getFilter())) {
+                synchronized (idSet) {
+                    if (generation.get() == gen) {
+                        idSet.add(entityId);
+                    }
+                }
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        /**
+         * Gets the entityId list for <code>sortBy</code> and marks it as used.
+         * 
+         * @return the entry, or null if there is none.
+         */
+        private IdListEntry getIdListEntry(List<SortBy> sortBy) {
+            IdListEntry entry = idListMap.get(sortBy);
+            if (entry != null) {
+                entry.lastUsed = System.nanoTime();
+            }
+            return entry;
+        }
+
+        /**
+         * Creates an entityId list for <code>sortBy</code>, evicting the least
+         * recently used list if there are too many. If possible, the list is
+         * filled by sorting another complete list in memory, see
+         * {@link #sortInMemory(List, IdListEntry)}. Otherwise it is empty.
+         * Must be called with the write lock held.
+         */
+        private IdListEntry createIdListEntry(List<SortBy> sortBy,
+                int listOffset) {
+            IdListEntry entry = new IdListEntry();
+            if (!sortInMemory(sortBy, entry)) {
+                entry.idList = createIdList(CHUNK_SIZE * 2);
+                entry.listOffset = listOffset;
+            }
+            if (idListMap.size() >= MAX_SORTBY_CACHE_SIZE) {
+                List<SortBy> eldest = null;
+                long eldestUse = Long.MAX_VALUE;
+                for (Map.Entry<List<SortBy>, IdListEntry> e : idListMap
+                        .entrySet()) {
+                    if (e.getValue().lastUsed - eldestUse < 0 || eldest == null) {
+                        eldest = e.getKey();
+                        eldestUse = e.getValue().lastUsed;
+                    }
+                }
+                idListMap.remove(eldest);
+            }
+            idListMap.put(sortBy, entry);
+            return entry;
+        }
+
+        /**
+         * Fills <code>entry</code> with all the entityIds of this filter sorted
+         * by <code>sortBy</code>, using another complete entityId list and the
+         * cached entities instead of querying the database. A list sorted the
+         * opposite way is reversed; otherwise the entities are sorted by
+         * comparing their property values, which is only possible for values
+         * that are compared the same way by all databases (e.g. numbers and
+         * dates, but not strings). Must be called with the write lock held.
+         * 
+         * @return true if the entry was filled, false if not all entities are
+         *         cached or the order cannot be determined in memory.
+         */
+        private boolean sortInMemory(List<SortBy> sortBy, IdListEntry entry) {
+            if (scope != null) {
+                // A delegate may change the order
+                return false;
+            }
+            IdListEntry source = null;
+            boolean reverse = false;
+            for (Map.Entry<List<SortBy>, IdListEntry> e : idListMap.entrySet()) {
+                IdListEntry candidate = e.getValue();
+                if (candidate.containsAll
+                        && candidate.idList.size() <= MAX_SORTED_ENTITIES) {
+                    source = candidate;
+                    if (isReversed(e.getKey(), sortBy)) {
+                        reverse = true;
+                        break;
+                    }
+                }
+            }
+            if (source == null) {
+                return false;
+            }
+            List<SortBy> keySortBy = entityProvider
+                    .addPrimaryKeyToSortList(sortBy);
+            FilterEvaluator<T> evaluator = new FilterEvaluator<T>(
+                    entityProvider.getEntityClassMetadata());
+            final Map<Object, Map<Object, Object>> values = new HashMap<Object, Map<Object, Object>>();
+            Map<Object, T> cache = getEntityCache();
+            for (Object entityId : source.idList) {
+                T entity = cache.get(entityId);
+                Map<Object, Object> v = entity == null ? null : evaluator
+                        .getSortKeyValues(entity, keySortBy);
+                if (v == null) {
+                    return false;
+                }
+                values.put(entityId, v);
+            }
+            List<Object> ids = createIdList(source.idList);
+            boolean sorted;
+            if (reverse) {
+                Collections.reverse(ids);
+                // Entities with equal values are still ordered by the primary
+                // key in the original direction
+                sorted = sortRuns(ids, values, sortBy,
+                        keySortBy.subList(sortBy.size(), keySortBy.size()),
+                        evaluator);
+            } else {
+                // Fail fast on e.g. strings rather than after sorting
+                for (Map<Object, Object> v : values.values()) {
+                    for (SortBy sb : keySortBy) {
+                        Object value = v.get(sb.getPropertyId());
+                        if (FilterEvaluator.compare(value, value) == null) {
+                            return false;
+                        }
+                    }
+                }
+                sorted = sortRuns(ids, values,
+                        Collections.<SortBy> emptyList(), keySortBy,
+                        evaluator);
+            }
+            if (!sorted) {
+                return false;
+            }
+            entry.idList = ids;
+            entry.listOffset = 0;
+            entry.containsAll = true;
+            entry.loadedAt = source.loadedAt;
+            entry.refreshedAt = source.refreshedAt;
+            return true;
+        }
+
+        /**
+         * Checks whether <code>sortBy1</code> sorts by the same properties as
+         * <code>sortBy2</code>, each in the opposite direction.
+         */
+        private boolean isReversed(List<SortBy> sortBy1, List<SortBy> sortBy2) {
+            if (sortBy1.size() != sortBy2.size() || sortBy1.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < sortBy1.size(); i++) {
+                SortBy sb1 = sortBy1.get(i);
+                SortBy sb2 = sortBy2.get(i);
+                if (!sb1.getPropertyId().equals(sb2.getPropertyId())
+                        || sb1.isAscending() == sb2.isAscending()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sorts each run of consecutive entityIds in <code>ids</code> whose
+         * values of the <code>runSortBy</code> properties are equal by the
+         * <code>runOrder</code> properties.
+         * 
+         * @return true if the runs were sorted, false if some values cannot be
+         *         compared in memory.
+         */
+        private boolean sortRuns(List<Object> ids,
+                final Map<Object, Map<Object, Object>> values,
+                List<SortBy> runSortBy, final List<SortBy> runOrder,
+                final FilterEvaluator<T> evaluator) {
+            if (runOrder.isEmpty()) {
+                return true;
+            }
+            final boolean[] undecided = new boolean[1];
+            Comparator<Object> comparator = new Comparator<Object>() {
+                public int compare(Object id1, Object id2) {
+                    Integer c = evaluator.compareSortKeys(values.get(id1),
+                            values.get(id2), runOrder);
+                    if (c == null) {
+                        undecided[0] = true;
+                        return 0;
+                    }
+                    return c;
+                }
+            };
+            int start = 0;
+            while (start < ids.size()) {
+                Map<Object, Object> first = values.get(ids.get(start));
+                int end = start + 1;
+                while (end < ids.size()
+                        && hasEqualValues(first, values.get(ids.get(end)),
+                                runSortBy)) {
+                    end++;
+                }
+                if (end - start > 1) {
+                    try {
+                        Collections.sort(ids.subList(start, end), comparator);
+                    } catch (IllegalArgumentException e) {
+                        // The comparator was inconsistent
+                        return false;
+                    }
+                    if (undecided[0]) {
+                        return false;
+                    }
+                }
+                start = end;
+            }
+            return true;
+        }
+
+        private boolean hasEqualValues(Map<Object, Object> values1,
+                Map<Object, Object> values2, List<SortBy> sortBy) {
+            for (SortBy sb : sortBy) {
+                Object v1 = values1.get(sb.getPropertyId());
+                Object v2 = values2.get(sb.getPropertyId());
+                if (v1 == null ? v2 != null : !v1.equals(v2)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @see EntityProvider#getFirstEntityIdentifier(com.vaadin.addons.jpacontainer.Filter,
+         *      java.util.List)
+         */
+        public Object getFirstId(EntityContainer<T> container,
+                List<SortBy> sortBy) {
+            return getIdAt(container, sortBy, 0);
+        }
+
+        /**
+         * @see EntityProvider#getNextEntityIdentifier(java.lang.Object,
+         *      com.vaadin.addons.jpacontainer.Filter, java.util.List)
+         */
+        public Object getNextId(EntityContainer<T> container,
+                Object entityId, List<SortBy> sortBy) {
+            checkIdListExpiry(container, sortBy);
+            IdListEntry entry = getIdListEntry(sortBy);
+            if (entry != null) {
+                entry.prefetch.recordStep(1);
+            }
+            lock.readLock().lock();
+            try {
+                if (entry != null) {
+                    int index = entry.idList.indexOf(entityId);
+                    if (index > -1 && index < entry.idList.size() - 1) {
+                        if (!needsPrefetch(entry, index, 1)) {
+                            return entry.idList.get(index + 1);
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            IdQuery query;
+            Object next = null;
+            lock.writeLock().lock();
+            try {
+                entry = getIdListEntry(sortBy);
+                if (entry == null) {
+                    entry = createIdListEntry(sortBy, -1);
+                }
+                int index = entry.idList.indexOf(entityId);
+                if (index == -1) {
+                    query = new IdQuery(container, sortBy, entry, -1,
+                            getChunkSize(entry), entityId) {
+                        List<Object> load() {
+                            return getNextIds(container, getFilter(), sortBy,
+                                    edgeId, count);
+                        }
+
+                        void merge(List<Object> ids) {
+                            entry.idList = createIdList(ids);
+                            entry.listOffset = -1;
+                            entry.endLoaded = ids.size() < count;
+                        }
+                    };
+                } else if (index == entry.idList.size() - 1
+                        || needsPrefetch(entry, index, 1)) {
+                    if (index < entry.idList.size() - 1) {
+                        next = entry.idList.get(index + 1);
+                    }
+                    query = new IdQuery(container, sortBy, entry, -1,
+                            getChunkSize(entry), entry.idList.get(entry.idList
+                                    .size() - 1)) {
+                        List<Object> load() {
+                            return getNextIds(container, getFilter(), sortBy,
+                                    edgeId, count);
+                        }
+
+                        void merge(List<Object> ids) {
+                            int dropped = makeRoom(entry, ids.size(), false);
+                            if (entry.listOffset > -1) {
+                                // Keep the position of the window
+                                entry.listOffset += dropped;
+                                if (canSeek(sortBy)) {
+                                    entry.addAnchors(ids, entry.listOffset
+                                            + entry.idList.size());
+                                }
+                            }
+                            entry.idList.addAll(ids);
+                            entry.endLoaded = ids.size() < count;
+                        }
+                    };
+                } else {
+                    return entry.idList.get(index + 1);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            List<Object> ids = query.run();
+            if (next != null) {
+                return next;
+            }
+            return ids.isEmpty() ? null : ids.get(0);
+        }
+
+        /**
+         * @see EntityProvider#getPreviousEntityIdentifier(java.lang.Object,
+         *      com.vaadin.addons.jpacontainer.Filter, java.util.List)
+         */
+        public Object getPreviousId(EntityContainer<T> container,
+                Object entityId, List<SortBy> sortBy) {
+            checkIdListExpiry(container, sortBy);
+            IdListEntry entry = getIdListEntry(sortBy);
+            if (entry != null) {
+                entry.prefetch.recordStep(-1);
+            }
+            lock.readLock().lock();
+            try {
+                if (entry != null) {
+                    int index = entry.idList.indexOf(entityId);
+                    if (index > 0 && !needsPrefetch(entry, index, 1)) {
+                        return entry.idList.get(index - 1);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            IdQuery query;
+            Object previous = null;
+            lock.writeLock().lock();
+            try {
+                entry = getIdListEntry(sortBy);
+                if (entry == null) {
+                    entry = createIdListEntry(sortBy, -1);
+                }
+                int index = entry.idList.indexOf(entityId);
+                if (index == -1) {
+                    query = new IdQuery(container, sortBy, entry, -1,
+                            getChunkSize(entry), entityId) {
+                        List<Object> load() {
+                            return getPreviousIds(container, getFilter(),
+                                    sortBy, edgeId, count);
+                        }
+
+                        void merge(List<Object> objects) {
+                            // We have to reverse the list
+                            entry.idList = createIdList(objects.size());
+                            for (int i = objects.size() - 1; i >= 0; i--) {
+                                entry.idList.add(objects.get(i));
+                            }
+                            entry.listOffset = objects.size() < count ? 0
+                                    : -1;
+                            entry.endLoaded = false;
+                        }
+                    };
+                } else if (index == 0 || needsPrefetch(entry, index, 1)) {
+                    if (index > 0) {
+                        previous = entry.idList.get(index - 1);
+                    }
+                    query = new IdQuery(container, sortBy, entry, -1,
+                            getChunkSize(entry), entry.idList.get(0)) {
+                        List<Object> load() {
+                            return getPreviousIds(container, getFilter(),
+                                    sortBy, edgeId, count);
+                        }
+
+                        void merge(List<Object> objects) {
+                            // Save the IDs in the cache for future use
+                            List<Object> l = new ArrayList<Object>(objects);
+                            Collections.reverse(l);
+                            makeRoom(entry, l.size(), true);
+                            // In place, which keeps the positions of the
+                            // cached IDs
+                            entry.idList.addAll(0, l);
+                            if (l.size() < count) {
+                                // The start has been reached
+                                entry.listOffset = 0;
+                            } else if (entry.listOffset > -1) {
+                                entry.listOffset = Math.max(entry.listOffset
+                                        - l.size(), -1);
+                            }
+                        }
+                    };
+                } else {
+                    return entry.idList.get(index - 1);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // The previous entityIds are returned in descending order
+            List<Object> objects = query.run();
+            if (previous != null) {
+                return previous;
+            }
+            return objects.isEmpty() ? null : objects.get(0);
+        }
+
+        /**
+         * @see EntityProvider#getLastEntityIdentifier(com.vaadin.addons.jpacontainer.Filter,
+         *      java.util.List)
+         */
+        public Object getLastId(EntityContainer<T> container,
+                List<SortBy> sortBy) {
+            int count = getEntityCount(container);
+            if (!entityProvider.getCountStrategy().isExact(count)) {
+                // The position of the last entity is not known
+                return entityProvider.doGetLastEntityIdentifier(container,
+                        getFilter(), sortBy);
+            }
+            return getIdAt(container, sortBy, count - 1);
+        }
+
+        /**
+         * Informs the cache that <code>entityId</code> has been invalidated
+         * (changed or removed). If the entityId is currently in cache, the
+         * cache is flushed, forcing the data to be fetched from the database
+         * when requested the next time.
+         *
+         * @param entityId
+         *            the entityId to invalidate.
+         */
+        public void invalidate(Object entityId) {
+            // Clear the caches to force the data to be re-fetched from the
+            // database
+            // in case the ordering has changed
+            lock.writeLock().lock();
+            try {
+                idListMap.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // Removing the entity Id from the Id cache should be enough
+            synchronized (idSet) {
+                generation.incrementAndGet();
+                idSet.remove(entityId);
+            }
+        }
+
+        /**
+         * @see EntityProvider#getEntityIdentifierAt(com.vaadin.addons.jpacontainer.Filter,
+         *      java.util.List, int)
+         */
+        public Object getIdAt(EntityContainer<T> container,
+                List<SortBy> sortBy, int index) {
+            checkIdListExpiry(container, sortBy);
+            Object entityId = lookUpIdAt(container, sortBy, index);
+            prefetch(container, sortBy, index, 1);
+            return entityId;
+        }
+
+        private Object lookUpIdAt(EntityContainer<T> container,
+                List<SortBy> sortBy, int index) {
+            lock.readLock().lock();
+            try {
+                IdListEntry entry = getIdListEntry(sortBy);
+                if (entry != null && entry.covers(index)) {
+                    return getCachedIdAt(entry, index);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return loadIdAt(container, sortBy, index);
+        }
+
+        private Object getCachedIdAt(IdListEntry entry, int index) {
+            int i = index - entry.listOffset;
+            if (entry.idList.size() <= i) {
+                return null;
+            }
+            return entry.idList.get(i);
+        }
+
+        /**
+         * Loads the chunk of entityIds that <code>index</code> is in, unless
+         * it is already cached, see {@link IdQuery}. Must not be called with
+         * the lock held.
+         */
+        private Object loadIdAt(EntityContainer<T> container,
+                List<SortBy> sortBy, int index) {
+            IdQuery query;
+            lock.writeLock().lock();
+            try {
+                IdListEntry entry = getIdListEntry(sortBy);
+                if (entry == null) {
+                    entry = createIdListEntry(sortBy, 0);
+                }
+                // listOffset may be -1 if the list has been loaded by a call
+                // to getNextId() or getPreviousId()
+                if (entry.covers(index)) {
+                    return getCachedIdAt(entry, index);
+                }
+                int chunkSize = getChunkSize(entry);
+
+                // Check if we can concatenate the index lists
+                if (entry.listOffset > 0 && index < entry.listOffset
+                        && entry.listOffset - index <= chunkSize
+                        && !entry.idList.isEmpty()) {
+                    int startFrom = Math.max(entry.listOffset - chunkSize, 0);
+                    query = new IdQuery(container, sortBy, entry, startFrom,
+                            entry.listOffset - startFrom, entry.idList.get(0)) {
+                        List<Object> load() {
+                            // Seek backwards from the first cached ID
+                            List<Object> ids = seekIds(container, getFilter(),
+                                    sortBy, edgeId, true, count);
+                            if (ids == null) {
+                                ids = getIds(container, getFilter(), sortBy,
+                                        startFrom, count);
+                            }
+                            return ids;
+                        }
+
+                        void merge(List<Object> ids) {
+                            makeRoom(entry, ids.size(), true);
+                            entry.idList.addAll(0, ids);
+                            entry.listOffset = startFrom;
+                            if (canSeek(sortBy)) {
+                                entry.addAnchors(ids, startFrom);
+                            }
+                        }
+                    };
+                } else if (entry.listOffset > -1 && !entry.idList.isEmpty()
+                        && index >= entry.listOffset + entry.idList.size()
+                        && index < entry.listOffset + entry.idList.size()
+                                + chunkSize) {
+                    query = new IdQuery(container, sortBy, entry,
+                            entry.listOffset + entry.idList.size(), chunkSize,
+                            entry.idList.get(entry.idList.size() - 1)) {
+                        List<Object> load() {
+                            // Seek forwards from the last cached ID
+                            List<Object> ids = seekIds(container, getFilter(),
+                                    sortBy, edgeId, false, count);
+                            if (ids == null) {
+                                ids = getIds(container, getFilter(), sortBy,
+                                        startFrom, count);
+                            }
+                            return ids;
+                        }
+
+                        void merge(List<Object> ids) {
+                            entry.listOffset += makeRoom(entry, ids.size(),
+                                    false);
+                            entry.idList.addAll(ids);
+                            entry.endLoaded = ids.size() < count;
+                            if (canSeek(sortBy)) {
+                                entry.addAnchors(ids, startFrom);
+                            }
+                        }
+                    };
+                } else {
+                    int startFrom = index;
+                    if (entry.prefetch.getScrollDirection() < 0) {
+                        // Scrolling backwards, load the rows above the
+                        // viewport rather than below it
+                        startFrom = Math.max(index + 1 - chunkSize
+                                + entry.prefetch.getPageLength(), 0);
+                        startFrom = Math.min(startFrom, index);
+                    }
+                    final TreeMap<Integer, Anchor> anchors = canSeek(sortBy)
+                            && entry.anchors != null ? new TreeMap<Integer, Anchor>(
+                            entry.anchors.headMap(startFrom, true)) : null;
+                    query = new IdQuery(container, sortBy, entry, startFrom,
+                            chunkSize, null) {
+                        private final List<Integer> deadAnchors = new ArrayList<Integer>();
+
+                        List<Object> load() {
+                            // Seek from the closest anchor before the index,
+                            // if any
+                            List<Object> ids = seekIdsFromAnchor(container,
+                                    anchors, deadAnchors, sortBy, startFrom,
+                                    count);
+                            if (ids == null) {
+                                ids = getIds(container, getFilter(), sortBy,
+                                        startFrom, count);
+                            }
+                            return ids;
+                        }
+
+                        void merge(List<Object> ids) {
+                            entry.idList.clear();
+                            entry.idList.addAll(ids);
+                            entry.listOffset = startFrom;
+                            entry.endLoaded = ids.size() < count;
+                            if (canSeek(sortBy)) {
+                                if (entry.anchors != null) {
+                                    for (Integer position : deadAnchors) {
+                                        entry.anchors.remove(position);
+                                    }
+                                }
+                                entry.addAnchors(ids, startFrom);
+                            }
+                        }
+                    };
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            List<Object> ids = query.run();
+            int i = index - query.startFrom;
+            return i < ids.size() ? ids.get(i) : null;
+        }
+
+        /**
+         * A query for a chunk of entityIds of a list. The query is prepared
+         * with the write lock held, but run without holding any lock, so that
+         * lookups of cached entityIds are not blocked by it. The entityIds
+         * are then merged into the list with the write lock held again,
+         * unless the list has been replaced, invalidated or changed in the
+         * meantime, like in {@link FilterCacheEntry#refreshIdList}.
+         * <p>
+         * Threads that need the same chunk at the same time share one query,
+         * see {@link FilterCacheEntry#idLoads}. Queries are equal if they are
+         * made at the same place in the code, for the same list and chunk.
+         */
+        abstract class IdQuery implements Callable<List<Object>> {
+
+            final EntityContainer<T> container;
+            final List<SortBy> sortBy;
+            final IdListEntry entry;
+            /**
+             * The position of the first entityId of the chunk, or -1 if it
+             * is not known.
+             */
+            final int startFrom;
+            final int count;
+            /**
+             * The entityId to load the chunk next to, if any.
+             */
+            final Object edgeId;
+            private final int generation;
+            private final int listOffset;
+            private final int listSize;
+            private final Object firstId;
+            private final Object lastId;
+
+            /**
+             * Must be called with the write lock held.
+             */
+            IdQuery(EntityContainer<T> container, List<SortBy> sortBy,
+                    IdListEntry entry, int startFrom, int count, Object edgeId) {
+                this.container = container;
+                this.sortBy = sortBy;
+                this.entry = entry;
+                this.startFrom = startFrom;
+                this.count = count;
+                this.edgeId = edgeId;
+                generation = FilterCacheEntry.this.generation.get();
+                listOffset = entry.listOffset;
+                listSize = entry.idList.size();
+                firstId = listSize == 0 ? null : entry.idList.get(0);
+                lastId = listSize == 0 ? null : entry.idList
+                        .get(listSize - 1);
+                entry.loadedAt = System.nanoTime();
+            }
+
+            /**
+             * Queries the entityIds. Called without holding the lock.
+             */
+            abstract List<Object> load();
+
+            /**
+             * Adds the loaded entityIds to the list. Called with the write
+             * lock held, if the list has not changed since this query was
+             * prepared.
+             */
+            abstract void merge(List<Object> ids);
+
+            public List<Object> call() {
+                long startedAt = System.nanoTime();
+                List<Object> ids = load();
+                recordQuery(entry, ids.size(), count, startedAt);
+                return ids;
+            }
+
+            /**
+             * Runs the query, or waits for an equal query that another thread
+             * is running, and merges the result into the list. Must not be
+             * called with the lock held.
+             * 
+             * @return the loaded entityIds, which must not be modified.
+             */
+            List<Object> run() {
+                List<Object> ids = idLoads.load(this, this);
+                lock.writeLock().lock();
+                try {
+                    if (isUnchanged()) {
+                        merge(ids);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                return ids;
+            }
+
+            private boolean isUnchanged() {
+                if (idListMap.get(sortBy) != entry
+                        || FilterCacheEntry.this.generation.get() != generation
+                        || entry.listOffset != listOffset
+                        || entry.idList.size() != listSize) {
+                    return false;
+                }
+                return listSize == 0
+                        || (firstId.equals(entry.idList.get(0)) && lastId
+                                .equals(entry.idList.get(listSize - 1)));
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                if (obj == this) {
+                    return true;
+                } else if (obj == null || obj.getClass() != getClass()) {
+                    return false;
+                }
+                IdQuery other = (IdQuery) obj;
+                return other.entry == entry && other.startFrom == startFrom
+                        && other.count == count
+                        && (edgeId == null ? other.edgeId == null : edgeId
+                                .equals(other.edgeId));
+            }
+
+            @Override
+            public int hashCode() {
+                int hash = System.identityHashCode(entry);
+                hash = hash * 31 + startFrom;
+                hash = hash * 31 + count;
+                return hash * 31 + (edgeId == null ? 0 : edgeId.hashCode());
+            }
+        }
+
+        /**
+         * Returns the number of entityIds to fetch at a time for
+         * <code>entry</code>, see {@link PrefetchPolicy}.
+         */
+        private int getChunkSize(IdListEntry entry) {
+            return entry.prefetch.getChunkSize(getMinChunkSize(),
+                    getMaxChunkSize(), getMaxIdCount());
+        }
+
+        /**
+         * Records a query that was started at <code>startedAt</code> and
+         * fetched <code>rows</code> of the <code>requested</code> entityIds.
+         */
+        private void recordQuery(IdListEntry entry, int rows, int requested,
+                long startedAt) {
+            entry.prefetch.recordQuery(rows, requested, System.nanoTime()
+                    - startedAt, PrefetchPolicy.DEFAULT_TARGET_QUERY_TIME,
+                    getMinChunkSize(), getMaxChunkSize());
+        }
+
+        /**
+         * Makes room for <code>count</code> new entityIds in
+         * <code>entry</code> if the list would otherwise grow beyond the max
+         * cache size, by dropping entityIds from the end opposite to where the
+         * new ones are added. Must be called with the write lock held.
+         *
+         * @param atFront
+         *            true if the new entityIds are added to the front of the
+         *            list, false if they are appended.
+         * @return the number of entityIds dropped from the front of the list.
+         */
+        private int makeRoom(IdListEntry entry, int count, boolean atFront) {
+            int size = entry.idList.size();
+            int maxSize = getMaxIdCount();
+            if (maxSize < 0 || size + count <= maxSize) {
+                return 0;
+            }
+            int drop = Math.min(size + count - maxSize, size);
+            if (drop == size) {
+                entry.idList.clear();
+                entry.endLoaded = false;
+            } else if (atFront) {
+                entry.idList.subList(size - drop, size).clear();
+                entry.endLoaded = false;
+            } else {
+                entry.idList.subList(0, drop).clear();
+            }
+            return atFront ? 0 : drop;
+        }
+
+        /**
+         * Returns whether the lookup of <code>count</code> entityIds starting
+         * at list index <code>index</code> of <code>entry</code> is part of a
+         * sequential scroll that has got so close to the end of the cached
+         * window that the next chunk should be fetched. Must be called with
+         * a lock held.
+         */
+        private boolean needsPrefetch(IdListEntry entry, int index, int count) {
+            if (entry.containsAll || entry.idList.isEmpty()) {
+                return false;
+            }
+            int direction = entry.prefetch.getScrollDirection();
+            int distance = entry.prefetch
+                    .getPrefetchDistance(getChunkSize(entry));
+            if (direction > 0) {
+                int last = index + count - 1;
+                if (last < 0 || last >= entry.idList.size()) {
+                    return false;
+                }
+                return !entry.endLoaded
+                        && entry.idList.size() - 1 - last < distance;
+            } else if (direction < 0) {
+                if (index < 0 || index >= entry.idList.size()
+                        || entry.listOffset == 0) {
+                    return false;
+                }
+                return index < distance;
+            }
+            return false;
+        }
+
+        /**
+         * Records a lookup of <code>count</code> entityIds starting at
+         * <code>index</code> and fetches the next chunk in the direction of
+         * the scroll if the lookup got close to the end of the cached window.
+         */
+        private void prefetch(EntityContainer<T> container,
+                List<SortBy> sortBy, int index, int count) {
+            if (prefetchExecutor != null) {
+                cancelPrefetches(container, this, sortBy);
+            }
+            IdListEntry entry = getIdListEntry(sortBy);
+            if (entry == null) {
+                return;
+            }
+            entry.prefetch.recordAccess(index, count);
+            int target;
+            lock.readLock().lock();
+            try {
+                target = getPrefetchIndex(entry, index, count);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (target < 0) {
+                return;
+            }
+            if (prefetchExecutor != null) {
+                schedulePrefetch(container, sortBy, entry, target);
+                return;
+            }
+            // Does nothing if another thread has got here first
+            loadIdAt(container, sortBy, target);
+        }
+
+        /**
+         * Starts an asynchronous prefetch of the chunk next to
+         * <code>target</code>, unless one is already running for the same
+         * list or too many are running for this provider.
+         */
+        private void schedulePrefetch(EntityContainer<T> container,
+                List<SortBy> sortBy, IdListEntry entry, int target) {
+            Executor executor = prefetchExecutor;
+            EntityManager entityManager = entityProvider.getEntityManager();
+            if (executor == null || entityManager == null
+                    || entry.prefetchTask != null) {
+                return;
+            }
+            PrefetchTask task;
+            lock.readLock().lock();
+            try {
+                if (entry.idList.isEmpty()) {
+                    return;
+                }
+                task = new PrefetchTask(container, sortBy, entry,
+                        target >= entry.listOffset, entityManager);
+            } finally {
+                lock.readLock().unlock();
+            }
+            synchronized (prefetches) {
+                if (entry.prefetchTask != null
+                        || prefetches.size() >= getMaxPrefetches()) {
+                    return;
+                }
+                prefetches.add(task);
+                entry.prefetchTask = task;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.finish();
+            }
+        }
+
+        /**
+         * Loads the chunk of entityIds next to the cached window of a list in
+         * the background, and the entities of the ones closest to the
+         * window. The queries are run with an entity manager of their own,
+         * either the one that the {@link EntityManagerProvider} of the
+         * provider returns on the background thread, or if that is the same
+         * one as the calling thread uses, a new one created by its factory.
+         * The entityIds are merged into the list if it has not changed in
+         * the meantime.
+         */
+        class PrefetchTask implements Runnable {
+
+            private final EntityContainer<T> container;
+            private final List<SortBy> sortBy;
+            private final IdListEntry entry;
+            private final boolean forwards;
+            private final int startFrom;
+            private final int count;
+            /**
+             * The first (or last, if <code>forwards</code>) entityId of the
+             * list, to seek from.
+             */
+            private final Object edgeId;
+            private final int generation;
+            private final int entityGeneration;
+            private final EntityManager callerEntityManager;
+            private volatile boolean cancelled;
+
+            /**
+             * Must be called with a lock held.
+             */
+            PrefetchTask(EntityContainer<T> container, List<SortBy> sortBy,
+                    IdListEntry entry, boolean forwards,
+                    EntityManager callerEntityManager) {
+                this.container = container;
+                this.sortBy = sortBy;
+                this.entry = entry;
+                this.forwards = forwards;
+                this.callerEntityManager = callerEntityManager;
+                int chunkSize = getChunkSize(entry);
+                if (forwards) {
+                    startFrom = entry.listOffset + entry.idList.size();
+                    count = chunkSize;
+                    edgeId = entry.idList.get(entry.idList.size() - 1);
+                } else {
+                    startFrom = Math.max(entry.listOffset - chunkSize, 0);
+                    count = entry.listOffset - startFrom;
+                    edgeId = entry.idList.get(0);
+                }
+                generation = FilterCacheEntry.this.generation.get();
+                entityGeneration = CachingSupport.this.entityGeneration.get();
+            }
+
+            /**
+             * Returns whether this prefetch loads data that the lookups of
+             * <code>container</code> in <code>filterCacheEntry</code> sorted
+             * by <code>sortBy</code> may use.
+             */
+            boolean isUsedBy(EntityContainer<T> container,
+                    FilterCacheEntry filterCacheEntry, List<SortBy> sortBy) {
+                return this.container != container
+                        || (filterCacheEntry == FilterCacheEntry.this && this.sortBy
+                                .equals(sortBy));
+            }
+
+            void cancel() {
+                cancelled = true;
+            }
+
+            public void run() {
+                try {
+                    if (cancelled) {
+                        return;
+                    }
+                    runWithEntityManager(callerEntityManager, new Runnable() {
+                        public void run() {
+                            load();
+                        }
+                    });
+                } catch (Exception e) {
+                    // The rows are loaded when they are needed instead
+                    Logger.getLogger(CachingSupport.class.getName()).log(
+                            Level.FINE, "Prefetching entity identifiers failed",
+                            e);
+                } finally {
+                    finish();
+                }
+            }
+
+            private void load() {
+                long startedAt = System.nanoTime();
+                List<Object> ids = seekIds(container, getFilter(), sortBy,
+                        edgeId, !forwards, count);
+                if (ids == null && !cancelled) {
+                    ids = getIds(container, getFilter(), sortBy, startFrom,
+                            count);
+                }
+                if (ids == null || cancelled) {
+                    return;
+                }
+                entry.prefetch.recordQuery(ids.size(), count,
+                        System.nanoTime() - startedAt,
+                        PrefetchPolicy.DEFAULT_TARGET_QUERY_TIME,
+                        getMinChunkSize(), getMaxChunkSize());
+                if (!merge(ids)) {
+                    return;
+                }
+                // Load the entities that the scroll reaches first
+                int n = Math.min(ids.size(), Math.max(getReadAheadSize(),
+                        entry.prefetch.getPageLength()));
+                if (getMaxCacheSize() > -1) {
+                    n = Math.min(n, getMaxCacheSize() / 2);
+                }
+                List<Object> missing = new ArrayList<Object>(n);
+                for (Object id : forwards ? ids.subList(0, n) : ids.subList(
+                        ids.size() - n, ids.size())) {
+                    if (!getEntityCache().containsKey(id)) {
+                        missing.add(id);
+                    }
+                }
+                if (!missing.isEmpty() && !cancelled) {
+                    for (Map.Entry<Object, T> e : loadEntities(missing)
+                            .entrySet()) {
+                        cacheEntity(e.getKey(), e.getValue(), entityGeneration);
+                    }
+                }
+            }
+
+            /**
+             * Adds <code>ids</code> to the list if it still ends where it
+             * did when this prefetch was started.
+             * 
+             * @return true if the entityIds were added.
+             */
+            private boolean merge(List<Object> ids) {
+                lock.writeLock().lock();
+                try {
+                    if (cancelled || idListMap.get(sortBy) != entry
+                            || FilterCacheEntry.this.generation.get() != generation
+                            || entry.idList.isEmpty()) {
+                        return false;
+                    }
+                    if (forwards) {
+                        if (entry.listOffset + entry.idList.size() != startFrom
+                                || !edgeId.equals(entry.idList.get(entry.idList
+                                        .size() - 1))) {
+                            return false;
+                        }
+                        entry.listOffset += makeRoom(entry, ids.size(), false);
+                        entry.idList.addAll(ids);
+                        entry.endLoaded = ids.size() < count;
+                    } else {
+                        if (entry.listOffset != startFrom + count
+                                || !edgeId.equals(entry.idList.get(0))
+                                || ids.size() != count) {
+                            return false;
+                        }
+                        makeRoom(entry, ids.size(), true);
+                        entry.idList.addAll(0, ids);
+                        entry.listOffset = startFrom;
+                    }
+                    if (canSeek(sortBy)) {
+                        entry.addAnchors(ids, startFrom);
+                    }
+                    return true;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            void finish() {
+                synchronized (prefetches) {
+                    prefetches.remove(this);
+                    if (entry.prefetchTask == this) {
+                        entry.prefetchTask = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the position just outside the cached window of
+         * <code>entry</code> that should be fetched after a lookup of
+         * <code>count</code> entityIds starting at <code>index</code>, or -1
+         * if nothing should be prefetched. Must be called with a lock held.
+         */
+        private int getPrefetchIndex(IdListEntry entry, int index, int count) {
+            if (entry.listOffset < 0
+                    || !needsPrefetch(entry, index - entry.listOffset, count)) {
+                return -1;
+            }
+            if (entry.prefetch.getScrollDirection() > 0) {
+                return entry.listOffset + entry.idList.size();
+            } else {
+                return entry.listOffset - 1;
+            }
+        }
+
+        /**
+         * Fetches a chunk of entityIds starting at <code>index</code> by
+         * seeking from the closest anchor before it and skipping the rows in
+         * between. Called without holding the lock, with a copy of the
+         * anchors of the list.
+         *
+         * @param anchors
+         *            the anchors at or before <code>index</code>, or null.
+         * @param deadAnchors
+         *            the positions of the anchors that cannot be seeked from
+         *            are added to this list, so that they can be removed from
+         *            the list later.
+         * @param chunkSize
+         *            the number of entityIds to fetch.
+         * @return the entityIds, or null if there is no anchor to seek from.
+         */
+        private List<Object> seekIdsFromAnchor(EntityContainer<T> container,
+                TreeMap<Integer, Anchor> anchors, List<Integer> deadAnchors,
+                List<SortBy> sortBy, int index, int chunkSize) {
+            if (anchors == null) {
+                return null;
+            }
+            List<SortBy> keySortBy = entityProvider
+                    .addPrimaryKeyToSortList(sortBy);
+            Map.Entry<Integer, Anchor> e;
+            while ((e = anchors.floorEntry(index)) != null) {
+                Anchor anchor = e.getValue();
+                if (anchor.keyValues == null) {
+                    anchor.keyValues = getKeysetValues(container,
+                            anchor.entityId, keySortBy);
+                }
+                if (anchor.keyValues != null) {
+                    if (e.getKey() == index) {
+                        // The anchor itself is the first ID of the chunk
+                        List<Object> ids = new ArrayList<Object>(chunkSize);
+                        ids.add(anchor.entityId);
+                        ids.addAll(seekIds(container, getFilter(), keySortBy,
+                                anchor.keyValues, false, 0, chunkSize - 1));
+                        return ids;
+                    }
+                    return seekIds(container, getFilter(), keySortBy,
+                            anchor.keyValues, false, index - e.getKey() - 1,
+                            chunkSize);
+                }
+                // The entity is gone or cannot be seeked from
+                anchors.remove(e.getKey());
+                deadAnchors.add(e.getKey());
+            }
+            return null;
+        }
+
+        /**
+         * @see RangedEntityProvider#getEntityIdentifiers(EntityContainer, Filter,
+         *      List, int, int)
+         */
+        public List<Object> getIdsAt(
+                EntityContainer<T> container, List<SortBy> sortBy,
+                int startIndex, int count) {
+            checkIdListExpiry(container, sortBy);
+            ArrayList<Object> ids = new ArrayList<Object>(count);
+            for (int i = startIndex; i < startIndex + count; i++) {
+                // The window is extended chunk by chunk if needed
+                Object id = lookUpIdAt(container, sortBy, i);
+                if (id == null) {
+                    break;
+                }
+                ids.add(id);
+            }
+            prefetch(container, sortBy, startIndex, count);
+            return ids;
+        }
+
+        /**
+         * Returns the cached entityIds starting at <code>index</code>. No
+         * queries are made.
+         * 
+         * @param count
+         *            the maximum number of entityIds to return.
+         * @return a list of entityIds, which is empty if the index is not in
+         *         the cached window or if another thread is currently
+         *         loading entityIds for this filter.
+         */
+        public List<Object> getCachedIds(List<SortBy> sortBy,
+                int index, int count) {
+            // Never wait here, the loading thread may itself be waiting for
+            // an entity that the calling thread is loading
+            if (!lock.readLock().tryLock()) {
+                return Collections.emptyList();
+            }
+            try {
+                IdListEntry entry = idListMap.get(sortBy);
+                if (entry == null || entry.listOffset < 0) {
+                    return Collections.emptyList();
+                }
+                int from = index - entry.listOffset;
+                if (from < 0 || from >= entry.idList.size()) {
+                    return Collections.emptyList();
+                }
+                int to = Math.min(from + count, entry.idList.size());
+                return new ArrayList<Object>(entry.idList.subList(from, to));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @see EntityProvider#getAllEntityIdentifiers(com.vaadin.addons.jpacontainer.Filter,
+         *      java.util.List)
+         */
+        public List<Object> getAllIds(EntityContainer<T> container, List<SortBy> sortBy) {
+            checkIdListExpiry(container, sortBy);
+            lock.readLock().lock();
+            try {
+                IdListEntry entry = getIdListEntry(sortBy);
+                if (entry != null && entry.containsAll) {
+                    return Collections.unmodifiableList(entry.idList);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            try {
+                IdListEntry entry = getIdListEntry(sortBy);
+                if (entry == null) {
+                    entry = createIdListEntry(sortBy, 0);
+                }
+                if (!entry.containsAll) {
+                    entry.loadedAt = System.nanoTime();
+                    entry.idList = createIdList(getIds(container,
+                            getFilter(), sortBy, 0, -1));
+                    entry.listOffset = 0;
+                    entry.containsAll = true;
+                }
+                return Collections.unmodifiableList(entry.idList);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Gets the filter for which this cache has been created.
+         * 
+         * @return the filter (may be null).
+         */
+        public Filter getFilter() {
+            return filter == NULL_FILTER ? null : filter;
+        }
+    }
+
+    /**
+     * TODO Document me!
+     * 
+     * @param entityId
+     * @param updated
+     */
+    public void invalidate(Object entityId, boolean updated) {
+        beginCacheUpdate();
+        try {
+            entityGeneration.incrementAndGet();
+            getEntityCache().remove(entityId);
+            if (updated) {
+                // TODO Do something smarter than flushing the entire cache!
+                clearFilterCache();
+            } else {
+                for (FilterCacheEntry fce : getFilterCacheEntries()) {
+                    fce.invalidate(entityId);
+                }
+            }
+        } finally {
+            endCacheUpdate();
+        }
+    }
+
+    /**
+     * Updates the caches after the entity identified by <code>entityId</code>
+     * has been changed. The entity itself is always evicted from the entity
+     * cache. Cached filters whose filter depends on any of the changed
+     * properties are dropped; of the remaining ones, only the entityId lists
+     * sorted by a changed property are dropped.
+     * 
+     * @param entityId
+     *            the identifier of the changed entity.
+     * @param changedProperties
+     *            the names of the changed properties (nested property names
+     *            are allowed), or null if they are not known, in which case
+     *            the entire filter cache is flushed.
+     * @since 4.0.1
+     */
+    public void entityUpdated(Object entityId,
+            Collection<String> changedProperties) {
+        beginCacheUpdate();
+        try {
+            if (changedProperties == null || hasUncacheableDelegate()) {
+                // The delegate may add conditions on any property
+                invalidate(entityId, true);
+                return;
+            }
+            entityGeneration.incrementAndGet();
+            getEntityCache().remove(entityId);
+            if (changedProperties.isEmpty()) {
+                return;
+            }
+            Set<String> changed = new HashSet<String>();
+            for (String propertyName : changedProperties) {
+                changed.add(FilterEvaluator.getTopLevelProperty(propertyName));
+            }
+            for (FilterCacheEntry fce : getFilterCacheEntries()) {
+                if (fce.scope != null || fce.filterDependsOn(changed)) {
+                    // The delegate of a scoped entry may depend on anything
+                    removeFilterCacheEntry(fce);
+                } else {
+                    fce.invalidateSortedBy(changed);
+                }
+            }
+        } finally {
+            endCacheUpdate();
+        }
+    }
+
+    /**
+     * Compares <code>entity</code> with the copy of it in the entity cache and
+     * returns the names of the persistent properties whose values differ. This
+     * must be called before the changes are stored, as the cached copy may be
+     * reloaded afterwards.
+     * <p>
+     * The result is only reliable if the cached copy cannot have been changed
+     * by the application, so null is returned unless
+     * {@link #isCloneCachedEntities()} is true.
+     * 
+     * @param entityId
+     *            the identifier of the entity.
+     * @param entity
+     *            the changed entity.
+     * @return the names of the changed properties, or null if they cannot be
+     *         determined.
+     * @since 4.0.1
+     */
+    public Collection<String> getChangedProperties(Object entityId, T entity) {
+        if (entityId == null || entity == null || !isCloneCachedEntities()) {
+            return null;
+        }
+        T cached = getEntityCache().get(entityId);
+        if (cached == null || cached == entity) {
+            return null;
+        }
+        EntityClassMetadata<T> metadata = entityProvider
+                .getEntityClassMetadata();
+        List<String> changed = new ArrayList<String>();
+        for (PersistentPropertyMetadata p : metadata.getPersistentProperties()) {
+            try {
+                Object oldValue = metadata.getPropertyValue(cached,
+                        p.getName());
+                Object newValue = metadata.getPropertyValue(entity,
+                        p.getName());
+                if (oldValue == null ? newValue != null : !oldValue
+                        .equals(newValue)) {
+                    changed.add(p.getName());
+                }
+            } catch (RuntimeException e) {
+                // E.g. an uninitialized lazy collection
+                changed.add(p.getName());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Updates the caches after <code>entity</code> has been added. Each cached
+     * filter is evaluated against the new entity in memory. Filters that the
+     * entity does not match are left as they are. For filters that it
+     * matches, the cached count is incremented and the entityId is spliced
+     * into the cached entityId lists. Filters for which this cannot be
+     * decided in memory are dropped from the cache.
+     * 
+     * @param entity
+     *            the entity that was added, including its identifier.
+     * @param addedAt
+     *            the {@link System#nanoTime()} before the entity was added.
+     *            Anything loaded after this may already include the entity
+     *            and is dropped rather than updated.
+     */
+    public void entityAdded(T entity, long addedAt) {
+        beginCacheUpdate();
+        try {
+            lastIdPosition = null;
+            EntityClassMetadata<T> metadata = entityProvider
+                    .getEntityClassMetadata();
+            Object entityId = entity == null ? null : metadata.getPropertyValue(
+                    entity, metadata.getIdentifierProperty().getName());
+            if (entityId == null || hasUncacheableDelegate()) {
+                // The delegate may change the queries in ways we cannot evaluate
+                flush();
+                return;
+            }
+            evictReferencedEntities(entity, metadata);
+            FilterEvaluator<T> evaluator = new FilterEvaluator<T>(metadata);
+            for (FilterCacheEntry fce : getFilterCacheEntries()) {
+                // The conditions of a delegate cannot be evaluated
+                FilterEvaluator.Result result = fce.scope != null ? FilterEvaluator.Result.UNKNOWN
+                        : evaluator.evaluate(fce.getFilter(), entity);
+                if (result == FilterEvaluator.Result.MATCH) {
+                    fce.entityAdded(entityId, entity, evaluator, addedAt);
+                } else if (result == FilterEvaluator.Result.UNKNOWN) {
+                    removeFilterCacheEntry(fce);
+                }
+            }
+        } finally {
+            endCacheUpdate();
+        }
+    }
+
+    /**
+     * Removes the cached entities that <code>entity</code> refers to from the
+     * entity cache, as their side of the relationship may have changed.
+     */
+    @SuppressWarnings("unchecked")
+    private void evictReferencedEntities(T entity,
+            EntityClassMetadata<T> metadata) {
+        String idName = metadata.getIdentifierProperty().getName();
+        for (PersistentPropertyMetadata p : metadata.getPersistentProperties()) {
+            PropertyKind kind = p.getPropertyKind();
+            if ((kind != PropertyKind.MANY_TO_ONE
+                    && kind != PropertyKind.ONE_TO_ONE && kind != PropertyKind.MANY_TO_MANY)
+                    || p.getTypeMetadata() == null
+                    || !metadata.getMappedClass().isAssignableFrom(
+                            p.getTypeMetadata().getMappedClass())) {
+                // Only entities of the same type can be in the cache
+                continue;
+            }
+            entityGeneration.incrementAndGet();
+            try {
+                Object value = metadata.getPropertyValue(entity, p.getName());
+                Collection<Object> referenced;
+                if (value instanceof Collection) {
+                    referenced = (Collection<Object>) value;
+                } else if (value != null) {
+                    referenced = Collections.singleton(value);
+                } else {
+                    continue;
+                }
+                for (Object ref : referenced) {
+                    Object refId = metadata.getPropertyValue((T) ref, idName);
+                    if (refId != null) {
+                        getEntityCache().remove(refId);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // E.g. an uninitialized lazy collection, play it safe
+                getEntityCache().clear();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets all the identifiers that match <code>filter</code>, sorted by
+     * <code>sortBy</code>, starting with the identifier at position
+     * <code>startFrom</code> and retrieving a maximum number of
+     * <code>fetchMax</code> items.
+     * 
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the ordering information (may not be null).
+     * @param startFrom
+     *            the index of the first identifier to retrieve.
+     * @param fetchMax
+     *            the maximum number of identifiers to retrieve, or 0 to
+     *            retrieve all.
+     * @return a list of identifiers.
+     */
+    protected List<Object> getIds(final EntityContainer<T> container,
+            final Filter filter, final List<SortBy> sortBy,
+            final int startFrom, final int fetchMax) {
+        SharedCacheRegion<T> region = getSharedRegion();
+        if (region != null && fetchMax > 0) {
+            return region.getIds(getCacheScope(container), filter, sortBy,
+                    startFrom, fetchMax, toMaxAge(getIdTimeToLive()),
+                    new Callable<List<Object>>() {
+                        public List<Object> call() {
+                            return queryIds(container, filter, sortBy,
+                                    startFrom, fetchMax);
+                        }
+                    });
+        }
+        return queryIds(container, filter, sortBy, startFrom, fetchMax);
+    }
+
+    private List<Object> queryIds(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int startFrom, int fetchMax) {
+        TypedQuery<Object> query = entityProvider.createFilteredQuery(
+                container,
+                Arrays.asList(entityProvider.getEntityClassMetadata()
+                        .getIdentifierProperty().getName()), filter,
+                entityProvider.addPrimaryKeyToSortList(sortBy), false);
+        query.setFirstResult(startFrom);
+        if (fetchMax > 0) {
+            query.setMaxResults(fetchMax);
+        }
+        return query.getResultList();
+    }
+
+    /**
+     * Gets all the identifiers that match <code>filter</code>, sorted by
+     * <code>sortBy</code>, starting with the identifier next to
+     * <code>startFrom</code> and retrieving a maximum number of
+     * <code>fetchMax</code> items. If <code>startFrom</code> is at position n,
+     * then item n+1 will be the first item in the returnde list, n+2 the
+     * second, etc.
+     * 
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the ordering information (may not be null).
+     * @param startFrom
+     *            the entityId prioir to the first identifier to retrieve.
+     * @param fetchMax
+     *            the maximum number of identifiers to retrieve, or 0 to
+     *            retrieve all.
+     * @return a list of identifiers.
+     */
+    protected List<Object> getNextIds(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, Object startFrom, int fetchMax) {
+        TypedQuery<Object> query = entityProvider.createSiblingQuery(container,
+                startFrom, filter, sortBy, false);
+        if (fetchMax > 0) {
+            query.setMaxResults(fetchMax);
+        }
+        return query.getResultList();
+    }
+
+    /**
+     * Gets all the identifiers that match <code>filter</code>, sorted backwards
+     * by <code>sortBy</code>, starting with the identifier prior to
+     * <code>startFrom</code> and retrieving a maximum number of
+     * <code>fetchMax</code> items. If <code>startFrom</code> is at position n,
+     * then item n-1 will be the first item in the returned list, n-2 the
+     * second, etc.
+     * 
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the ordering information (may not be null).
+     * @param startFrom
+     *            the entityId next to the first identifier to retrieve.
+     * @param fetchMax
+     *            the maximum number of identifiers to retrieve, or 0 to
+     *            retrieve all.
+     * @return a list of identifiers.
+     */
+    protected List<Object> getPreviousIds(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, Object startFrom, int fetchMax) {
+        TypedQuery<Object> query = entityProvider.createSiblingQuery(container,
+                startFrom, filter, sortBy, true);
+        if (fetchMax > 0) {
+            query.setMaxResults(fetchMax);
+        }
+        return query.getResultList();
+    }
+
+    /**
+     * Gets the identifiers that come after (or before, if
+     * <code>backwards</code> is true) <code>startFrom</code> in the list
+     * determined by <code>filter</code> and <code>sortBy</code>, using a
+     * keyset ("seek") query that continues from the sort key values of
+     * <code>startFrom</code> instead of skipping rows with an offset. If
+     * <code>backwards</code> is true, the identifiers are returned in the
+     * original sort order, i.e. the identifier prior to
+     * <code>startFrom</code> is the last item in the list.
+     * <p>
+     * Seeking is only possible if keyset paging is enabled and none of the
+     * sort properties can be null, as null values have no well-defined
+     * position in the result set, see
+     * {@link LocalEntityProvider#isKeysetPagingSupported(List)}.
+     * 
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the ordering information (may not be null).
+     * @param startFrom
+     *            the entityId to seek from (must not be null).
+     * @param backwards
+     *            true to fetch the preceding identifiers, false to fetch the
+     *            following identifiers.
+     * @param fetchMax
+     *            the maximum number of identifiers to retrieve.
+     * @return a list of identifiers, or null if seeking was not possible and
+     *         the caller should fall back to an offset query.
+     */
+    protected List<Object> seekIds(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, Object startFrom,
+            boolean backwards, int fetchMax) {
+        if (!canSeek(sortBy)) {
+            return null;
+        }
+        List<SortBy> keySortBy = entityProvider.addPrimaryKeyToSortList(sortBy);
+        Map<Object, Object> keyValues = getKeysetValues(container, startFrom,
+                keySortBy);
+        if (keyValues == null) {
+            return null;
+        }
+        return seekIds(container, filter, keySortBy, keyValues, backwards, 0,
+                fetchMax);
+    }
+
+    /**
+     * Returns whether lists sorted by <code>sortBy</code> are paged with
+     * keyset queries, which requires keyset paging to be enabled and none of
+     * the sort properties to be nullable.
+     */
+    private boolean canSeek(List<SortBy> sortBy) {
+        return isKeysetPagingEnabled()
+                && entityProvider.isKeysetPagingSupported(entityProvider
+                        .addPrimaryKeyToSortList(sortBy));
+    }
+
+    /**
+     * Reads the sort key values of <code>entityId</code> for use in a keyset
+     * query.
+     * 
+     * @param keySortBy
+     *            the ordering information, including the primary key.
+     * @return the key values, or null if the entity does not exist or some of
+     *         the values are null or cannot be read.
+     */
+    protected Map<Object, Object> getKeysetValues(
+            EntityContainer<T> container, Object entityId,
+            List<SortBy> keySortBy) {
+        Map<Object, Object> keyValues;
+        try {
+            keyValues = entityProvider.getSortKeyValues(container, entityId,
+                    keySortBy);
+        } catch (IllegalArgumentException e) {
+            // The key values could not be read, e.g. due to an invalid nested
+            // property
+            return null;
+        }
+        if (keyValues == null || keyValues.containsValue(null)) {
+            return null;
+        }
+        return keyValues;
+    }
+
+    /**
+     * Runs a keyset query that continues from <code>keyValues</code>,
+     * skipping the first <code>skip</code> matching rows. Backwards results
+     * are returned in the original sort order.
+     * 
+     * @param keySortBy
+     *            the ordering information, including the primary key.
+     * @param keyValues
+     *            the sort key values to seek from, as returned by
+     *            {@link #getKeysetValues(EntityContainer, Object, List)}.
+     */
+    protected List<Object> seekIds(EntityContainer<T> container,
+            Filter filter, List<SortBy> keySortBy,
+            Map<Object, Object> keyValues, boolean backwards, int skip,
+            int fetchMax) {
+        TypedQuery<Object> query = entityProvider.createKeysetQuery(container,
+                filter, keySortBy, keyValues, backwards);
+        if (skip > 0) {
+            query.setFirstResult(skip);
+        }
+        query.setMaxResults(fetchMax);
+        List<Object> result = query.getResultList();
+        if (backwards) {
+            ArrayList<Object> l = new ArrayList<Object>(result.size());
+            for (int i = result.size() - 1; i >= 0; i--) {
+                l.add(result.get(i));
+            }
+            return l;
+        }
+        return result;
+    }
+
+    private volatile Map<Object, T> entityCache;
+    /**
+     * Guarded by {@link #filterCacheLock}.
+     */
+    private Map<List<Object>, FilterCacheEntry> filterCache;
+    private final ReentrantLock filterCacheLock = new ReentrantLock();
+    /**
+     * Coalesces concurrent loads of the same entity.
+     */
+    private final SingleFlight<Object, T> entityLoads = new SingleFlight<Object, T>();
+    /**
+     * Incremented whenever cached entities are invalidated, so that entities
+     * that were loaded before are not put into the cache.
+     */
+    private final AtomicInteger entityGeneration = new AtomicInteger();
+    /**
+     * The number of cache updates in progress and the number of cache updates
+     * that have been started, see {@link #beginCacheUpdate()}.
+     */
+    private final AtomicInteger cacheUpdatesInProgress = new AtomicInteger();
+    private final AtomicInteger cacheUpdateCount = new AtomicInteger();
+
+    /**
+     * A hash map that will remove the least recently used items once its size
+     * reaches a specified max size. A negative max size means that the map is
+     * unbounded.
+     * <p>
+     * Optionally, the map can use a {@link FrequencySketch} to only admit a
+     * new item into a full map if it has been accessed at least as often as
+     * the item it would evict (TinyLFU). This keeps popular items in the cache
+     * even when there are many one-off accesses.
+     * 
+     * @author Petter Holmström (Vaadin Ltd)
+     * @since 1.0
+     */
+    protected static class CacheMap<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 2900939583997256190L;
+        private final int maxSize;
+        private final FrequencySketch sketch;
+        private final EntityWeigher<? super V> weigher;
+        private final CacheBudget budget;
+        /**
+         * The weights of the items, or null if the items are not weighed.
+         */
+        private final Map<K, Long> weights;
+
+        public CacheMap(int maxSize) {
+            this(maxSize, false);
+        }
+
+        /**
+         * Creates a new cache map.
+         * 
+         * @param maxSize
+         *            the max number of items, or a negative value for no
+         *            limit.
+         * @param frequencyAdmission
+         *            true to use frequency based admission, false to always
+         *            admit new items. Ignored if the map is unbounded.
+         * @since 4.0.1
          */
-        public Filter getFilter() {
-            return filter == NULL_FILTER ? null : filter;
+        public CacheMap(int maxSize, boolean frequencyAdmission) {
+            this(maxSize, frequencyAdmission, null, null);
+        }
+
+        /**
+         * Creates a new cache map that also removes the least recently used
+         * items while <code>budget</code> is exceeded.
+         * 
+         * @param maxSize
+         *            the max number of items, or a negative value for no
+         *            limit.
+         * @param frequencyAdmission
+         *            see {@link #CacheMap(int, boolean)}.
+         * @param weigher
+         *            the weigher of the items, or null to not weigh them.
+         * @param budget
+         *            the budget that the weights of the items are added to,
+         *            or null if <code>weigher</code> is null.
+         * @since 4.0.1
+         */
+        public CacheMap(int maxSize, boolean frequencyAdmission,
+                EntityWeigher<? super V> weigher, CacheBudget budget) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.sketch = frequencyAdmission && maxSize > 0 ? new FrequencySketch(
+                    maxSize) : null;
+            this.weigher = budget == null ? null : weigher;
+            this.budget = this.weigher == null ? null : budget;
+            this.weights = this.budget == null ? null : new HashMap<K, Long>();
+        }
+
+        @Override
+        public V get(Object key) {
+            if (sketch != null && key != null) {
+                sketch.increment(key);
+            }
+            return super.get(key);
+        }
+
+        @Override
+        public V put(K key, V value) {
+            if (sketch != null && key != null && !containsKey(key)) {
+                sketch.increment(key);
+                if (size() >= maxSize
+                        || (budget != null && budget.isExceeded() && !isEmpty())) {
+                    K victim = keySet().iterator().next();
+                    if (sketch.frequency(key) < sketch.frequency(victim)) {
+                        // Not popular enough to replace the eldest item
+                        return null;
+                    }
+                }
+            }
+            V previous = super.put(key, value);
+            if (weights != null) {
+                long weight = Math.max(weigher.weigh(value), 1);
+                Long previousWeight = weights.put(key, weight);
+                budget.add(weight
+                        - (previousWeight == null ? 0 : previousWeight));
+                // Never evict the item that was just added
+                while (budget.isExceeded() && size() > 1) {
+                    remove(keySet().iterator().next());
+                }
+            }
+            return previous;
+        }
+
+        @Override
+        public V remove(Object key) {
+            V removed = super.remove(key);
+            release(key);
+            return removed;
+        }
+
+        @Override
+        public void clear() {
+            if (weights != null) {
+                for (Long weight : weights.values()) {
+                    budget.add(-weight);
+                }
+                weights.clear();
+            }
+            super.clear();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if (maxSize > -1 && size() > maxSize) {
+                release(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Removes the least recently used items while the budget is
+         * exceeded, e.g. after it has been made smaller.
+         * 
+         * @since 4.0.1
+         */
+        public void trim() {
+            while (budget != null && budget.isExceeded() && !isEmpty()) {
+                remove(keySet().iterator().next());
+            }
+        }
+
+        /**
+         * Subtracts the weight of the item with <code>key</code> from the
+         * budget, if it is weighed.
+         */
+        private void release(Object key) {
+            if (weights != null) {
+                Long weight = weights.remove(key);
+                if (weight != null) {
+                    budget.add(-weight);
+                }
+            }
+        }
+    }
+
+    /**
+     * The memory budget of the caches of a provider, in bytes. The weights of
+     * the cached entities are added to the budget by the entity cache, see
+     * {@link CacheMap#CacheMap(int, boolean, EntityWeigher, CacheBudget)},
+     * while the entityIds of the filter cache are reserved from it as a
+     * whole, see {@link CachingSupport#updateIdWeight()}. Entities are
+     * evicted while the budget is exceeded, and entityIds while they weigh
+     * more than half of the budget. As the entityIds are only weighed now and
+     * then, at most half of the budget is reserved for them here, so that the
+     * entities always have at least the other half.
+     * 
+     * @since 4.0.1
+     */
+    protected static class CacheBudget implements Serializable {
+
+        private static final long serialVersionUID = 5023378817640580337L;
+        private volatile long maxWeight;
+        private final AtomicLong weight = new AtomicLong();
+        private volatile long reservedWeight;
+
+        /**
+         * @param maxWeight
+         *            the max weight in bytes, or -1 for no limit.
+         */
+        public CacheBudget(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        void add(long delta) {
+            weight.addAndGet(delta);
+        }
+
+        /**
+         * Returns the total weight of the items that have been added to the
+         * budget, excluding the reserved weight.
+         */
+        long getWeight() {
+            return weight.get();
+        }
+
+        /**
+         * Sets the weight that is used outside of the items that are added
+         * to the budget.
+         */
+        void setReservedWeight(long reservedWeight) {
+            this.reservedWeight = reservedWeight;
+        }
+
+        long getReservedWeight() {
+            return reservedWeight;
+        }
+
+        long getMaxWeight() {
+            return maxWeight;
+        }
+
+        /**
+         * Changes the max weight. The items are not evicted until the next
+         * item is added, or the map is trimmed, see
+         * {@link StripedCacheMap#trim()}.
+         */
+        void setMaxWeight(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        boolean isExceeded() {
+            long reserved = Math.min(reservedWeight, maxWeight / 2);
+            return maxWeight > -1 && weight.get() + reserved > maxWeight;
+        }
+    }
+
+    /**
+     * A hash set that will remove the least recently used items once its size
+     * reaches a specified max size. Checking whether the set contains an item
+     * counts as a use.
+     * 
+     * @see CacheMap
+     * @author Petter Holmström (Vaadin Ltd)
+     * @since 1.0
+     */
+    protected static class CacheSet<V> extends AbstractSet<V> implements
+            Serializable {
+
+        private static final long serialVersionUID = 2900939583997256190L;
+        private final CacheMap<V, Boolean> map;
+
+        public CacheSet(int maxSize) {
+            map = new CacheMap<V, Boolean>(maxSize);
+        }
+
+        @Override
+        public boolean add(V e) {
+            return map.put(e, Boolean.TRUE) == null;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            // get() updates the access order, containsKey() does not
+            return map.get(o) != null;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return map.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return map.keySet().iterator();
+        }
+    }
+
+    /**
+     * A thread safe {@link CacheMap} that is split into segments, each with
+     * its own lock. The segment of an item is picked by its hash code, so
+     * threads accessing different items seldom have to wait for each other.
+     * The max size is divided between the segments and the least recently
+     * used items are evicted per segment, which means that the map as a whole
+     * is only approximately LRU ordered.
+     * 
+     * @since 4.0.1
+     */
+    protected static class StripedCacheMap<K, V> extends AbstractMap<K, V>
+            implements Serializable {
+
+        private static final long serialVersionUID = -1409236473621871209L;
+        /**
+         * The maximum number of segments.
+         */
+        static final int MAX_SEGMENTS = 16;
+        /**
+         * The smallest max size of a segment. Small maps use fewer segments
+         * to keep the eviction order reasonably close to LRU.
+         */
+        static final int MIN_SEGMENT_SIZE = 64;
+        private final CacheMap<K, V>[] segments;
+
+        /**
+         * Creates a new striped cache map.
+         * 
+         * @param maxSize
+         *            the max number of items, or a negative value for no
+         *            limit.
+         * @param frequencyAdmission
+         *            true to use frequency based admission in the segments,
+         *            see {@link CacheMap#CacheMap(int, boolean)}.
+         */
+        public StripedCacheMap(int maxSize, boolean frequencyAdmission) {
+            this(maxSize, frequencyAdmission, null, null);
+        }
+
+        /**
+         * Creates a new striped cache map whose items are weighed. Each
+         * segment evicts its own least recently used items while the shared
+         * <code>budget</code> is exceeded.
+         * 
+         * @see CacheMap#CacheMap(int, boolean, EntityWeigher, CacheBudget)
+         */
+        @SuppressWarnings("unchecked")
+        public StripedCacheMap(int maxSize, boolean frequencyAdmission,
+                EntityWeigher<? super V> weigher, CacheBudget budget) {
+            int count = MAX_SEGMENTS;
+            if (maxSize > -1) {
+                while (count > 1 && maxSize / count < MIN_SEGMENT_SIZE) {
+                    count >>= 1;
+                }
+            }
+            segments = new CacheMap[count];
+            for (int i = 0; i < count; i++) {
+                int segmentSize = -1;
+                if (maxSize > -1) {
+                    segmentSize = maxSize / count
+                            + (i < maxSize % count ? 1 : 0);
+                }
+                segments[i] = new CacheMap<K, V>(segmentSize,
+                        frequencyAdmission, weigher, budget);
+            }
+        }
+
+        private CacheMap<K, V> segmentFor(Object key) {
+            if (key == null) {
+                return segments[0];
+            }
+            int h = key.hashCode();
+            h ^= (h >>> 16) ^ (h >>> 8);
+            return segments[h & (segments.length - 1)];
+        }
+
+        @Override
+        public V get(Object key) {
+            CacheMap<K, V> segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.get(key);
+            }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            CacheMap<K, V> segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.containsKey(key);
+            }
+        }
+
+        @Override
+        public V put(K key, V value) {
+            CacheMap<K, V> segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.put(key, value);
+            }
+        }
+
+        @Override
+        public V remove(Object key) {
+            CacheMap<K, V> segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.remove(key);
+            }
+        }
+
+        @Override
+        public void clear() {
+            for (CacheMap<K, V> segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (CacheMap<K, V> segment : segments) {
+                synchronized (segment) {
+                    size += segment.size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Removes the least recently used items of each segment while the
+         * budget is exceeded, see {@link CacheMap#trim()}.
+         */
+        public void trim() {
+            for (CacheMap<K, V> segment : segments) {
+                synchronized (segment) {
+                    segment.trim();
+                }
+            }
+        }
+
+        /**
+         * Returns a snapshot of the entries in the map. Changes to the map
+         * are not reflected in the returned set, and vice versa.
+         */
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            Map<K, V> copy = new LinkedHashMap<K, V>();
+            for (CacheMap<K, V> segment : segments) {
+                synchronized (segment) {
+                    for (Map.Entry<K, V> e : segment.entrySet()) {
+                        copy.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+            return Collections.unmodifiableMap(copy).entrySet();
+        }
+    }
+
+    /**
+     * Gets the cache for entity instances. If no cache exists, it will be
+     * created.
+     * 
+     * @return the entity cache (never null).
+     */
+    Map<Object, T> getEntityCache() {
+        Map<Object, T> cache = entityCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = entityCache;
+                if (cache == null) {
+                    CacheBudget budget = null;
+                    if (getEffectiveMaxCacheWeight() > -1) {
+                        budget = new CacheBudget(getEffectiveMaxCacheWeight());
+                        CacheBudget previous = cacheBudget;
+                        if (previous != null) {
+                            budget.setReservedWeight(previous
+                                    .getReservedWeight());
+                        }
+                    }
+                    cacheBudget = budget;
+                    cache = entityCache = new StripedCacheMap<Object, T>(
+                            getMaxCacheSize(), isFrequencyAdmissionEnabled(),
+                            getEntityWeigher(), budget);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Gets the cache for filter results. If no cache exists, it will be
+     * created. The cache must only be accessed while holding
+     * {@link #filterCacheLock}.
+     * 
+     * @return the filter cache (never null).
+     */
+    Map<List<Object>, FilterCacheEntry> getFilterCache() {
+        assert filterCacheLock.isHeldByCurrentThread() : "filterCacheLock is not held";
+        if (filterCache == null) {
+            filterCache = new CacheMap<List<Object>, FilterCacheEntry>(
+                    MAX_FILTER_CACHE_SIZE);
+        }
+        return filterCache;
+    }
+
+    /**
+     * Returns a snapshot of the filter cache entries, which can be used
+     * without holding {@link #filterCacheLock}.
+     */
+    private List<FilterCacheEntry> getFilterCacheEntries() {
+        filterCacheLock.lock();
+        try {
+            if (filterCache == null) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<FilterCacheEntry>(filterCache.values());
+        } finally {
+            filterCacheLock.unlock();
+        }
+    }
+
+    private void removeFilterCacheEntry(FilterCacheEntry entry) {
+        filterCacheLock.lock();
+        try {
+            if (filterCache != null && filterCache.get(entry.key) == entry) {
+                filterCache.remove(entry.key);
+            }
+        } finally {
+            filterCacheLock.unlock();
+        }
+    }
+
+    private void clearFilterCache() {
+        filterCacheLock.lock();
+        try {
+            if (filterCache != null) {
+                filterCache.clear();
+            }
+        } finally {
+            filterCacheLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the cache entry for the specified filter as used by
+     * <code>container</code>, see {@link #getCacheScope(EntityContainer)}.
+     * 
+     * @param container
+     *            the container whose queries the entry caches (may be null).
+     * @param filter
+     *            the filter whose cache entry to fetch (may be null).
+     * @return the filter cache entry (never null).
+     */
+    FilterCacheEntry getFilterCacheEntry(EntityContainer<T> container,
+            Filter filter) {
+        return getFilterCacheEntry(getCacheScope(container), filter);
+    }
+
+    /**
+     * Gets the cache entry for the specified filter. If no cache entry exists,
+     * it will be created. Equivalent filters share the same entry, see
+     * {@link FilterNormalizer}.
+     * 
+     * @param scope
+     *            the cache scope of the queries, or null if they are not
+     *            modified by any {@link CacheableQueryModifierDelegate}.
+     * @param filter
+     *            the filter whose cache entry to fetch (may be null).
+     * @return the filter cache entry (never null).
+     */
+    FilterCacheEntry getFilterCacheEntry(Object scope, Filter filter) {
+        FilterKey filterKey = FilterNormalizer.getKey(filter);
+        List<Object> key = Arrays.asList(scope, filterKey);
+        filterCacheLock.lock();
+        try {
+            FilterCacheEntry e = getFilterCache().get(key);
+            if (e != null) {
+                return e;
+            }
+        } finally {
+            filterCacheLock.unlock();
+        }
+        int updateCount = cacheUpdateCount.get();
+        FilterCacheEntry refined = null;
+        if (cacheUpdatesInProgress.get() == 0) {
+            refined = refineCachedEntry(scope, filterKey);
+        }
+        filterCacheLock.lock();
+        try {
+            FilterCacheEntry e = getFilterCache().get(key);
+            if (e == null) {
+                if (refined != null && cacheUpdatesInProgress.get() == 0
+                        && cacheUpdateCount.get() == updateCount) {
+                    e = refined;
+                } else {
+                    // The cached data may have changed while refining
+                    e = new FilterCacheEntry(scope, filterKey);
+                }
+                getFilterCache().put(key, e);
+            }
+            return e;
+        } finally {
+            filterCacheLock.unlock();
+        }
+    }
+
+    /**
+     * Tries to create a cache entry for the filter of <code>key</code> by
+     * narrowing down the data of a cached filter that it extends with more
+     * conditions, e.g. <code>And(a, b)</code> from <code>a</code> or from no
+     * filter at all. This is possible if all the entityIds of the broader
+     * filter and the entities themselves are cached, and the extra conditions
+     * can be evaluated in memory for each of them. Only filters of the same
+     * <code>scope</code> are considered, as a
+     * {@link CacheableQueryModifierDelegate} restricts both queries in the same
+     * way.
+     * 
+     * @return a new entry that is not yet in the filter cache, or null if
+     *         there is no suitable cached filter.
+     */
+    private FilterCacheEntry refineCachedEntry(Object scope, FilterKey key) {
+        if (hasUncacheableDelegate()) {
+            // The delegate may add conditions that cannot be evaluated here
+            return null;
+        }
+        List<Filter> conditions = getConjuncts(key.getFilter());
+        List<FilterCacheEntry> candidates = new ArrayList<FilterCacheEntry>();
+        for (FilterCacheEntry fce : getFilterCacheEntries()) {
+            if ((scope == null ? fce.scope == null : scope.equals(fce.scope))
+                    && conditions.containsAll(getConjuncts(fce.getFilter()))) {
+                candidates.add(fce);
+            }
+        }
+        // Try the narrowest filters first, they have the fewest entities
+        Collections.sort(candidates, new Comparator<FilterCacheEntry>() {
+            public int compare(FilterCacheEntry o1, FilterCacheEntry o2) {
+                return getConjuncts(o2.getFilter()).size()
+                        - getConjuncts(o1.getFilter()).size();
+            }
+        });
+        FilterEvaluator<T> evaluator = new FilterEvaluator<T>(
+                entityProvider.getEntityClassMetadata());
+        for (FilterCacheEntry parent : candidates) {
+            List<Filter> extra = new ArrayList<Filter>(conditions);
+            extra.removeAll(getConjuncts(parent.getFilter()));
+            FilterCacheEntry e = new FilterCacheEntry(scope, key);
+            if (e.refineFrom(parent, extra, evaluator)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the conditions that must all hold for <code>filter</code> to
+     * match, i.e. the children of an {@link And} or the filter itself.
+     */
+    private static List<Filter> getConjuncts(Filter filter) {
+        if (filter == null) {
+            return Collections.emptyList();
+        } else if (filter instanceof And) {
+            return new ArrayList<Filter>(((And) filter).getFilters());
         }
+        return Collections.singletonList(filter);
     }
 
     /**
-     * TODO Document me!
+     * Gets the type of the entity identifiers.
+     */
+    private Class<?> getIdType() {
+        PersistentPropertyMetadata idProperty = entityProvider
+                .getEntityClassMetadata().getIdentifierProperty();
+        return idProperty == null ? Object.class : idProperty.getType();
+    }
+
+    /**
+     * Creates an empty list for entityIds, which stores {@link Long} and
+     * {@link Integer} identifiers as primitives, see {@link IdList}.
+     */
+    List<Object> createIdList(int capacity) {
+        return IdList.create(getIdType(), capacity);
+    }
+
+    /**
+     * Creates a list for entityIds that contains <code>ids</code>, see
+     * {@link #createIdList(int)}.
+     */
+    List<Object> createIdList(Collection<Object> ids) {
+        return IdList.create(getIdType(), ids);
+    }
+
+    /**
+     * Creates a set for the known entityIds of a filter, which stores
+     * {@link Long} and {@link Integer} identifiers as primitives, see
+     * {@link PrimitiveIdSet}.
+     */
+    Set<Object> createIdSet() {
+        Class<?> idType = getIdType();
+        if (PrimitiveIdSet.supports(idType)) {
+            return new PrimitiveIdSet(getMaxIdCount(),
+                    idType == Integer.class || idType == Integer.TYPE);
+        }
+        return new CacheSet<Object>(getMaxIdCount());
+    }
+
+    /**
+     * Returns the approximate weight in bytes of the entityIds in
+     * <code>ids</code>.
+     */
+    static long weighIds(Collection<Object> ids) {
+        return (long) ids.size()
+                * ((ids instanceof IdList && ((IdList) ids).isPrimitive())
+                        || ids instanceof PrimitiveIdSet ? PRIMITIVE_ID_WEIGHT
+                        : OBJECT_ID_WEIGHT);
+    }
+
+    /**
+     * Returns the max number of entityIds to keep in a single entityId list
+     * or set: the max cache size, further limited to half of the memory
+     * budget if there is one.
      * 
-     * @param entityId
-     * @param updated
+     * @return the max number of entityIds, or -1 for no limit.
      */
-    public synchronized void invalidate(Object entityId, boolean updated) {
-        getEntityCache().remove(entityId);
-        if (updated) {
-            // TODO Do something smarter than flushing the entire cache!
-            getFilterCache().clear();
-        } else {
-            for (FilterCacheEntry fce : getFilterCache().values()) {
-                fce.invalidate(entityId);
+    int getMaxIdCount() {
+        int max = getMaxCacheSize();
+        long maxWeight = getEffectiveMaxCacheWeight();
+        if (maxWeight > -1) {
+            int idWeight = PrimitiveIdSet.supports(getIdType()) ? PRIMITIVE_ID_WEIGHT
+                    : OBJECT_ID_WEIGHT;
+            int byWeight = (int) Math.min(
+                    Math.max(maxWeight / 2 / idWeight, 1), Integer.MAX_VALUE);
+            max = max < 0 ? byWeight : Math.min(max, byWeight);
+        }
+        return max;
+    }
+
+    /**
+     * Reserves the weight of the entityIds of the filter cache from the
+     * memory budget, so that the entity cache evicts entities to make room
+     * for them. If the entityIds weigh more than half of the budget, the
+     * least recently used ones are evicted first, see
+     * {@link #evictIds(List, long)}. The weight is only computed every
+     * {@link #ID_WEIGHT_UPDATE_INTERVAL} calls, as it takes the locks of the
+     * filter cache entries. Must not be called with any of those locks held.
+     */
+    private void updateIdWeight() {
+        CacheBudget budget = cacheBudget;
+        if (budget == null
+                || idWeightUpdates.getAndIncrement()
+                        % ID_WEIGHT_UPDATE_INTERVAL != 0) {
+            return;
+        }
+        List<FilterCacheEntry> entries = getFilterCacheEntries();
+        long weight = 0;
+        for (FilterCacheEntry fce : entries) {
+            weight += fce.getIdWeight();
+        }
+        long share = budget.getMaxWeight() / 2;
+        if (budget.getMaxWeight() > -1 && weight > share) {
+            weight -= evictIds(entries, weight - share);
+        }
+        budget.setReservedWeight(Math.max(weight, 0));
+    }
+
+    /**
+     * Evicts cached entityIds until at least <code>excess</code> bytes have
+     * been freed: first the least recently used entityId lists of all the
+     * filters, and then the least recently used filter cache entries with
+     * their entityId sets. The most recently used list and entry are kept,
+     * as {@link #getMaxIdCount()} already keeps each of them within half of
+     * the budget.
+     * 
+     * @param entries
+     *            the filter cache entries, the least recently used first.
+     * @return the number of bytes freed.
+     */
+    private long evictIds(List<FilterCacheEntry> entries, long excess) {
+        Map<IdListEntry, List<SortBy>> sortBys = new IdentityHashMap<IdListEntry, List<SortBy>>();
+        Map<IdListEntry, FilterCacheEntry> owners = new IdentityHashMap<IdListEntry, FilterCacheEntry>();
+        for (FilterCacheEntry fce : entries) {
+            for (Map.Entry<List<SortBy>, IdListEntry> e : fce.idListMap
+                    .entrySet()) {
+                sortBys.put(e.getValue(), e.getKey());
+                owners.put(e.getValue(), fce);
+            }
+        }
+        List<IdListEntry> lists = new ArrayList<IdListEntry>(sortBys.keySet());
+        Collections.sort(lists, new Comparator<IdListEntry>() {
+            public int compare(IdListEntry o1, IdListEntry o2) {
+                long diff = o1.lastUsed - o2.lastUsed;
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
             }
+        });
+        long freed = 0;
+        for (int i = 0; i < lists.size() - 1 && freed < excess; i++) {
+            IdListEntry list = lists.get(i);
+            // The size may be off while the list is being changed, which is
+            // fine for an estimate
+            long weight = weighIds(list.idList);
+            if (owners.get(list).removeIdList(sortBys.get(list), list)) {
+                freed += weight;
+            }
+        }
+        for (int i = 0; i < entries.size() - 1 && freed < excess; i++) {
+            FilterCacheEntry fce = entries.get(i);
+            long weight = fce.getIdWeight();
+            removeFilterCacheEntry(fce);
+            freed += weight;
         }
+        return freed;
     }
 
     /**
-     * TODO Document me!
+     * Marks the start of a change to the cached data, which prevents filter
+     * cache entries from being derived from data that is being changed. Must
+     * be followed by {@link #endCacheUpdate()}.
+     */
+    private void beginCacheUpdate() {
+        cacheUpdatesInProgress.incrementAndGet();
+        cacheUpdateCount.incrementAndGet();
+    }
+
+    private void endCacheUpdate() {
+        cacheUpdatesInProgress.decrementAndGet();
+    }
+
+    public void flush() {
+        lastIdPosition = null;
+        clear();
+    }
+
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Check whether caching is possible or not. Caching is not possible if
+     * the container has a {@link QueryModifierDelegate}, or if a delegate that
+     * modifies the filters applied to queries is attached to the entity
+     * provider, unless the delegate is a
+     * {@link CacheableQueryModifierDelegate}.
      * 
-     * @param entity
+     * @return true if caching is possible
+     */
+    public boolean isCachingPossible(EntityContainer<T> container) {
+        if (container != null
+                && container.getQueryModifierDelegate() != null
+                && !(container.getQueryModifierDelegate() instanceof CacheableQueryModifierDelegate)) {
+            return false;
+        }
+        QueryModifierDelegate d = entityProvider.getQueryModifierDelegate();
+        if (d != null && !(d instanceof CacheableQueryModifierDelegate)) {
+            // Try to tell the delegate that filters will be added and pass in
+            // all nulls. If the delegate throws an NPE it most probably
+            // modifies the filters, which means that we cannot reliably cache
+            // anything at this level.
+            try {
+                d.filtersWillBeAdded(null, null, null);
+            } catch (NullPointerException npe) {
+                // The delegate modifies filters
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the entity provider has a delegate that is not a
+     * {@link CacheableQueryModifierDelegate}. The cached results cannot be
+     * updated in memory for such delegates.
      */
-    public synchronized void entityAdded(T entity) {
-        // TODO Do something smarter than flushing the entire cache!
-        flush();
-        // This is currently obsolete, but when above todo is implemented,
-        // uncomment this or somehow increment relevat filter caches.
-        // invalidateSize();
+    private boolean hasUncacheableDelegate() {
+        QueryModifierDelegate d = entityProvider.getQueryModifierDelegate();
+        return d != null && !(d instanceof CacheableQueryModifierDelegate);
+    }
 
+    /**
+     * Returns the part of the cache keys that identifies how the queries of
+     * <code>container</code> are modified by
+     * {@link CacheableQueryModifierDelegate}s. Results of queries with
+     * different scopes are cached separately.
+     * 
+     * @param container
+     *            the container (may be null).
+     * @return the scope, or null if no cacheable delegate is in use.
+     */
+    Object getCacheScope(EntityContainer<T> container) {
+        return getCacheScope(entityProvider.getQueryModifierDelegate(),
+                container == null ? null : container
+                        .getQueryModifierDelegate());
     }
 
     /**
-     * Gets all the identifiers that match <code>filter</code>, sorted by
-     * <code>sortBy</code>, starting with the identifier at position
-     * <code>startFrom</code> and retrieving a maximum number of
-     * <code>fetchMax</code> items.
+     * Returns the cache scope of queries that are modified by
+     * <code>providerDelegate</code> and <code>containerDelegate</code>, see
+     * {@link #getCacheScope(EntityContainer)}. Delegates that are not
+     * cacheable do not contribute to the scope.
      * 
-     * @param filter
-     *            the filter to apply, if any (may be null).
-     * @param sortBy
-     *            the ordering information (may not be null).
-     * @param startFrom
-     *            the index of the first identifier to retrieve.
-     * @param fetchMax
-     *            the maximum number of identifiers to retrieve, or 0 to
-     *            retrieve all.
-     * @return a list of identifiers.
+     * @return the scope, or null if neither delegate is cacheable.
      */
-    protected List<Object> getIds(EntityContainer<T> container, Filter filter,
-            List<SortBy> sortBy, int startFrom, int fetchMax) {
-        TypedQuery<Object> query = entityProvider.createFilteredQuery(
-                container,
-                Arrays.asList(entityProvider.getEntityClassMetadata()
-                        .getIdentifierProperty().getName()), filter,
-                entityProvider.addPrimaryKeyToSortList(sortBy), false);
-        query.setFirstResult(startFrom);
-        if (fetchMax > 0) {
-            query.setMaxResults(fetchMax);
+    static Object getCacheScope(QueryModifierDelegate providerDelegate,
+            QueryModifierDelegate containerDelegate) {
+        Object providerScope = getDelegateScope(providerDelegate);
+        Object containerScope = getDelegateScope(containerDelegate);
+        if (providerScope == null && containerScope == null) {
+            return null;
         }
-        return query.getResultList();
+        return Arrays.asList(providerScope, containerScope);
+    }
+
+    private static Object getDelegateScope(QueryModifierDelegate delegate) {
+        if (!(delegate instanceof CacheableQueryModifierDelegate)) {
+            return null;
+        }
+        // The class name rather than the class, as it is serializable with a
+        // stable hash code
+        return Arrays.asList(delegate.getClass().getName(),
+                ((CacheableQueryModifierDelegate) delegate).getCacheKey());
     }
 
     /**
-     * Gets all the identifiers that match <code>filter</code>, sorted by
-     * <code>sortBy</code>, starting with the identifier next to
-     * <code>startFrom</code> and retrieving a maximum number of
-     * <code>fetchMax</code> items. If <code>startFrom</code> is at position n,
-     * then item n+1 will be the first item in the returnde list, n+2 the
-     * second, etc.
+     * Only returns true if both {@link #isCacheEnabled()} and
+     * {@link #isCachingPossible()} are true.
      * 
-     * @param filter
-     *            the filter to apply, if any (may be null).
-     * @param sortBy
-     *            the ordering information (may not be null).
-     * @param startFrom
-     *            the entityId prioir to the first identifier to retrieve.
-     * @param fetchMax
-     *            the maximum number of identifiers to retrieve, or 0 to
-     *            retrieve all.
-     * @return a list of identifiers.
+     * @return true if the caching mechanism is actually used.
      */
-    protected List<Object> getNextIds(EntityContainer<T> container,
-            Filter filter, List<SortBy> sortBy, Object startFrom, int fetchMax) {
-        TypedQuery<Object> query = entityProvider.createSiblingQuery(container,
-                startFrom, filter, sortBy, false);
-        if (fetchMax > 0) {
-            query.setMaxResults(fetchMax);
+    public boolean usesCache(EntityContainer<T> container) {
+        if (isCacheEnabled() && isCachingPossible(container)) {
+            CacheMemoryGovernor governor = cacheMemoryGovernor;
+            if (governor != null) {
+                lastUsedAt = System.nanoTime();
+                governor.used();
+            }
+            return true;
         }
-        return query.getResultList();
+        return false;
+    }
+
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
     }
 
     /**
-     * Gets all the identifiers that match <code>filter</code>, sorted backwards
-     * by <code>sortBy</code>, starting with the identifier prior to
-     * <code>startFrom</code> and retrieving a maximum number of
-     * <code>fetchMax</code> items. If <code>startFrom</code> is at position n,
-     * then item n-1 will be the first item in the returned list, n-2 the
-     * second, etc.
+     * Turns the cache on or off.
      * 
-     * @param filter
-     *            the filter to apply, if any (may be null).
-     * @param sortBy
-     *            the ordering information (may not be null).
-     * @param startFrom
-     *            the entityId next to the first identifier to retrieve.
-     * @param fetchMax
-     *            the maximum number of identifiers to retrieve, or 0 to
-     *            retrieve all.
-     * @return a list of identifiers.
+     * @param cacheEnabled
+     *            true to turn on the cache, false to turn it off.
      */
-    protected List<Object> getPreviousIds(EntityContainer<T> container,
-            Filter filter, List<SortBy> sortBy, Object startFrom, int fetchMax) {
-        TypedQuery<Object> query = entityProvider.createSiblingQuery(container,
-                startFrom, filter, sortBy, true);
-        if (fetchMax > 0) {
-            query.setMaxResults(fetchMax);
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+        if (!cacheEnabled) {
+            flush();
         }
-        return query.getResultList();
     }
 
-    private Map<Object, T> entityCache;
-    private Map<Filter, FilterCacheEntry> filterCache;
+    public boolean isKeysetPagingEnabled() {
+        return keysetPagingEnabled;
+    }
+
+    /**
+     * Turns keyset paging on or off. When keyset paging is on, chunks of
+     * identifiers that are adjacent to an already cached chunk are fetched by
+     * continuing from the sort key values of the first or last cached
+     * identifier instead of using an offset. This keeps the cost of fetching
+     * a chunk constant regardless of how deep into the result set it is.
+     * 
+     * @param keysetPagingEnabled
+     *            true to use keyset paging, false to always use offsets.
+     */
+    public void setKeysetPagingEnabled(boolean keysetPagingEnabled) {
+        this.keysetPagingEnabled = keysetPagingEnabled;
+    }
+
+    public int getReadAheadSize() {
+        return readAheadSize;
+    }
+
+    /**
+     * Sets the number of entities to read ahead. When an entity that is not
+     * in the cache is requested right after its identifier was looked up by
+     * index, the entities of up to <code>readAheadSize</code> consecutive
+     * rows starting from that index are fetched with a single query.
+     * 
+     * @param readAheadSize
+     *            the number of entities to read ahead, or 0 to fetch every
+     *            entity separately.
+     */
+    public void setReadAheadSize(int readAheadSize) {
+        this.readAheadSize = readAheadSize;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public Executor getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * Sets the executor to prefetch entity identifiers and entities with. By
+     * default, the identifiers next to the cached window are fetched on the
+     * thread that scrolls close to the end of the window. With an executor,
+     * they are fetched in the background using an entity manager of their
+     * own, see {@link FilterCacheEntry.PrefetchTask}. Expired counts, entityId
+     * windows and entities are refreshed in the background with it too, see
+     * {@link #setCountTimeToLive(long)}. The executor is not serialized.
+     * 
+     * @param prefetchExecutor
+     *            the executor, or null to prefetch on the calling thread.
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        if (prefetchExecutor != null && prefetches == null) {
+            prefetches = new HashSet<FilterCacheEntry.PrefetchTask>();
+            refreshes = new HashSet<Object>();
+            expiredEntityIds = new HashSet<Object>();
+        }
+        this.prefetchExecutor = prefetchExecutor;
+        if (prefetchExecutor == null) {
+            cancelPrefetches();
+        }
+    }
+
+    public int getMaxPrefetches() {
+        return maxPrefetches;
+    }
+
+    public long getCountTimeToLive() {
+        return countTimeToLive;
+    }
+
+    /**
+     * Sets how long a cached entity count is used before it is reloaded. An
+     * expired count is still returned while it is reloaded in the background
+     * with the prefetch executor, see
+     * {@link #setPrefetchExecutor(Executor)}. Without an executor it is
+     * reloaded before it is returned.
+     * 
+     * @param countTimeToLive
+     *            the time in milliseconds, or -1 to never expire the counts.
+     */
+    public void setCountTimeToLive(long countTimeToLive) {
+        this.countTimeToLive = countTimeToLive;
+    }
+
+    public long getIdTimeToLive() {
+        return idTimeToLive;
+    }
+
+    /**
+     * Sets how long the cached entityId windows of a sorted list are used
+     * before they are reloaded. Like counts, expired windows are used while
+     * they are reloaded in the background, or dropped if there is no
+     * executor.
+     * 
+     * @param idTimeToLive
+     *            the time in milliseconds, or -1 to never expire the windows.
+     */
+    public void setIdTimeToLive(long idTimeToLive) {
+        this.idTimeToLive = idTimeToLive;
+    }
+
+    public long getEntityTimeToLive() {
+        return entityTimeToLive;
+    }
+
+    /**
+     * Sets how long a cached entity is used before it is reloaded. Expired
+     * entities are returned while they are reloaded in the background, in
+     * batches, or reloaded before they are returned if there is no executor.
+     * 
+     * @param entityTimeToLive
+     *            the time in milliseconds, or -1 to never expire the entities.
+     */
+    public void setEntityTimeToLive(long entityTimeToLive) {
+        this.entityTimeToLive = entityTimeToLive;
+        if (entityTimeToLive < 0) {
+            entityLoadedAt = null;
+        } else if (entityLoadedAt == null) {
+            entityLoadedAt = new ConcurrentHashMap<Object, Long>();
+        }
+    }
+
+    /**
+     * Returns whether a value loaded at <code>loadedAt</code> (as given by
+     * {@link System#nanoTime()}) has outlived <code>timeToLive</code>
+     * milliseconds.
+     */
+    static boolean isExpired(long loadedAt, long timeToLive) {
+        return timeToLive > -1
+                && System.nanoTime() - loadedAt > timeToLive * 1000000L;
+    }
+
+    /**
+     * Converts a time to live in milliseconds to the max age of the values of
+     * a {@link SharedCacheRegion}, in nanoseconds.
+     */
+    private static long toMaxAge(long timeToLive) {
+        return timeToLive < 0 ? -1 : timeToLive * 1000000L;
+    }
+
+    /**
+     * Runs <code>task</code> with an entity manager of its own, either the
+     * one that the {@link EntityManagerProvider} of the provider returns on
+     * the current thread, or if that is <code>callerEntityManager</code>, a
+     * new one created by its factory.
+     */
+    private void runWithEntityManager(EntityManager callerEntityManager,
+            final Runnable task) throws Exception {
+        EntityManagerProvider emProvider = entityProvider
+                .getEntityManagerProvider();
+        EntityManager em = emProvider == null ? null : emProvider
+                .getEntityManager();
+        boolean created = false;
+        if (em == null || em == callerEntityManager) {
+            em = callerEntityManager.getEntityManagerFactory()
+                    .createEntityManager();
+            created = true;
+        }
+        try {
+            entityProvider.callWithEntityManager(em, new Callable<Void>() {
+                public Void call() {
+                    task.run();
+                    return null;
+                }
+            });
+        } finally {
+            if (created) {
+                em.close();
+            }
+        }
+    }
+
+    /**
+     * Runs <code>refresh</code> with the prefetch executor, using an entity
+     * manager of its own, unless a refresh of <code>key</code> is already
+     * running. A failed refresh is only logged, as the value is reloaded
+     * again when it is next used.
+     * 
+     * @return true if the value is being refreshed, false if there is no
+     *         executor to refresh it with.
+     */
+    private boolean refreshInBackground(final Object key,
+            final Runnable refresh) {
+        Executor executor = prefetchExecutor;
+        final EntityManager entityManager = entityProvider.getEntityManager();
+        if (executor == null || entityManager == null) {
+            return false;
+        }
+        synchronized (refreshes) {
+            if (!refreshes.add(key)) {
+                return true;
+            }
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        runWithEntityManager(entityManager, refresh);
+                    } catch (Exception e) {
+                        Logger.getLogger(CachingSupport.class.getName()).log(
+                                Level.FINE, "Refreshing cached data failed", e);
+                    } finally {
+                        synchronized (refreshes) {
+                            refreshes.remove(key);
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            synchronized (refreshes) {
+                refreshes.remove(key);
+            }
+            return false;
+        }
+    }
 
     /**
-     * A hash map that will remove the oldest items once its size reaches a
-     * specified max size.
+     * Sets the max number of asynchronous prefetches that may run at the same
+     * time. Prefetches beyond that are skipped.
      * 
-     * @author Petter Holmström (Vaadin Ltd)
-     * @since 1.0
+     * @param maxPrefetches
+     *            the max number of prefetches.
      */
-    protected static class CacheMap<K, V> extends HashMap<K, V> {
-
-        private static final long serialVersionUID = 2900939583997256189L;
-        private LinkedList<K> addOrder = new LinkedList<K>();
-        private int maxSize;
+    public void setMaxPrefetches(int maxPrefetches) {
+        this.maxPrefetches = maxPrefetches;
+    }
 
-        public CacheMap(int maxSize) {
-            super(maxSize);
-            this.maxSize = maxSize;
+    /**
+     * Cancels the asynchronous prefetches of <code>container</code> that are
+     * of no use for its lookups in <code>entry</code> sorted by
+     * <code>sortBy</code>, i.e. the ones started before its filter or sort
+     * order changed.
+     */
+    private void cancelPrefetches(EntityContainer<T> container,
+            FilterCacheEntry entry, List<SortBy> sortBy) {
+        synchronized (prefetches) {
+            for (FilterCacheEntry.PrefetchTask task : prefetches) {
+                if (!task.isUsedBy(container, entry, sortBy)) {
+                    task.cancel();
+                }
+            }
         }
+    }
 
-        @Override
-        public synchronized V put(K key, V value) {
-            if (size() == maxSize) {
-                // remove oldest item
-                remove(addOrder.removeFirst());
+    /**
+     * Cancels all the asynchronous prefetches.
+     */
+    private void cancelPrefetches() {
+        if (prefetches != null) {
+            synchronized (prefetches) {
+                for (FilterCacheEntry.PrefetchTask task : prefetches) {
+                    task.cancel();
+                }
             }
-            addOrder.add(key);
-            return super.put(key, value);
         }
     }
 
     /**
-     * A hash set that will remove the oldest items once its size reaches a
-     * specified max size.
+     * Sets the bounds of the number of entity identifiers to fetch at a time.
+     * Within the bounds, the number is adapted to the query latency and the
+     * scrolling, see {@link PrefetchPolicy}.
      * 
-     * @author Petter Holmström (Vaadin Ltd)
-     * @since 1.0
+     * @param minChunkSize
+     *            the minimum number of identifiers to fetch at a time.
+     * @param maxChunkSize
+     *            the maximum number of identifiers to fetch at a time.
+     * @throws IllegalArgumentException
+     *             if <code>minChunkSize</code> is less than 1 or greater than
+     *             <code>maxChunkSize</code>.
      */
-    protected static class CacheSet<V> extends HashSet<V> {
-
-        private static final long serialVersionUID = 2900939583997256189L;
-        private LinkedList<V> addOrder = new LinkedList<V>();
-        private int maxSize;
-
-        public CacheSet(int maxSize) {
-            super(maxSize);
-            this.maxSize = maxSize;
+    public void setChunkSizeBounds(int minChunkSize, int maxChunkSize) {
+        if (minChunkSize < 1 || minChunkSize > maxChunkSize) {
+            throw new IllegalArgumentException("Invalid chunk size bounds: "
+                    + minChunkSize + ", " + maxChunkSize);
         }
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
 
-        @Override
-        public synchronized boolean add(V e) {
-            if (size() == maxSize) {
-                // remove oldest item
-                remove(addOrder.removeFirst());
-            }
-            addOrder.add(e);
-            return super.add(e);
-        }
+    public boolean isSharedCacheEnabled() {
+        return sharedCacheEnabled;
     }
 
     /**
-     * Gets the cache for entity instances. If no cache exists, it will be
-     * created.
+     * Turns the shared cache on or off. When on, entity counts, entity
+     * identifier windows and entities that are missing from this cache are
+     * looked up in the {@link SharedCacheRegion} of the entity class and
+     * entity manager factory before querying the database.
      * 
-     * @return the entity cache (never null).
+     * @param sharedCacheEnabled
+     *            true to use the shared cache, false to only use this cache.
+     * @throws UnsupportedOperationException
+     *             if the shared cache is turned on and the entity class is not
+     *             cloneable, as entities are copied in and out of the shared
+     *             cache.
      */
-    synchronized Map<Object, T> getEntityCache() {
-        if (entityCache == null) {
-            entityCache = new CacheMap<Object, T>(getMaxCacheSize());
+    public void setSharedCacheEnabled(boolean sharedCacheEnabled)
+            throws UnsupportedOperationException {
+        if (sharedCacheEnabled
+                && !Cloneable.class.isAssignableFrom(entityProvider
+                        .getEntityClassMetadata().getMappedClass())) {
+            throw new UnsupportedOperationException(
+                    "Entity class is not cloneable");
         }
-        return entityCache;
+        this.sharedCacheEnabled = sharedCacheEnabled;
+    }
+
+    public boolean isInvalidationHubEnabled() {
+        return invalidationHubEnabled;
     }
 
     /**
-     * Gets the cache for filter results. If no cache exists, it will be
-     * created.
+     * Turns the subscription to the {@link CacheInvalidationHub} on or off.
+     * When on, changes that are not made through the provider of this cache
+     * update the cache the same way as the changes made through the
+     * provider, or drop the affected data if the changed entity is not
+     * known.
      * 
-     * @return the filter cache (never null).
+     * @param invalidationHubEnabled
+     *            true to subscribe to the hub, false to unsubscribe.
      */
-    synchronized Map<Filter, FilterCacheEntry> getFilterCache() {
-        if (filterCache == null) {
-            filterCache = new CacheMap<Filter, FilterCacheEntry>(
-                    MAX_FILTER_CACHE_SIZE);
+    public void setInvalidationHubEnabled(boolean invalidationHubEnabled) {
+        if (invalidationHubEnabled == this.invalidationHubEnabled) {
+            return;
+        }
+        this.invalidationHubEnabled = invalidationHubEnabled;
+        if (invalidationHubEnabled) {
+            CacheInvalidationHub.getInstance().subscribe(this, entityProvider);
+        } else {
+            CacheInvalidationHub.getInstance().unsubscribe(this);
         }
-        return filterCache;
     }
 
     /**
-     * Gets the cache entry for the specified filter. If no cache entry exists,
-     * it will be created.
+     * Returns the shared region to use.
      * 
-     * @param filter
-     *            the filter whose cache entry to fetch (may be null).
-     * @return the filter cache entry (never null).
+     * @return the region, or null if the shared cache is not in use.
      */
-    synchronized FilterCacheEntry getFilterCacheEntry(Filter filter) {
-        if (filter == null) {
-            filter = NULL_FILTER;
+    private SharedCacheRegion<T> getSharedRegion() {
+        QueryModifierDelegate d = entityProvider.getQueryModifierDelegate();
+        if (!isSharedCacheEnabled()
+                || (d != null && !(d instanceof CacheableQueryModifierDelegate))) {
+            // The queries of a provider with such a delegate are its own
+            return null;
         }
-        FilterCacheEntry e = getFilterCache().get(filter);
-        if (e == null) {
-            e = new FilterCacheEntry(filter);
-            getFilterCache().put(filter, e);
+        EntityManager em = entityProvider.getEntityManager();
+        if (em == null) {
+            return null;
         }
-        return e;
+        SharedCacheRegion<T> region = SharedCacheRegion.getRegion(
+                em.getEntityManagerFactory(),
+                entityProvider.getEntityClassMetadata());
+        sharedRegion = region;
+        return region;
     }
 
-    public synchronized void flush() {
-        if (entityCache != null) {
-            entityCache.clear();
+    private int loadEntityCount(final EntityContainer<T> container,
+            final Filter filter) {
+        SharedCacheRegion<T> region = getSharedRegion();
+        if (region == null) {
+            return entityProvider.doGetEntityCount(container, filter);
         }
-        if (filterCache != null) {
-            filterCache.clear();
+        Object scope = getCacheScope(container);
+        CountStrategy<T> strategy = entityProvider.getCountStrategy();
+        if (strategy.getMode() != CountStrategy.Mode.EXACT) {
+            // Counts that are capped or estimated are shared only with the
+            // providers that count the same way
+            scope = Arrays.asList(scope, strategy);
         }
+        return region.getEntityCount(scope, filter,
+                toMaxAge(getCountTimeToLive()), new Callable<Integer>() {
+                    public Integer call() {
+                        return entityProvider.doGetEntityCount(container,
+                                filter);
+                    }
+                });
     }
 
-    public int getMaxCacheSize() {
-        return maxCacheSize;
+    private T loadSharedEntity(final Object entityId) {
+        SharedCacheRegion<T> region = getSharedRegion();
+        if (region == null) {
+            return entityProvider.doGetEntity(entityId);
+        }
+        return region.getEntity(entityId, toMaxAge(getEntityTimeToLive()),
+                new Callable<T>() {
+            public T call() {
+                return entityProvider.doGetEntity(entityId);
+            }
+        });
     }
 
     /**
-     * Check whether caching is possible or not. Caching is not possible if
-     * there is a {@link QueryModifierDelegate}, that modifies the filters
-     * applied to queries, attached to the entity provider.
-     * 
-     * @return true if caching is possible
+     * Fetches the entities identified by <code>entityIds</code>, from the
+     * shared region if possible and otherwise from the database.
      */
-    public boolean isCachingPossible(EntityContainer<T> container) {
-        if (container != null && container.getQueryModifierDelegate() != null) {
-            return false;
+    private Map<Object, T> loadEntities(Collection<Object> entityIds) {
+        SharedCacheRegion<T> region = getSharedRegion();
+        if (region == null) {
+            return entityProvider.doGetEntities(entityIds);
         }
-        QueryModifierDelegate d = entityProvider.getQueryModifierDelegate();
-        if (d != null) {
-            // Try to tell the delegate that filters will be added and pass in
-            // all nulls. If the delegate throws an NPE it most probably
-            // modifies the filters, which means that we cannot reliably cache
-            // anything at this level.
-            try {
-                d.filtersWillBeAdded(null, null, null);
-            } catch (NullPointerException npe) {
-                // The delegate modifies filters
-                return false;
+        int generation = region.getGeneration();
+        Map<Object, T> entities = region.getCachedEntities(entityIds,
+                toMaxAge(getEntityTimeToLive()));
+        if (entities.size() < entityIds.size()) {
+            List<Object> missing = new ArrayList<Object>();
+            for (Object id : entityIds) {
+                if (!entities.containsKey(id)) {
+                    missing.add(id);
+                }
             }
+            Map<Object, T> fetched = entityProvider.doGetEntities(missing);
+            region.putEntities(fetched, generation);
+            entities.putAll(fetched);
         }
-        return true;
+        return entities;
+    }
+
+    public boolean isFrequencyAdmissionEnabled() {
+        return frequencyAdmissionEnabled;
     }
 
     /**
-     * Only returns true if both {@link #isCacheEnabled()} and
-     * {@link #isCachingPossible()} are true.
+     * Turns frequency based admission to the entity cache on or off. When
+     * on, a new entity is only added to a full cache if it has recently been
+     * requested at least as often as the least recently used entity that it
+     * would replace. This method will cause the entity cache to be flushed
+     * and re-created.
      * 
-     * @return true if the caching mechanism is actually used.
+     * @param frequencyAdmissionEnabled
+     *            true to use frequency based admission, false to always cache
+     *            new entities.
      */
-    public boolean usesCache(EntityContainer<T> container) {
-        return isCacheEnabled() && isCachingPossible(container);
+    public synchronized void setFrequencyAdmissionEnabled(
+            boolean frequencyAdmissionEnabled) {
+        this.frequencyAdmissionEnabled = frequencyAdmissionEnabled;
+        entityGeneration.incrementAndGet();
+        entityCache = null;
     }
 
-    public boolean isCacheEnabled() {
-        return cacheEnabled;
+    public long getMaxCacheWeight() {
+        return maxCacheWeight;
     }
 
     /**
-     * Turns the cache on or off.
+     * Sets the memory budget of the caches, which covers the entity cache as
+     * well as the entityId lists and sets of the filter cache. Entities are
+     * weighed with the entity weigher, see
+     * {@link #setEntityWeigher(EntityWeigher)}, and the least recently used
+     * ones are evicted while the budget is exceeded. The entityIds are
+     * weighed by their number, and they are kept within half of the budget
+     * by evicting the least recently used entityId lists and filters. The
+     * max cache size still applies too. This
+     * method will cause any existing caches to be flushed and re-created.
      * 
-     * @param cacheEnabled
-     *            true to turn on the cache, false to turn it off.
+     * @param maxCacheWeight
+     *            the budget in bytes, or -1 for no budget.
      */
-    public void setCacheEnabled(boolean cacheEnabled) {
-        this.cacheEnabled = cacheEnabled;
-        if (!cacheEnabled) {
-            flush();
+    public void setMaxCacheWeight(long maxCacheWeight) {
+        this.maxCacheWeight = maxCacheWeight;
+        setMaxCacheSize(getMaxCacheSize());
+    }
+
+    /**
+     * Returns the budget that the caches are kept within: the smaller of the
+     * max cache weight and the share given by the memory governor.
+     * 
+     * @return the budget in bytes, or -1 for no budget.
+     */
+    long getEffectiveMaxCacheWeight() {
+        long own = getMaxCacheWeight();
+        long governed = governedWeight;
+        if (governed < 0) {
+            return own;
+        }
+        return own < 0 ? governed : Math.min(own, governed);
+    }
+
+    public CacheMemoryGovernor getCacheMemoryGovernor() {
+        return cacheMemoryGovernor;
+    }
+
+    /**
+     * Shares the memory budget of <code>governor</code> with the other
+     * caches that it governs. This method will cause any existing caches to
+     * be flushed and re-created.
+     * 
+     * @param governor
+     *            the governor, or null to only use the max cache weight.
+     */
+    public void setCacheMemoryGovernor(CacheMemoryGovernor governor) {
+        CacheMemoryGovernor previous = cacheMemoryGovernor;
+        if (previous == governor) {
+            return;
+        }
+        cacheMemoryGovernor = governor;
+        governedWeight = -1;
+        if (previous != null) {
+            previous.unregister(this);
+        }
+        if (governor != null) {
+            lastUsedAt = System.nanoTime();
+            governor.register(this);
+        }
+        setMaxCacheSize(getMaxCacheSize());
+    }
+
+    /**
+     * Called by the memory governor to set the share of its budget that this
+     * cache may use. The entity cache evicts entities right away if it is
+     * over the new budget.
+     */
+    void setGovernedWeight(long governedWeight) {
+        this.governedWeight = governedWeight;
+        CacheBudget budget = cacheBudget;
+        Map<Object, T> cache = entityCache;
+        if (budget != null) {
+            budget.setMaxWeight(getEffectiveMaxCacheWeight());
+            if (budget.isExceeded() && cache instanceof StripedCacheMap) {
+                ((StripedCacheMap<Object, T>) cache).trim();
+            }
+        } else if (cache != null) {
+            // Created before the cache was governed, re-create it with a
+            // budget
+            synchronized (this) {
+                entityGeneration.incrementAndGet();
+                entityCache = null;
+            }
+        }
+    }
+
+    long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
+    /**
+     * Returns the estimated weight of the cached entities and entityIds, in
+     * bytes, or 0 if the caches are not weighed.
+     */
+    long getCacheWeight() {
+        CacheBudget budget = cacheBudget;
+        return budget == null ? 0 : budget.getWeight()
+                + budget.getReservedWeight();
+    }
+
+    /**
+     * Returns the weigher of the cached entities: the one that has been set,
+     * or by default one that estimates the shallow size of the entities, see
+     * {@link ShallowEntityWeigher}.
+     */
+    public synchronized EntityWeigher<? super T> getEntityWeigher() {
+        if (entityWeigher == null) {
+            entityWeigher = new ShallowEntityWeigher<T>(
+                    entityProvider.getEntityClassMetadata());
         }
+        return entityWeigher;
+    }
+
+    /**
+     * Sets the weigher of the cached entities, see
+     * {@link #setMaxCacheWeight(long)}. This method will cause the entity
+     * cache to be flushed and re-created.
+     * 
+     * @param entityWeigher
+     *            the weigher, or null to use the default one.
+     */
+    public synchronized void setEntityWeigher(
+            EntityWeigher<? super T> entityWeigher) {
+        this.entityWeigher = entityWeigher;
+        entityGeneration.incrementAndGet();
+        entityCache = null;
     }
 
     /**
@@ -728,14 +4179,23 @@ class CachingSupport<T> implements Serializable {
      */
     public void setMaxCacheSize(int maxSize) {
         this.maxCacheSize = maxSize;
-        entityCache = null;
-        filterCache = null;
+        synchronized (this) {
+            entityGeneration.incrementAndGet();
+            entityCache = null;
+        }
+        filterCacheLock.lock();
+        try {
+            filterCache = null;
+        } finally {
+            filterCacheLock.unlock();
+        }
     }
 
     public boolean containsEntity(EntityContainer<T> container,
             Object entityId, Filter filter) {
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).containsId(container, entityId);
+            return getFilterCacheEntry(container, filter).containsId(container,
+                    entityId);
         } else {
             return entityProvider.doContainsEntity(container, entityId, filter);
         }
@@ -747,24 +4207,31 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getAllIds(container, sortBy);
+            return getFilterCacheEntry(container, filter).getAllIds(container,
+                    sortBy);
         } else {
             return entityProvider.doGetAllEntityIdentifiers(container, filter,
                     sortBy);
         }
     }
 
-    public synchronized T getEntity(EntityContainer<T> container,
-            Object entityId) {
+    public T getEntity(EntityContainer<T> container, final Object entityId) {
         if (usesCache(container)) {
             T entity = getEntityCache().get(entityId);
+            if (entity != null && isEntityExpired(entityId)
+                    && !refreshEntityInBackground(entityId)) {
+                getEntityCache().remove(entityId);
+                entity = null;
+            }
             if (entity == null) {
-                // TODO Should we fetch several entities at once?
-                entity = entityProvider.doGetEntity(entityId);
+                entity = entityLoads.load(entityId, new Callable<T>() {
+                    public T call() {
+                        return loadEntity(entityId);
+                    }
+                });
                 if (entity == null) {
                     return null;
                 }
-                getEntityCache().put(entityId, entity);
             }
             return cloneEntityIfNeeded(entity);
         } else {
@@ -772,6 +4239,172 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    /**
+     * Loads the entity identified by <code>entityId</code> into the entity
+     * cache. Only one thread at a time runs this method for a given entityId.
+     * 
+     * @return the entity, or null if it does not exist.
+     */
+    private T loadEntity(Object entityId) {
+        int generation = entityGeneration.get();
+        // The previous load may have finished after our cache miss
+        T entity = getEntityCache().get(entityId);
+        if (entity == null) {
+            entity = readAhead(entityId, generation);
+        }
+        if (entity == null) {
+            entity = loadSharedEntity(entityId);
+            if (entity != null) {
+                cacheEntity(entityId, entity, generation);
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Puts a loaded entity into the entity cache, unless the cache has been
+     * invalidated after the load was started.
+     * 
+     * @param generation
+     *            the value of {@link #entityGeneration} when the load started.
+     */
+    private void cacheEntity(Object entityId, T entity, int generation) {
+        updateIdWeight();
+        Map<Object, T> cache = getEntityCache();
+        Map<Object, Long> loadedAt = entityLoadedAt;
+        if (loadedAt != null) {
+            loadedAt.put(entityId, System.nanoTime());
+        }
+        cache.put(entityId, entity);
+        if (entityGeneration.get() != generation) {
+            // Invalidated while loading, the entity may be stale. Removing it
+            // after the fact is safe, as the invalidation happened before.
+            cache.remove(entityId);
+        }
+        if (loadedAt != null
+                && loadedAt.size() > Math.max(cache.size() * 2, CHUNK_SIZE)) {
+            // Forget the load times of the entities that have been evicted
+            for (Iterator<Object> it = loadedAt.keySet().iterator(); it
+                    .hasNext();) {
+                if (!cache.containsKey(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the cached entity identified by <code>entityId</code>
+     * has outlived the entity time to live. Entities whose load time is not
+     * known, i.e. that were cached before the time to live was set, have.
+     */
+    private boolean isEntityExpired(Object entityId) {
+        Map<Object, Long> loadedAt = entityLoadedAt;
+        if (loadedAt == null) {
+            return false;
+        }
+        Long at = loadedAt.get(entityId);
+        return at == null || isExpired(at, getEntityTimeToLive());
+    }
+
+    /**
+     * Queues the expired entity identified by <code>entityId</code> to be
+     * reloaded in the background, together with the other expired entities
+     * that are requested in the meantime.
+     * 
+     * @return true if the entity is being reloaded, false if there is no
+     *         executor to reload it with.
+     */
+    private boolean refreshEntityInBackground(Object entityId) {
+        final Set<Object> expired = expiredEntityIds;
+        if (expired == null) {
+            return false;
+        }
+        synchronized (expired) {
+            expired.add(entityId);
+        }
+        if (refreshInBackground(expired, new Runnable() {
+            public void run() {
+                reloadExpiredEntities(expired);
+            }
+        })) {
+            return true;
+        }
+        synchronized (expired) {
+            expired.remove(entityId);
+        }
+        return false;
+    }
+
+    /**
+     * Reloads the entities identified by <code>expired</code> in batches
+     * until there are none left, and removes the ones that no longer exist
+     * from the cache.
+     */
+    private void reloadExpiredEntities(Set<Object> expired) {
+        while (true) {
+            List<Object> ids;
+            synchronized (expired) {
+                if (expired.isEmpty()) {
+                    return;
+                }
+                ids = new ArrayList<Object>(expired);
+                expired.clear();
+            }
+            int generation = entityGeneration.get();
+            Map<Object, T> entities = loadEntities(ids);
+            for (Object id : ids) {
+                T entity = entities.get(id);
+                if (entity != null) {
+                    cacheEntity(id, entity, generation);
+                } else {
+                    getEntityCache().remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * If <code>entityId</code> is the entityId that was most recently looked
+     * up by index, fetches it together with the uncached entities of the
+     * following rows in one go and stores them in the entity cache. The
+     * following rows are most likely to be requested next, e.g. when a table
+     * renders a page.
+     * 
+     * @param entityId
+     *            the entityId of the requested entity.
+     * @param generation
+     *            the value of {@link #entityGeneration} when the load started.
+     * @return the requested entity, or null if nothing was read ahead.
+     */
+    private T readAhead(Object entityId, int generation) {
+        IdPosition position = lastIdPosition;
+        int count = getReadAheadSize();
+        if (getMaxCacheSize() > -1 && count > getMaxCacheSize()) {
+            count = getMaxCacheSize();
+        }
+        if (count < 2 || position == null
+                || !position.entityId.equals(entityId)) {
+            return null;
+        }
+        List<Object> ids = new ArrayList<Object>(count);
+        for (Object id : getFilterCacheEntry(position.scope,
+                position.filter).getCachedIds(position.sortBy, position.index,
+                count)) {
+            if (!getEntityCache().containsKey(id)) {
+                ids.add(id);
+            }
+        }
+        if (ids.size() < 2) {
+            return null;
+        }
+        Map<Object, T> entities = loadEntities(ids);
+        for (Map.Entry<Object, T> e : entities.entrySet()) {
+            cacheEntity(e.getKey(), e.getValue(), generation);
+        }
+        return entities.get(entityId);
+    }
+
     /**
      * Returns a clone of <code>entity</code> if
      * {@link #isCloneCachedEntities() } is true.
@@ -781,23 +4414,35 @@ class CachingSupport<T> implements Serializable {
      *            of {@link Cloneable}).
      * @return the cloned entity.
      */
-    @SuppressWarnings("unchecked")
     protected T cloneEntityIfNeeded(T entity) {
         if (isCloneCachedEntities()) {
-            assert entity instanceof Cloneable : "entity is not cloneable";
-            try {
-                Method m = entity.getClass().getMethod("clone");
-                T copy = (T) m.invoke(entity);
-                return copy;
-            } catch (Exception e) {
-                throw new UnsupportedOperationException(
-                        "Could not clone entity", e);
-            }
+            return cloneEntity(entity);
         } else {
             return entity;
         }
     }
 
+    /**
+     * Returns a clone of <code>entity</code>.
+     * 
+     * @param entity
+     *            the entity to clone (must not be null and must be an instance
+     *            of {@link Cloneable}).
+     * @return the cloned entity.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T cloneEntity(T entity) {
+        assert entity instanceof Cloneable : "entity is not cloneable";
+        try {
+            Method m = entity.getClass().getMethod("clone");
+            T copy = (T) m.invoke(entity);
+            return copy;
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Could not clone entity",
+                    e);
+        }
+    }
+
     public boolean isEntitiesDetached() {
         return usesCache(null) || entityProvider.isEntitiesDetached();
     }
@@ -823,7 +4468,8 @@ class CachingSupport<T> implements Serializable {
 
     public int getEntityCount(EntityContainer<T> container, Filter filter) {
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getEntityCount(container);
+            return getFilterCacheEntry(container, filter).getEntityCount(
+                    container);
         } else {
             return entityProvider.doGetEntityCount(container, filter);
         }
@@ -835,20 +4481,98 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getIdAt(container, sortBy, index);
+            Object entityId = getFilterCacheEntry(container, filter).getIdAt(
+                    container, sortBy, index);
+            if (entityId != null) {
+                lastIdPosition = new IdPosition(getCacheScope(container),
+                        filter, sortBy, index, entityId);
+            }
+            return entityId;
         } else {
             return entityProvider.doGetEntityIdentifierAt(container, filter,
                     sortBy, index);
         }
     }
 
+    public List<Object> getEntityIdentifiers(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int startIndex, int count) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (usesCache(container)) {
+            if (count <= 0) {
+                return Collections.emptyList();
+            }
+            List<Object> ids = getFilterCacheEntry(container, filter).getIdsAt(
+                    container, sortBy, startIndex, count);
+            if (!ids.isEmpty()) {
+                lastIdPosition = new IdPosition(getCacheScope(container),
+                        filter, sortBy, startIndex, ids.get(0));
+            }
+            return Collections.unmodifiableList(ids);
+        } else {
+            return entityProvider.doGetEntityIdentifiers(container, filter,
+                    sortBy, startIndex, count);
+        }
+    }
+
+    public List<T> getEntities(EntityContainer<T> container, Filter filter,
+            List<SortBy> sortBy, int startIndex, int count) {
+        List<Object> ids = getEntityIdentifiers(container, filter, sortBy,
+                startIndex, count);
+        if (usesCache(container)) {
+            return getEntities(ids);
+        } else {
+            return entityProvider.doGetEntitiesInOrder(ids);
+        }
+    }
+
+    /**
+     * Gets the entities identified by <code>entityIds</code> from the entity
+     * cache, fetching all the missing ones with as few queries as possible.
+     * 
+     * @param entityIds
+     *            the identifiers of the entities to fetch (must not be null).
+     * @return an unmodifiable list of the entities that were found, in the
+     *         same order as their identifiers (never null).
+     */
+    protected List<T> getEntities(List<Object> entityIds) {
+        int generation = entityGeneration.get();
+        List<Object> missing = new ArrayList<Object>();
+        for (Object id : entityIds) {
+            if (!getEntityCache().containsKey(id)) {
+                missing.add(id);
+            }
+        }
+        Map<Object, T> fetched = Collections.emptyMap();
+        if (!missing.isEmpty()) {
+            fetched = loadEntities(missing);
+            for (Map.Entry<Object, T> e : fetched.entrySet()) {
+                cacheEntity(e.getKey(), e.getValue(), generation);
+            }
+        }
+        List<T> result = new ArrayList<T>(entityIds.size());
+        for (Object id : entityIds) {
+            // The cache may be smaller than the list
+            T entity = fetched.get(id);
+            if (entity == null) {
+                entity = getEntityCache().get(id);
+            }
+            if (entity != null) {
+                result.add(cloneEntityIfNeeded(entity));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
     public Object getFirstEntityIdentifier(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getFirstId(container, sortBy);
+            return getFilterCacheEntry(container, filter).getFirstId(container,
+                    sortBy);
         } else {
             return entityProvider.doGetFirstEntityIdentifier(container, filter,
                     sortBy);
@@ -861,7 +4585,8 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getLastId(container, sortBy);
+            return getFilterCacheEntry(container, filter).getLastId(container,
+                    sortBy);
         } else {
             return entityProvider.doGetLastEntityIdentifier(container, filter,
                     sortBy);
@@ -874,8 +4599,8 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getNextId(container, entityId,
-                    sortBy);
+            return getFilterCacheEntry(container, filter).getNextId(container,
+                    entityId, sortBy);
         } else {
             return entityProvider.doGetNextEntityIdentifier(container,
                     entityId, filter, sortBy);
@@ -888,8 +4613,8 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getPreviousId(container,
-                    entityId, sortBy);
+            return getFilterCacheEntry(container, filter).getPreviousId(
+                    container, entityId, sortBy);
         } else {
             return entityProvider.doGetPreviousEntityIdentifier(container,
                     entityId, filter, sortBy);
@@ -897,17 +4622,9 @@ class CachingSupport<T> implements Serializable {
     }
 
     public void invalidateSize() {
-        // TODO review synchronization of this whole class
-        Object[] array = filterCache.keySet().toArray();
-        for (Object filter : array) {
-            FilterCacheEntry filterCacheEntry = filterCache.get(filter);
-            if (filterCacheEntry.entityCount != null) {
-                synchronized (filterCacheEntry.entityCount) {
-                    filterCacheEntry.entityCount = null;
-                }
-            }
+        for (FilterCacheEntry filterCacheEntry : getFilterCacheEntries()) {
+            filterCacheEntry.invalidateCount();
         }
-
     }
 
     public void entityRemoved(Object entityId) {
@@ -916,14 +4633,75 @@ class CachingSupport<T> implements Serializable {
     }
 
     /**
-     * Clears the cache.
+     * Updates the cached data affected by a change that was not made through
+     * the provider of this cache, the same way as for changes made through
+     * the provider. If the change does not carry the changed entity, the
+     * data that may be affected is dropped.
+     */
+    @SuppressWarnings("unchecked")
+    public void entityChanged(CacheInvalidationHub.Change change) {
+        Class<T> entityClass = entityProvider.getEntityClassMetadata()
+                .getMappedClass();
+        if (!change.affects(entityClass)) {
+            return;
+        }
+        Object entityId = change.getEntityId();
+        T entity = entityClass.isInstance(change.getEntity()) ? (T) change
+                .getEntity() : null;
+        if (entityId == null) {
+            beginCacheUpdate();
+            try {
+                lastIdPosition = null;
+                entityGeneration.incrementAndGet();
+                Map<Object, T> cache = entityCache;
+                if (cache != null) {
+                    cache.clear();
+                }
+                clearFilterCache();
+            } finally {
+                endCacheUpdate();
+            }
+        } else if (change.getType() == CacheInvalidationHub.ChangeType.REMOVED) {
+            entityRemoved(entityId);
+        } else if (change.getType() == CacheInvalidationHub.ChangeType.UPDATED) {
+            entityUpdated(entityId, entity == null ? null
+                    : getChangedProperties(entityId, entity));
+        } else if (entity != null) {
+            entityAdded(entity, change.getChangedAt());
+        } else {
+            // Any cached filter may match the new entity
+            invalidate(entityId, true);
+        }
+    }
+
+    /**
+     * Clears the cache of this provider. The shared region is left as it is,
+     * see {@link #clearSharedCache()}.
      */
     public void clear() {
-        if (entityCache != null) {
-            entityCache.clear();
+        cancelPrefetches();
+        beginCacheUpdate();
+        try {
+            entityGeneration.incrementAndGet();
+            Map<Object, T> cache = entityCache;
+            if (cache != null) {
+                cache.clear();
+            }
+            clearFilterCache();
+        } finally {
+            endCacheUpdate();
         }
-        if (filterCache != null) {
-            filterCache.clear();
+    }
+
+    /**
+     * Clears the shared region used by this cache, which drops the data
+     * shared by all the providers that use it. Does nothing if the shared
+     * cache is not in use.
+     */
+    public void clearSharedCache() {
+        SharedCacheRegion<T> region = getSharedRegion();
+        if (region != null) {
+            region.clear();
         }
     }
 }
@@ -0,0 +1,460 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
+import com.vaadin.v7.data.Container.Filter;
+import com.vaadin.v7.data.util.filter.AbstractJunctionFilter;
+import com.vaadin.v7.data.util.filter.And;
+import com.vaadin.v7.data.util.filter.Between;
+import com.vaadin.v7.data.util.filter.Compare;
+import com.vaadin.v7.data.util.filter.IsNull;
+import com.vaadin.v7.data.util.filter.Like;
+import com.vaadin.v7.data.util.filter.Not;
+import com.vaadin.v7.data.util.filter.Or;
+import com.vaadin.v7.data.util.filter.SimpleStringFilter;
+
+/**
+ * Evaluates filters and sort orders against entity instances in memory, so
+ * that {@link CachingSupport} can update its caches when entities are added
+ * or changed without querying the database.
+ * <p>
+ * The database has the final say, so the evaluator only gives a definite
+ * answer when it is sure the database would agree. Anything that depends on
+ * the database, such as string collation, the handling of null values or the
+ * ordering of enums, gives {@link Result#UNKNOWN}. This class is internal and
+ * should never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class FilterEvaluator<T> implements Serializable {
+
+    private static final long serialVersionUID = 4309817238140329416L;
+
+    /**
+     * The result of evaluating a filter.
+     */
+    enum Result {
+        MATCH, NO_MATCH, UNKNOWN;
+
+        Result not() {
+            if (this == MATCH) {
+                return NO_MATCH;
+            } else if (this == NO_MATCH) {
+                return MATCH;
+            }
+            return UNKNOWN;
+        }
+
+        static Result valueOf(boolean match) {
+            return match ? MATCH : NO_MATCH;
+        }
+    }
+
+    private final ClassMetadata<T> metadata;
+
+    /**
+     * Creates a new evaluator for entities described by <code>metadata</code>.
+     *
+     * @param metadata
+     *            the entity class metadata (must not be null).
+     */
+    FilterEvaluator(ClassMetadata<T> metadata) {
+        assert metadata != null : "metadata must not be null";
+        this.metadata = metadata;
+    }
+
+    /**
+     * Evaluates <code>filter</code> against <code>entity</code>.
+     *
+     * @param filter
+     *            the filter to evaluate (may be null, which matches
+     *            everything).
+     * @param entity
+     *            the entity (must not be null).
+     * @return whether the entity would be included in a query using the
+     *         filter.
+     */
+    Result evaluate(Filter filter, T entity) {
+        if (filter == null) {
+            return Result.MATCH;
+        } else if (filter instanceof And) {
+            Result result = Result.MATCH;
+            for (Filter f : ((And) filter).getFilters()) {
+                Result r = evaluate(f, entity);
+                if (r == Result.NO_MATCH) {
+                    return r;
+                } else if (r == Result.UNKNOWN) {
+                    result = r;
+                }
+            }
+            return result;
+        } else if (filter instanceof Or) {
+            Result result = Result.NO_MATCH;
+            for (Filter f : ((Or) filter).getFilters()) {
+                Result r = evaluate(f, entity);
+                if (r == Result.MATCH) {
+                    return r;
+                } else if (r == Result.UNKNOWN) {
+                    result = r;
+                }
+            }
+            return result;
+        } else if (filter instanceof Not) {
+            return evaluate(((Not) filter).getFilter(), entity).not();
+        } else if (filter instanceof IsNull) {
+            return evaluateIsNull(((IsNull) filter).getPropertyId(), entity);
+        } else if (filter instanceof Compare) {
+            return evaluateCompare((Compare) filter, entity);
+        } else if (filter instanceof Between) {
+            Between between = (Between) filter;
+            Object value = getValue(entity, between.getPropertyId());
+            Integer low = compare(value, between.getStartValue());
+            Integer high = compare(value, between.getEndValue());
+            if (low == null || high == null) {
+                return Result.UNKNOWN;
+            }
+            return Result.valueOf(low >= 0 && high <= 0);
+        } else if (filter instanceof Like) {
+            Like like = (Like) filter;
+            return evaluateLike(like.getPropertyId(), like.getValue(),
+                    !like.isCaseSensitive(), entity);
+        } else if (filter instanceof SimpleStringFilter) {
+            SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
+            String pattern = stringFilter.getFilterString() + "%";
+            if (!stringFilter.isOnlyMatchPrefix()) {
+                pattern = "%" + pattern;
+            }
+            return evaluateLike(stringFilter.getPropertyId(), pattern,
+                    stringFilter.isIgnoreCase(), entity);
+        }
+        // E.g. JoinFilter, which depends on other entities
+        return Result.UNKNOWN;
+    }
+
+    private Result evaluateIsNull(Object propertyId, T entity) {
+        Object value = getValue(entity, propertyId);
+        if (value == null) {
+            // A null reference on the way makes the row disappear from the
+            // join instead
+            return isNested(propertyId) ? Result.UNKNOWN : Result.MATCH;
+        } else if (value == UNKNOWN_VALUE || value instanceof Collection) {
+            return Result.UNKNOWN;
+        }
+        return Result.NO_MATCH;
+    }
+
+    private Result evaluateCompare(Compare compare, T entity) {
+        if (compare.getOperation() == Compare.Operation.EQUAL) {
+            if (compare.getValue() == null) {
+                return evaluateIsNull(compare.getPropertyId(), entity);
+            }
+            Object value = getValue(entity, compare.getPropertyId());
+            if (value == null || value == UNKNOWN_VALUE) {
+                return Result.UNKNOWN;
+            } else if (value.equals(compare.getValue())) {
+                return Result.MATCH;
+            } else if (value instanceof Enum
+                    && compare.getValue() instanceof Enum
+                    && ((Enum<?>) value).getDeclaringClass() == ((Enum<?>) compare
+                            .getValue()).getDeclaringClass()) {
+                return Result.NO_MATCH;
+            }
+            Integer c = compare(value, compare.getValue());
+            if (c == null) {
+                return Result.UNKNOWN;
+            }
+            return Result.valueOf(c == 0);
+        }
+        Integer c = compare(getValue(entity, compare.getPropertyId()),
+                compare.getValue());
+        if (c == null) {
+            return Result.UNKNOWN;
+        }
+        switch (compare.getOperation()) {
+        case GREATER:
+            return Result.valueOf(c > 0);
+        case GREATER_OR_EQUAL:
+            return Result.valueOf(c >= 0);
+        case LESS:
+            return Result.valueOf(c < 0);
+        case LESS_OR_EQUAL:
+            return Result.valueOf(c <= 0);
+        default:
+            return Result.UNKNOWN;
+        }
+    }
+
+    private Result evaluateLike(Object propertyId, String pattern,
+            boolean ignoreCase, T entity) {
+        Object value = getValue(entity, propertyId);
+        if (!(value instanceof String) || pattern == null) {
+            return Result.UNKNOWN;
+        }
+        String s = (String) value;
+        if (ignoreCase) {
+            s = s.toUpperCase();
+            pattern = pattern.toUpperCase();
+        }
+        if (toRegex(pattern).matcher(s).matches()) {
+            return Result.MATCH;
+        } else if (isAscii(s) && isAscii(pattern)
+                && !toRegex(pattern.toUpperCase(Locale.ENGLISH)).matcher(
+                        s.toUpperCase(Locale.ENGLISH)).matches()) {
+            // Collations only differ in how they compare case and non-ASCII
+            // characters, so not even a case insensitive one would match
+            return Result.NO_MATCH;
+        }
+        // The collation of the database may still consider it a match
+        return Result.UNKNOWN;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Pattern toRegex(String likePattern) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : likePattern.toCharArray()) {
+            if (c == '%' || c == '_') {
+                if (literal.length() > 0) {
+                    sb.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                sb.append(c == '%' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            sb.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(sb.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * Compares the sort key values of two entities.
+     *
+     * @param values1
+     *            the sort key values of the first entity, keyed by property
+     *            ID.
+     * @param values2
+     *            the sort key values of the second entity, keyed by property
+     *            ID.
+     * @param sortBy
+     *            the ordering information, which should end with the primary
+     *            key.
+     * @return a negative number, zero or a positive number if the first
+     *         entity comes before, at the same position as or after the
+     *         second entity, or null if the order cannot be determined in
+     *         memory.
+     */
+    Integer compareSortKeys(Map<Object, Object> values1,
+            Map<Object, Object> values2, List<SortBy> sortBy) {
+        for (SortBy sb : sortBy) {
+            Object v1 = values1.get(sb.getPropertyId());
+            Object v2 = values2.get(sb.getPropertyId());
+            if (v1 != null && v1.equals(v2)) {
+                continue;
+            }
+            Integer c = compare(v1, v2);
+            if (c == null) {
+                return null;
+            } else if (c != 0) {
+                return sb.isAscending() ? c : -c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the values of the properties in <code>sortBy</code> from
+     * <code>entity</code>.
+     *
+     * @return the values keyed by property ID, or null if some of them could
+     *         not be read.
+     */
+    Map<Object, Object> getSortKeyValues(T entity, List<SortBy> sortBy) {
+        Map<Object, Object> values = new HashMap<Object, Object>();
+        for (SortBy sb : sortBy) {
+            Object value = getValue(entity, sb.getPropertyId());
+            if (value == UNKNOWN_VALUE) {
+                return null;
+            }
+            values.put(sb.getPropertyId(), value);
+        }
+        return values;
+    }
+
+    /**
+     * Compares two property values the way the database would.
+     *
+     * @return the result of the comparison, or null if it cannot be decided
+     *         in memory.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static Integer compare(Object value1, Object value2) {
+        if (value1 == null || value2 == null || value1 == UNKNOWN_VALUE
+                || value2 == UNKNOWN_VALUE) {
+            // SQL comparisons with null are never true, and the sort order
+            // of nulls depends on the database
+            return null;
+        }
+        if (value1 instanceof Number && value2 instanceof Number) {
+            BigDecimal d1 = toBigDecimal((Number) value1);
+            BigDecimal d2 = toBigDecimal((Number) value2);
+            if (d1 == null || d2 == null) {
+                return null;
+            }
+            return d1.compareTo(d2);
+        }
+        if (value1 instanceof Date && value2 instanceof Date
+                && value1.getClass() == value2.getClass()) {
+            return ((Comparable) value1).compareTo(value2);
+        }
+        if (value1 instanceof Boolean && value2 instanceof Boolean) {
+            return ((Boolean) value1).compareTo((Boolean) value2);
+        }
+        // Strings depend on the collation, enums on how they are mapped
+        return null;
+    }
+
+    private static BigDecimal toBigDecimal(Number n) {
+        if (n instanceof BigDecimal) {
+            return (BigDecimal) n;
+        } else if (n instanceof BigInteger) {
+            return new BigDecimal((BigInteger) n);
+        } else if (n instanceof Integer || n instanceof Long
+                || n instanceof Short || n instanceof Byte) {
+            return BigDecimal.valueOf(n.longValue());
+        } else if (n instanceof Double || n instanceof Float) {
+            double d = n.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return null;
+            }
+            return new BigDecimal(d);
+        }
+        return null;
+    }
+
+    /**
+     * Returned by {@link #getValue(Object, Object)} if the value could not be
+     * read.
+     */
+    private static final Object UNKNOWN_VALUE = new Object();
+
+    private Object getValue(T entity, Object propertyId) {
+        if (propertyId == null) {
+            return UNKNOWN_VALUE;
+        }
+        try {
+            Object value = metadata.getPropertyValue(entity,
+                    propertyId.toString());
+            if (value == null && isNested(propertyId)) {
+                // Could also be a null reference on the way
+                return UNKNOWN_VALUE;
+            }
+            return value;
+        } catch (RuntimeException e) {
+            return UNKNOWN_VALUE;
+        }
+    }
+
+    private static boolean isNested(Object propertyId) {
+        return propertyId.toString().indexOf('.') != -1;
+    }
+
+    /**
+     * Returns the names of the top level properties that <code>filter</code>
+     * depends on, e.g. <code>address</code> for a filter on
+     * <code>address.street</code>.
+     *
+     * @param filter
+     *            the filter (may be null).
+     * @return a set of property names, or null if the filter contains filters
+     *         whose properties cannot be determined.
+     */
+    static Set<String> getPropertyDependencies(Filter filter) {
+        Set<String> properties = new HashSet<String>();
+        return collectPropertyDependencies(filter, properties) ? properties
+                : null;
+    }
+
+    private static boolean collectPropertyDependencies(Filter filter,
+            Set<String> properties) {
+        if (filter == null) {
+            return true;
+        } else if (filter instanceof And || filter instanceof Or) {
+            for (Filter f : ((AbstractJunctionFilter) filter).getFilters()) {
+                if (!collectPropertyDependencies(f, properties)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (filter instanceof Not) {
+            return collectPropertyDependencies(((Not) filter).getFilter(),
+                    properties);
+        }
+        Object propertyId;
+        if (filter instanceof IsNull) {
+            propertyId = ((IsNull) filter).getPropertyId();
+        } else if (filter instanceof Compare) {
+            propertyId = ((Compare) filter).getPropertyId();
+        } else if (filter instanceof Between) {
+            propertyId = ((Between) filter).getPropertyId();
+        } else if (filter instanceof Like) {
+            propertyId = ((Like) filter).getPropertyId();
+        } else if (filter instanceof SimpleStringFilter) {
+            propertyId = ((SimpleStringFilter) filter).getPropertyId();
+        } else {
+            return false;
+        }
+        if (propertyId == null) {
+            return false;
+        }
+        properties.add(getTopLevelProperty(propertyId));
+        return true;
+    }
+
+    /**
+     * Returns the first part of a possibly nested property name.
+     */
+    static String getTopLevelProperty(Object propertyId) {
+        String name = propertyId.toString();
+        int i = name.indexOf('.');
+        return i == -1 ? name : name.substring(0, i);
+    }
+}
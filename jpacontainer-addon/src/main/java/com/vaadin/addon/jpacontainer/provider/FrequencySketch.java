@@ -0,0 +1,148 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+
+/**
+ * A compact, approximate counter of how often keys have been seen recently,
+ * used by {@link CachingSupport.CacheMap} to decide whether a new key is worth
+ * evicting an old one for (TinyLFU admission).
+ * <p>
+ * The sketch is a count-min sketch with {@link #DEPTH} rows of small
+ * saturating counters, one byte each. The counter of a key in each row is
+ * picked by a hash function of its own, which multiplies a 64-bit hash of
+ * the key by a constant of the row. The estimate of a key is the smallest of
+ * its counters, so hash collisions can only make a key look more frequent than it
+ * is. To let old popularity fade, all the counters are halved once the number
+ * of recorded accesses reaches ten times the cache size. This class is
+ * internal and should never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class FrequencySketch implements Serializable {
+
+    private static final long serialVersionUID = -7062813216548094281L;
+
+    /**
+     * The number of rows, i.e. of counters per key.
+     */
+    static final int DEPTH = 4;
+    /**
+     * The largest value of a counter.
+     */
+    static final int MAX_COUNT = 15;
+    /**
+     * The smallest and largest number of counters in a row.
+     */
+    private static final int MIN_WIDTH = 256;
+    private static final int MAX_WIDTH = 1 << 24;
+    /**
+     * Random odd multipliers, one per row.
+     */
+    private static final long[] ROW_MULTIPLIERS = { 0x5851f42d4c957f2dL,
+            0x14057b7ef767814fL, 0xd1342543de82ef95L, 0x2545f4914f6cdd1dL };
+
+    private final byte[][] rows;
+    private final int widthMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a new sketch for a cache of <code>maximumSize</code> items.
+     *
+     * @param maximumSize
+     *            the maximum size of the cache (must be positive).
+     */
+    FrequencySketch(int maximumSize) {
+        assert maximumSize > 0 : "maximumSize must be positive";
+        // A power of two of at least four counters per item, so that the
+        // counters can be picked by masking. Small caches get a few more to
+        // keep the collisions rare.
+        int width = Integer.highestOneBit(Math.max(
+                Math.min(maximumSize, MAX_WIDTH / 4) * 4, MIN_WIDTH) - 1) << 1;
+        rows = new byte[DEPTH][width];
+        widthMask = width - 1;
+        sampleSize = 10 * maximumSize;
+    }
+
+    /**
+     * Records an access of <code>key</code>.
+     */
+    void increment(Object key) {
+        long hash = hash(key);
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int column = column(hash, row);
+            if (rows[row][column] < MAX_COUNT) {
+                rows[row][column]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent accesses of <code>key</code>,
+     * between 0 and {@link #MAX_COUNT}.
+     */
+    int frequency(Object key) {
+        long hash = hash(key);
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, rows[row][column(hash, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Returns the column of the counter of a key with <code>hash</code> in
+     * <code>row</code>, from the upper bits of the hash multiplied by an odd
+     * constant of its own for each row (multiply-shift hashing).
+     */
+    private int column(long hash, int row) {
+        return (int) ((hash * ROW_MULTIPLIERS[row]) >>> 40) & widthMask;
+    }
+
+    /**
+     * Halves all the counters.
+     */
+    private void age() {
+        for (byte[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    /**
+     * Mixes the hash code of <code>key</code> into 64 bits, using the
+     * finalizer of the 64-bit MurmurHash3, so that keys with similar hash
+     * codes (e.g. consecutive numbers) get unrelated counters.
+     */
+    private static long hash(Object key) {
+        long h = key.hashCode() * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
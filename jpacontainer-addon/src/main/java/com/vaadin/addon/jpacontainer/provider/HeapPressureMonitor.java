@@ -0,0 +1,201 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Notifies the {@link CacheMemoryGovernor}s in the JVM when the heap runs
+ * low, using the usage threshold of the tenured heap pool, i.e. the heap pool
+ * with the largest max size that supports a usage threshold.
+ * <p>
+ * Nothing is monitored until {@link #install()} is called, as it changes the
+ * state of the JVM: unless the application has already set a threshold on
+ * the pool, it is set to {@link #USAGE_THRESHOLD} of the max size, and a
+ * listener is added to the {@link MemoryMXBean}. {@link #uninstall()} removes
+ * the listener and the threshold again, which should be done e.g. when the
+ * web application is stopped so that the listener does not keep its class
+ * loader alive. If the JVM does not allow the monitoring, the governors are
+ * never notified.
+ * <p>
+ * The governors are referenced weakly. This class is internal and should
+ * never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class HeapPressureMonitor implements NotificationListener {
+
+    /**
+     * The share of the max size of the tenured pool above which the heap is
+     * considered to run low.
+     */
+    static final double USAGE_THRESHOLD = 0.85;
+
+    /**
+     * The governors, guarded by the class.
+     */
+    private static final Map<CacheMemoryGovernor, Boolean> governors = new WeakHashMap<CacheMemoryGovernor, Boolean>();
+    private static volatile HeapPressureMonitor installed;
+
+    private final MemoryPoolMXBean tenuredPool;
+    private final boolean thresholdSet;
+
+    private HeapPressureMonitor(MemoryPoolMXBean tenuredPool,
+            boolean thresholdSet) {
+        this.tenuredPool = tenuredPool;
+        this.thresholdSet = thresholdSet;
+    }
+
+    /**
+     * Starts listening for the usage threshold notifications of the tenured
+     * pool, if not already listening.
+     * 
+     * @return true if the heap is monitored, false if the JVM does not allow
+     *         it.
+     */
+    static synchronized boolean install() {
+        if (installed != null) {
+            return true;
+        }
+        MemoryPoolMXBean tenuredPool = null;
+        boolean thresholdSet = false;
+        try {
+            for (MemoryPoolMXBean pool : ManagementFactory
+                    .getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP
+                        && pool.isUsageThresholdSupported()
+                        && pool.getUsage().getMax() > 0
+                        && (tenuredPool == null || pool.getUsage().getMax() > tenuredPool
+                                .getUsage().getMax())) {
+                    tenuredPool = pool;
+                }
+            }
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            if (tenuredPool == null
+                    || !(memory instanceof NotificationEmitter)) {
+                return false;
+            }
+            if (tenuredPool.getUsageThreshold() == 0) {
+                tenuredPool.setUsageThreshold((long) (tenuredPool.getUsage()
+                        .getMax() * USAGE_THRESHOLD));
+                thresholdSet = true;
+            }
+            HeapPressureMonitor monitor = new HeapPressureMonitor(tenuredPool,
+                    thresholdSet);
+            ((NotificationEmitter) memory).addNotificationListener(monitor,
+                    null, null);
+            installed = monitor;
+            return true;
+        } catch (RuntimeException e) {
+            // E.g. a SecurityException, the caches are only governed by
+            // their budgets then
+            if (thresholdSet) {
+                tenuredPool.setUsageThreshold(0);
+            }
+            Logger.getLogger(HeapPressureMonitor.class.getName()).log(
+                    Level.FINE, "Could not monitor the heap usage", e);
+            return false;
+        }
+    }
+
+    /**
+     * Stops listening for the usage threshold notifications, and removes the
+     * threshold if it was set by {@link #install()}.
+     */
+    static synchronized void uninstall() {
+        HeapPressureMonitor monitor = installed;
+        if (monitor == null) {
+            return;
+        }
+        installed = null;
+        try {
+            if (monitor.thresholdSet) {
+                monitor.tenuredPool.setUsageThreshold(0);
+            }
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+                    .removeNotificationListener(monitor);
+        } catch (ListenerNotFoundException e) {
+            // Already removed
+        } catch (RuntimeException e) {
+            Logger.getLogger(HeapPressureMonitor.class.getName()).log(
+                    Level.FINE, "Could not stop monitoring the heap usage", e);
+        }
+    }
+
+    /**
+     * Returns whether the heap is being monitored.
+     */
+    static boolean isInstalled() {
+        return installed != null;
+    }
+
+    static synchronized void addGovernor(CacheMemoryGovernor governor) {
+        governors.put(governor, Boolean.TRUE);
+    }
+
+    /**
+     * Returns the number of governors that have not been garbage collected.
+     */
+    static synchronized int getGovernorCount() {
+        return governors.size();
+    }
+
+    /**
+     * Returns whether the usage of the tenured pool is currently above its
+     * threshold. Always false if the heap is not monitored.
+     */
+    static boolean isUnderPressure() {
+        HeapPressureMonitor monitor = installed;
+        return monitor != null && monitor.tenuredPool.isUsageThresholdExceeded();
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if (!MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED
+                .equals(notification.getType())) {
+            return;
+        }
+        notifyGovernors();
+    }
+
+    /**
+     * Tells the governors that the heap runs low. The governors are notified
+     * without holding the lock of the class.
+     */
+    static void notifyGovernors() {
+        List<CacheMemoryGovernor> notified;
+        synchronized (HeapPressureMonitor.class) {
+            notified = new ArrayList<CacheMemoryGovernor>(governors.keySet());
+        }
+        for (CacheMemoryGovernor governor : notified) {
+            governor.onHeapPressure();
+        }
+    }
+}
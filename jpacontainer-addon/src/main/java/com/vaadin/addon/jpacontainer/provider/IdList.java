@@ -0,0 +1,657 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list of entityIds used by {@link CachingSupport}. Identifiers of type
+ * {@link Long} and {@link Integer} are stored in primitive arrays, which takes
+ * a fraction of the memory of boxed identifiers in an
+ * {@link java.util.ArrayList}. Other identifiers are stored as objects.
+ * <p>
+ * {@link #indexOf(Object)} uses a map from entityId to position that is built
+ * the first time it is needed. The map is kept up to date while chunks of
+ * entityIds are appended or prepended and while the list is trimmed at either
+ * end, so that walking through a list with e.g.
+ * {@link CachingSupport#getNextEntityIdentifier} takes constant time per step.
+ * The positions in the map are relative to a base that moves when the start
+ * of the list changes. Other changes drop the map. Lookups may run
+ * concurrently, e.g. while holding a read lock, but changes must not run
+ * concurrently with anything else.
+ * <p>
+ * This class is internal and should never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+abstract class IdList extends AbstractList<Object> implements RandomAccess,
+        Serializable {
+
+    private static final long serialVersionUID = -4926300226569386911L;
+
+    /**
+     * Lists with at most this many entityIds are searched without a position
+     * map.
+     */
+    static final int MIN_INDEXED_SIZE = 16;
+
+    /**
+     * Creates a list for entityIds of type <code>idType</code>.
+     *
+     * @param idType
+     *            the type of the identifier property.
+     * @param capacity
+     *            the initial capacity.
+     * @return a new, empty list.
+     */
+    static IdList create(Class<?> idType, int capacity) {
+        if (idType == Long.class || idType == Long.TYPE) {
+            return new LongIdList(capacity);
+        } else if (idType == Integer.class || idType == Integer.TYPE) {
+            return new IntIdList(capacity);
+        }
+        return new ObjectIdList(capacity);
+    }
+
+    /**
+     * Creates a list for entityIds of type <code>idType</code> that contains
+     * <code>ids</code>.
+     */
+    static IdList create(Class<?> idType, Collection<?> ids) {
+        IdList list = create(idType, ids.size());
+        list.addAll(ids);
+        return list;
+    }
+
+    /**
+     * A map from entityIds to positions.
+     */
+    interface Positions {
+
+        /**
+         * Returns the position of <code>id</code>, or
+         * {@link Integer#MIN_VALUE} if it has none.
+         */
+        int get(Object id);
+
+        /**
+         * Records the position of <code>id</code> unless it already has one.
+         *
+         * @return false if <code>id</code> already had a position.
+         */
+        boolean putIfAbsent(Object id, int position);
+
+        /**
+         * Removes the position of <code>id</code> if it is
+         * <code>position</code>.
+         *
+         * @return false if <code>id</code> had another or no position.
+         */
+        boolean remove(Object id, int position);
+    }
+
+    protected int size;
+    /**
+     * Maps the entityIds to their index plus {@link #positionBase}, or null
+     * if the map has not been built.
+     */
+    private transient volatile Positions positions;
+    private transient int positionBase;
+    /**
+     * True if the list contained duplicates when the map was built, in which
+     * case only the first position of each entityId is in the map.
+     */
+    private transient boolean duplicates;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object get(int index) {
+        checkIndex(index, size);
+        return getValue(index);
+    }
+
+    @Override
+    public Object set(int index, Object element) {
+        checkIndex(index, size);
+        checkElement(element);
+        Object old = getValue(index);
+        setValue(index, element);
+        positions = null;
+        return old;
+    }
+
+    @Override
+    public void add(int index, Object element) {
+        addAll(index, Arrays.asList(element));
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Object> c) {
+        return addAll(size, c);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends Object> c) {
+        checkIndex(index, size + 1);
+        // A copy, as c may be a view of this list
+        Object[] elements = c.toArray();
+        for (Object element : elements) {
+            checkElement(element);
+        }
+        int count = elements.length;
+        if (count == 0) {
+            return false;
+        }
+        ensureCapacity(size + count);
+        move(index, index + count, size - index);
+        for (int i = 0; i < count; i++) {
+            setValue(index + i, elements[i]);
+        }
+        boolean append = index == size;
+        size += count;
+        modCount++;
+        Positions p = positions;
+        if (p != null) {
+            if (!append && index == 0) {
+                positionBase -= count;
+            }
+            if ((!append && index != 0)
+                    || !addPositions(p, index, index + count)) {
+                positions = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the positions of the entityIds between <code>from</code> and
+     * <code>to</code>.
+     *
+     * @return false if one of them already had a position, which has to be
+     *         handled by rebuilding the map.
+     */
+    private boolean addPositions(Positions p, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!p.putIfAbsent(getValue(i), i + positionBase)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Object remove(int index) {
+        checkIndex(index, size);
+        Object old = getValue(index);
+        removeRange(index, index + 1);
+        return old;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        int count = toIndex - fromIndex;
+        Positions p = positions;
+        if (p != null && !duplicates && (fromIndex == 0 || toIndex == size)
+                && count <= size / 2) {
+            for (int i = fromIndex; i < toIndex && p != null; i++) {
+                if (!p.remove(getValue(i), i + positionBase)) {
+                    p = null;
+                }
+            }
+            if (fromIndex == 0) {
+                positionBase += count;
+            }
+        } else {
+            // Cheaper to rebuild the map for the rest when needed
+            p = null;
+        }
+        move(toIndex, fromIndex, size - toIndex);
+        size -= count;
+        clearFrom(size);
+        modCount++;
+        positions = p;
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, size);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!accepts(o)) {
+            return -1;
+        }
+        if (size <= MIN_INDEXED_SIZE) {
+            for (int i = 0; i < size; i++) {
+                if (valueEquals(i, o)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        Positions p = positions;
+        int base = positionBase;
+        if (p == null) {
+            p = createPositions(size);
+            base = 0;
+            boolean found = false;
+            for (int i = 0; i < size; i++) {
+                // The first position of a duplicate wins
+                found |= !p.putIfAbsent(getValue(i), i);
+            }
+            duplicates = found;
+            positionBase = base;
+            positions = p;
+        }
+        int position = p.get(o);
+        return position == Integer.MIN_VALUE ? -1 : position - base;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) > -1;
+    }
+
+    private void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index
+                    + ", Size: " + size);
+        }
+    }
+
+    private void checkElement(Object element) {
+        if (!accepts(element)) {
+            throw new IllegalArgumentException("Unexpected entityId: "
+                    + element);
+        }
+    }
+
+    /**
+     * Returns whether <code>element</code> can be stored in this list.
+     */
+    protected abstract boolean accepts(Object element);
+
+    /**
+     * Returns whether the entityIds are stored in a primitive array rather
+     * than as objects.
+     */
+    abstract boolean isPrimitive();
+
+    protected abstract Object getValue(int index);
+
+    protected abstract void setValue(int index, Object element);
+
+    protected abstract boolean valueEquals(int index, Object element);
+
+    protected abstract void ensureCapacity(int capacity);
+
+    /**
+     * Moves <code>length</code> values from <code>from</code> to
+     * <code>to</code>, like {@link System#arraycopy}.
+     */
+    protected abstract void move(int from, int to, int length);
+
+    /**
+     * Releases the values from <code>index</code> onwards, if needed.
+     */
+    protected abstract void clearFrom(int index);
+
+    /**
+     * Creates an empty position map for the entityIds of this list.
+     */
+    protected abstract Positions createPositions(int expectedSize);
+
+    static int grow(int capacity, int minCapacity) {
+        int newCapacity = capacity + (capacity >> 1) + 1;
+        return newCapacity < minCapacity ? minCapacity : newCapacity;
+    }
+
+    /**
+     * An open addressing hash map from {@link Long} or {@link Integer}
+     * entityIds to positions.
+     */
+    static final class PrimitivePositions implements Positions {
+        private static final int EMPTY = Integer.MIN_VALUE;
+        private long[] keys;
+        private int[] values;
+        private int count;
+
+        PrimitivePositions(int expectedSize) {
+            int capacity = 16;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, EMPTY);
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; values[i] != EMPTY; i = (i + 1)
+                    & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public int get(Object id) {
+            int slot = find(((Number) id).longValue());
+            return slot < 0 ? EMPTY : values[slot];
+        }
+
+        public boolean putIfAbsent(Object id, int position) {
+            long key = ((Number) id).longValue();
+            if (find(key) > -1) {
+                return false;
+            }
+            if ((count + 1) * 2 > keys.length) {
+                rehash(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (values[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = position;
+            count++;
+            return true;
+        }
+
+        public boolean remove(Object id, int position) {
+            int slot = find(((Number) id).longValue());
+            if (slot < 0 || values[slot] != position) {
+                return false;
+            }
+            // Move the following entries of the probe sequence back, so that
+            // no tombstones are needed
+            int mask = keys.length - 1;
+            int i = slot;
+            int j = slot;
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == EMPTY) {
+                    break;
+                }
+                int home = hash(keys[j]) & mask;
+                boolean stays = i <= j ? (i < home && home <= j)
+                        : (i < home || home <= j);
+                if (!stays) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            values[i] = EMPTY;
+            count--;
+            return true;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, EMPTY);
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != EMPTY) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (values[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * A map from any other entityIds to positions.
+     */
+    static final class ObjectPositions implements Positions {
+        private final Map<Object, Integer> map;
+
+        ObjectPositions(int expectedSize) {
+            map = new HashMap<Object, Integer>(expectedSize * 2);
+        }
+
+        public int get(Object id) {
+            Integer position = map.get(id);
+            return position == null ? Integer.MIN_VALUE : position;
+        }
+
+        public boolean putIfAbsent(Object id, int position) {
+            if (map.containsKey(id)) {
+                return false;
+            }
+            map.put(id, position);
+            return true;
+        }
+
+        public boolean remove(Object id, int position) {
+            Integer old = map.get(id);
+            if (old == null || old.intValue() != position) {
+                return false;
+            }
+            map.remove(id);
+            return true;
+        }
+    }
+
+    /**
+     * A list of {@link Long} entityIds backed by a <code>long[]</code>.
+     */
+    static final class LongIdList extends IdList {
+
+        private static final long serialVersionUID = 4160924525327209512L;
+        private long[] values;
+
+        LongIdList(int capacity) {
+            values = new long[Math.max(capacity, 1)];
+        }
+
+        @Override
+        protected boolean accepts(Object element) {
+            return element instanceof Long;
+        }
+
+        @Override
+        boolean isPrimitive() {
+            return true;
+        }
+
+        @Override
+        protected Object getValue(int index) {
+            return Long.valueOf(values[index]);
+        }
+
+        @Override
+        protected void setValue(int index, Object element) {
+            values[index] = ((Long) element).longValue();
+        }
+
+        @Override
+        protected boolean valueEquals(int index, Object element) {
+            return values[index] == ((Long) element).longValue();
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (capacity > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, capacity));
+            }
+        }
+
+        @Override
+        protected void move(int from, int to, int length) {
+            System.arraycopy(values, from, values, to, length);
+        }
+
+        @Override
+        protected void clearFrom(int index) {
+            // Nothing to release
+        }
+
+        @Override
+        protected Positions createPositions(int expectedSize) {
+            return new PrimitivePositions(expectedSize);
+        }
+    }
+
+    /**
+     * A list of {@link Integer} entityIds backed by an <code>int[]</code>.
+     */
+    static final class IntIdList extends IdList {
+
+        private static final long serialVersionUID = -1398637709226470218L;
+        private int[] values;
+
+        IntIdList(int capacity) {
+            values = new int[Math.max(capacity, 1)];
+        }
+
+        @Override
+        protected boolean accepts(Object element) {
+            return element instanceof Integer;
+        }
+
+        @Override
+        boolean isPrimitive() {
+            return true;
+        }
+
+        @Override
+        protected Object getValue(int index) {
+            return Integer.valueOf(values[index]);
+        }
+
+        @Override
+        protected void setValue(int index, Object element) {
+            values[index] = ((Integer) element).intValue();
+        }
+
+        @Override
+        protected boolean valueEquals(int index, Object element) {
+            return values[index] == ((Integer) element).intValue();
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (capacity > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, capacity));
+            }
+        }
+
+        @Override
+        protected void move(int from, int to, int length) {
+            System.arraycopy(values, from, values, to, length);
+        }
+
+        @Override
+        protected void clearFrom(int index) {
+            // Nothing to release
+        }
+
+        @Override
+        protected Positions createPositions(int expectedSize) {
+            return new PrimitivePositions(expectedSize);
+        }
+    }
+
+    /**
+     * A list of any other entityIds, e.g. strings or embedded identifiers.
+     */
+    static final class ObjectIdList extends IdList {
+
+        private static final long serialVersionUID = 6706785151834468066L;
+        private Object[] values;
+
+        ObjectIdList(int capacity) {
+            values = new Object[Math.max(capacity, 1)];
+        }
+
+        @Override
+        protected boolean accepts(Object element) {
+            return element != null;
+        }
+
+        @Override
+        boolean isPrimitive() {
+            return false;
+        }
+
+        @Override
+        protected Object getValue(int index) {
+            return values[index];
+        }
+
+        @Override
+        protected void setValue(int index, Object element) {
+            values[index] = element;
+        }
+
+        @Override
+        protected boolean valueEquals(int index, Object element) {
+            return element.equals(values[index]);
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (capacity > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, capacity));
+            }
+        }
+
+        @Override
+        protected void move(int from, int to, int length) {
+            System.arraycopy(values, from, values, to, length);
+        }
+
+        @Override
+        protected void clearFrom(int index) {
+            Arrays.fill(values, index, values.length, null);
+        }
+
+        @Override
+        protected Positions createPositions(int expectedSize) {
+            return new ObjectPositions(expectedSize);
+        }
+    }
+}
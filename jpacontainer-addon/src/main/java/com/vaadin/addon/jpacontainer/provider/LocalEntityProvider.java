@@ -20,13 +20,18 @@ import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import javax.persistence.Basic;
+import javax.persistence.Column;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
+import javax.persistence.Id;
 import javax.persistence.TransactionRequiredException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
@@ -38,16 +43,23 @@ import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import com.vaadin.addon.jpacontainer.CacheableQueryModifierDelegate;
+import com.vaadin.addon.jpacontainer.CountStrategy;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityManagerProvider;
-import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EstimatingEntityProvider;
 import com.vaadin.addon.jpacontainer.LazyLoadingDelegate;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
+import com.vaadin.addon.jpacontainer.RangedEntityProvider;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.filter.util.AdvancedFilterableSupport;
 import com.vaadin.addon.jpacontainer.filter.util.FilterConverter;
+import com.vaadin.addon.jpacontainer.filter.util.FilterNormalizer;
+import com.vaadin.addon.jpacontainer.filter.util.QueryParameters;
 import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
 import com.vaadin.addon.jpacontainer.util.CollectionUtil;
 import com.vaadin.v7.data.Container.Filter;
@@ -83,13 +95,23 @@ import com.vaadin.v7.data.util.filter.Or;
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
-public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
+public class LocalEntityProvider<T> implements EstimatingEntityProvider<T>,
+        RangedEntityProvider<T>, Serializable {
 
     private static final long serialVersionUID = 1601796410565144708L;
     private transient EntityManager entityManager;
     private EntityClassMetadata<T> entityClassMetadata;
     private boolean entitiesDetached = true;
     private EntityManagerProvider entityManagerProvider = null;
+    private boolean queryParametersEnabled = false;
+    private transient QueryTemplateCache queryTemplateCache;
+    private CountStrategy<T> countStrategy = CountStrategy.exact();
+    /**
+     * The entity managers to use on other threads than the ones this provider
+     * is normally used from, see
+     * {@link #callWithEntityManager(EntityManager, Callable)}.
+     */
+    private transient volatile ThreadLocal<EntityManager> threadEntityManager;
 
     /**
      * Creates a new <code>LocalEntityProvider</code>.
@@ -156,6 +178,10 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         if (serializableEntityManager != null) {
             this.entityManager = (EntityManager) serializableEntityManager;
         }
+        if (countStrategy == null) {
+            // Serialized before count strategies were introduced
+            countStrategy = CountStrategy.exact();
+        }
         return this;
     }
 
@@ -191,6 +217,9 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     public void setEntityManager(EntityManager entityManager) {
         this.entityManager = entityManager;
+        if (queryTemplateCache != null) {
+            queryTemplateCache.clear();
+        }
     }
 
     /**
@@ -209,12 +238,55 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      * @return the entity manager.
      */
     public EntityManager getEntityManager() {
+        ThreadLocal<EntityManager> local = threadEntityManager;
+        if (local != null && local.get() != null) {
+            return local.get();
+        }
         if (entityManager != null) {
             return entityManager;
         }
         return entityManagerProvider.getEntityManager();
     }
 
+    /**
+     * Calls <code>task</code> so that this provider uses
+     * <code>entityManager</code> for everything the current thread does
+     * during the call, e.g. to run queries on a background thread without
+     * touching the entity manager of the thread that normally uses this
+     * provider.
+     * 
+     * @param entityManager
+     *            the entity manager to use (must not be null).
+     * @param task
+     *            the task to call.
+     * @return the result of the task.
+     */
+    <V> V callWithEntityManager(EntityManager entityManager, Callable<V> task)
+            throws Exception {
+        assert entityManager != null : "entityManager must not be null";
+        ThreadLocal<EntityManager> local = threadEntityManager;
+        if (local == null) {
+            synchronized (this) {
+                local = threadEntityManager;
+                if (local == null) {
+                    local = new ThreadLocal<EntityManager>();
+                    threadEntityManager = local;
+                }
+            }
+        }
+        EntityManager previous = local.get();
+        local.set(entityManager);
+        try {
+            return task.call();
+        } finally {
+            if (previous == null) {
+                local.remove();
+            } else {
+                local.set(previous);
+            }
+        }
+    }
+
     /**
      * Gets the entity manager.
      * 
@@ -376,15 +448,27 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         assert fieldsToSelect != null : "fieldsToSelect must not be null";
         assert sortBy == null || !sortBy.isEmpty() : "sortBy must be either null or non-empty";
 
+        filter = FilterNormalizer.normalize(filter);
+        List<Object> values = new ArrayList<Object>();
+        Object templateKey = getQueryTemplateKey(container, "select", filter,
+                values, fieldsToSelect, sortBy, swapSortOrder);
+        TypedQuery<Object> cached = createQueryFromTemplate(templateKey,
+                values);
+        if (cached != null) {
+            return cached;
+        }
+
         CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
         CriteriaQuery<Object> query = cb.createQuery();
         Root<T> root = query.from(entityClassMetadata.getMappedClass());
+        QueryParameters parameters = createQueryParameters();
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
         List<Predicate> predicates = new ArrayList<Predicate>();
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -416,7 +500,10 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
                     fieldsToSelect.get(0)));
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
-        return doGetEntityManager().createQuery(query);
+        TypedQuery<Object> tq = doGetEntityManager().createQuery(query);
+        applyQueryParameters(parameters, tq);
+        putQueryTemplate(templateKey, query, parameters);
+        return tq;
     }
 
     protected boolean doContainsEntity(EntityContainer<T> container,
@@ -425,17 +512,33 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         String entityIdPropertyName = getEntityClassMetadata()
                 .getIdentifierProperty().getName();
 
+        filter = FilterNormalizer.normalize(filter);
+        List<Object> values = new ArrayList<Object>();
+        Object templateKey = null;
+        if (QueryParameters.isBindable(entityId)) {
+            values.add(entityId);
+            templateKey = getQueryTemplateKey(container, "contains", filter,
+                    values, entityId.getClass());
+        }
+        TypedQuery<Long> cached = createQueryFromTemplate(templateKey, values);
+        if (cached != null) {
+            return cached.getSingleResult() == 1;
+        }
+
         CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
         CriteriaQuery<Long> query = cb.createQuery(Long.class);
         Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
+        QueryParameters parameters = createQueryParameters();
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
         List<Predicate> predicates = new ArrayList<Predicate>();
         predicates.add(cb.equal(root.get(entityIdPropertyName),
-                cb.literal(entityId)));
+                parameters == null ? cb.literal(entityId) : parameters.bind(
+                        cb, entityId)));
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -460,6 +563,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
         TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
+        applyQueryParameters(parameters, tq);
+        putQueryTemplate(templateKey, query, parameters);
         return tq.getSingleResult() == 1;
     }
 
@@ -479,6 +584,56 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntity(entityId);
     }
 
+    /**
+     * The maximum number of identifiers to put into the IN list of a single
+     * query in {@link #doGetEntities(Collection)}. Some databases limit the
+     * length of IN lists (e.g. Oracle to 1000 items).
+     */
+    protected static final int MAX_IN_LIST_SIZE = 500;
+
+    /**
+     * Fetches several entities at once, using as few queries as possible.
+     * Entities that are not found are left out of the result.
+     * 
+     * @param entityIds
+     *            the identifiers of the entities to fetch (must not be null).
+     * @return a map of the fetched entities, keyed by their identifiers (never
+     *         null).
+     */
+    protected Map<Object, T> doGetEntities(Collection<?> entityIds) {
+        assert entityIds != null : "entityIds must not be null";
+        Map<Object, T> result = new HashMap<Object, T>();
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            // IN does not work with embedded identifiers
+            for (Object entityId : entityIds) {
+                T entity = doGetEntity(entityId);
+                if (entity != null) {
+                    result.put(entityId, entity);
+                }
+            }
+            return result;
+        }
+        List<Object> ids = new ArrayList<Object>(entityIds);
+        for (int i = 0; i < ids.size(); i += MAX_IN_LIST_SIZE) {
+            List<Object> batch = ids.subList(i,
+                    Math.min(i + MAX_IN_LIST_SIZE, ids.size()));
+            CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+            CriteriaQuery<T> query = cb.createQuery(getEntityClassMetadata()
+                    .getMappedClass());
+            Root<T> root = query.from(getEntityClassMetadata()
+                    .getMappedClass());
+            query.select(root);
+            query.where(root.get(
+                    getEntityClassMetadata().getIdentifierProperty().getName())
+                    .in(batch));
+            for (T entity : doGetEntityManager().createQuery(query)
+                    .getResultList()) {
+                result.put(getIdentifier(entity), detachEntity(entity));
+            }
+        }
+        return result;
+    }
+
     protected Object doGetEntityIdentifierAt(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy, int index) {
         if (sortBy == null) {
@@ -503,19 +658,132 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntityIdentifierAt(container, filter, sortBy, index);
     }
 
+    protected List<Object> doGetEntityIdentifiers(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        TypedQuery<Object> query = createFilteredQuery(container,
+                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
+                        .getName()), filter, addPrimaryKeyToSortList(sortBy),
+                false);
+        query.setFirstResult(startIndex);
+        query.setMaxResults(count);
+        return Collections.unmodifiableList(query.getResultList());
+    }
+
+    public List<Object> getEntityIdentifiers(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int startIndex, int count) {
+        return doGetEntityIdentifiers(container, filter, sortBy, startIndex,
+                count);
+    }
+
+    /**
+     * Returns the entities identified by <code>entityIds</code>, in the same
+     * order.
+     * 
+     * @see #doGetEntities(Collection)
+     * @param entityIds
+     *            the identifiers of the entities to fetch (must not be null).
+     * @return an unmodifiable list of the entities that were found (never
+     *         null).
+     */
+    protected List<T> doGetEntitiesInOrder(List<Object> entityIds) {
+        Map<Object, T> entities = doGetEntities(entityIds);
+        List<T> result = new ArrayList<T>(entityIds.size());
+        for (Object entityId : entityIds) {
+            T entity = entities.get(entityId);
+            if (entity != null) {
+                result.add(entity);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public List<T> getEntities(EntityContainer<T> container, Filter filter,
+            List<SortBy> sortBy, int startIndex, int count) {
+        return doGetEntitiesInOrder(getEntityIdentifiers(container, filter,
+                sortBy, startIndex, count));
+    }
+
+    /**
+     * Counts the entities that match <code>filter</code> with the
+     * {@link #getCountStrategy() count strategy} of this provider.
+     * 
+     * @see #doGetExactEntityCount(EntityContainer, Filter)
+     * @see #doGetCappedEntityCount(EntityContainer, Filter, int)
+     */
     protected int doGetEntityCount(EntityContainer<T> container, Filter filter) {
+        CountStrategy<T> strategy = countStrategy;
+        switch (strategy.getMode()) {
+        case CAPPED:
+            return doGetCappedEntityCount(container, filter,
+                    strategy.getLimit());
+        case ESTIMATED:
+            int estimate = strategy.getEstimator().estimateEntityCount(
+                    container, filter);
+            if (estimate > -1) {
+                return estimate;
+            }
+            return doGetExactEntityCount(container, filter);
+        default:
+            return doGetExactEntityCount(container, filter);
+        }
+    }
+
+    /**
+     * Counts the entities that match <code>filter</code>, but at most
+     * <code>limit</code> of them. As JPA cannot limit the rows that an
+     * aggregate counts, the entityIds are selected unsorted and limited to
+     * <code>limit</code> rows instead, which lets the database stop scanning
+     * once enough rows have been found.
+     * 
+     * @param limit
+     *            the max number of entities to count.
+     * @return the number of matches, or <code>limit</code> if there are at
+     *         least as many.
+     */
+    protected int doGetCappedEntityCount(EntityContainer<T> container,
+            Filter filter, int limit) {
+        TypedQuery<Object> query = createUnsortedFilteredQuery(container,
+                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
+                        .getName()), filter);
+        query.setMaxResults(limit);
+        return query.getResultList().size();
+    }
+
+    /**
+     * Counts all the entities that match <code>filter</code>.
+     */
+    protected int doGetExactEntityCount(EntityContainer<T> container,
+            Filter filter) {
         String entityIdPropertyName = getEntityClassMetadata()
                 .getIdentifierProperty().getName();
 
+        filter = FilterNormalizer.normalize(filter);
+        List<Object> values = new ArrayList<Object>();
+        Object templateKey = getQueryTemplateKey(container, "count", filter,
+                values);
+        TypedQuery<Long> cached = createQueryFromTemplate(templateKey, values);
+        if (cached != null) {
+            return cached.getSingleResult().intValue();
+        }
+
         CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
         CriteriaQuery<Long> query = cb.createQuery(Long.class);
         Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
+        QueryParameters parameters = createQueryParameters();
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
         List<Predicate> predicates = new ArrayList<Predicate>();
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -540,6 +808,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
         TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
+        applyQueryParameters(parameters, tq);
+        putQueryTemplate(templateKey, query, parameters);
         return tq.getSingleResult().intValue();
     }
 
@@ -664,59 +934,185 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             List<SortBy> sortBy, boolean backwards) {
         assert entityId != null : "entityId must not be null";
         assert sortBy != null : "sortBy must not be null";
-        Filter limitingFilter;
         sortBy = addPrimaryKeyToSortList(sortBy);
+        Map<Object, Object> keyValues;
         if (sortBy.size() == 1) {
             // The list is sorted by primary key
-            if (backwards) {
-                limitingFilter = new Less(getEntityClassMetadata()
-                        .getIdentifierProperty().getName(), entityId);
-            } else {
-                limitingFilter = new Greater(getEntityClassMetadata()
-                        .getIdentifierProperty().getName(), entityId);
-            }
+            keyValues = Collections.singletonMap(sortBy.get(0)
+                    .getPropertyId(), entityId);
         } else {
             // We have to fetch the values of the sorted fields
-            T currentEntity = getEntity(container, entityId);
-            if (currentEntity == null) {
+            keyValues = getSortKeyValues(container, entityId, sortBy);
+            if (keyValues == null) {
                 throw new EntityNotFoundException(
                         "No entity found with the ID " + entityId);
             }
-            // Collect the values into a map for easy access
-            Map<Object, Object> filterValues = new HashMap<Object, Object>();
-            for (SortBy sb : sortBy) {
-                filterValues.put(
-                        sb.getPropertyId(),
-                        getEntityClassMetadata().getPropertyValue(
-                                currentEntity, sb.getPropertyId().toString()));
+        }
+        return createKeysetQuery(container, filter, sortBy, keyValues,
+                backwards);
+    }
+
+    /**
+     * Gets the values of the properties in <code>sortBy</code> for the entity
+     * identified by <code>entityId</code>. Together, these values form the
+     * sort key of the entity, i.e. its position in a list sorted by
+     * <code>sortBy</code>.
+     * 
+     * @param entityId
+     *            the identifier of the entity (must not be null).
+     * @param sortBy
+     *            the sort order, including the primary key (must not be null).
+     * @return a map of property IDs and values, or null if the entity could
+     *         not be found.
+     */
+    protected Map<Object, Object> getSortKeyValues(
+            EntityContainer<T> container, Object entityId, List<SortBy> sortBy) {
+        assert entityId != null : "entityId must not be null";
+        assert sortBy != null : "sortBy must not be null";
+        T currentEntity = getEntity(container, entityId);
+        if (currentEntity == null) {
+            return null;
+        }
+        // Collect the values into a map for easy access
+        Map<Object, Object> keyValues = new HashMap<Object, Object>();
+        for (SortBy sb : sortBy) {
+            keyValues.put(
+                    sb.getPropertyId(),
+                    getEntityClassMetadata().getPropertyValue(currentEntity,
+                            sb.getPropertyId().toString()));
+        }
+        return keyValues;
+    }
+
+    /**
+     * Checks whether a list sorted by <code>sortBy</code> can be paged with
+     * keyset queries. This is only the case if none of the sort properties
+     * can be null: depending on the database, null values are sorted first or
+     * last, and the filter created by
+     * {@link #createKeysetFilter(List, Map, boolean)} would skip the rows
+     * that have them. The identifier, properties of a primitive type and
+     * properties mapped with <code>nullable = false</code> or
+     * <code>optional = false</code> cannot be null. Nested properties are
+     * considered nullable.
+     * 
+     * @param sortBy
+     *            the sort order, including the primary key (must not be null).
+     * @return true if keyset queries can be used, false if the list must be
+     *         paged with offsets.
+     * @since 4.0.1
+     */
+    protected boolean isKeysetPagingSupported(List<SortBy> sortBy) {
+        for (SortBy sb : sortBy) {
+            if (isNullable(sb.getPropertyId().toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isNullable(String propertyName) {
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        if (metadata.hasIdentifierProperty()) {
+            String idName = metadata.getIdentifierProperty().getName();
+            if (propertyName.equals(idName)
+                    || (metadata.hasEmbeddedIdentifier() && propertyName
+                            .startsWith(idName + "."))) {
+                return false;
             }
-            // Now we can build a filter that limits the query to the entities
-            // below entityId
-            List<Filter> orFilters = new ArrayList<Filter>();
-            for (int i = sortBy.size() - 1; i >= 0; i--) {
-                // TODO Document this code snippet once it works
-                // TODO What happens with null values?
-                List<Filter> caseFilters = new ArrayList<Filter>();
-                SortBy sb;
-                for (int j = 0; j < i; j++) {
-                    sb = sortBy.get(j);
-                    caseFilters.add(new Equal(sb.getPropertyId(), filterValues
-                            .get(sb.getPropertyId())));
-                }
-                sb = sortBy.get(i);
-                if (sb.isAscending() ^ backwards) {
-                    caseFilters.add(new Greater(sb.getPropertyId(),
-                            filterValues.get(sb.getPropertyId())));
-                } else {
-                    caseFilters.add(new Less(sb.getPropertyId(), filterValues
-                            .get(sb.getPropertyId())));
-                }
-                orFilters.add(new And(CollectionUtil.toArray(Filter.class,
-                        caseFilters)));
+        }
+        PropertyMetadata p = metadata.getProperty(propertyName);
+        if (!(p instanceof PersistentPropertyMetadata)) {
+            // Nested or unknown
+            return true;
+        } else if (((PersistentPropertyMetadata) p).isPrimitive()
+                || p.getAnnotation(Id.class) != null) {
+            return false;
+        }
+        Column column = p.getAnnotation(Column.class);
+        if (column != null && !column.nullable()) {
+            return false;
+        }
+        Basic basic = p.getAnnotation(Basic.class);
+        return basic == null || basic.optional();
+    }
+
+    /**
+     * Creates a filter that limits a list sorted by <code>sortBy</code> to the
+     * entities that come after (or before, if <code>backwards</code> is true)
+     * the position described by <code>keyValues</code>.
+     * 
+     * @param sortBy
+     *            the sort order, including the primary key (must not be null).
+     * @param keyValues
+     *            the sort key values, as returned by
+     *            {@link #getSortKeyValues(EntityContainer, Object, List)}
+     *            (must not be null).
+     * @param backwards
+     *            true to limit the list to the entities before the position,
+     *            false to limit it to the entities after the position.
+     * @return the limiting filter (never null).
+     */
+    protected Filter createKeysetFilter(List<SortBy> sortBy,
+            Map<Object, Object> keyValues, boolean backwards) {
+        if (sortBy.size() == 1) {
+            SortBy sb = sortBy.get(0);
+            if (sb.isAscending() ^ backwards) {
+                return new Greater(sb.getPropertyId(), keyValues.get(sb
+                        .getPropertyId()));
+            } else {
+                return new Less(sb.getPropertyId(), keyValues.get(sb
+                        .getPropertyId()));
             }
-            limitingFilter = new Or(CollectionUtil.toArray(Filter.class,
-                    orFilters));
         }
+        // Now we can build a filter that limits the query to the entities
+        // below entityId
+        List<Filter> orFilters = new ArrayList<Filter>();
+        for (int i = sortBy.size() - 1; i >= 0; i--) {
+            // TODO Document this code snippet once it works
+            // TODO What happens with null values?
+            List<Filter> caseFilters = new ArrayList<Filter>();
+            SortBy sb;
+            for (int j = 0; j < i; j++) {
+                sb = sortBy.get(j);
+                caseFilters.add(new Equal(sb.getPropertyId(), keyValues.get(sb
+                        .getPropertyId())));
+            }
+            sb = sortBy.get(i);
+            if (sb.isAscending() ^ backwards) {
+                caseFilters.add(new Greater(sb.getPropertyId(), keyValues
+                        .get(sb.getPropertyId())));
+            } else {
+                caseFilters.add(new Less(sb.getPropertyId(), keyValues.get(sb
+                        .getPropertyId())));
+            }
+            orFilters.add(new And(CollectionUtil.toArray(Filter.class,
+                    caseFilters)));
+        }
+        return new Or(CollectionUtil.toArray(Filter.class, orFilters));
+    }
+
+    /**
+     * Creates a query that fetches the identifiers of the entities that come
+     * after (or before, if <code>backwards</code> is true) the position
+     * described by <code>keyValues</code>, i.e. a "seek" query that does not
+     * need an offset to find its starting point.
+     * 
+     * @param filter
+     *            an optional filter to limit the entities (may be null).
+     * @param sortBy
+     *            the sort order, including the primary key (must not be null).
+     * @param keyValues
+     *            the sort key values to start from (must not be null).
+     * @param backwards
+     *            true to fetch the entities before the position in reverse
+     *            order, false to fetch the entities after the position.
+     * @return the query (never null).
+     */
+    protected TypedQuery<Object> createKeysetQuery(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            Map<Object, Object> keyValues, boolean backwards) {
+        Filter limitingFilter = createKeysetFilter(sortBy, keyValues,
+                backwards);
         // Now, we can create the query
         Filter queryFilter;
         if (filter == null) {
@@ -787,6 +1183,125 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         this.entitiesDetached = detached;
     }
 
+    /**
+     * Returns whether filter values and entity identifiers are bound to the
+     * queries as parameters.
+     * 
+     * @see #setQueryParametersEnabled(boolean)
+     * @return true if parameters are used, false if literals are used.
+     */
+    public boolean isQueryParametersEnabled() {
+        return queryParametersEnabled;
+    }
+
+    /**
+     * Turns query parameters on or off. By default, filter values and entity
+     * identifiers are embedded in the queries as literals, which means that
+     * every distinct filter value produces distinct SQL. With query parameters
+     * on, the values are bound as parameters instead, allowing the JDBC
+     * driver, the database and the JPA provider to reuse prepared statements
+     * and query plans.
+     * <p>
+     * Values that are neither basic types nor enums (e.g. entities used in
+     * {@link com.vaadin.v7.data.util.filter.Compare.Equal} filters) are still
+     * embedded as literals.
+     * 
+     * @param queryParametersEnabled
+     *            true to bind values as parameters, false to use literals.
+     */
+    public void setQueryParametersEnabled(boolean queryParametersEnabled) {
+        this.queryParametersEnabled = queryParametersEnabled;
+    }
+
+    /**
+     * Creates the {@link QueryParameters} to bind the values of a query being
+     * built to.
+     * 
+     * @return the parameters, or null if literals should be used.
+     */
+    protected QueryParameters createQueryParameters() {
+        return isQueryParametersEnabled() ? new QueryParameters() : null;
+    }
+
+    private void applyQueryParameters(QueryParameters parameters,
+            TypedQuery<?> query) {
+        if (parameters != null) {
+            parameters.applyTo(query);
+        }
+    }
+
+    /**
+     * Creates the key under which a query is stored in the query template
+     * cache. Templates are only used when query parameters are enabled and
+     * every {@link QueryModifierDelegate} in use is a
+     * {@link CacheableQueryModifierDelegate}, since other delegates may alter
+     * the query in ways that are not reflected in the key.
+     * 
+     * @param kind
+     *            the kind of query being built.
+     * @param filter
+     *            the filter to apply, or null if no filters should be applied.
+     * @param values
+     *            the list to add the filter values to, in the order they are
+     *            bound to the query.
+     * @param keyComponents
+     *            any other information that affects the structure of the
+     *            query.
+     * @return the key, or null if the query should not be cached.
+     */
+    private Object getQueryTemplateKey(EntityContainer<T> container,
+            String kind, Filter filter, List<Object> values,
+            Object... keyComponents) {
+        QueryModifierDelegate containerDelegate = container == null ? null
+                : container.getQueryModifierDelegate();
+        if (!isQueryParametersEnabled()
+                || (queryModifierDelegate != null && !(queryModifierDelegate instanceof CacheableQueryModifierDelegate))
+                || (containerDelegate != null && !(containerDelegate instanceof CacheableQueryModifierDelegate))) {
+            return null;
+        }
+        List<Object> key = new ArrayList<Object>(keyComponents.length + 3);
+        key.add(kind);
+        key.add(CachingSupport.getCacheScope(queryModifierDelegate,
+                containerDelegate));
+        if (filter != null) {
+            try {
+                key.add(FilterConverter.getParameterizedShape(filter, values));
+            } catch (IllegalStateException e) {
+                // Not a filter we know how to convert
+                return null;
+            }
+        } else {
+            key.add(null);
+        }
+        for (Object component : keyComponents) {
+            // Copy lists, as the caller may change them later
+            key.add(component instanceof List ? new ArrayList<Object>(
+                    (List<?>) component) : component);
+        }
+        return key;
+    }
+
+    private <X> TypedQuery<X> createQueryFromTemplate(Object templateKey,
+            List<Object> values) {
+        if (templateKey == null || queryTemplateCache == null) {
+            return null;
+        }
+        return queryTemplateCache.createQuery(doGetEntityManager(),
+                templateKey, values);
+    }
+
+    private void putQueryTemplate(Object templateKey, CriteriaQuery<?> query,
+            QueryParameters parameters) {
+        if (templateKey == null) {
+            return;
+        }
+        if (queryTemplateCache == null) {
+            queryTemplateCache = new QueryTemplateCache();
+        }
+        queryTemplateCache.put(doGetEntityManager(), templateKey, query,
+                parameters);
+    }
+
     protected List<Object> doGetAllEntityIdentifiers(
             EntityContainer<T> container, Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -825,6 +1340,28 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return queryModifierDelegate;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.jpacontainer.EstimatingEntityProvider#setCountStrategy
+     * (com.vaadin.addon.jpacontainer.CountStrategy)
+     */
+    public void setCountStrategy(CountStrategy<T> countStrategy) {
+        this.countStrategy = countStrategy == null ? CountStrategy.<T> exact()
+                : countStrategy;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.addon.jpacontainer.EstimatingEntityProvider#getCountStrategy()
+     */
+    public CountStrategy<T> getCountStrategy() {
+        return countStrategy;
+    }
+
     // QueryModifierDelegate helper methods
 
     private void tellDelegateQueryWillBeBuilt(EntityContainer<T> container,
@@ -27,6 +27,8 @@ import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeNotifier;
 import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.Change;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.ChangeType;
 
 /**
  * Extended version of {@link LocalEntityProvider} that provides editing
@@ -36,7 +38,9 @@ import com.vaadin.addon.jpacontainer.MutableEntityProvider;
  * by invoking the transaction methods of the EntityManager.
  * <p>
  * This entity provider fires {@link EntityProviderChangeEvent}s every time an
- * entity is added, updated or deleted.
+ * entity is added, updated or deleted. The changes are also published to the
+ * {@link CacheInvalidationHub}, so that the caches of other providers notice
+ * them.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
@@ -101,12 +105,31 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
      * <code>operation</code> will be executed inside a transaction that is
      * commited after the operation is completed. Otherwise,
      * <code>operation</code> will just be executed.
+     * <p>
+     * The changes published to the {@link CacheInvalidationHub} during the
+     * operation are held back until it has completed, and dropped if it fails.
      * 
      * @param operation
      *            the operation to run (must not be null).
      */
     protected void runInTransaction(Runnable operation) {
         assert operation != null : "operation must not be null";
+        CacheInvalidationHub hub = CacheInvalidationHub.getInstance();
+        hub.holdChanges();
+        boolean completed = false;
+        try {
+            doRunInTransaction(operation);
+            completed = true;
+        } finally {
+            if (completed) {
+                hub.releaseChanges();
+            } else {
+                hub.discardChanges();
+            }
+        }
+    }
+
+    private void doRunInTransaction(Runnable operation) {
         if (isTransactionsHandledByProvider()) {
             EntityTransaction et = getEntityManager().getTransaction();
             if (et.isActive()) {
@@ -140,6 +163,7 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
                 EntityManager em = getEntityManager();
                 entityA[0] = em.merge(entity);
                 em.flush();
+                publishChange(entityA[0], ChangeType.ADDED);
             }
         });
         T dEntity = detachEntity((T) entityA[0]);
@@ -160,6 +184,7 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
                 if (entity != null) {
                     em.remove(em.merge(entity));
                     em.flush();
+                    publishChange(entity, ChangeType.REMOVED);
                     entityA[0] = detachEntity(entity);
                 }
             }
@@ -180,6 +205,7 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
                 EntityManager em = getEntityManager();
                 entityA[0] = em.merge(entity);
                 em.flush();
+                publishChange(entityA[0], ChangeType.UPDATED);
             }
         });
         T dEntity = detachEntity((T) entityA[0]);
@@ -209,6 +235,7 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
                     // context
                     entity = em.merge(entity);
                     em.flush();
+                    publishChange(entity, ChangeType.UPDATED);
                     entityA[0] = detachEntity(entity);
                 }
             }
@@ -219,6 +246,23 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
         }
     }
 
+    /**
+     * Publishes a change of <code>entity</code> to the
+     * {@link CacheInvalidationHub}, with this provider as the origin.
+     * 
+     * @param entity
+     *            the changed entity (must not be null).
+     * @param type
+     *            the kind of the change.
+     */
+    @SuppressWarnings("unchecked")
+    protected void publishChange(Object entity, ChangeType type) {
+        Object entityId = getEntityClassMetadata().getPropertyValue((T) entity,
+                getEntityClassMetadata().getIdentifierProperty().getName());
+        CacheInvalidationHub.getInstance().publish(
+                new Change(entity.getClass(), entityId, type, entity), this);
+    }
+
     /*
      * Transient note: Listeners (read: JPAContainers) should re attach themselves when deserialized 
      */
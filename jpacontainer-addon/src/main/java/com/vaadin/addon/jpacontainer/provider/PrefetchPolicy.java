@@ -0,0 +1,197 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+
+/**
+ * Decides how many entityIds {@link CachingSupport} fetches at a time for one
+ * sorted entityId list, and when to fetch them.
+ * <p>
+ * The policy follows the positions that are looked up in the list. Lookups
+ * that keep moving the same way are considered a sequential scroll, whose
+ * direction and rate (rows per second) are tracked. The chunk size starts at
+ * {@link CachingSupport#CHUNK_SIZE} and is adapted to the observed query
+ * latency: it grows while full chunks are fetched faster than the target query
+ * time and shrinks when they are slower. It is never smaller than two pages,
+ * as seen from the number of rows requested at a time, e.g. by a table.
+ * <p>
+ * While scrolling sequentially, the next chunk is fetched once the viewport
+ * gets closer to the end of the cached window than it would scroll during two
+ * queries, so that it is loaded before it is needed.
+ * <p>
+ * The methods are synchronized, as a list may be read by several threads at
+ * once. This class is internal and should never be used outside of
+ * JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class PrefetchPolicy implements Serializable {
+
+    private static final long serialVersionUID = -1722591447096374541L;
+
+    /**
+     * The default query time to size the chunks for, in milliseconds.
+     */
+    static final int DEFAULT_TARGET_QUERY_TIME = 100;
+
+    /**
+     * The number of lookups in the same direction after which scrolling is
+     * considered sequential.
+     */
+    private static final int SEQUENTIAL_STEPS = 2;
+
+    private int lastIndex = -1;
+    private long lastAccessAt;
+    private int direction;
+    private int steps;
+    /**
+     * The scroll rate in rows per nanosecond, as an exponential moving
+     * average.
+     */
+    private double rate;
+    private int pageLength;
+    private int chunkSize = CachingSupport.CHUNK_SIZE;
+    /**
+     * The query time in nanoseconds, as an exponential moving average.
+     */
+    private long queryTime;
+
+    /**
+     * Records a lookup of <code>count</code> consecutive positions starting
+     * at <code>index</code>.
+     */
+    synchronized void recordAccess(int index, int count) {
+        long now = System.nanoTime();
+        if (count > 1) {
+            pageLength = count;
+        }
+        if (lastIndex > -1 && index != lastIndex) {
+            int step = index - lastIndex;
+            int stepDirection = step > 0 ? 1 : -1;
+            if (Math.abs(step) <= Math.max(chunkSize, pageLength * 2)) {
+                if (stepDirection == direction) {
+                    steps++;
+                } else {
+                    direction = stepDirection;
+                    steps = 1;
+                }
+                double stepRate = Math.abs(step)
+                        / (double) Math.max(now - lastAccessAt, 1);
+                rate = rate == 0 ? stepRate : (rate * 3 + stepRate) / 4;
+            } else {
+                // A jump, not a scroll
+                direction = 0;
+                steps = 0;
+                rate = 0;
+            }
+        }
+        lastIndex = index;
+        lastAccessAt = now;
+    }
+
+    /**
+     * Records a lookup of the entityId next to (<code>direction</code> 1) or
+     * prior to (<code>direction</code> -1) the previously looked up one,
+     * whose position is not known.
+     */
+    synchronized void recordStep(int direction) {
+        if (direction == this.direction) {
+            steps++;
+        } else {
+            this.direction = direction;
+            steps = 1;
+        }
+        lastIndex = -1;
+    }
+
+    /**
+     * Records a query that fetched <code>rows</code> of the
+     * <code>requested</code> entityIds in <code>nanos</code> nanoseconds, and
+     * adapts the chunk size to it.
+     *
+     * @param targetQueryTime
+     *            the query time to size the chunks for, in milliseconds.
+     */
+    synchronized void recordQuery(int rows, int requested, long nanos,
+            int targetQueryTime, int minChunkSize, int maxChunkSize) {
+        queryTime = queryTime == 0 ? nanos : (queryTime * 3 + nanos) / 4;
+        long target = targetQueryTime * 1000000L;
+        if (rows < requested || requested < chunkSize) {
+            // A short result or a partial chunk tells little of the cost of
+            // a full chunk
+            return;
+        }
+        if (nanos * 2 < target) {
+            chunkSize = Math.min(chunkSize * 2, maxChunkSize);
+        } else if (nanos > target) {
+            chunkSize = Math.max(
+                    Math.max((int) (chunkSize * target / nanos), chunkSize / 2),
+                    minChunkSize);
+        }
+    }
+
+    /**
+     * Returns the number of entityIds to fetch at a time.
+     *
+     * @param maxCacheSize
+     *            the max number of entityIds to keep, or -1 for no limit. The
+     *            chunks are kept at most half of this, so that extending the
+     *            window never drops the rows around the viewport.
+     */
+    synchronized int getChunkSize(int minChunkSize, int maxChunkSize,
+            int maxCacheSize) {
+        int size = Math.max(chunkSize, pageLength * 2);
+        size = Math.max(Math.min(size, maxChunkSize), minChunkSize);
+        if (maxCacheSize > -1) {
+            size = Math.min(size, Math.max(maxCacheSize / 2, 1));
+        }
+        return size;
+    }
+
+    /**
+     * Returns the direction of a sequential scroll: 1 for forwards, -1 for
+     * backwards or 0 if the lookups are not sequential.
+     */
+    synchronized int getScrollDirection() {
+        return steps >= SEQUENTIAL_STEPS ? direction : 0;
+    }
+
+    /**
+     * Returns the number of rows that were last requested at a time, or 0 if
+     * the rows have been requested one by one.
+     */
+    synchronized int getPageLength() {
+        return pageLength;
+    }
+
+    /**
+     * Returns how close to the end of the cached window the viewport may get
+     * before the next chunk is fetched, or 0 if the lookups are not
+     * sequential.
+     *
+     * @param chunkSize
+     *            the current chunk size, which limits the distance.
+     */
+    synchronized int getPrefetchDistance(int chunkSize) {
+        if (getScrollDirection() == 0) {
+            return 0;
+        }
+        long distance = Math.max(pageLength, 1)
+                + Math.round(rate * queryTime * 2);
+        return (int) Math.min(distance, chunkSize);
+    }
+}
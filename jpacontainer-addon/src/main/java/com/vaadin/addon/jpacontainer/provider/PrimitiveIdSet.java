@@ -0,0 +1,279 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of {@link Long} or {@link Integer} entityIds stored in an open
+ * addressing hash table of primitive values. It is used by
+ * {@link CachingSupport} instead of a {@link CachingSupport.CacheSet} of boxed
+ * identifiers.
+ * <p>
+ * Like {@link CachingSupport.CacheSet}, the set can be given a max size.
+ * Instead of keeping an exact least recently used order, which would need a
+ * linked entry per identifier, identifiers are evicted in CLOCK order: each
+ * identifier has a bit that is set whenever it is added or found, and the
+ * eviction hand skips, and clears, the identifiers whose bit is set.
+ * <p>
+ * This class is internal and should never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class PrimitiveIdSet extends AbstractSet<Object> implements Serializable {
+
+    private static final long serialVersionUID = 8394640373751569425L;
+
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte REFERENCED = 2;
+
+    private final int maxSize;
+    private final boolean intIds;
+    private long[] keys;
+    private byte[] states;
+    private int size;
+    private int hand;
+
+    /**
+     * Creates a new set.
+     *
+     * @param maxSize
+     *            the max number of entityIds, or a negative value for no limit.
+     * @param intIds
+     *            true if the entityIds are {@link Integer}s, false if they are
+     *            {@link Long}s.
+     */
+    PrimitiveIdSet(int maxSize, boolean intIds) {
+        this.maxSize = maxSize;
+        this.intIds = intIds;
+        keys = new long[16];
+        states = new byte[16];
+    }
+
+    /**
+     * Returns whether <code>idType</code> can be stored in a
+     * <code>PrimitiveIdSet</code>.
+     */
+    static boolean supports(Class<?> idType) {
+        return idType == Long.class || idType == Long.TYPE
+                || idType == Integer.class || idType == Integer.TYPE;
+    }
+
+    private boolean accepts(Object o) {
+        return intIds ? o instanceof Integer : o instanceof Long;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the slot of <code>key</code>, or -1 if it is not in the set.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; states[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean add(Object e) {
+        if (!accepts(e)) {
+            throw new IllegalArgumentException("Unexpected entityId: " + e);
+        }
+        long key = ((Number) e).longValue();
+        int slot = find(key);
+        if (slot > -1) {
+            states[slot] = REFERENCED;
+            return false;
+        }
+        if (maxSize == 0) {
+            return false;
+        } else if (maxSize > 0 && size >= maxSize) {
+            evict();
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (states[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        states[i] = REFERENCED;
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!accepts(o)) {
+            return false;
+        }
+        int slot = find(((Number) o).longValue());
+        if (slot < 0) {
+            return false;
+        }
+        // Finding an entityId counts as a use
+        states[slot] = REFERENCED;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!accepts(o)) {
+            return false;
+        }
+        int slot = find(((Number) o).longValue());
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        keys = new long[16];
+        states = new byte[16];
+        size = 0;
+        hand = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes one entityId that has not been used since the hand last passed
+     * it.
+     */
+    private void evict() {
+        int mask = keys.length - 1;
+        while (true) {
+            hand &= mask;
+            if (states[hand] == REFERENCED) {
+                states[hand] = USED;
+            } else if (states[hand] == USED) {
+                // The slot may be refilled by a shifted entry, which the hand
+                // then looks at next time
+                removeSlot(hand);
+                return;
+            }
+            hand++;
+        }
+    }
+
+    /**
+     * Empties <code>slot</code> and moves the following entries of the probe
+     * sequence back, so that no tombstones are needed.
+     */
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+        int i = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            if (states[j] == EMPTY) {
+                break;
+            }
+            int home = hash(keys[j]) & mask;
+            // Entries whose home slot lies cyclically in (i, j] stay
+            boolean stays = i <= j ? (i < home && home <= j)
+                    : (i < home || home <= j);
+            if (!stays) {
+                keys[i] = keys[j];
+                states[i] = states[j];
+                i = j;
+            }
+        }
+        states[i] = EMPTY;
+        size--;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        byte[] oldStates = states;
+        keys = new long[capacity];
+        states = new byte[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldStates[j] != EMPTY) {
+                int i = hash(oldKeys[j]) & mask;
+                while (states[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                states[i] = oldStates[j];
+            }
+        }
+        hand = 0;
+    }
+
+    private Object box(long key) {
+        return intIds ? (Object) Integer.valueOf((int) key) : (Object) Long
+                .valueOf(key);
+    }
+
+    /**
+     * Iterates over a snapshot of the set.
+     */
+    @Override
+    public Iterator<Object> iterator() {
+        final long[] snapshot = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (states[i] != EMPTY) {
+                snapshot[n++] = keys[i];
+            }
+        }
+        return new Iterator<Object>() {
+            private int next = 0;
+            private Object last;
+
+            public boolean hasNext() {
+                return next < snapshot.length;
+            }
+
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = box(snapshot[next++]);
+                return last;
+            }
+
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                PrimitiveIdSet.this.remove(last);
+                last = null;
+            }
+        };
+    }
+}
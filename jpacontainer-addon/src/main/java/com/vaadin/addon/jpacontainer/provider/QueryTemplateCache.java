@@ -0,0 +1,147 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+
+import com.vaadin.addon.jpacontainer.filter.util.QueryParameters;
+
+/**
+ * Cache of compiled criteria queries used by {@link LocalEntityProvider}. The
+ * queries are built with all the filter values bound as parameters, and are
+ * stored under a key that describes their structure (see
+ * {@link com.vaadin.addon.jpacontainer.filter.util.FilterConverter#getParameterizedShape(com.vaadin.v7.data.Container.Filter, List)}
+ * ). On a hit, the cached criteria query is reused and only the new parameter
+ * values are bound.
+ * <p>
+ * Criteria queries belong to the entity manager factory that created them, so
+ * the cache is flushed whenever it is used with a different factory. This
+ * class is internal and should never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class QueryTemplateCache {
+
+    /**
+     * The maximum number of query templates to store.
+     */
+    static final int MAX_SIZE = 100;
+
+    /**
+     * A cached criteria query and the parameters in the order they were
+     * bound.
+     */
+    private static class QueryTemplate {
+        private final CriteriaQuery<?> query;
+        private final List<ParameterExpression<?>> parameters;
+
+        private QueryTemplate(CriteriaQuery<?> query,
+                List<ParameterExpression<?>> parameters) {
+            this.query = query;
+            this.parameters = new ArrayList<ParameterExpression<?>>(
+                    parameters);
+        }
+    }
+
+    private final Map<Object, QueryTemplate> templates = new LinkedHashMap<Object, QueryTemplate>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = -4233488939812398733L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Object, QueryTemplate> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private EntityManagerFactory entityManagerFactory;
+
+    /**
+     * Creates a query from the template stored under <code>key</code>, and
+     * binds <code>values</code> to it.
+     *
+     * @param entityManager
+     *            the entity manager to create the query with (must not be
+     *            null).
+     * @param key
+     *            the key of the template (must not be null).
+     * @param values
+     *            the parameter values, in the order the parameters were
+     *            originally bound.
+     * @return the query, or null if no matching template was found.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public synchronized <X> TypedQuery<X> createQuery(
+            EntityManager entityManager, Object key, List<Object> values) {
+        checkEntityManagerFactory(entityManager);
+        QueryTemplate template = templates.get(key);
+        if (template == null || template.parameters.size() != values.size()) {
+            return null;
+        }
+        TypedQuery<X> query = entityManager
+                .createQuery((CriteriaQuery<X>) template.query);
+        for (int i = 0; i < values.size(); i++) {
+            query.setParameter((ParameterExpression) template.parameters
+                    .get(i), values.get(i));
+        }
+        return query;
+    }
+
+    /**
+     * Stores <code>query</code> under <code>key</code>.
+     *
+     * @param entityManager
+     *            the entity manager the query was created with (must not be
+     *            null).
+     * @param key
+     *            the key of the template (must not be null).
+     * @param query
+     *            the criteria query (must not be null).
+     * @param parameters
+     *            the parameters that were bound while building the query.
+     */
+    public synchronized void put(EntityManager entityManager, Object key,
+            CriteriaQuery<?> query, QueryParameters parameters) {
+        checkEntityManagerFactory(entityManager);
+        templates.put(key, new QueryTemplate(query, parameters.getParameters()));
+    }
+
+    /**
+     * Removes all the cached templates.
+     */
+    public synchronized void clear() {
+        templates.clear();
+        entityManagerFactory = null;
+    }
+
+    private void checkEntityManagerFactory(EntityManager entityManager) {
+        EntityManagerFactory emf = entityManager.getEntityManagerFactory();
+        if (emf != entityManagerFactory) {
+            templates.clear();
+            entityManagerFactory = emf;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vaadin.addon.jpacontainer.EntityWeigher;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+
+/**
+ * The default {@link EntityWeigher} of {@link CachingSupport}, which estimates
+ * the shallow size of an entity from its {@link ClassMetadata}: an object
+ * header and a field per persistent property, plus the characters of its
+ * strings and the contents of its arrays. Embedded objects are weighed the
+ * same way, while referenced entities and collections only count as a
+ * reference, as they are either cached separately or not loaded.
+ * <p>
+ * The fixed part of the size is computed once per class. This class is
+ * internal and should never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class ShallowEntityWeigher<T> implements EntityWeigher<T> {
+
+    private static final long serialVersionUID = 2622390861569575740L;
+
+    /**
+     * The size of an object header, in bytes.
+     */
+    static final int OBJECT_HEADER = 16;
+    /**
+     * The size of a reference, in bytes.
+     */
+    static final int REFERENCE = 8;
+    /**
+     * The size of a boxed primitive, e.g. an {@link Integer}.
+     */
+    static final int BOXED = OBJECT_HEADER + 8;
+    /**
+     * The fixed size of a {@link String}, i.e. the string object and the
+     * header of its character array.
+     */
+    static final int STRING = OBJECT_HEADER + 8 + OBJECT_HEADER;
+
+    private final ClassMetadata<T> metadata;
+    private final long fixedSize;
+    /**
+     * The properties whose values are weighed per entity.
+     */
+    private final List<PersistentPropertyMetadata> variableProperties = new ArrayList<PersistentPropertyMetadata>();
+    /**
+     * The weighers of the embedded objects, in the same order as
+     * {@link #variableProperties} and null for the other properties.
+     */
+    private final List<ShallowEntityWeigher<Object>> embeddedWeighers = new ArrayList<ShallowEntityWeigher<Object>>();
+
+    @SuppressWarnings("unchecked")
+    ShallowEntityWeigher(ClassMetadata<T> metadata) {
+        this.metadata = metadata;
+        long size = OBJECT_HEADER;
+        for (PersistentPropertyMetadata property : metadata
+                .getPersistentProperties()) {
+            Class<?> type = property.getType();
+            if (type.isPrimitive()) {
+                size += getPrimitiveSize(type);
+            } else if (property.getPropertyKind() == PropertyKind.EMBEDDED) {
+                size += REFERENCE;
+                variableProperties.add(property);
+                embeddedWeighers.add(new ShallowEntityWeigher<Object>(
+                        (ClassMetadata<Object>) property.getTypeMetadata()));
+            } else if (type == String.class || type.isArray()) {
+                size += REFERENCE;
+                variableProperties.add(property);
+                embeddedWeighers.add(null);
+            } else if (property.getPropertyKind() == PropertyKind.SIMPLE) {
+                // A boxed primitive, a date or the like
+                size += REFERENCE + BOXED;
+            } else {
+                size += REFERENCE;
+            }
+        }
+        fixedSize = size;
+    }
+
+    public long weigh(T entity) {
+        long size = fixedSize;
+        for (int i = 0; i < variableProperties.size(); i++) {
+            Object value;
+            try {
+                value = metadata.getPropertyValue(entity, variableProperties
+                        .get(i).getName());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (value == null) {
+                continue;
+            } else if (embeddedWeighers.get(i) != null) {
+                size += embeddedWeighers.get(i).weigh(value);
+            } else if (value instanceof String) {
+                size += STRING + 2L * ((String) value).length();
+            } else if (value instanceof byte[]) {
+                size += OBJECT_HEADER + ((byte[]) value).length;
+            } else if (value instanceof char[]) {
+                size += OBJECT_HEADER + 2L * ((char[]) value).length;
+            } else if (value instanceof Object[]) {
+                size += OBJECT_HEADER + (long) REFERENCE
+                        * ((Object[]) value).length;
+            } else {
+                size += OBJECT_HEADER;
+            }
+        }
+        return size;
+    }
+
+    private static int getPrimitiveSize(Class<?> type) {
+        if (type == Long.TYPE || type == Double.TYPE) {
+            return 8;
+        } else if (type == Integer.TYPE || type == Float.TYPE) {
+            return 4;
+        } else if (type == Short.TYPE || type == Character.TYPE) {
+            return 2;
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.filter.util.FilterNormalizer;
+import com.vaadin.addon.jpacontainer.filter.util.FilterNormalizer.FilterKey;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.Change;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.ChangeType;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.StripedCacheMap;
+import com.vaadin.v7.data.Container.Filter;
+
+/**
+ * A cache of entity counts, entity identifier windows and detached entities
+ * that is shared by all the caching providers of one entity class that use the
+ * same {@link EntityManagerFactory}. It is consulted by {@link CachingSupport}
+ * before querying the database, so that e.g. hundreds of sessions showing the
+ * same list only run the count and identifier queries once. Concurrent loads
+ * of the same data are coalesced, and each load is run by the provider that
+ * needs it, using its own entity manager.
+ * <p>
+ * Entities are copied both when they are put into the region and when they
+ * are read from it, so the entity class must be {@link Cloneable}. The region
+ * subscribes to the {@link CacheInvalidationHub}: counts and identifier
+ * windows are dropped whenever an entity is added, updated or removed, and
+ * changed entities are evicted.
+ * <p>
+ * The region remembers when each value was loaded, so that providers with a
+ * time-to-live only use values that are young enough for them.
+ * <p>
+ * This class is internal and should never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class SharedCacheRegion<T> implements CacheInvalidationHub.Subscriber {
+
+    /**
+     * The max number of entities to keep in a region.
+     */
+    static final int MAX_ENTITIES = 10000;
+    /**
+     * The max number of entity counts to keep in a region.
+     */
+    static final int MAX_COUNTS = 1000;
+    /**
+     * The max number of entity identifier windows to keep in a region.
+     */
+    static final int MAX_ID_WINDOWS = 1000;
+
+    /**
+     * The regions of each entity manager factory, guarded by its own monitor.
+     * Regions are dropped together with their factory.
+     */
+    private static final Map<EntityManagerFactory, Map<Class<?>, SharedCacheRegion<?>>> regions = new WeakHashMap<EntityManagerFactory, Map<Class<?>, SharedCacheRegion<?>>>();
+
+    /**
+     * Returns the region of <code>metadata</code>'s entity class in
+     * <code>entityManagerFactory</code>, creating it if needed.
+     *
+     * @param entityManagerFactory
+     *            the entity manager factory (must not be null).
+     * @param metadata
+     *            the metadata of the entity class (must not be null).
+     * @return the region (never null).
+     */
+    @SuppressWarnings("unchecked")
+    static <T> SharedCacheRegion<T> getRegion(
+            EntityManagerFactory entityManagerFactory,
+            EntityClassMetadata<T> metadata) {
+        assert entityManagerFactory != null : "entityManagerFactory must not be null";
+        synchronized (regions) {
+            Map<Class<?>, SharedCacheRegion<?>> classRegions = regions
+                    .get(entityManagerFactory);
+            if (classRegions == null) {
+                classRegions = new HashMap<Class<?>, SharedCacheRegion<?>>();
+                regions.put(entityManagerFactory, classRegions);
+            }
+            SharedCacheRegion<T> region = (SharedCacheRegion<T>) classRegions
+                    .get(metadata.getMappedClass());
+            if (region == null) {
+                region = new SharedCacheRegion<T>(metadata);
+                classRegions.put(metadata.getMappedClass(), region);
+                CacheInvalidationHub.getInstance().subscribe(region, null);
+            }
+            return region;
+        }
+    }
+
+    /**
+     * Identifies a window of entity identifiers.
+     */
+    private static final class IdWindowKey {
+        private final Object scope;
+        private final FilterKey filter;
+        private final List<SortBy> sortBy;
+        private final int startFrom;
+        private final int fetchMax;
+
+        private IdWindowKey(Object scope, FilterKey filter,
+                List<SortBy> sortBy, int startFrom, int fetchMax) {
+            this.scope = scope;
+            this.filter = filter;
+            this.sortBy = sortBy;
+            this.startFrom = startFrom;
+            this.fetchMax = fetchMax;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            } else if (obj == null || obj.getClass() != getClass()) {
+                return false;
+            }
+            IdWindowKey o = (IdWindowKey) obj;
+            return (scope == null ? o.scope == null : scope.equals(o.scope))
+                    && o.filter.equals(filter) && o.sortBy.equals(sortBy)
+                    && o.startFrom == startFrom && o.fetchMax == fetchMax;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = scope == null ? 0 : scope.hashCode();
+            hash = hash * 31 + filter.hashCode();
+            hash = hash * 31 + sortBy.hashCode();
+            hash = hash * 31 + startFrom;
+            return hash * 31 + fetchMax;
+        }
+    }
+
+    /**
+     * A cached value and the time its load was started.
+     */
+    private static final class Loaded<V> {
+        private final V value;
+        private final long loadedAt;
+
+        private Loaded(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * Returns whether this value is at most <code>maxAge</code>
+         * nanoseconds old, or any age if <code>maxAge</code> is -1.
+         */
+        private boolean isFresh(long maxAge) {
+            return maxAge < 0 || System.nanoTime() - loadedAt <= maxAge;
+        }
+    }
+
+    private final EntityClassMetadata<T> metadata;
+    private final Map<Object, Loaded<T>> entities = new StripedCacheMap<Object, Loaded<T>>(
+            MAX_ENTITIES, false);
+    private final Map<List<Object>, Loaded<Integer>> counts = new StripedCacheMap<List<Object>, Loaded<Integer>>(
+            MAX_COUNTS, false);
+    private final Map<IdWindowKey, Loaded<List<Object>>> idWindows = new StripedCacheMap<IdWindowKey, Loaded<List<Object>>>(
+            MAX_ID_WINDOWS, false);
+    private final SingleFlight<Object, Loaded<T>> entityLoads = new SingleFlight<Object, Loaded<T>>();
+    private final SingleFlight<List<Object>, Loaded<Integer>> countLoads = new SingleFlight<List<Object>, Loaded<Integer>>();
+    private final SingleFlight<IdWindowKey, Loaded<List<Object>>> idWindowLoads = new SingleFlight<IdWindowKey, Loaded<List<Object>>>();
+    /**
+     * Incremented whenever cached data is invalidated, so that the results of
+     * loads that were started before are not cached.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private SharedCacheRegion(EntityClassMetadata<T> metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Returns the number of entities matching <code>filter</code>, running
+     * <code>loader</code> if the count is not cached.
+     *
+     * @param scope
+     *            the cache scope of the query, or null if it is not modified
+     *            by a delegate.
+     * @param filter
+     *            the filter (may be null).
+     */
+    Integer getEntityCount(Object scope, Filter filter,
+            Callable<Integer> loader) {
+        return getEntityCount(scope, filter, -1, loader);
+    }
+
+    /**
+     * Returns the number of entities matching <code>filter</code>, running
+     * <code>loader</code> if the count is not cached or is older than
+     * <code>maxAge</code>.
+     *
+     * @param maxAge
+     *            the max age of the count in nanoseconds, or -1 for any age.
+     */
+    Integer getEntityCount(Object scope, Filter filter, long maxAge,
+            Callable<Integer> loader) {
+        return load(counts, countLoads,
+                Arrays.asList(scope, FilterNormalizer.getKey(filter)), maxAge,
+                loader);
+    }
+
+    /**
+     * Returns a window of entity identifiers, running <code>loader</code> if
+     * it is not cached.
+     *
+     * @param scope
+     *            the cache scope of the query, or null if it is not modified
+     *            by a delegate.
+     * @param filter
+     *            the filter (may be null).
+     * @return a modifiable copy of the identifiers.
+     */
+    List<Object> getIds(Object scope, Filter filter, List<SortBy> sortBy,
+            int startFrom, int fetchMax, final Callable<List<Object>> loader) {
+        return getIds(scope, filter, sortBy, startFrom, fetchMax, -1, loader);
+    }
+
+    /**
+     * Returns a window of entity identifiers, running <code>loader</code> if
+     * it is not cached or is older than <code>maxAge</code>.
+     *
+     * @param maxAge
+     *            the max age of the window in nanoseconds, or -1 for any age.
+     * @return a modifiable copy of the identifiers.
+     */
+    List<Object> getIds(Object scope, Filter filter, List<SortBy> sortBy,
+            int startFrom, int fetchMax, long maxAge,
+            final Callable<List<Object>> loader) {
+        List<Object> ids = load(idWindows, idWindowLoads, new IdWindowKey(
+                scope, FilterNormalizer.getKey(filter), sortBy, startFrom,
+                fetchMax), maxAge,
+                new Callable<List<Object>>() {
+                    public List<Object> call() throws Exception {
+                        return Collections
+                                .unmodifiableList(new ArrayList<Object>(loader
+                                        .call()));
+                    }
+                });
+        return new ArrayList<Object>(ids);
+    }
+
+    /**
+     * Returns a copy of the entity identified by <code>entityId</code>,
+     * running <code>loader</code> if it is not cached.
+     *
+     * @return the entity, or null if it does not exist.
+     */
+    T getEntity(Object entityId, final Callable<T> loader) {
+        return getEntity(entityId, -1, loader);
+    }
+
+    /**
+     * Returns a copy of the entity identified by <code>entityId</code>,
+     * running <code>loader</code> if it is not cached or is older than
+     * <code>maxAge</code>.
+     *
+     * @param maxAge
+     *            the max age of the entity in nanoseconds, or -1 for any age.
+     * @return the entity, or null if it does not exist.
+     */
+    T getEntity(Object entityId, long maxAge, final Callable<T> loader) {
+        T entity = load(entities, entityLoads, entityId, maxAge,
+                new Callable<T>() {
+                    public T call() throws Exception {
+                        T loaded = loader.call();
+                        return loaded == null ? null : CachingSupport
+                                .cloneEntity(loaded);
+                    }
+                });
+        return entity == null ? null : CachingSupport.cloneEntity(entity);
+    }
+
+    /**
+     * Returns copies of the cached entities among <code>entityIds</code>.
+     */
+    Map<Object, T> getCachedEntities(Collection<Object> entityIds) {
+        return getCachedEntities(entityIds, -1);
+    }
+
+    /**
+     * Returns copies of the cached entities among <code>entityIds</code> that
+     * are at most <code>maxAge</code> nanoseconds old, or any age if
+     * <code>maxAge</code> is -1.
+     */
+    Map<Object, T> getCachedEntities(Collection<Object> entityIds, long maxAge) {
+        Map<Object, T> result = new HashMap<Object, T>();
+        for (Object id : entityIds) {
+            Loaded<T> entity = entities.get(id);
+            if (entity != null && entity.isFresh(maxAge)) {
+                result.put(id, CachingSupport.cloneEntity(entity.value));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Puts copies of <code>loaded</code> into the region, unless the region
+     * has been invalidated after the load was started.
+     *
+     * @param loaded
+     *            the loaded entities mapped by their identifiers.
+     * @param generation
+     *            the value of {@link #getGeneration()} when the load started.
+     */
+    void putEntities(Map<Object, T> loaded, int generation) {
+        long now = System.nanoTime();
+        for (Map.Entry<Object, T> e : loaded.entrySet()) {
+            put(entities, e.getKey(), new Loaded<T>(CachingSupport
+                    .cloneEntity(e.getValue()), now), generation);
+        }
+    }
+
+    /**
+     * Returns the current generation of the region, to be passed to
+     * {@link #putEntities(Map, int)}.
+     */
+    int getGeneration() {
+        return generation.get();
+    }
+
+    private <K, V> V load(final Map<K, Loaded<V>> cache,
+            SingleFlight<K, Loaded<V>> loads, final K key, final long maxAge,
+            final Callable<V> loader) {
+        Loaded<V> value = cache.get(key);
+        if (value == null || !value.isFresh(maxAge)) {
+            value = loads.load(key, new Callable<Loaded<V>>() {
+                public Loaded<V> call() throws Exception {
+                    // The previous load may have finished after our miss
+                    Loaded<V> v = cache.get(key);
+                    if (v == null || !v.isFresh(maxAge)) {
+                        int gen = generation.get();
+                        long loadedAt = System.nanoTime();
+                        V loaded = loader.call();
+                        v = loaded == null ? null : new Loaded<V>(loaded,
+                                loadedAt);
+                        if (v != null) {
+                            put(cache, key, v, gen);
+                        }
+                    }
+                    return v;
+                }
+            });
+        }
+        return value == null ? null : value.value;
+    }
+
+    private <K, V> void put(Map<K, V> cache, K key, V value, int gen) {
+        cache.put(key, value);
+        if (generation.get() != gen) {
+            // Invalidated while loading, the value may be stale
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Drops everything in the region.
+     */
+    void clear() {
+        generation.incrementAndGet();
+        entities.clear();
+        counts.clear();
+        idWindows.clear();
+    }
+
+    public void entityChanged(Change change) {
+        if (!change.affects(metadata.getMappedClass())) {
+            return;
+        } else if (change.getEntityId() == null) {
+            clear();
+            return;
+        }
+        generation.incrementAndGet();
+        if (change.getType() != ChangeType.ADDED) {
+            entities.remove(change.getEntityId());
+        }
+        counts.clear();
+        idWindows.clear();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent loads of the same key into one: while a value is being
+ * loaded, other threads asking for the same key wait for that load to finish
+ * and get its result instead of starting a load of their own. Loads of
+ * different keys run in parallel. Nothing is remembered once a load has
+ * completed, so caching the result is up to the caller.
+ * <p>
+ * This class is internal and should never be used outside of JPAContainer.
+ *
+ * @since 4.0.1
+ */
+class SingleFlight<K, V> implements Serializable {
+
+    private static final long serialVersionUID = 8432925711040356728L;
+
+    /**
+     * A load in progress, remembering the thread that runs it.
+     */
+    private static class Call<V> extends FutureTask<V> {
+        private final Thread owner = Thread.currentThread();
+
+        private Call(Callable<V> loader) {
+            super(loader);
+        }
+    }
+
+    private transient volatile ConcurrentMap<K, Call<V>> calls;
+
+    private ConcurrentMap<K, Call<V>> getCalls() {
+        ConcurrentMap<K, Call<V>> c = calls;
+        if (c == null) {
+            synchronized (this) {
+                c = calls;
+                if (c == null) {
+                    c = calls = new ConcurrentHashMap<K, Call<V>>();
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Runs <code>loader</code> and returns its result, unless another thread
+     * is already loading <code>key</code>, in which case the result of that
+     * load is returned instead.
+     *
+     * @param key
+     *            the key to load (must not be null).
+     * @param loader
+     *            the loader to run if no load of <code>key</code> is in
+     *            progress (must not be null).
+     * @return the loaded value (may be null).
+     * @throws RuntimeException
+     *             if the load failed, rethrown in all the waiting threads.
+     */
+    public V load(K key, Callable<V> loader) {
+        ConcurrentMap<K, Call<V>> c = getCalls();
+        Call<V> call = new Call<V>(loader);
+        Call<V> existing = c.putIfAbsent(key, call);
+        if (existing == null) {
+            try {
+                call.run();
+            } finally {
+                c.remove(key, call);
+            }
+        } else if (existing.owner == Thread.currentThread()) {
+            // The loader itself needs the key, waiting would never end
+            call.run();
+        } else {
+            call = existing;
+        }
+        return getResult(call);
+    }
+
+    private V getResult(Call<V> call) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return call.get();
+                } catch (InterruptedException e) {
+                    // The load is run by another thread that is not
+                    // interrupted, so keep on waiting for it
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Could not load value", cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
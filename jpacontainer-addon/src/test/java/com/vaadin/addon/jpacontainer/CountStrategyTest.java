@@ -0,0 +1,87 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.v7.data.Container.Filter;
+
+/**
+ * Test case for {@link CountStrategy}.
+ *
+ * @since 4.0.1
+ */
+public class CountStrategyTest {
+
+    @SuppressWarnings("serial")
+    private static final CountEstimator<Person> ESTIMATOR = new CountEstimator<Person>() {
+        public int estimateEntityCount(EntityContainer<Person> entityContainer,
+                Filter filter) {
+            return 1000;
+        }
+    };
+
+    @Test
+    public void testIsExact() {
+        assertTrue(CountStrategy.<Person> exact().isExact(1000000));
+
+        CountStrategy<Person> capped = CountStrategy.capped(100);
+        assertEquals(CountStrategy.Mode.CAPPED, capped.getMode());
+        assertEquals(100, capped.getLimit());
+        assertTrue(capped.isExact(99));
+        assertFalse(capped.isExact(100));
+
+        CountStrategy<Person> estimated = CountStrategy.estimated(ESTIMATOR);
+        assertEquals(CountStrategy.Mode.ESTIMATED, estimated.getMode());
+        assertSame(ESTIMATOR, estimated.getEstimator());
+        assertFalse(estimated.isExact(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCappedNeedsPositiveLimit() {
+        CountStrategy.capped(0);
+    }
+
+    @Test
+    public void testEqualsAndSerialization() throws Exception {
+        assertEquals(CountStrategy.capped(100), CountStrategy.capped(100));
+        assertEquals(CountStrategy.capped(100).hashCode(), CountStrategy
+                .capped(100).hashCode());
+        assertFalse(CountStrategy.capped(100).equals(
+                CountStrategy.capped(101)));
+        assertFalse(CountStrategy.exact().equals(
+                CountStrategy.estimated(ESTIMATOR)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(CountStrategy.exact());
+        out.close();
+        Object copy = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray())).readObject();
+        assertEquals(CountStrategy.exact(), copy);
+    }
+}
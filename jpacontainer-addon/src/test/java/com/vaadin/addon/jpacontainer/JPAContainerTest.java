@@ -69,8 +69,16 @@ import com.vaadin.v7.data.util.filter.IsNull;
 @SuppressWarnings("serial")
 public class JPAContainerTest {
 
+    /**
+     * A provider that both estimates counts and fetches ranges, for mocking.
+     */
+    interface EstimatingRangedEntityProvider<T> extends
+            EstimatingEntityProvider<T>, RangedEntityProvider<T> {
+    }
+
     private JPAContainer<Person> container;
     private EntityProvider<Person> entityProviderMock;
+    private RangedEntityProvider<Person> rangedEntityProviderMock;
     private CachingEntityProvider<Person> cachingEntityProviderMock;
     private MutableEntityProvider<Person> mutableEntityProviderMock;
     private BatchableEntityProvider<Person> batchableEntityProviderMock;
@@ -81,6 +89,10 @@ public class JPAContainerTest {
         entityProviderMock = createMock(EntityProvider.class);
         expect(entityProviderMock.getLazyLoadingDelegate()).andStubReturn(null);
 
+        rangedEntityProviderMock = createMock(RangedEntityProvider.class);
+        expect(rangedEntityProviderMock.getLazyLoadingDelegate())
+                .andStubReturn(null);
+
         cachingEntityProviderMock = createMock(CachingEntityProvider.class);
         expect(cachingEntityProviderMock.getLazyLoadingDelegate())
                 .andStubReturn(null);
@@ -454,6 +466,277 @@ public class JPAContainerTest {
         verify(entityProviderMock);
     }
 
+    @Test
+    public void testGetItemIdsRange_WriteThrough() {
+        expect(
+                rangedEntityProviderMock.getEntityIdentifiers(container, null,
+                        new LinkedList<SortBy>(), 10, 3)).andReturn(
+                Arrays.asList((Object) "id10", "id11", "id12"));
+        replay(rangedEntityProviderMock);
+
+        container.setEntityProvider(rangedEntityProviderMock);
+        container.setWriteThrough(true);
+
+        assertEquals(Arrays.asList("id10", "id11", "id12"),
+                container.getItemIds(10, 3));
+
+        verify(rangedEntityProviderMock);
+    }
+
+    @Test
+    public void testGetItemIdsRange_OneAtATime() {
+        expect(
+                entityProviderMock.getEntityIdentifierAt(container, null,
+                        new LinkedList<SortBy>(), 10)).andReturn("id10");
+        expect(
+                entityProviderMock.getEntityIdentifierAt(container, null,
+                        new LinkedList<SortBy>(), 11)).andReturn("id11");
+        expect(
+                entityProviderMock.getEntityIdentifierAt(container, null,
+                        new LinkedList<SortBy>(), 12)).andReturn(null);
+        replay(entityProviderMock);
+
+        container.setEntityProvider(entityProviderMock);
+        container.setWriteThrough(true);
+
+        // Not padded with nulls past the end
+        assertEquals(Arrays.asList("id10", "id11"),
+                container.getItemIds(10, 5));
+
+        verify(entityProviderMock);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSize_CappedCount() {
+        EstimatingRangedEntityProvider<Person> estimatingEntityProviderMock = createMock(EstimatingRangedEntityProvider.class);
+        expect(estimatingEntityProviderMock.getLazyLoadingDelegate())
+                .andStubReturn(null);
+        expect(estimatingEntityProviderMock.getCountStrategy()).andStubReturn(
+                CountStrategy.<Person> capped(10));
+        expect(estimatingEntityProviderMock.getEntityCount(container, null))
+                .andStubReturn(10);
+        expect(
+                estimatingEntityProviderMock.getEntityIdentifiers(container,
+                        null, new LinkedList<SortBy>(), 0, 10)).andReturn(
+                createIds(0, 10)).times(2);
+        expect(
+                estimatingEntityProviderMock.getEntityIdentifiers(container,
+                        null, new LinkedList<SortBy>(), 10, 20)).andReturn(
+                createIds(10, 20));
+        expect(
+                estimatingEntityProviderMock.getEntityIdentifiers(container,
+                        null, new LinkedList<SortBy>(), 30, 100)).andReturn(
+                createIds(30, 5));
+        replay(estimatingEntityProviderMock);
+        ItemSetChangeListener listener = createMock(ItemSetChangeListener.class);
+        listener.containerItemSetChange(isA(JPAContainer.EstimatedSizeChangedEvent.class));
+        expectLastCall().times(3);
+        replay(listener);
+
+        container.setEntityProvider(estimatingEntityProviderMock);
+        container.setWriteThrough(true);
+        container.addListener(listener);
+
+        assertEquals(10, container.size());
+        // Scrolling to the capped count grows the size past it
+        container.getItemIds(0, 10);
+        assertEquals(110, container.size());
+        container.getItemIds(0, 10);
+        assertEquals(110, container.size());
+        container.getItemIds(10, 20);
+        assertEquals(130, container.size());
+        // Running past the last row fixes the size
+        container.getItemIds(30, 100);
+        assertEquals(35, container.size());
+
+        verify(estimatingEntityProviderMock);
+        verify(listener);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSize_CappedCountJumpPastEnd() {
+        EstimatingRangedEntityProvider<Person> estimatingEntityProviderMock = createMock(EstimatingRangedEntityProvider.class);
+        expect(estimatingEntityProviderMock.getLazyLoadingDelegate())
+                .andStubReturn(null);
+        expect(estimatingEntityProviderMock.getCountStrategy()).andStubReturn(
+                CountStrategy.<Person> capped(10));
+        expect(estimatingEntityProviderMock.getEntityCount(container, null))
+                .andStubReturn(10);
+        // There are 3000 rows
+        final int[] probes = new int[1];
+        expect(
+                estimatingEntityProviderMock.getEntityIdentifierAt(
+                        EasyMock.eq(container), (Filter) isNull(),
+                        EasyMock.eq(new LinkedList<SortBy>()),
+                        EasyMock.anyInt())).andStubAnswer(
+                new IAnswer<Object>() {
+                    public Object answer() throws Throwable {
+                        probes[0]++;
+                        int index = (Integer) EasyMock.getCurrentArguments()[3];
+                        return index < 3000 ? "id" + index : null;
+                    }
+                });
+        replay(estimatingEntityProviderMock);
+        final List<JPAContainer<Person>.EstimatedSizeChangedEvent> events = new LinkedList<JPAContainer<Person>.EstimatedSizeChangedEvent>();
+        container.addListener(new ItemSetChangeListener() {
+            @SuppressWarnings("unchecked")
+            public void containerItemSetChange(ItemSetChangeEvent event) {
+                events.add((JPAContainer<Person>.EstimatedSizeChangedEvent) event);
+            }
+        });
+
+        container.setEntityProvider(estimatingEntityProviderMock);
+        container.setWriteThrough(true);
+
+        assertEquals(10, container.size());
+        assertEquals("id5", container.getIdByIndex(5));
+        // Jumping past the end does not make the position of the jump the
+        // last row, the last row is looked up
+        probes[0] = 0;
+        assertNull(container.getIdByIndex(5000));
+        assertEquals(3000, container.size());
+        assertTrue(probes[0] < 20);
+        assertTrue(events.get(events.size() - 1).isFinal());
+        assertEquals(3000, events.get(events.size() - 1).getSize());
+
+        // Jumping past the end again needs no more lookups
+        probes[0] = 0;
+        assertNull(container.getIdByIndex(4000));
+        assertEquals(1, probes[0]);
+        assertEquals(3000, container.size());
+
+        verify(estimatingEntityProviderMock);
+    }
+
+    @Test
+    public void testSize_InfiniteScroll() {
+        // No count is expected
+        expect(
+                rangedEntityProviderMock.getEntityIdentifiers(container, null,
+                        new LinkedList<SortBy>(), 0, 15)).andReturn(
+                createIds(0, 15));
+        expect(
+                rangedEntityProviderMock.getEntityIdentifiers(container, null,
+                        new LinkedList<SortBy>(), 100, 50)).andReturn(
+                createIds(100, 20));
+        replay(rangedEntityProviderMock);
+        final List<JPAContainer<Person>.EstimatedSizeChangedEvent> events = new LinkedList<JPAContainer<Person>.EstimatedSizeChangedEvent>();
+        container.addListener(new ItemSetChangeListener() {
+            @SuppressWarnings("unchecked")
+            public void containerItemSetChange(ItemSetChangeEvent event) {
+                events.add((JPAContainer<Person>.EstimatedSizeChangedEvent) event);
+            }
+        });
+
+        container.setEntityProvider(rangedEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setInfiniteScrollEnabled(true);
+        assertTrue(container.isInfiniteScrollEnabled());
+
+        assertEquals(100, container.size());
+        container.getItemIds(0, 15);
+        assertEquals(115, container.size());
+        assertEquals(1, events.size());
+        assertEquals(115, events.get(0).getSize());
+        assertFalse(events.get(0).isFinal());
+
+        // The last chunk comes back short
+        container.getItemIds(100, 50);
+        assertEquals(120, container.size());
+        assertEquals(2, events.size());
+        assertEquals(120, events.get(1).getSize());
+        assertTrue(events.get(1).isFinal());
+
+        verify(rangedEntityProviderMock);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSize_InfiniteScrollJumps() {
+        // There are 3000 rows
+        expect(
+                rangedEntityProviderMock.getEntityIdentifiers(
+                        EasyMock.eq(container), (Filter) isNull(),
+                        EasyMock.eq(new LinkedList<SortBy>()),
+                        EasyMock.anyInt(), EasyMock.anyInt())).andStubAnswer(
+                new IAnswer<List<Object>>() {
+                    public List<Object> answer() throws Throwable {
+                        Object[] args = EasyMock.getCurrentArguments();
+                        int startIndex = (Integer) args[3];
+                        int end = Math.min(startIndex + (Integer) args[4],
+                                3000);
+                        return createIds(startIndex,
+                                Math.max(end - startIndex, 0));
+                    }
+                });
+        expect(
+                rangedEntityProviderMock.getEntityIdentifierAt(
+                        EasyMock.eq(container), (Filter) isNull(),
+                        EasyMock.eq(new LinkedList<SortBy>()),
+                        EasyMock.anyInt())).andStubAnswer(
+                new IAnswer<Object>() {
+                    public Object answer() throws Throwable {
+                        int index = (Integer) EasyMock.getCurrentArguments()[3];
+                        return index < 3000 ? "id" + index : null;
+                    }
+                });
+        replay(rangedEntityProviderMock);
+        final List<JPAContainer<Person>.EstimatedSizeChangedEvent> events = new LinkedList<JPAContainer<Person>.EstimatedSizeChangedEvent>();
+        container.addListener(new ItemSetChangeListener() {
+            public void containerItemSetChange(ItemSetChangeEvent event) {
+                events.add((JPAContainer<Person>.EstimatedSizeChangedEvent) event);
+            }
+        });
+
+        container.setEntityProvider(rangedEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setInfiniteScrollEnabled(true);
+
+        assertEquals(100, container.size());
+        container.getItemIds(0, 15);
+        // The event is not fired while the rows are being fetched
+        assertTrue(events.isEmpty());
+        assertEquals(115, container.size());
+        assertEquals(1, events.size());
+
+        // Jump into the middle
+        container.getItemIds(2000, 50);
+        assertEquals(1, events.size());
+        assertEquals(2150, container.size());
+        assertEquals(2, events.size());
+        assertEquals(2150, events.get(1).getSize());
+        assertFalse(events.get(1).isFinal());
+
+        // Jump back, which does not change the size
+        container.getItemIds(500, 50);
+        assertEquals(2150, container.size());
+        assertEquals(2, events.size());
+
+        // Jump past the end
+        container.getItemIds(5000, 50);
+        assertEquals(2, events.size());
+        assertEquals(3000, container.size());
+        assertEquals(3, events.size());
+        assertEquals(3000, events.get(2).getSize());
+        assertTrue(events.get(2).isFinal());
+        assertEquals("id2999", container.getIdByIndex(2999));
+        assertNull(container.getIdByIndex(3000));
+        assertEquals(3000, container.size());
+        assertEquals(3, events.size());
+
+        verify(rangedEntityProviderMock);
+    }
+
+    private static List<Object> createIds(int startIndex, int count) {
+        List<Object> ids = new LinkedList<Object>();
+        for (int i = startIndex; i < startIndex + count; i++) {
+            ids.add("id" + i);
+        }
+        return ids;
+    }
+
     @Test
     public void testGetIdByIndex_Buffered() {
         Equal filter = new Equal("firstName", "Hello");
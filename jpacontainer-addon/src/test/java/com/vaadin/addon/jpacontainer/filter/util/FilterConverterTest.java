@@ -0,0 +1,84 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vaadin.v7.data.Container.Filter;
+import com.vaadin.v7.data.util.filter.And;
+import com.vaadin.v7.data.util.filter.Between;
+import com.vaadin.v7.data.util.filter.Compare;
+import com.vaadin.v7.data.util.filter.Like;
+import com.vaadin.v7.data.util.filter.Or;
+import com.vaadin.v7.data.util.filter.SimpleStringFilter;
+
+/**
+ * Test case for {@link FilterConverter}.
+ *
+ * @since 4.0.1
+ */
+public class FilterConverterTest {
+
+    private List<Object> shapeOf(Filter filter, List<Object> values) {
+        return FilterConverter.getParameterizedShape(filter, values);
+    }
+
+    @Test
+    public void testShapeAbstractsValues() {
+        List<Object> values1 = new ArrayList<Object>();
+        List<Object> values2 = new ArrayList<Object>();
+        Filter f1 = new And(new Compare.Equal("firstName", "Joe"),
+                new Between("salary", 1000, 2000), new SimpleStringFilter(
+                        "lastName", "sm", true, true));
+        Filter f2 = new And(new Compare.Equal("firstName", "Jane"),
+                new Between("salary", 3000, 4000), new SimpleStringFilter(
+                        "lastName", "ca", true, true));
+        assertEquals(shapeOf(f1, values1), shapeOf(f2, values2));
+        assertEquals(Arrays.<Object> asList("Joe", 1000, 2000, "sm%"), values1);
+        assertEquals(Arrays.<Object> asList("Jane", 3000, 4000, "ca%"),
+                values2);
+    }
+
+    @Test
+    public void testShapeReflectsStructure() {
+        List<Object> values = new ArrayList<Object>();
+        assertFalse(shapeOf(new Compare.Equal("firstName", "Joe"), values)
+                .equals(shapeOf(new Compare.Greater("firstName", "Joe"),
+                        values)));
+        assertFalse(shapeOf(new Compare.Equal("firstName", "Joe"), values)
+                .equals(shapeOf(new Compare.Equal("lastName", "Joe"), values)));
+        assertFalse(shapeOf(new Compare.Equal("age", 1), values).equals(
+                shapeOf(new Compare.Equal("age", 1L), values)));
+        assertFalse(shapeOf(new Like("firstName", "J%", true), values).equals(
+                shapeOf(new Like("firstName", "J%", false), values)));
+        assertFalse(shapeOf(
+                new And(new Compare.Equal("a", 1), new Compare.Equal("b", 2)),
+                values).equals(
+                shapeOf(new Or(new Compare.Equal("a", 1), new Compare.Equal(
+                        "b", 2)), values)));
+        // "= null" is converted to IS NULL
+        assertFalse(shapeOf(new Compare.Equal("firstName", null), values)
+                .equals(shapeOf(new Compare.Equal("firstName", "Joe"), values)));
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.v7.data.Container.Filter;
+import com.vaadin.v7.data.util.filter.And;
+import com.vaadin.v7.data.util.filter.Compare;
+import com.vaadin.v7.data.util.filter.IsNull;
+import com.vaadin.v7.data.util.filter.Not;
+import com.vaadin.v7.data.util.filter.Or;
+
+/**
+ * Test case for {@link FilterNormalizer}.
+ *
+ * @since 4.0.1
+ */
+public class FilterNormalizerTest {
+
+    private final Filter a = new Compare.Equal("firstName", "Joe");
+    private final Filter b = new Compare.Greater("age", 20);
+    private final Filter c = new IsNull("address");
+
+    @Test
+    public void testJunctionsAreFlattenedAndSorted() {
+        Filter expected = FilterNormalizer.normalize(new And(a, b, c));
+        assertEquals(expected, FilterNormalizer.normalize(new And(c, b, a)));
+        assertEquals(expected,
+                FilterNormalizer.normalize(new And(b, new And(c, a))));
+        assertEquals(expected,
+                FilterNormalizer.normalize(new And(new And(a), b, c, a)));
+        assertEquals(FilterNormalizer.getKey(new And(a, b, c)),
+                FilterNormalizer.getKey(new And(new And(c, b), a)));
+
+        // Or is not merged into And
+        assertFalse(expected.equals(FilterNormalizer.normalize(new And(a,
+                new Or(b, c)))));
+        assertEquals(FilterNormalizer.normalize(new Or(a, new Or(c, b))),
+                FilterNormalizer.normalize(new Or(new Or(b, a), c)));
+    }
+
+    @Test
+    public void testTrivialFiltersAreSimplified() {
+        assertNull(FilterNormalizer.normalize(null));
+        assertNull(FilterNormalizer.normalize(new And()));
+        assertSame(a, FilterNormalizer.normalize(new And(a)));
+        assertSame(a, FilterNormalizer.normalize(new Or(a, a)));
+        assertSame(a, FilterNormalizer.normalize(new Not(new Not(a))));
+        assertEquals(new Not(a),
+                FilterNormalizer.normalize(new Not(new And(a))));
+        assertEquals(FilterNormalizer.getKey(null),
+                FilterNormalizer.getKey(new And()));
+    }
+
+    @Test
+    public void testNormalizedFilterIsReturnedAsSuch() {
+        Filter normalized = FilterNormalizer.normalize(new And(c, a, b));
+        assertSame(normalized, FilterNormalizer.normalize(normalized));
+        assertSame(a, FilterNormalizer.normalize(a));
+    }
+
+    @Test
+    public void testJoinFiltersAreNotMerged() {
+        Filter join = FilterNormalizer.normalize(new JoinFilter("skills", b,
+                a));
+        assertEquals(join,
+                FilterNormalizer.normalize(new JoinFilter("skills", a, b)));
+        assertFalse(join.equals(FilterNormalizer.normalize(new JoinFilter(
+                "address", a, b))));
+        assertEquals(FilterNormalizer.normalize(new And(c, join)),
+                FilterNormalizer.normalize(new And(join, c)));
+    }
+
+    @Test
+    public void testFiltersWithDifferentValuesHaveSameShape() {
+        List<Object> values1 = new ArrayList<Object>();
+        List<Object> values2 = new ArrayList<Object>();
+        List<Object> shape1 = FilterConverter.getParameterizedShape(
+                FilterNormalizer.normalize(new And(new Compare.Equal(
+                        "firstName", "Joe"), new Compare.Greater("age", 20))),
+                values1);
+        List<Object> shape2 = FilterConverter.getParameterizedShape(
+                FilterNormalizer.normalize(new And(new Compare.Greater("age",
+                        30), new Compare.Equal("firstName", "Ann"))), values2);
+        assertEquals(shape1, shape2);
+        assertEquals(values1.indexOf("Joe"), values2.indexOf("Ann"));
+        assertEquals(values1.indexOf(20), values2.indexOf(30));
+    }
+}
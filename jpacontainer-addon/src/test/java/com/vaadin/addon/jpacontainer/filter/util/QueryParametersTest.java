@@ -0,0 +1,92 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.ParameterExpression;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.testdata.Address;
+
+/**
+ * Test case for {@link QueryParameters}.
+ *
+ * @since 4.0.1
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class QueryParametersTest {
+
+    @Test
+    public void testIsBindable() {
+        assertTrue(QueryParameters.isBindable("hello"));
+        assertTrue(QueryParameters.isBindable(123));
+        assertTrue(QueryParameters.isBindable(123L));
+        assertTrue(QueryParameters.isBindable(true));
+        assertTrue(QueryParameters.isBindable(new Date()));
+        assertTrue(QueryParameters.isBindable(new GregorianCalendar()));
+        assertTrue(QueryParameters.isBindable(TimeUnit.SECONDS));
+
+        assertFalse(QueryParameters.isBindable(null));
+        assertFalse(QueryParameters.isBindable(new Address()));
+    }
+
+    @Test
+    public void testBindAndApply() {
+        CriteriaBuilder cb = createMock(CriteriaBuilder.class);
+        ParameterExpression<String> stringParam = createMock(ParameterExpression.class);
+        ParameterExpression<Integer> intParam = createMock(ParameterExpression.class);
+        Expression<Address> addressLiteral = createMock(Expression.class);
+        Address address = new Address();
+        expect(cb.parameter(String.class)).andReturn(stringParam);
+        expect(cb.parameter(Integer.class)).andReturn(intParam);
+        expect(cb.literal(address)).andReturn(addressLiteral);
+
+        TypedQuery query = createMock(TypedQuery.class);
+        expect(query.setParameter(stringParam, "hello")).andReturn(query);
+        expect(query.setParameter(intParam, 123)).andReturn(query);
+        replay(cb, query);
+
+        QueryParameters parameters = new QueryParameters();
+        assertTrue(parameters.isEmpty());
+        assertSame(stringParam, parameters.bind(cb, "hello"));
+        assertSame(intParam, parameters.bind(cb, 123));
+        // Embeddables are embedded as literals
+        assertSame(addressLiteral, parameters.bind(cb, address));
+        assertEquals(2, parameters.getValues().size());
+        assertEquals("hello", parameters.getValues().get(0));
+        assertEquals(123, parameters.getValues().get(1));
+
+        parameters.applyTo(query);
+        verify(cb, query);
+    }
+}
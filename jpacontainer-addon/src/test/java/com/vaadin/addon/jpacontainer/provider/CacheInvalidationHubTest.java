@@ -0,0 +1,139 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.Change;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.ChangeType;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.Subscriber;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.Transport;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Test case for {@link CacheInvalidationHub}.
+ *
+ * @since 4.0.1
+ */
+public class CacheInvalidationHubTest {
+
+    private static class RecordingSubscriber implements Subscriber {
+        private final List<Change> changes = new ArrayList<Change>();
+
+        public void entityChanged(Change change) {
+            changes.add(change);
+        }
+    }
+
+    /**
+     * Connects two hubs as if they were in different JVMs.
+     */
+    private static class InMemoryTransport implements Transport {
+        private final List<CacheInvalidationHub> receivers = new ArrayList<CacheInvalidationHub>();
+
+        public void send(Change change) {
+            for (CacheInvalidationHub hub : receivers) {
+                hub.receive(change);
+            }
+        }
+    }
+
+    private CacheInvalidationHub hub;
+    private RecordingSubscriber subscriber;
+
+    @Before
+    public void setUp() {
+        hub = new CacheInvalidationHub();
+        subscriber = new RecordingSubscriber();
+        hub.subscribe(subscriber, null);
+    }
+
+    @Test
+    public void testOriginIsSkipped() {
+        Object owner = new Object();
+        RecordingSubscriber ownSubscriber = new RecordingSubscriber();
+        hub.subscribe(ownSubscriber, owner);
+
+        hub.publish(new Change(Person.class, 1L, ChangeType.UPDATED), owner);
+        assertEquals(1, subscriber.changes.size());
+        assertTrue(ownSubscriber.changes.isEmpty());
+
+        hub.publish(new Change(Person.class, 1L, ChangeType.UPDATED), null);
+        assertEquals(2, subscriber.changes.size());
+        assertEquals(1, ownSubscriber.changes.size());
+    }
+
+    @Test
+    public void testHeldChangesAreDeliveredOnRelease() {
+        Object owner = new Object();
+        RecordingSubscriber ownSubscriber = new RecordingSubscriber();
+        hub.subscribe(ownSubscriber, owner);
+
+        hub.holdChanges();
+        // E.g. from the entity listener
+        hub.publish(new Change(Person.class, 1L, ChangeType.ADDED), null);
+        hub.publish(new Change(Person.class, 2L, ChangeType.UPDATED), null);
+        hub.holdChanges();
+        hub.publish(new Change(Person.class, 3L, ChangeType.ADDED), null);
+        hub.discardChanges();
+        // The provider replaces the notification about its own change
+        hub.publish(new Change(Person.class, 1L, ChangeType.ADDED), owner);
+        assertTrue(subscriber.changes.isEmpty());
+
+        hub.releaseChanges();
+        assertEquals(2, subscriber.changes.size());
+        assertEquals(2L, subscriber.changes.get(0).getEntityId());
+        assertEquals(1L, subscriber.changes.get(1).getEntityId());
+        assertEquals(1, ownSubscriber.changes.size());
+        assertEquals(2L, ownSubscriber.changes.get(0).getEntityId());
+    }
+
+    @Test
+    public void testTransport() {
+        CacheInvalidationHub remoteHub = new CacheInvalidationHub();
+        RecordingSubscriber remoteSubscriber = new RecordingSubscriber();
+        remoteHub.subscribe(remoteSubscriber, null);
+        InMemoryTransport transport = new InMemoryTransport();
+        transport.receivers.add(remoteHub);
+        hub.setTransport(transport);
+        remoteHub.setTransport(transport);
+
+        hub.publish(new Change(Person.class, 1L, ChangeType.REMOVED), null);
+        assertEquals(1, subscriber.changes.size());
+        assertEquals(1, remoteSubscriber.changes.size());
+        assertEquals(ChangeType.REMOVED, remoteSubscriber.changes.get(0)
+                .getType());
+
+        // Received changes are not sent again
+        remoteHub.receive(new Change(Person.class, 2L, ChangeType.ADDED));
+        assertEquals(1, subscriber.changes.size());
+    }
+
+    @Test
+    public void testChangeAffectsRelatedClasses() {
+        Change change = new Change(Person.class, 1L, ChangeType.UPDATED);
+        assertTrue(change.affects(Person.class));
+        assertTrue(change.affects(Object.class));
+        assertTrue(!change.affects(String.class));
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.EntityWeigher;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.CacheBudget;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.CacheMap;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.CacheSet;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.StripedCacheMap;
+
+/**
+ * Test case for {@link CacheMap}, {@link CacheSet},
+ * {@link StripedCacheMap} and {@link CacheBudget}.
+ *
+ * @since 4.0.1
+ */
+public class CacheMapTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        CacheMap<Integer, String> map = new CacheMap<Integer, String>(3);
+        map.put(1, "one");
+        map.put(2, "two");
+        map.put(3, "three");
+        // Touch the oldest item, making 2 the least recently used one
+        map.get(1);
+        map.put(4, "four");
+
+        assertEquals(3, map.size());
+        assertTrue(map.containsKey(1));
+        assertFalse(map.containsKey(2));
+        assertTrue(map.containsKey(3));
+        assertTrue(map.containsKey(4));
+    }
+
+    @Test
+    public void testReplacingDoesNotEvict() {
+        CacheMap<Integer, String> map = new CacheMap<Integer, String>(2);
+        map.put(1, "one");
+        map.put(2, "two");
+        map.put(2, "TWO");
+        assertEquals(2, map.size());
+        assertEquals("one", map.get(1));
+        assertEquals("TWO", map.get(2));
+    }
+
+    @Test
+    public void testUnbounded() {
+        CacheMap<Integer, Integer> map = new CacheMap<Integer, Integer>(-1);
+        for (int i = 0; i < 5000; i++) {
+            map.put(i, i);
+        }
+        assertEquals(5000, map.size());
+    }
+
+    @Test
+    public void testFrequencyAdmission() {
+        CacheMap<Integer, String> map = new CacheMap<Integer, String>(10,
+                true);
+        for (int i = 0; i < 10; i++) {
+            map.put(i, "hot");
+        }
+        // Make the cached items popular
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                map.get(i);
+            }
+        }
+        // A scan of one-off items should not flush the popular ones
+        for (int i = 100; i < 130; i++) {
+            if (map.get(i) == null) {
+                map.put(i, "cold");
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(map.containsKey(i));
+        }
+
+        // An item that becomes popular is eventually admitted
+        for (int round = 0; round < 10; round++) {
+            if (map.get(1000) == null) {
+                map.put(1000, "warm");
+            }
+        }
+        assertTrue(map.containsKey(1000));
+        assertEquals(10, map.size());
+    }
+
+    @Test
+    public void testCacheSet() {
+        CacheSet<Integer> set = new CacheSet<Integer>(2);
+        set.add(1);
+        set.add(2);
+        assertTrue(set.contains(1));
+        set.add(3);
+        assertEquals(2, set.size());
+        assertTrue(set.contains(1));
+        assertFalse(set.contains(2));
+
+        // Removing an item frees up space
+        set.remove(1);
+        set.add(4);
+        assertTrue(set.contains(3));
+        assertTrue(set.contains(4));
+    }
+
+    @Test
+    public void testStripedMapIsBounded() {
+        StripedCacheMap<Integer, Integer> map = new StripedCacheMap<Integer, Integer>(
+                1000, false);
+        for (int i = 0; i < 5000; i++) {
+            map.put(i, i);
+        }
+        assertTrue(map.size() <= 1000);
+        // The most recently added items are always kept
+        assertEquals(Integer.valueOf(4999), map.get(4999));
+        map.remove(4999);
+        assertFalse(map.containsKey(4999));
+        map.clear();
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testSmallStripedMapKeepsLruOrder() {
+        StripedCacheMap<Integer, String> map = new StripedCacheMap<Integer, String>(
+                3, false);
+        map.put(1, "one");
+        map.put(2, "two");
+        map.put(3, "three");
+        map.get(1);
+        map.put(4, "four");
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey(2));
+        assertEquals(3, map.entrySet().size());
+    }
+
+    @Test
+    public void testStripedMapConcurrentAccess() throws InterruptedException {
+        final StripedCacheMap<Integer, Integer> map = new StripedCacheMap<Integer, Integer>(
+                -1, false);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 10000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < offset + 10000; i++) {
+                        map.put(i, i);
+                        map.get(i - 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(40000, map.size());
+    }
+
+    private static final EntityWeigher<String> LENGTH_WEIGHER = new EntityWeigher<String>() {
+        public long weigh(String entity) {
+            return entity.length();
+        }
+    };
+
+    @Test
+    public void testWeightBudget() {
+        CacheBudget budget = new CacheBudget(10);
+        CacheMap<Integer, String> map = new CacheMap<Integer, String>(-1,
+                false, LENGTH_WEIGHER, budget);
+        map.put(1, "one");
+        map.put(2, "two");
+        assertEquals(6, budget.getWeight());
+        // The least recently used item makes room for the new one
+        map.put(3, "three");
+        assertFalse(map.containsKey(1));
+        assertEquals(8, budget.getWeight());
+        map.put(2, "2");
+        assertEquals(6, budget.getWeight());
+        map.remove(3);
+        assertEquals(1, budget.getWeight());
+
+        // Reserved weight, e.g. of the entityIds, leaves less for the items
+        budget.setReservedWeight(5);
+        map.put(4, "fours");
+        assertFalse(map.containsKey(2));
+        assertEquals(5, budget.getWeight());
+        // At most half of the budget is reserved, the rest is for the items
+        budget.setReservedWeight(9);
+        assertFalse(budget.isExceeded());
+        map.trim();
+        assertTrue(map.containsKey(4));
+        // An item is kept even if it alone exceeds the budget
+        map.put(5, "fifteen chars..");
+        assertEquals(1, map.size());
+        map.clear();
+        assertEquals(0, budget.getWeight());
+    }
+
+    @Test
+    public void testStripedMapSharesBudget() {
+        CacheBudget budget = new CacheBudget(1000);
+        StripedCacheMap<Integer, String> map = new StripedCacheMap<Integer, String>(
+                -1, false, LENGTH_WEIGHER, budget);
+        for (int i = 0; i < 5000; i++) {
+            map.put(i, "0123456789");
+        }
+        assertTrue(budget.getWeight() <= 1000);
+        assertEquals(budget.getWeight(), map.size() * 10);
+        assertEquals("0123456789", map.get(4999));
+    }
+}
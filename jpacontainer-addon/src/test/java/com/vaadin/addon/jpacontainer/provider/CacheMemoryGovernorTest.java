@@ -0,0 +1,134 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Test case for {@link CacheMemoryGovernor}.
+ *
+ * @since 4.0.1
+ */
+public class CacheMemoryGovernorTest {
+
+    private static CachingSupport<Person> createCache() {
+        return new CachingSupport<Person>(new LocalEntityProvider<Person>(
+                Person.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBudgetMustBePositive() {
+        new CacheMemoryGovernor(0);
+    }
+
+    @Test
+    public void testRecentlyUsedCachesGetMore() throws InterruptedException {
+        CacheMemoryGovernor governor = new CacheMemoryGovernor(1000);
+        CachingSupport<Person> a = createCache();
+        CachingSupport<Person> b = createCache();
+        CachingSupport<Person> c = createCache();
+        a.setCacheMemoryGovernor(governor);
+        Thread.sleep(1);
+        b.setCacheMemoryGovernor(governor);
+        Thread.sleep(1);
+        c.setCacheMemoryGovernor(governor);
+        assertEquals(3, governor.getProviderCount());
+        assertTrue(c.getEffectiveMaxCacheWeight() > b
+                .getEffectiveMaxCacheWeight());
+        assertTrue(b.getEffectiveMaxCacheWeight() > a
+                .getEffectiveMaxCacheWeight());
+        assertTrue(a.getEffectiveMaxCacheWeight() + b.getEffectiveMaxCacheWeight()
+                + c.getEffectiveMaxCacheWeight() <= 1000);
+
+        Thread.sleep(1);
+        assertTrue(a.usesCache(null));
+        governor.rebalance();
+        assertTrue(a.getEffectiveMaxCacheWeight() > c
+                .getEffectiveMaxCacheWeight());
+
+        // The own budget applies if it is smaller
+        a.setMaxCacheWeight(100);
+        assertEquals(100, a.getEffectiveMaxCacheWeight());
+
+        c.setCacheMemoryGovernor(null);
+        assertEquals(2, governor.getProviderCount());
+        assertEquals(-1, c.getEffectiveMaxCacheWeight());
+    }
+
+    @Test
+    public void testHeapPressureShrinksCaches() {
+        CacheMemoryGovernor governor = new CacheMemoryGovernor(20000);
+        CachingSupport<Person> cache = createCache();
+        cache.setMaxCacheSize(-1);
+        cache.setCacheMemoryGovernor(governor);
+        assertEquals(20000, cache.getEffectiveMaxCacheWeight());
+        Map<Object, Person> entities = cache.getEntityCache();
+        for (long i = 0; i < 1000; i++) {
+            Person person = new Person();
+            person.setId(i);
+            person.setFirstName("Person " + i);
+            entities.put(i, person);
+        }
+        assertTrue(entities.size() < 1000);
+        assertTrue(cache.getCacheWeight() <= 20000);
+        assertTrue(governor.getWeight() > 10000);
+
+        governor.onHeapPressure();
+        assertEquals(10000, governor.getCurrentMaxWeight());
+        assertTrue(cache.getCacheWeight() <= 10000);
+        for (int i = 0; i < 10; i++) {
+            governor.onHeapPressure();
+        }
+        assertEquals(2500, governor.getCurrentMaxWeight());
+        assertTrue(governor.getWeight() <= 2500);
+    }
+
+    @Test
+    public void testHeapMonitorIsOptIn() {
+        assertFalse(HeapPressureMonitor.isInstalled());
+        assertFalse(HeapPressureMonitor.isUnderPressure());
+        if (CacheMemoryGovernor.installHeapMonitor()) {
+            assertTrue(HeapPressureMonitor.isInstalled());
+            assertTrue(CacheMemoryGovernor.installHeapMonitor());
+        }
+        CacheMemoryGovernor.uninstallHeapMonitor();
+        assertFalse(HeapPressureMonitor.isInstalled());
+        CacheMemoryGovernor.uninstallHeapMonitor();
+    }
+
+    @Test
+    public void testCollectedGovernorsAreForgotten()
+            throws InterruptedException {
+        int count = HeapPressureMonitor.getGovernorCount();
+        CacheMemoryGovernor governor = new CacheMemoryGovernor(1000);
+        assertEquals(count + 1, HeapPressureMonitor.getGovernorCount());
+        governor = null;
+        for (int i = 0; i < 50
+                && HeapPressureMonitor.getGovernorCount() > count; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(HeapPressureMonitor.getGovernorCount() <= count);
+    }
+}
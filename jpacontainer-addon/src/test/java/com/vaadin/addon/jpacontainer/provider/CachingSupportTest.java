@@ -0,0 +1,378 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.CacheableQueryModifierDelegate;
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.Change;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.ChangeType;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.util.DefaultQueryModifierDelegate;
+import com.vaadin.v7.data.Container.Filter;
+import com.vaadin.v7.data.util.filter.Compare;
+
+/**
+ * Test case for {@link CachingSupport}, using an in-memory list of
+ * entityIds instead of a database.
+ *
+ * @since 4.0.1
+ */
+public class CachingSupportTest {
+
+    private static final List<SortBy> SORT_BY_ID = Arrays.asList(new SortBy(
+            "id", true));
+
+    /**
+     * Creates the entities instead of loading them.
+     */
+    static class InMemoryProvider extends LocalEntityProvider<Person> {
+
+        private static final long serialVersionUID = 1L;
+        final AtomicInteger loads = new AtomicInteger();
+
+        InMemoryProvider() {
+            super(Person.class);
+        }
+
+        @Override
+        protected Person doGetEntity(Object entityId) {
+            loads.incrementAndGet();
+            Person person = new Person();
+            person.setId((Long) entityId);
+            person.setFirstName("Person " + entityId);
+            return person;
+        }
+
+        @Override
+        protected Map<Object, Person> doGetEntities(Collection<?> entityIds) {
+            Map<Object, Person> entities = new HashMap<Object, Person>();
+            for (Object entityId : entityIds) {
+                entities.put(entityId, doGetEntity(entityId));
+            }
+            return entities;
+        }
+    }
+
+    /**
+     * Queries the entityIds from a list, ignoring the filters, and counts the
+     * queries. The queries wait for {@link #gate} to open if it is set.
+     */
+    static class InMemoryCache extends CachingSupport<Person> {
+
+        private static final long serialVersionUID = 1L;
+        final InMemoryProvider provider;
+        final List<Object> ids = new ArrayList<Object>();
+        final AtomicInteger queries = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        InMemoryCache(int size) {
+            this(new InMemoryProvider(), size);
+        }
+
+        private InMemoryCache(InMemoryProvider provider, int size) {
+            super(provider);
+            this.provider = provider;
+            for (long i = 0; i < size; i++) {
+                ids.add(i);
+            }
+        }
+
+        @Override
+        protected List<Object> getIds(EntityContainer<Person> container,
+                Filter filter, List<SortBy> sortBy, int startIndex,
+                int fetchMax) {
+            query();
+            try {
+                if (fetchMax < 0) {
+                    return new ArrayList<Object>(ids);
+                }
+                return new ArrayList<Object>(ids.subList(
+                        Math.min(startIndex, ids.size()),
+                        Math.min(startIndex + fetchMax, ids.size())));
+            } finally {
+                finished.incrementAndGet();
+            }
+        }
+
+        @Override
+        protected List<Object> getNextIds(EntityContainer<Person> container,
+                Filter filter, List<SortBy> sortBy, Object entityId,
+                int fetchMax) {
+            query();
+            finished.incrementAndGet();
+            int from = ids.indexOf(entityId) + 1;
+            return new ArrayList<Object>(ids.subList(from,
+                    Math.min(from + fetchMax, ids.size())));
+        }
+
+        @Override
+        protected List<Object> getPreviousIds(
+                EntityContainer<Person> container, Filter filter,
+                List<SortBy> sortBy, Object entityId, int fetchMax) {
+            query();
+            finished.incrementAndGet();
+            int to = ids.indexOf(entityId);
+            List<Object> result = new ArrayList<Object>(ids.subList(
+                    Math.max(to - fetchMax, 0), to));
+            Collections.reverse(result);
+            return result;
+        }
+
+        private void query() {
+            queries.incrementAndGet();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        protected List<Object> seekIds(EntityContainer<Person> container,
+                Filter filter, List<SortBy> sortBy, Object entityId,
+                boolean backwards, int fetchMax) {
+            // Keyset paging is not supported
+            return null;
+        }
+    }
+
+    @Test
+    public void testIdsAreWeighedByStorage() {
+        List<Object> longs = new ArrayList<Object>();
+        List<Object> strings = new ArrayList<Object>();
+        for (long i = 0; i < 10; i++) {
+            longs.add(i);
+            strings.add("id" + i);
+        }
+        assertEquals(10 * CachingSupport.PRIMITIVE_ID_WEIGHT,
+                CachingSupport.weighIds(IdList.create(Long.class, longs)));
+        assertEquals(10 * CachingSupport.OBJECT_ID_WEIGHT,
+                CachingSupport.weighIds(IdList.create(String.class, strings)));
+        assertEquals(10 * CachingSupport.OBJECT_ID_WEIGHT,
+                CachingSupport.weighIds(longs));
+    }
+
+    @Test
+    public void testIdsAreKeptWithinHalfOfTheBudget() {
+        InMemoryCache cache = new InMemoryCache(5000);
+        cache.setMaxCacheSize(-1);
+        cache.setMaxCacheWeight(20000);
+        Filter filter = null;
+        for (int i = 0; i < CachingSupport.MAX_FILTER_CACHE_SIZE; i++) {
+            filter = new Compare.Equal("firstName", "Person " + i);
+            assertEquals(1000, cache.getEntityIdentifiers(null, filter,
+                    SORT_BY_ID, 0, 1000).size());
+        }
+        // The weight of the entityIds is updated as entities are cached
+        for (long i = 0; i < 2 * CachingSupport.ID_WEIGHT_UPDATE_INTERVAL; i++) {
+            assertEquals(i, (long) cache.getEntity(null, i).getId());
+        }
+        assertTrue(cache.getCacheWeight() <= 20000);
+        assertTrue(cache.getEntityCache().size() > 1);
+
+        // The most recently used window is kept
+        int queries = cache.queries.get();
+        assertEquals(999L,
+                cache.getEntityIdentifierAt(null, filter, SORT_BY_ID, 999));
+        assertEquals(queries, cache.queries.get());
+    }
+
+    @Test
+    public void testLookupsDoNotWaitForQueries() throws InterruptedException {
+        final InMemoryCache cache = new InMemoryCache(5000);
+        cache.setMaxCacheSize(-1);
+        assertEquals(0L, cache.getEntityIdentifierAt(null, null, SORT_BY_ID, 0));
+        int queries = cache.queries.get();
+        int finished = cache.finished.get();
+
+        cache.gate = new CountDownLatch(1);
+        final Object[] loaded = new Object[4];
+        Thread[] threads = new Thread[loaded.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    loaded[n] = cache.getEntityIdentifierAt(null, null,
+                            SORT_BY_ID, 3000);
+                }
+            };
+            threads[i].start();
+        }
+        // Wait until one thread runs the query and the others wait for it
+        for (Thread thread : threads) {
+            while (thread.getState() != Thread.State.WAITING
+                    && thread.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(queries + 1, cache.queries.get());
+
+        // Cached entityIds are returned while the query is running
+        assertEquals(5L, cache.getEntityIdentifierAt(null, null, SORT_BY_ID, 5));
+        assertEquals(1L, cache.getNextEntityIdentifier(null, 0L, null,
+                SORT_BY_ID));
+        assertEquals(finished, cache.finished.get());
+
+        cache.gate.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Object entityId : loaded) {
+            assertEquals(3000L, entityId);
+        }
+        assertEquals(queries + 1, cache.queries.get());
+        // The result of the query has been merged into the list
+        assertEquals(3001L,
+                cache.getEntityIdentifierAt(null, null, SORT_BY_ID, 3001));
+        assertEquals(queries + 1, cache.queries.get());
+    }
+
+    @Test
+    public void testWalkingThroughTheList() {
+        InMemoryCache cache = new InMemoryCache(500);
+        cache.setChunkSizeBounds(10, 40);
+        cache.setMaxCacheSize(100);
+        Object entityId = cache.getEntityIdentifierAt(null, null, SORT_BY_ID,
+                0);
+        assertEquals(0L, entityId);
+        for (long i = 1; i < 250; i++) {
+            entityId = cache.getNextEntityIdentifier(null, entityId, null,
+                    SORT_BY_ID);
+            assertEquals(i, entityId);
+        }
+        for (long i = 0; i < 250; i++) {
+            assertEquals(i, cache.getEntityIdentifierAt(null, null,
+                    SORT_BY_ID, (int) i));
+        }
+        for (long i = 249; i > 0; i--) {
+            entityId = cache.getPreviousEntityIdentifier(null, entityId, null,
+                    SORT_BY_ID);
+            assertEquals(i - 1, entityId);
+        }
+        for (int i = 0; i < 500; i += 7) {
+            assertEquals((long) i, cache.getEntityIdentifierAt(null, null,
+                    SORT_BY_ID, i));
+        }
+        assertEquals(null, cache.getEntityIdentifierAt(null, null,
+                SORT_BY_ID, 500));
+    }
+
+    @Test
+    public void testForeignChangesUpdateTheCache() {
+        InMemoryCache cache = new InMemoryCache(20);
+        cache.setMaxCacheSize(-1);
+        cache.ids.remove(10L);
+        for (Object entityId : cache.getEntityIdentifiers(null, null,
+                SORT_BY_ID, 0, 19)) {
+            cache.getEntity(null, entityId);
+        }
+        int queries = cache.queries.get();
+        CacheInvalidationHub hub = CacheInvalidationHub.getInstance();
+
+        // Not subscribed by default
+        assertFalse(cache.isInvalidationHubEnabled());
+        hub.publish(new Change(Person.class, 5L, ChangeType.REMOVED), null);
+        assertEquals(5L, cache.getEntityIdentifierAt(null, null, SORT_BY_ID, 5));
+
+        // A new entity is spliced into the cached list
+        cache.setInvalidationHubEnabled(true);
+        Person person = new Person();
+        person.setId(10L);
+        cache.ids.add(10, 10L);
+        hub.publish(new Change(Person.class, 10L, ChangeType.ADDED, person),
+                null);
+        assertEquals(10L,
+                cache.getEntityIdentifierAt(null, null, SORT_BY_ID, 10));
+        assertEquals(11L,
+                cache.getEntityIdentifierAt(null, null, SORT_BY_ID, 11));
+        assertEquals(queries, cache.queries.get());
+
+        // An update of an unknown entity drops the cached lists
+        hub.publish(new Change(Person.class, 3L, ChangeType.UPDATED), null);
+        assertEquals(5L, cache.getEntityIdentifierAt(null, null, SORT_BY_ID, 5));
+        assertEquals(queries + 1, cache.queries.get());
+
+        cache.setInvalidationHubEnabled(false);
+        cache.ids.remove(5L);
+        hub.publish(new Change(Person.class, 5L, ChangeType.REMOVED), null);
+        assertEquals(5L, cache.getEntityIdentifierAt(null, null, SORT_BY_ID, 5));
+    }
+
+    /**
+     * Stands in for a delegate that restricts the queries to one tenant.
+     */
+    static class TenantDelegate extends DefaultQueryModifierDelegate
+            implements CacheableQueryModifierDelegate {
+
+        private static final long serialVersionUID = 1L;
+
+        public Object getCacheKey() {
+            return "tenant";
+        }
+    }
+
+    @Test
+    public void testCacheableDelegatesKeepTheCache() {
+        InMemoryCache cache = new InMemoryCache(20);
+        cache.setMaxCacheSize(-1);
+        cache.provider.setQueryModifierDelegate(new TenantDelegate());
+        for (Object entityId : cache.getAllEntityIdentifiers(null, null,
+                SORT_BY_ID)) {
+            cache.getEntity(null, entityId);
+        }
+        int queries = cache.queries.get();
+        int loads = cache.provider.loads.get();
+
+        // Narrowed down from the cached list of the same tenant
+        assertEquals(Arrays.asList((Object) 0L, 1L, 2L),
+                cache.getAllEntityIdentifiers(null, new Compare.Less("id", 3L),
+                        SORT_BY_ID));
+        assertEquals(queries, cache.queries.get());
+
+        // Only the changed entity is evicted
+        Person person = new Person();
+        person.setId(20L);
+        cache.entityAdded(person, System.nanoTime());
+        cache.entityUpdated(3L, Collections.singleton("lastName"));
+        cache.getEntity(null, 4L);
+        assertEquals(loads, cache.provider.loads.get());
+        cache.getEntity(null, 3L);
+        assertEquals(loads + 1, cache.provider.loads.get());
+    }
+}
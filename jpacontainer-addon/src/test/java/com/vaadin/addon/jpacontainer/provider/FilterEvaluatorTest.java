@@ -0,0 +1,196 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.provider.FilterEvaluator.Result;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.v7.data.util.filter.And;
+import com.vaadin.v7.data.util.filter.Between;
+import com.vaadin.v7.data.util.filter.Compare;
+import com.vaadin.v7.data.util.filter.IsNull;
+import com.vaadin.v7.data.util.filter.Like;
+import com.vaadin.v7.data.util.filter.Not;
+import com.vaadin.v7.data.util.filter.Or;
+import com.vaadin.v7.data.util.filter.SimpleStringFilter;
+
+/**
+ * Test case for {@link FilterEvaluator}.
+ *
+ * @since 4.0.1
+ */
+public class FilterEvaluatorTest {
+
+    private ClassMetadata<Person> metadata = MetadataFactory.getInstance()
+            .getEntityClassMetadata(Person.class);
+    private FilterEvaluator<Person> evaluator;
+    private Person person;
+
+    @Before
+    public void setUp() {
+        evaluator = new FilterEvaluator<Person>(metadata);
+        person = new Person();
+        person.setId(10L);
+        person.setFirstName("Joe");
+        person.setLastName("Cool");
+        person.setPrimitiveDouble(12.5);
+    }
+
+    @Test
+    public void testNumbers() {
+        assertEquals(Result.MATCH,
+                evaluator.evaluate(new Compare.Equal("id", 10L), person));
+        // The value type does not need to match exactly
+        assertEquals(Result.MATCH,
+                evaluator.evaluate(new Compare.Equal("id", 10), person));
+        assertEquals(Result.NO_MATCH,
+                evaluator.evaluate(new Compare.Equal("id", 11L), person));
+        assertEquals(Result.MATCH,
+                evaluator.evaluate(new Compare.Greater("id", 9), person));
+        assertEquals(Result.NO_MATCH,
+                evaluator.evaluate(new Compare.Less("id", 10), person));
+        assertEquals(Result.MATCH,
+                evaluator.evaluate(new Compare.LessOrEqual("id", 10), person));
+        assertEquals(Result.MATCH, evaluator.evaluate(new Between(
+                "primitiveDouble", 12, 13), person));
+        assertEquals(Result.NO_MATCH, evaluator.evaluate(new Between(
+                "primitiveDouble", 1, 12), person));
+    }
+
+    @Test
+    public void testStrings() {
+        assertEquals(Result.MATCH, evaluator.evaluate(new Compare.Equal(
+                "firstName", "Joe"), person));
+        // A case insensitive collation could still match
+        assertEquals(Result.UNKNOWN, evaluator.evaluate(new Compare.Equal(
+                "firstName", "JOE"), person));
+        assertEquals(Result.UNKNOWN, evaluator.evaluate(new Compare.Greater(
+                "firstName", "A"), person));
+        assertEquals(Result.MATCH,
+                evaluator.evaluate(new Like("lastName", "C_o%"), person));
+        assertEquals(Result.MATCH, evaluator.evaluate(new Like("lastName",
+                "c%", false), person));
+        assertEquals(Result.UNKNOWN,
+                evaluator.evaluate(new Like("lastName", "c%"), person));
+        assertEquals(Result.MATCH, evaluator.evaluate(new SimpleStringFilter(
+                "lastName", "oo", true, false), person));
+        // ASCII strings that do not match even when ignoring case
+        assertEquals(Result.NO_MATCH, evaluator.evaluate(
+                new SimpleStringFilter("lastName", "oo", true, true), person));
+        assertEquals(Result.NO_MATCH,
+                evaluator.evaluate(new Like("lastName", "x%"), person));
+        // An accent insensitive collation could still match
+        assertEquals(Result.UNKNOWN, evaluator.evaluate(new Like("lastName",
+                "C\u00f6%"), person));
+    }
+
+    @Test
+    public void testNulls() {
+        assertEquals(Result.MATCH,
+                evaluator.evaluate(new IsNull("dateOfBirth"), person));
+        assertEquals(Result.MATCH, evaluator.evaluate(new Compare.Equal(
+                "dateOfBirth", null), person));
+        assertEquals(Result.NO_MATCH,
+                evaluator.evaluate(new IsNull("firstName"), person));
+        // SQL comparisons with null are neither true nor false
+        assertEquals(Result.UNKNOWN, evaluator.evaluate(new Not(
+                new Compare.Greater("dateOfBirth", new java.util.Date())),
+                person));
+        // The manager is null, so the join would drop the row
+        assertEquals(Result.UNKNOWN,
+                evaluator.evaluate(new IsNull("manager.firstName"), person));
+    }
+
+    @Test
+    public void testJunctions() {
+        assertEquals(Result.MATCH, evaluator.evaluate(null, person));
+        assertEquals(Result.NO_MATCH, evaluator.evaluate(new And(
+                new Compare.Equal("id", 10L), new Compare.Equal("male", true)),
+                person));
+        assertEquals(Result.UNKNOWN, evaluator.evaluate(new And(
+                new Compare.Equal("id", 10L), new Compare.Greater("firstName",
+                        "Bob")), person));
+        assertEquals(Result.NO_MATCH, evaluator.evaluate(new And(
+                new Compare.Equal("id", 11L), new Compare.Greater("firstName",
+                        "Bob")), person));
+        assertEquals(Result.MATCH, evaluator.evaluate(new Or(
+                new Compare.Greater("firstName", "Bob"), new Compare.Equal(
+                        "id", 10L)), person));
+        assertEquals(Result.NO_MATCH, evaluator.evaluate(new Not(
+                new Compare.Equal("id", 10L)), person));
+        assertEquals(Result.UNKNOWN, evaluator.evaluate(new JoinFilter(
+                "skills", new Compare.Equal("level", 1)), person));
+    }
+
+    @Test
+    public void testCompareSortKeys() {
+        Person other = new Person();
+        other.setId(20L);
+        other.setFirstName("Joe");
+        other.setPrimitiveDouble(12.5);
+
+        List<SortBy> byDoubleAndId = Arrays.asList(new SortBy(
+                "primitiveDouble", true), new SortBy("id", true));
+        Map<Object, Object> v1 = evaluator.getSortKeyValues(person,
+                byDoubleAndId);
+        Map<Object, Object> v2 = evaluator.getSortKeyValues(other,
+                byDoubleAndId);
+        assertTrue(evaluator.compareSortKeys(v1, v2, byDoubleAndId) < 0);
+
+        List<SortBy> byIdDescending = Arrays.asList(new SortBy("id", false));
+        assertTrue(evaluator.compareSortKeys(v1, v2, byIdDescending) > 0);
+
+        // Equal strings are fine, different ones depend on the collation
+        List<SortBy> byName = Arrays.asList(new SortBy("firstName", true),
+                new SortBy("id", true));
+        v1 = evaluator.getSortKeyValues(person, byName);
+        v2 = evaluator.getSortKeyValues(other, byName);
+        assertTrue(evaluator.compareSortKeys(v1, v2, byName) < 0);
+        other.setFirstName("Bob");
+        v2 = evaluator.getSortKeyValues(other, byName);
+        assertNull(evaluator.compareSortKeys(v1, v2, byName));
+    }
+
+    @Test
+    public void testPropertyDependencies() {
+        assertEquals(Collections.emptySet(),
+                FilterEvaluator.getPropertyDependencies(null));
+        assertEquals(new HashSet<String>(Arrays.asList("male", "address")),
+                FilterEvaluator.getPropertyDependencies(new Or(
+                        new Compare.Equal("male", true), new Not(new Like(
+                                "address.street", "%road")))));
+        // The properties of custom filters are not known
+        assertNull(FilterEvaluator.getPropertyDependencies(new And(
+                new IsNull("firstName"), new JoinFilter("skills",
+                        new Compare.Equal("level", 1)))));
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link IdList}.
+ *
+ * @since 4.0.1
+ */
+public class IdListTest {
+
+    private static List<Object> longs(long from, long to) {
+        List<Object> result = new ArrayList<Object>();
+        for (long i = from; i < to; i++) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void testImplementationIsPickedByIdType() {
+        assertTrue(IdList.create(Long.class, 0) instanceof IdList.LongIdList);
+        assertTrue(IdList.create(Long.TYPE, 0) instanceof IdList.LongIdList);
+        assertTrue(IdList.create(Integer.TYPE, 0) instanceof IdList.IntIdList);
+        assertTrue(IdList.create(String.class, 0) instanceof IdList.ObjectIdList);
+    }
+
+    @Test
+    public void testBehavesLikeArrayList() {
+        List<Object> expected = new ArrayList<Object>();
+        List<Object> list = IdList.create(Long.class, 1);
+        for (List<Object> l : Arrays.asList(expected, list)) {
+            l.addAll(longs(0, 100));
+            l.add(0, -1L);
+            l.subList(10, 30).clear();
+            l.addAll(5, longs(200, 210));
+            l.remove(50);
+            l.set(3, 300L);
+            Collections.reverse(l.subList(20, 40));
+            l.addAll(longs(400, 420));
+        }
+        assertEquals(expected, list);
+        assertEquals(expected.hashCode(), list.hashCode());
+        for (Object id : expected) {
+            assertEquals(expected.indexOf(id), list.indexOf(id));
+        }
+        assertEquals(-1, list.indexOf(15L));
+        assertEquals(-1, list.indexOf(15));
+        assertEquals(-1, list.indexOf("15"));
+
+        list.clear();
+        assertTrue(list.isEmpty());
+        assertEquals(-1, list.indexOf(0L));
+    }
+
+    @Test
+    public void testPositionsAreKeptWhileAppending() {
+        List<Object> list = IdList.create(Integer.class, 0);
+        List<Object> objects = IdList.create(String.class, 0);
+        for (int i = 0; i < 1000; i++) {
+            list.add(i * 7);
+            objects.add("id" + i);
+            assertEquals(i, list.indexOf(i * 7));
+            assertEquals(i, objects.indexOf("id" + i));
+            assertEquals(i / 2, list.indexOf((i / 2) * 7));
+        }
+        list.subList(0, 100).clear();
+        assertEquals(0, list.indexOf(700));
+        assertEquals(-1, list.indexOf(0));
+    }
+
+    @Test
+    public void testPositionsAreKeptWhilePrependingAndTrimming() {
+        List<Object> expected = new ArrayList<Object>();
+        List<Object> list = IdList.create(Long.class, 0);
+        for (List<Object> l : Arrays.asList(expected, list)) {
+            l.addAll(longs(1000, 1100));
+        }
+        assertEquals(50, list.indexOf(1050L));
+        for (long chunk = 9; chunk >= 0; chunk--) {
+            // Like scrolling backwards with a limited cache size
+            for (List<Object> l : Arrays.asList(expected, list)) {
+                l.subList(l.size() - 50, l.size()).clear();
+                l.addAll(0, longs(chunk * 100, chunk * 100 + 50));
+            }
+            for (Object id : expected) {
+                assertEquals(expected.indexOf(id), list.indexOf(id));
+            }
+            assertEquals(-1, list.indexOf(1099L));
+        }
+        assertEquals(expected, list);
+
+        // A duplicate drops the positions instead of corrupting them
+        list.addAll(0, Arrays.<Object> asList(0L));
+        assertEquals(0, list.indexOf(0L));
+        list.subList(0, 1).clear();
+        assertEquals(0, list.indexOf(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnexpectedIdIsRejected() {
+        IdList.create(Long.class, 10).add(Integer.valueOf(1));
+    }
+
+    /**
+     * An entityId that counts the calls to {@link #equals(Object)}.
+     */
+    static class CountingId {
+        static int equalsCalls;
+        final long value;
+
+        CountingId(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            equalsCalls++;
+            return obj instanceof CountingId
+                    && ((CountingId) obj).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (value ^ (value >>> 32));
+        }
+    }
+
+    private static List<Object> countingIds(long from, long to) {
+        List<Object> result = new ArrayList<Object>();
+        for (long i = from; i < to; i++) {
+            result.add(new CountingId(i));
+        }
+        return result;
+    }
+
+    /**
+     * Walks through the list the way
+     * {@link CachingSupport#getNextEntityIdentifier} does, looking up each
+     * entityId with an equal copy of it.
+     */
+    private static void walk(List<Object> list, long from) {
+        for (long i = from; i < from + list.size() - 1; i++) {
+            int index = list.indexOf(new CountingId(i));
+            assertEquals(i + 1, ((CountingId) list.get(index + 1)).value);
+        }
+    }
+
+    @Test
+    public void testWalkingThroughWindowDoesNotScan() {
+        int windowSize = 1000;
+        List<Object> list = IdList.create(CountingId.class,
+                countingIds(0, windowSize));
+        CountingId.equalsCalls = 0;
+        walk(list, 0);
+        // A scan would call equals about windowSize^2 / 2 times
+        assertTrue(CountingId.equalsCalls <= 2 * windowSize);
+
+        // Appending a chunk and trimming the start keep the positions
+        list.addAll(countingIds(windowSize, 2 * windowSize));
+        list.subList(0, windowSize).clear();
+        CountingId.equalsCalls = 0;
+        walk(list, windowSize);
+        assertTrue(CountingId.equalsCalls <= 2 * windowSize);
+    }
+
+    @Test(timeout = 10000)
+    public void testWalkingThroughLargeListIsLinear() {
+        List<Object> list = IdList.create(Long.class, longs(0, 200000));
+        for (long i = 0; i < 200000; i++) {
+            assertEquals((int) i, list.indexOf(i));
+        }
+    }
+}
@@ -16,8 +16,11 @@
 package com.vaadin.addon.jpacontainer.provider;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Before;
@@ -67,4 +70,16 @@ public class LocalEntityProviderTest {
         assertEquals(4, newSortBys.size());
     }
 
+    @Test
+    public void testKeysetPagingIsOnlySupportedForNonNullProperties() {
+        assertTrue(entityProvider.isKeysetPagingSupported(Arrays.asList(
+                new SortBy("id", true))));
+        assertTrue(entityProvider.isKeysetPagingSupported(Arrays.asList(
+                new SortBy("male", true), new SortBy("id", true))));
+        assertFalse(entityProvider.isKeysetPagingSupported(Arrays.asList(
+                new SortBy("lastName", true), new SortBy("id", true))));
+        assertFalse(entityProvider.isKeysetPagingSupported(Arrays.asList(
+                new SortBy("address.street", true), new SortBy("id", true))));
+    }
+
 }
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link PrefetchPolicy}.
+ *
+ * @since 4.0.1
+ */
+public class PrefetchPolicyTest {
+
+    private static final int TARGET = PrefetchPolicy.DEFAULT_TARGET_QUERY_TIME;
+    private static final long FAST = 1000000L;
+    private static final long SLOW = TARGET * 4 * 1000000L;
+
+    @Test
+    public void testScrollDirectionIsDetected() {
+        PrefetchPolicy policy = new PrefetchPolicy();
+        assertEquals(0, policy.getScrollDirection());
+        policy.recordAccess(100, 20);
+        policy.recordAccess(110, 20);
+        assertEquals(0, policy.getScrollDirection());
+        policy.recordAccess(125, 20);
+        assertEquals(1, policy.getScrollDirection());
+        assertEquals(20, policy.getPageLength());
+        assertTrue(policy.getPrefetchDistance(150) >= 20);
+        assertTrue(policy.getPrefetchDistance(150) <= 150);
+
+        // A jump is not a scroll
+        policy.recordAccess(5000, 20);
+        assertEquals(0, policy.getScrollDirection());
+        assertEquals(0, policy.getPrefetchDistance(150));
+
+        policy.recordAccess(4990, 20);
+        policy.recordAccess(4970, 20);
+        assertEquals(-1, policy.getScrollDirection());
+
+        policy.recordStep(1);
+        assertEquals(0, policy.getScrollDirection());
+        policy.recordStep(1);
+        assertEquals(1, policy.getScrollDirection());
+    }
+
+    @Test
+    public void testChunkSizeFollowsQueryTime() {
+        PrefetchPolicy policy = new PrefetchPolicy();
+        assertEquals(CachingSupport.CHUNK_SIZE,
+                policy.getChunkSize(50, 1000, -1));
+        for (int i = 0; i < 10; i++) {
+            int chunkSize = policy.getChunkSize(50, 1000, -1);
+            policy.recordQuery(chunkSize, chunkSize, FAST, TARGET, 50, 1000);
+        }
+        assertEquals(1000, policy.getChunkSize(50, 1000, -1));
+        // Half of the cache at most
+        assertEquals(200, policy.getChunkSize(50, 1000, 400));
+
+        // Short results tell nothing of the cost of a full chunk
+        policy.recordQuery(3, 1000, SLOW, TARGET, 50, 1000);
+        assertEquals(1000, policy.getChunkSize(50, 1000, -1));
+
+        for (int i = 0; i < 10; i++) {
+            int chunkSize = policy.getChunkSize(50, 1000, -1);
+            policy.recordQuery(chunkSize, chunkSize, SLOW, TARGET, 50, 1000);
+        }
+        assertEquals(50, policy.getChunkSize(50, 1000, -1));
+        assertEquals(100, policy.getChunkSize(100, 100, -1));
+    }
+
+    @Test
+    public void testChunkCoversTwoPages() {
+        PrefetchPolicy policy = new PrefetchPolicy();
+        policy.recordAccess(0, 120);
+        assertEquals(240, policy.getChunkSize(50, 1000, -1));
+        assertEquals(200, policy.getChunkSize(50, 200, -1));
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link PrimitiveIdSet}.
+ *
+ * @since 4.0.1
+ */
+public class PrimitiveIdSetTest {
+
+    @Test
+    public void testBehavesLikeHashSet() {
+        Set<Object> expected = new HashSet<Object>();
+        PrimitiveIdSet set = new PrimitiveIdSet(-1, false);
+        Random rnd = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            Long id = Long.valueOf(rnd.nextInt(5000));
+            if (rnd.nextInt(3) == 0) {
+                assertEquals(expected.remove(id), set.remove(id));
+            } else {
+                assertEquals(expected.add(id), set.add(id));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long id = 0; id < 5000; id++) {
+            assertEquals(expected.contains(id), set.contains(id));
+        }
+        assertEquals(expected, set);
+        assertFalse(set.contains(Integer.valueOf(1)));
+        assertFalse(set.contains("1"));
+    }
+
+    @Test
+    public void testRecentlyUsedIdsAreKept() {
+        PrimitiveIdSet set = new PrimitiveIdSet(100, true);
+        for (int id = 1; id <= 101; id++) {
+            set.add(id);
+        }
+        assertEquals(100, set.size());
+        assertTrue(set.contains(101));
+        for (int id = 102; id <= 150; id++) {
+            for (int used = 1; used <= 10; used++) {
+                set.contains(used);
+            }
+            set.add(id);
+        }
+        assertEquals(100, set.size());
+        for (int id = 1; id <= 10; id++) {
+            assertTrue(set.contains(id));
+        }
+        assertTrue(set.contains(150));
+    }
+}
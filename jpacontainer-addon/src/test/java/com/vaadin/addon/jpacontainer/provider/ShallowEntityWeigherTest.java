@@ -0,0 +1,66 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Test case for {@link ShallowEntityWeigher}.
+ *
+ * @since 4.0.1
+ */
+public class ShallowEntityWeigherTest {
+
+    private ShallowEntityWeigher<Person> weigher = new ShallowEntityWeigher<Person>(
+            MetadataFactory.getInstance().getEntityClassMetadata(Person.class));
+
+    @Test
+    public void testStringsAndEmbeddedObjectsAreWeighed() {
+        Person person = new Person();
+        long empty = weigher.weigh(person);
+        assertTrue(empty > ShallowEntityWeigher.OBJECT_HEADER);
+
+        person.setFirstName("Joe");
+        assertEquals(empty + ShallowEntityWeigher.STRING + 6,
+                weigher.weigh(person));
+
+        Address address = new Address();
+        address.setStreet("Main Street");
+        person.setAddress(address);
+        assertTrue(weigher.weigh(person) > empty
+                + ShallowEntityWeigher.STRING * 2 + 28);
+    }
+
+    @Test
+    public void testReferencesAreNotFollowed() {
+        Person person = new Person();
+        person.setDateOfBirth(new Date());
+        long weight = weigher.weigh(person);
+        Person manager = new Person();
+        manager.setFirstName("A manager with a long name");
+        person.setManager(manager);
+        assertEquals(weight, weigher.weigh(person));
+    }
+}
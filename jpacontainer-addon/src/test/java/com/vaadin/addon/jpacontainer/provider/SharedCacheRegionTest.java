@@ -0,0 +1,220 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.Change;
+import com.vaadin.addon.jpacontainer.provider.CacheInvalidationHub.ChangeType;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.v7.data.util.filter.Compare;
+
+/**
+ * Test case for {@link SharedCacheRegion}.
+ *
+ * @since 4.0.1
+ */
+public class SharedCacheRegionTest {
+
+    private EntityClassMetadata<Person> metadata = MetadataFactory
+            .getInstance().getEntityClassMetadata(Person.class);
+    private SharedCacheRegion<Person> region;
+    private AtomicInteger loads = new AtomicInteger();
+
+    private static EntityManagerFactory createFactory() {
+        return (EntityManagerFactory) Proxy.newProxyInstance(
+                SharedCacheRegionTest.class.getClassLoader(),
+                new Class<?>[] { EntityManagerFactory.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException();
+                    }
+                });
+    }
+
+    @Before
+    public void setUp() {
+        region = SharedCacheRegion.getRegion(createFactory(), metadata);
+    }
+
+    private Callable<Integer> countLoader(final int count) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                loads.incrementAndGet();
+                return count;
+            }
+        };
+    }
+
+    @Test
+    public void testRegionsAreSharedPerFactory() {
+        EntityManagerFactory factory = createFactory();
+        SharedCacheRegion<Person> r = SharedCacheRegion.getRegion(factory,
+                metadata);
+        assertSame(r, SharedCacheRegion.getRegion(factory, metadata));
+        assertNotSame(r, region);
+    }
+
+    @Test
+    public void testCountsAndIdsAreLoadedOnce() {
+        assertEquals(Integer.valueOf(5), region.getEntityCount(null, null,
+                countLoader(5)));
+        assertEquals(Integer.valueOf(5), region.getEntityCount(null, null,
+                countLoader(6)));
+        assertEquals(Integer.valueOf(2), region.getEntityCount(null,
+                new Compare.Equal("male", true), countLoader(2)));
+        assertEquals(2, loads.get());
+
+        List<SortBy> sortBy = Arrays.asList(new SortBy("id", true));
+        Callable<List<Object>> idLoader = new Callable<List<Object>>() {
+            public List<Object> call() {
+                loads.incrementAndGet();
+                return Arrays.<Object> asList(1L, 2L, 3L);
+            }
+        };
+        List<Object> ids = region.getIds(null, null, sortBy, 0, 3, idLoader);
+        // The caller gets its own copy
+        ids.clear();
+        assertEquals(Arrays.<Object> asList(1L, 2L, 3L),
+                region.getIds(null, null, sortBy, 0, 3, idLoader));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testScopesAreCachedSeparately() {
+        Object tenant1 = Arrays.asList("TenantDelegate", 1);
+        Object tenant2 = Arrays.asList("TenantDelegate", 2);
+        assertEquals(Integer.valueOf(5), region.getEntityCount(tenant1, null,
+                countLoader(5)));
+        assertEquals(Integer.valueOf(3), region.getEntityCount(tenant2, null,
+                countLoader(3)));
+        assertEquals(Integer.valueOf(8), region.getEntityCount(null, null,
+                countLoader(8)));
+        assertEquals(Integer.valueOf(5), region.getEntityCount(
+                Arrays.asList("TenantDelegate", 1), null, countLoader(6)));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testEntitiesAreCopied() {
+        final Person person = new Person();
+        person.setId(1L);
+        person.setFirstName("Joe");
+        Callable<Person> loader = new Callable<Person>() {
+            public Person call() {
+                loads.incrementAndGet();
+                return person;
+            }
+        };
+        Person p1 = region.getEntity(1L, loader);
+        p1.setFirstName("Changed");
+        person.setFirstName("Changed too");
+        Person p2 = region.getEntity(1L, loader);
+        assertNotSame(p1, p2);
+        assertEquals("Joe", p2.getFirstName());
+        assertEquals(1, loads.get());
+        assertEquals("Joe",
+                region.getCachedEntities(Collections.<Object> singleton(1L))
+                        .get(1L).getFirstName());
+    }
+
+    @Test
+    public void testChangesInvalidate() {
+        Person person = new Person();
+        person.setId(1L);
+        region.putEntities(Collections.<Object, Person> singletonMap(1L,
+                person), region.getGeneration());
+        region.getEntityCount(null, null, countLoader(5));
+
+        region.entityChanged(new Change(Person.class, 2L, ChangeType.ADDED));
+        assertEquals(1, region.getCachedEntities(Arrays.<Object> asList(1L))
+                .size());
+        assertEquals(Integer.valueOf(6), region.getEntityCount(null, null,
+                countLoader(6)));
+
+        // Changes to other entity classes are ignored
+        region.entityChanged(new Change(String.class, 1L, ChangeType.UPDATED));
+        assertEquals(1, region.getCachedEntities(Arrays.<Object> asList(1L))
+                .size());
+        region.entityChanged(new Change(Person.class, 1L, ChangeType.UPDATED));
+        assertEquals(0, region.getCachedEntities(Arrays.<Object> asList(1L))
+                .size());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testStaleLoadIsNotCached() {
+        int generation = region.getGeneration();
+        region.clear();
+        Person person = new Person();
+        person.setId(1L);
+        region.putEntities(Collections.<Object, Person> singletonMap(1L,
+                person), generation);
+        assertEquals(0, region.getCachedEntities(Arrays.<Object> asList(1L))
+                .size());
+    }
+
+    @Test
+    public void testExpiredValuesAreReloaded() throws Exception {
+        assertEquals(Integer.valueOf(5), region.getEntityCount(null, null,
+                countLoader(5)));
+        // Any age, and younger than a minute
+        assertEquals(Integer.valueOf(5), region.getEntityCount(null, null,
+                -1, countLoader(6)));
+        assertEquals(Integer.valueOf(5), region.getEntityCount(null, null,
+                60000000000L, countLoader(6)));
+        assertEquals(1, loads.get());
+        Thread.sleep(2);
+        assertEquals(Integer.valueOf(6), region.getEntityCount(null, null,
+                1000000L, countLoader(6)));
+        assertEquals(2, loads.get());
+
+        Person person = new Person();
+        person.setId(1L);
+        region.putEntities(Collections.<Object, Person> singletonMap(1L,
+                person), region.getGeneration());
+        assertEquals(1, region.getCachedEntities(Arrays.<Object> asList(1L),
+                60000000000L).size());
+        Thread.sleep(2);
+        assertEquals(0, region.getCachedEntities(Arrays.<Object> asList(1L),
+                1000000L).size());
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link SingleFlight}.
+ *
+ * @since 4.0.1
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> loader = new Callable<String>() {
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return "value";
+            }
+        };
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = flight.load("key", loader);
+                }
+            };
+            threads[i].start();
+            if (i == 0) {
+                assertTrue(loading.await(10, TimeUnit.SECONDS));
+            }
+        }
+        // Give the other threads time to start waiting for the first load
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+        assertEquals(1, loads.get());
+        for (String result : results) {
+            assertEquals("value", result);
+        }
+    }
+
+    @Test
+    public void testDifferentKeysAreLoadedInParallel() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        // Both loads must be in progress at the same time for this to finish
+        final CountDownLatch bothLoading = new CountDownLatch(2);
+        final String[] results = new String[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = flight.load("key" + index,
+                            new Callable<String>() {
+                                public String call() throws Exception {
+                                    bothLoading.countDown();
+                                    if (!bothLoading.await(10,
+                                            TimeUnit.SECONDS)) {
+                                        return "timeout";
+                                    }
+                                    return "value" + index;
+                                }
+                            });
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(20000);
+        }
+        assertEquals("value0", results[0]);
+        assertEquals("value1", results[1]);
+    }
+
+    @Test
+    public void testFailureIsRethrownAndNotRemembered() {
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        try {
+            flight.load("key", new Callable<String>() {
+                public String call() throws Exception {
+                    throw new IllegalArgumentException("failed");
+                }
+            });
+            fail("No exception thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals("value", flight.load("key", new Callable<String>() {
+            public String call() throws Exception {
+                return "value";
+            }
+        }));
+    }
+
+    @Test
+    public void testReentrantLoadDoesNotDeadlock() {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        String result = flight.load("key", new Callable<String>() {
+            public String call() throws Exception {
+                return "outer-" + flight.load("key", new Callable<String>() {
+                    public String call() throws Exception {
+                        return "inner";
+                    }
+                });
+            }
+        });
+        assertEquals("outer-inner", result);
+    }
+}
@@ -16,10 +16,42 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.CacheableQueryModifierDelegate;
+import com.vaadin.addon.jpacontainer.CountEstimator;
+import com.vaadin.addon.jpacontainer.CountStrategy;
+import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityWeigher;
+import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.util.DefaultQueryModifierDelegate;
+import com.vaadin.v7.data.Container.Filter;
+import com.vaadin.v7.data.util.filter.And;
+import com.vaadin.v7.data.util.filter.SimpleStringFilter;
 
 /**
  * Base class for the {@link CachingLocalEntityProvider} Entity Manager tests.
@@ -49,5 +81,407 @@ public abstract class AbstractCachingLocalEntityProviderEMTest extends
 		return provider;
 	}
 
-	// TODO Add some test cases that try out the caching features as well
+	@Test
+	public void testGetEntityIdentifierAt_KeysetPaging() {
+		System.out.println("testGetEntityIdentifierAt_KeysetPaging");
+		doTestKeysetPaging(DataGenerator.getTestDataSortedByName(), null,
+				DataGenerator.getSortByName());
+	}
+
+	@Test
+	public void testGetEntityIdentifierAt_KeysetPagingWithFilter() {
+		System.out.println("testGetEntityIdentifierAt_KeysetPagingWithFilter");
+		doTestKeysetPaging(DataGenerator.getFilteredTestDataSortedByName(),
+				DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+	}
+
+	@Test
+	public void testGetEntityIdentifierAt_KeysetPagingByPrimaryKey() {
+		System.out.println("testGetEntityIdentifierAt_KeysetPagingByPrimaryKey");
+		doTestKeysetPaging(DataGenerator.getTestDataSortedByPrimaryKey(), null,
+				new LinkedList<SortBy>());
+	}
+
+	@Test
+	public void testGetEntity_ReadAhead() throws Exception {
+		System.out.println("testGetEntity_ReadAhead");
+		final AtomicInteger singleLoads = new AtomicInteger();
+		final AtomicInteger batchLoads = new AtomicInteger();
+		CachingLocalEntityProvider<Person> provider = new CachingLocalEntityProvider<Person>(
+				Person.class, getEntityManager()) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Person doGetEntity(Object entityId) {
+				singleLoads.incrementAndGet();
+				return super.doGetEntity(entityId);
+			}
+
+			@Override
+			protected Map<Object, Person> doGetEntities(
+					Collection<?> entityIds) {
+				batchLoads.incrementAndGet();
+				return super.doGetEntities(entityIds);
+			}
+		};
+		provider.setCacheEnabled(true);
+		provider.setCloneCachedEntities(true);
+		provider.setEntityCacheMaxSize(400);
+		provider.setReadAheadSize(20);
+		List<Person> testData = DataGenerator.getTestDataSortedByName();
+		// Render "pages" the way a table does: look up the ID by index,
+		// then fetch the entity
+		for (int i = 0; i < testData.size(); i++) {
+			Object id = provider.getEntityIdentifierAt(container, null,
+					DataGenerator.getSortByName(), i);
+			assertEquals(testData.get(i).getId(), id);
+			assertEquals(testData.get(i), provider.getEntity(container, id));
+		}
+		// One batch per page of 20 instead of one query per row, plus at
+		// most one more where a page crosses the end of an entityId window
+		int pages = (testData.size() + 19) / 20;
+		int loads = singleLoads.get() + batchLoads.get();
+		assertTrue("Expected about " + pages + " loads, was " + loads,
+				loads <= 2 * pages);
+		assertTrue(batchLoads.get() > 0);
+	}
+
+	@Test
+	public void testGetEntity_WeightBudget() {
+		System.out.println("testGetEntity_WeightBudget");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		final AtomicInteger weighed = new AtomicInteger();
+		provider.setEntityCacheMaxSize(-1);
+		provider.setEntityWeigher(new EntityWeigher<Person>() {
+			public long weigh(Person entity) {
+				weighed.incrementAndGet();
+				return 1000;
+			}
+		});
+		// Room for a window of entityIds and some tens of entities
+		provider.setMaxCacheWeight(50000);
+		List<Person> testData = DataGenerator.getTestDataSortedByName();
+		for (int i = 0; i < testData.size(); i++) {
+			Object id = provider.getEntityIdentifierAt(container, null,
+					DataGenerator.getSortByName(), i);
+			assertEquals(testData.get(i).getId(), id);
+			assertEquals(testData.get(i), provider.getEntity(container, id));
+		}
+		assertTrue(weighed.get() >= testData.size());
+		provider.setMaxCacheWeight(-1);
+		provider.setEntityWeigher(null);
+	}
+
+	@Test
+	public void testGetEntityIdentifiers_AdaptiveChunks() {
+		System.out.println("testGetEntityIdentifiers_AdaptiveChunks");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		// Small chunks and a small cache make the windows grow, move and
+		// get prefetched many times
+		provider.setChunkSizeBounds(10, 40);
+		provider.setEntityCacheMaxSize(100);
+		List<Person> testData = DataGenerator.getTestDataSortedByName();
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+		List<Object> expected = new ArrayList<Object>();
+		for (Person p : testData) {
+			expected.add(p.getId());
+		}
+
+		// Scroll pages forwards and backwards the way a table does
+		for (int i = 0; i < testData.size(); i += 7) {
+			assertEquals(expected.subList(i, Math.min(i + 15, expected.size())),
+					provider.getEntityIdentifiers(container, null, sortBy, i, 15));
+		}
+		for (int i = testData.size() - 15; i >= 0; i -= 7) {
+			assertEquals(expected.subList(i, i + 15),
+					provider.getEntityIdentifiers(container, null, sortBy, i, 15));
+		}
+		doTestGetNextEntity(testData, null, sortBy);
+		doTestGetPreviousEntity(testData, null, sortBy);
+		doTestGetEntityIdentifierAt(testData, null, sortBy);
+		doTestGetEntityIdentifierAtBackwards(testData, null, sortBy);
+	}
+
+	@Test
+	public void testGetNextEntityIdentifier_KeepsPosition() {
+		System.out.println("testGetNextEntityIdentifier_KeepsPosition");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		// The window is trimmed from the front while walking forwards
+		provider.setChunkSizeBounds(10, 40);
+		provider.setEntityCacheMaxSize(100);
+		List<Person> testData = DataGenerator.getTestDataSortedByName();
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+		Object id = provider.getEntityIdentifierAt(container, null, sortBy, 0);
+		assertEquals(testData.get(0).getId(), id);
+		for (int i = 1; i < 250; i++) {
+			id = provider.getNextEntityIdentifier(container, id, null, sortBy);
+			assertEquals(testData.get(i).getId(), id);
+		}
+		// Positions that the window has moved past as well as the ones it
+		// still covers
+		for (int i = 0; i < 250; i++) {
+			assertEquals(testData.get(i).getId(), provider
+					.getEntityIdentifierAt(container, null, sortBy, i));
+		}
+	}
+
+	@Test
+	public void testGetEntityIdentifiers_AsyncPrefetch() throws Exception {
+		System.out.println("testGetEntityIdentifiers_AsyncPrefetch");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		provider.setPrefetchExecutor(executor);
+		try {
+			provider.setChunkSizeBounds(10, 40);
+			provider.setEntityCacheMaxSize(100);
+			List<Person> testData = DataGenerator.getTestDataSortedByName();
+			List<SortBy> sortBy = DataGenerator.getSortByName();
+			List<Object> expected = new ArrayList<Object>();
+			for (Person p : testData) {
+				expected.add(p.getId());
+			}
+			// The prefetched chunks are merged while scrolling
+			for (int i = 0; i < testData.size(); i += 7) {
+				assertEquals(
+						expected.subList(i, Math.min(i + 15, expected.size())),
+						provider.getEntityIdentifiers(container, null, sortBy,
+								i, 15));
+				assertEquals(testData.get(i),
+						provider.getEntity(container, expected.get(i)));
+			}
+			for (int i = testData.size() - 15; i >= 0; i -= 7) {
+				assertEquals(expected.subList(i, i + 15),
+						provider.getEntityIdentifiers(container, null, sortBy,
+								i, 15));
+			}
+			// Changing the filter cancels the prefetches of the old one
+			Filter filter = DataGenerator.getTestFilter();
+			List<Person> filtered = DataGenerator
+					.getFilteredTestDataSortedByName();
+			for (int i = 0; i < filtered.size(); i += 7) {
+				assertEquals(filtered.get(i).getId(),
+						provider.getEntityIdentifiers(container, filter, sortBy,
+								i, 15).get(0));
+			}
+		} finally {
+			provider.setPrefetchExecutor(null);
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void testGetEntityCount_CountStrategies() {
+		System.out.println("testGetEntityCount_CountStrategies");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		List<Person> testData = DataGenerator.getTestDataSortedByName();
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+		Object lastId = testData.get(testData.size() - 1).getId();
+		assertEquals(testData.size(), provider.getEntityCount(container, null));
+
+		provider.setCountStrategy(CountStrategy.<Person> capped(10));
+		assertEquals(10, provider.getEntityCount(container, null));
+		// The last entity is not at the capped count
+		assertEquals(lastId, provider.getLastEntityIdentifier(container, null,
+				sortBy));
+		provider.setCountStrategy(CountStrategy.<Person> capped(testData
+				.size() + 1));
+		assertEquals(testData.size(), provider.getEntityCount(container, null));
+
+		provider.setCountStrategy(CountStrategy
+				.estimated(new CountEstimator<Person>() {
+					public int estimateEntityCount(
+							EntityContainer<Person> entityContainer,
+							Filter filter) {
+						return filter == null ? 12345 : -1;
+					}
+				}));
+		assertEquals(12345, provider.getEntityCount(container, null));
+		assertEquals(lastId, provider.getLastEntityIdentifier(container, null,
+				sortBy));
+		// Counted when there is no estimate
+		assertEquals(DataGenerator.getFilteredTestDataSortedByName().size(),
+				provider.getEntityCount(container,
+						DataGenerator.getTestFilter()));
+
+		provider.setCountStrategy(null);
+		assertTrue(provider.getCountStrategy().isExact(0));
+		assertEquals(testData.size(), provider.getEntityCount(container, null));
+	}
+
+	@Test
+	public void testGetEntityCount_TimeToLive() throws Exception {
+		System.out.println("testGetEntityCount_TimeToLive");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		final AtomicInteger counts = new AtomicInteger();
+		provider.setCountStrategy(CountStrategy
+				.estimated(new CountEstimator<Person>() {
+					public int estimateEntityCount(
+							EntityContainer<Person> entityContainer,
+							Filter filter) {
+						return counts.incrementAndGet();
+					}
+				}));
+		provider.setCountTimeToLive(60000);
+		assertEquals(1, provider.getEntityCount(container, null));
+		assertEquals(1, provider.getEntityCount(container, null));
+
+		// Without an executor, an expired count is reloaded right away
+		provider.setCountTimeToLive(1);
+		Thread.sleep(5);
+		assertEquals(2, provider.getEntityCount(container, null));
+		provider.setCountTimeToLive(-1);
+		Thread.sleep(5);
+		assertEquals(2, provider.getEntityCount(container, null));
+		provider.setCountStrategy(null);
+	}
+
+	@Test
+	public void testGetAllEntityIdentifiers_RefinedInMemory() throws Exception {
+		System.out.println("testGetAllEntityIdentifiers_RefinedInMemory");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setEntityCacheMaxSize(1000);
+		Filter filter = DataGenerator.getTestFilter();
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+
+		// Cache all the entities matching the filter
+		for (Object id : provider.getAllEntityIdentifiers(container, filter,
+				sortBy)) {
+			provider.getEntity(container, id);
+		}
+
+		List<Object> expected = new ArrayList<Object>();
+		for (Person p : DataGenerator.getFilteredTestDataSortedByName()) {
+			if (p.getFirstName().toUpperCase().startsWith("JO")) {
+				expected.add(p.getId());
+			}
+		}
+		Filter narrower = new And(new SimpleStringFilter("firstName", "jo",
+				true, true), filter);
+		// Any query would fail without an entity manager
+		provider.setEntityManager(null);
+		try {
+			assertEquals(expected.size(),
+					provider.getEntityCount(container, narrower));
+			assertEquals(expected, provider.getAllEntityIdentifiers(
+					container, narrower, sortBy));
+		} finally {
+			provider.setEntityManager(getEntityManager());
+		}
+	}
+
+	@Test
+	public void testGetAllEntityIdentifiers_SortedInMemory() throws Exception {
+		System.out.println("testGetAllEntityIdentifiers_SortedInMemory");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setEntityCacheMaxSize(1000);
+
+		// Cache all the entities
+		for (Object id : provider.getAllEntityIdentifiers(container, null,
+				DataGenerator.getSortByName())) {
+			provider.getEntity(container, id);
+		}
+
+		List<Object> byNameDescending = new ArrayList<Object>();
+		for (Person p : DataGenerator.getTestDataSortedByName()) {
+			byNameDescending.add(0, p.getId());
+		}
+		List<Object> byIdDescending = new ArrayList<Object>();
+		for (Person p : DataGenerator.getTestDataSortedByPrimaryKey()) {
+			byIdDescending.add(0, p.getId());
+		}
+		// Any query would fail without an entity manager
+		provider.setEntityManager(null);
+		try {
+			assertEquals(byNameDescending, provider.getAllEntityIdentifiers(
+					container, null, Arrays.asList(new SortBy("lastName",
+							false), new SortBy("firstName", false))));
+			assertEquals(byIdDescending, provider.getAllEntityIdentifiers(
+					container, null, Arrays.asList(new SortBy("id", false))));
+		} finally {
+			provider.setEntityManager(getEntityManager());
+		}
+	}
+
+	/**
+	 * Restricts all queries to persons of one gender, like a delegate that
+	 * restricts them to the tenant of the current user.
+	 */
+	private static class GenderDelegate extends DefaultQueryModifierDelegate
+			implements CacheableQueryModifierDelegate {
+		private final boolean male;
+
+		private GenderDelegate(boolean male) {
+			this.male = male;
+		}
+
+		@Override
+		public void filtersWillBeAdded(CriteriaBuilder criteriaBuilder,
+				CriteriaQuery<?> query, List<Predicate> predicates) {
+			Root<?> root = query.getRoots().iterator().next();
+			predicates.add(criteriaBuilder.equal(root.get("male"), male));
+		}
+
+		public Object getCacheKey() {
+			return male;
+		}
+	}
+
+	@Test
+	public void testCacheableQueryModifierDelegate() throws Exception {
+		System.out.println("testCacheableQueryModifierDelegate");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		List<Object> males = new ArrayList<Object>();
+		List<Object> females = new ArrayList<Object>();
+		for (Person p : DataGenerator.getTestDataSortedByName()) {
+			(p.isMale() ? males : females).add(p.getId());
+		}
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+		try {
+			provider.setQueryModifierDelegate(new GenderDelegate(true));
+			assertTrue(provider.usesCache());
+			assertEquals(males.size(), provider.getEntityCount(container, null));
+			assertEquals(males,
+					provider.getAllEntityIdentifiers(container, null, sortBy));
+			provider.setQueryModifierDelegate(new GenderDelegate(false));
+			assertEquals(females.size(),
+					provider.getEntityCount(container, null));
+			assertEquals(females,
+					provider.getAllEntityIdentifiers(container, null, sortBy));
+
+			// Any query would fail without an entity manager
+			provider.setEntityManager(null);
+			provider.setQueryModifierDelegate(new GenderDelegate(true));
+			assertEquals(males.size(), provider.getEntityCount(container, null));
+			assertEquals(males,
+					provider.getAllEntityIdentifiers(container, null, sortBy));
+		} finally {
+			provider.setEntityManager(getEntityManager());
+			provider.setQueryModifierDelegate(null);
+		}
+	}
+
+	protected void doTestKeysetPaging(List<Person> testData, Filter filter,
+			List<SortBy> sortBy) {
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setKeysetPagingEnabled(true);
+		// Force the ID lists to be cleaned up while scrolling
+		provider.setEntityCacheMaxSize(200);
+
+		// Scroll forwards, then backwards
+		doTestGetEntityIdentifierAt(testData, filter, sortBy);
+		doTestGetEntityIdentifierAtBackwards(testData, filter, sortBy);
+
+		// Jump around between previously visited positions, which are
+		// fetched by seeking from the closest anchor
+		int[] jumps = { testData.size() - 1, 0, testData.size() / 2,
+				testData.size() / 2 - 7, 151, 150, 1, testData.size() - 151 };
+		for (int i : jumps) {
+			if (i >= 0 && i < testData.size()) {
+				assertEquals(testData.get(i).getId(),
+						provider.getEntityIdentifierAt(container, filter,
+								sortBy, i));
+			}
+		}
+	}
 }
@@ -16,10 +16,24 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.provider.CachingMutableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.v7.data.Container.Filter;
+import com.vaadin.v7.data.util.filter.Compare;
 
 /**
  * Base class for the {@link CachingMutableLocalEntityProvider} Entity Manager tests.
@@ -51,5 +65,137 @@ public abstract class AbstractCachingMutableLocalEntityProviderEMTest extends
 		return provider;
 	}
 
+	@Test
+	public void testAddEntity_CachesAreUpdated() {
+		List<SortBy> byId = Arrays.asList(new SortBy("id", true));
+		List<SortBy> byIdDescending = Arrays.asList(new SortBy("id", false));
+		Filter males = new Compare.Equal("male", true);
+		Filter females = new Compare.Equal("male", false);
+
+		// Fill the caches
+		List<Object> allIds = new ArrayList<Object>(
+				entityProvider.getAllEntityIdentifiers(container, null, byId));
+		int count = entityProvider.getEntityCount(container, null);
+		int maleCount = entityProvider.getEntityCount(container, males);
+		int femaleCount = entityProvider.getEntityCount(container, females);
+		Object first = entityProvider.getEntityIdentifierAt(container, null,
+				byIdDescending, 0);
+		for (Object id : allIds) {
+			entityProvider.getEntity(container, id);
+		}
+
+		Person p = new Person();
+		p.setFirstName("Hello");
+		p.setLastName("World");
+		p.setMale(false);
+		Person returned = ((MutableEntityProvider<Person>) entityProvider)
+				.addEntity(p);
+
+		assertEquals(count + 1, entityProvider.getEntityCount(container, null));
+		assertEquals(maleCount,
+				entityProvider.getEntityCount(container, males));
+		assertEquals(femaleCount + 1,
+				entityProvider.getEntityCount(container, females));
+		List<Object> newIds = entityProvider.getAllEntityIdentifiers(
+				container, null, byId);
+		assertEquals(allIds.size() + 1, newIds.size());
+		assertEquals(returned.getId(), newIds.get(newIds.size() - 1));
+		assertEquals(returned.getId(), entityProvider.getEntityIdentifierAt(
+				container, null, byIdDescending, 0));
+		assertEquals(first, entityProvider.getEntityIdentifierAt(container,
+				null, byIdDescending, 1));
+		assertTrue(entityProvider.containsEntity(container, returned.getId(),
+				females));
+		assertFalse(entityProvider.containsEntity(container, returned.getId(),
+				males));
+	}
+
+	@Test
+	public void testUpdateEntityProperty_CachesAreUpdated() {
+		List<SortBy> byId = Arrays.asList(new SortBy("id", true));
+		Filter males = new Compare.Equal("male", true);
+		Filter females = new Compare.Equal("male", false);
+		Filter renamed = new Compare.Equal("firstName", "Zebulon");
+
+		// Fill the caches
+		List<Object> maleIds = new ArrayList<Object>(
+				entityProvider.getAllEntityIdentifiers(container, males, byId));
+		int count = entityProvider.getEntityCount(container, null);
+		int femaleCount = entityProvider.getEntityCount(container, females);
+		assertEquals(0, entityProvider.getEntityCount(container, renamed));
+		Object id = maleIds.get(0);
+		entityProvider.getEntity(container, id);
+
+		// Only the filters on the changed property are affected
+		MutableEntityProvider<Person> mutableProvider = (MutableEntityProvider<Person>) entityProvider;
+		mutableProvider.updateEntityProperty(id, "firstName", "Zebulon");
+		assertEquals("Zebulon", entityProvider.getEntity(container, id)
+				.getFirstName());
+		assertEquals(1, entityProvider.getEntityCount(container, renamed));
+		assertEquals(maleIds, entityProvider.getAllEntityIdentifiers(
+				container, males, byId));
+
+		mutableProvider.updateEntityProperty(id, "male", false);
+		assertEquals(count, entityProvider.getEntityCount(container, null));
+		assertEquals(maleIds.size() - 1,
+				entityProvider.getEntityCount(container, males));
+		assertEquals(femaleCount + 1,
+				entityProvider.getEntityCount(container, females));
+		assertFalse(entityProvider.containsEntity(container, id, males));
+		assertTrue(entityProvider.containsEntity(container, id, females));
+	}
+
+	@Test
+	public void testSharedCache() throws Exception {
+		CachingMutableLocalEntityProvider<Person> provider1 = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		CachingMutableLocalEntityProvider<Person> provider2 = (CachingMutableLocalEntityProvider<Person>) createEntityProvider();
+		provider1.setSharedCacheEnabled(true);
+		provider2.setSharedCacheEnabled(true);
+		Filter males = new Compare.Equal("male", true);
+		List<SortBy> byId = Arrays.asList(new SortBy("id", true));
+
+		int count = provider1.getEntityCount(container, males);
+		Object id = provider1.getEntityIdentifierAt(container, males, byId, 0);
+		Person p1 = provider1.getEntity(container, id);
+		assertEquals(count, provider2.getEntityCount(container, males));
+		assertEquals(id,
+				provider2.getEntityIdentifierAt(container, males, byId, 0));
+		Person p2 = provider2.getEntity(container, id);
+		assertEquals(p1.getFirstName(), p2.getFirstName());
+		assertFalse(p1 == p2);
+
+		// Changes made through a provider invalidate the shared cache
+		provider1.updateEntityProperty(id, "male", false);
+		CachingMutableLocalEntityProvider<Person> provider3 = (CachingMutableLocalEntityProvider<Person>) createEntityProvider();
+		provider3.setSharedCacheEnabled(true);
+		assertEquals(count - 1, provider3.getEntityCount(container, males));
+		assertFalse(id.equals(provider3.getEntityIdentifierAt(container,
+				males, byId, 0)));
+		provider1.updateEntityProperty(id, "male", true);
+	}
+
+	@Test
+	public void testChangesReachOtherProviders() throws Exception {
+		MutableEntityProvider<Person> provider1 = (MutableEntityProvider<Person>) entityProvider;
+		CachingMutableLocalEntityProvider<Person> provider2 = (CachingMutableLocalEntityProvider<Person>) createEntityProvider();
+		provider2.setInvalidationHubEnabled(true);
+		Filter males = new Compare.Equal("male", true);
+		List<SortBy> byId = Arrays.asList(new SortBy("id", true));
+
+		int count = provider2.getEntityCount(container, males);
+		Object id = provider2.getEntityIdentifierAt(container, males, byId, 0);
+		String firstName = provider2.getEntity(container, id).getFirstName();
+
+		provider1.updateEntityProperty(id, "firstName", "Zebulon");
+		assertEquals("Zebulon", provider2.getEntity(container, id)
+				.getFirstName());
+		provider1.updateEntityProperty(id, "male", false);
+		assertEquals(count - 1, provider2.getEntityCount(container, males));
+		assertFalse(provider2.containsEntity(container, id, males));
+
+		provider1.updateEntityProperty(id, "male", true);
+		provider1.updateEntityProperty(id, "firstName", firstName);
+	}
+
 	// TODO Add some test cases that try out the caching features as well
 }
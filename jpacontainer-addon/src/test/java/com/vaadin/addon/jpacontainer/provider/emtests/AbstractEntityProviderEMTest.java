@@ -46,8 +46,10 @@ import org.junit.Test;
 
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.RangedEntityProvider;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
 import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
@@ -595,6 +597,67 @@ public abstract class AbstractEntityProviderEMTest {
                 DataGenerator.getTestFilter(), DataGenerator.getSortByName());
     }
 
+    @Test
+    public void testGetEntityIdentifiersAndEntities_Range() {
+        System.out.println("testGetEntityIdentifiersAndEntities_Range");
+        List<Person> testData = DataGenerator.getTestDataSortedByName();
+        List<SortBy> sortBy = DataGenerator.getSortByName();
+        RangedEntityProvider<Person> provider = (RangedEntityProvider<Person>) entityProvider;
+        int[][] ranges = { { 0, 10 }, { 140, 30 }, { 490, 20 }, { 600, 5 } };
+        for (int[] range : ranges) {
+            List<Object> ids = provider.getEntityIdentifiers(container, null,
+                    sortBy, range[0], range[1]);
+            List<Person> entities = provider.getEntities(container, null,
+                    sortBy, range[0], range[1]);
+            int expectedSize = Math.max(0,
+                    Math.min(range[1], testData.size() - range[0]));
+            assertEquals(expectedSize, ids.size());
+            assertEquals(expectedSize, entities.size());
+            for (int i = 0; i < expectedSize; i++) {
+                assertEquals(testData.get(range[0] + i).getId(), ids.get(i));
+                assertEquals(testData.get(range[0] + i), entities.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testGetEntityCount_Filtered_QueryParameters() {
+        System.out.println("testGetEntityCount_Filtered_QueryParameters");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setQueryParametersEnabled(true);
+        doTestGetEntityCount(DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter());
+    }
+
+    @Test
+    public void testGetContainsEntity_Filtered_QueryParameters() {
+        System.out.println("testGetContainsEntity_Filtered_QueryParameters");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setQueryParametersEnabled(true);
+        doTestContainsEntity(DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter());
+    }
+
+    @Test
+    public void testGetEntityIdentifierAt_Filtered_QueryParameters() {
+        System.out
+                .println("testGetEntityIdentifierAt_Filtered_QueryParameters");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setQueryParametersEnabled(true);
+        doTestGetEntityIdentifierAt(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetNextEntity_Filtered_QueryParameters() {
+        System.out.println("testGetNextEntity_Filtered_QueryParameters");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setQueryParametersEnabled(true);
+        doTestGetNextEntity(DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+    }
+
     @Test
     public void testGetFirstEntity_Filtered_SortedByPrimaryKey() {
         System.out.println("testGetFirstEntity_Filtered_SortedByPrimaryKey");